@@ -23,11 +23,15 @@ package io.github.alexanderschuetz97.tcp2ivshmem;
 import io.github.alexanderschuetz97.tcp2ivshmem.config.Configuration;
 import io.github.alexanderschuetz97.tcp2ivshmem.config.Forwarding;
 import io.github.alexanderschuetz97.tcp2ivshmem.config.OS;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.BufferPool;
 import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants;
 import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.IvhsmemMasterBridge;
 import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.IvshmemBridge;
 import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.IvshmemSlaveBridge;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.IvshmemStat;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.LockedMapping;
 import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBuffer;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.UnsafeMemory;
 import io.github.alexanderschuetz97.ivshmem4j.api.Ivshmem;
 import io.github.alexanderschuetz97.ivshmem4j.api.IvshmemMemory;
 import io.github.alexanderschuetz97.ivshmem4j.api.WindowsIvshmemPCIDevice;
@@ -52,14 +56,60 @@ public class Main {
 
     public static ExecutorService ex = Executors.newCachedThreadPool();
 
-    public static long clientToServerOffset;
+    //The offsets and sizes of the ring buffers are changed by the reader thread during a relayout while other threads read them.
 
-    public static long serverToClientOffset = Constants.MEMORY_OVERHEAD;
+    public static volatile long clientToServerOffset;
 
-    public static long ringBufferSize;
+    public static volatile long serverToClientOffset = Constants.MEMORY_OVERHEAD;
+
+    /**
+     * Size of the ring buffer from the master to the slave. Includes the control bytes with layout version 2.
+     */
+    public static volatile long serverToClientSize;
+
+    /**
+     * Size of the ring buffer from the slave to the master. Includes the control bytes with layout version 2.
+     */
+    public static volatile long clientToServerSize;
+
+    /**
+     * Highest ring buffer layout version this side supports with the given shared memory.
+     */
+    public static int maxRingLayoutVersion = RingBuffer.LAYOUT_V1;
+
+    /**
+     * Ring buffer layout version that was agreed on during the handshake.
+     */
+    public static int ringLayoutVersion = RingBuffer.LAYOUT_V1;
+
+    /**
+     * Ring buffer flags that were agreed on during the handshake.
+     */
+    public static int ringFlags = 0;
 
     public static int maxConcurrentTcpConnections;
 
+    /**
+     * Amount of payload buffers in the buffer pool of each direction that was agreed on during the handshake. 0 if no buffer pools are used.
+     */
+    public static int poolBuffers = 0;
+
+    /**
+     * Amount of ring buffer pairs that was agreed on during the handshake. Must be set before computeRingBufferLayout is called.
+     */
+    public static int lanes = 1;
+
+    /**
+     * True if the handshake agreed on a separate ring buffer pair for connection setup, reset and server packets.
+     * Must be set before computeRingBufferLayout is called.
+     */
+    public static boolean controlLane = false;
+
+    /**
+     * Second mapping of the shared memory that keeps its pages locked in memory. null if the pages are not locked.
+     */
+    public static NativeMemory lockedMemory;
+
     public static void printUsageAndExit() {
 
         String usage = "Ivshmem bridge: \n";
@@ -70,15 +120,36 @@ public class Main {
         usage += "-si  \t                 \tSpin time     \tSets the spin time in ms when using interrupts defaults to 1000ms\n";
         usage += "-sni \t                 \tSpin time     \tSets the spin time in ms when not using interrupts defaults to 10ms. This defines the maximum latency. Lower values will increase CPU usage.\n";
         usage += "-mcon\t--max-connections\t              \tMaximum concurrent TCP connection count. Only settable by master. Defaults to 128.\n";
+        usage += "-wb  \t--write-batch    \tBatch size    \tMaximum amount of bytes that queued packets are coalesced into before writing them to shared memory. Defaults to 131072.\n";
+        usage += "-wl  \t--write-latency  \tBatch latency \tTime in microseconds the writer waits for more packets before writing a batch. Defaults to 0.\n";
+        usage += "-seq \t--sequence-counters\t            \tUse 64 bit sequence counters and a power of two ring buffer size. Only settable by master. Requires ring buffer layout version 2.\n";
+        usage += "-fr  \t--framed-records \t              \tTransfer every packet as a contiguous record in shared memory. Only settable by master. Requires ring buffer layout version 2.\n";
+        usage += "-mp  \t--multi-producer \t              \tEvery thread writes its packets straight into the ring buffer instead of handing them to a writer thread. Implies -seq and -fr. Only settable by master. Requires ring buffer layout version 2.\n";
+        usage += "-sp  \t--split          \t<percent>     \tPercentage of the shared memory used by the ring buffer from master to slave. Default 50. Only settable by master. Requires ring buffer layout version 2.\n";
+        usage += "-bp  \t--buffer-pool    \t<count>       \tAmount of 64KiB payload buffers per direction placed in shared memory. Data packets only carry a reference to such a buffer. Only settable by master. Requires ring buffer layout version 2.\n";
+        usage += "-ln  \t--lanes          \t<count>       \tAmount of ring buffer pairs with their own reader and writer threads. A connection always uses the same pair. Defaults to 1. Only settable by master. Requires ring buffer layout version 2.\n";
+        usage += "-cl  \t--control-lane   \t              \tSends connect, reset and server packets through a small separate pair of ring buffers so they do not wait behind data. Only settable by master. Requires ring buffer layout version 2.\n";
+        usage += "-as  \t--adaptive-split \t              \tMoves ring buffer capacity towards the direction whose writer waits for free space. Only settable by master. Requires ring buffer layout version 2.\n";
+        usage += "-vi  \t--verify-indices \t              \tDebug option. Publish ring buffer indices with compare and set to detect external modification. Slower.\n";
+        usage += "-ws  \t--wait-strategy  \tStrategy      \tWhat to do while waiting for the other side. busy, yield, park or interrupt. Defaults to interrupt which waits for interrupts or sleeps the spin time.\n";
+        usage += "-wp  \t--max-park       \tPark time     \tMaximum time in nanoseconds the park wait strategy parks between polls. Defaults to 100000.\n";
+        usage += "-ap  \t--adaptive-spin  \t<min>:<max>   \tChooses the spin time without interrupts between min and max microseconds from the recent traffic. Shorter while data arrives, longer while idle. Replaces -sni.\n";
+        usage += "-mb  \t--memory-backend \tBackend       \tHow the shared memory is accessed. jni calls into ivshmem4j for every access, unsafe uses JIT compiled accesses through the foreign memory api on Java 22 or newer and sun.misc.Unsafe before. Defaults to jni. Falls back to jni if neither is available.\n";
+        usage += "-pf  \t--prefault       \t              \tTouches every page of the shared memory at startup so the first traffic does not page fault. On ivshmem-plain the pages are also locked in memory if allowed.\n";
         usage+="\n";
         usage+="Linux specific:\n";
         usage+="-b \t--buffer  \tShared memory size in bytes\tOnly needed for ivshmem-plain. Only required if shared memory file does not yet exist.\n";
         usage+="-db\t--doorbell\tForce ivshmem-doorbell     \tOptional for advanced use only.\n";
         usage+="-pl\t--plain   \tForce ivshmem-plain        \tOptional for advanced use only.\n";
+        usage+="-mm\t--mirrored-mapping\tMap ring buffer data twice\tOptional. Only for ivshmem-plain. Copies across the end of a ring buffer become a single copy. Requires ring buffer layout version 2.\n";
         usage+="\n";
         usage+="Windows specific:\n";
         usage+="-ls\t \tList Ivshmem PCI devices\tMust be the only argument. Utility to command.\n";
         usage+="\n";
+        usage+="Stat:\n";
+        usage+="stat <device>\t \tPrints the state of both ring buffers of a running tunnel once a second\tMust be the first argument. Only reads the shared memory. -pl/-db may be used to select the ivshmem type.\n";
+        usage+="relayout <device> <size>\t \tAsks the master of a running tunnel to give the ring buffer from master to slave <size> bytes and the rest to the other ring buffer. Open connections are kept\tMust be the first argument. Requires ring buffer layout version 2.\n";
+        usage+="\n";
         usage+="Forwading:\n";
         usage+="-L\t-L lport:dst:dstport\t Static forwarding from local tcp port lport to address dst tcp port dstport.\n";
         usage+="-R\t-R rport:dst:dstport\t Static forwarding from remote tcp port rport to address dst tcp port dstport.\n";
@@ -161,6 +232,260 @@ public class Main {
         System.exit(-1);
     }
 
+    /**
+     * Touches every page of the shared memory so that the kernel maps all of them before the first packet is sent.
+     * On ivshmem-plain the pages are also locked into memory if the memlock limit allows it.
+     */
+    public static void prefaultMemory() {
+        long tempStart = System.nanoTime();
+        if (config.getOperatingSystem() == OS.LINUX && Boolean.TRUE.equals(config.getLinuxIsPlain())) {
+            lockedMemory = LockedMapping.map(config.getDevice(), memory.size());
+        }
+
+        //Adding 0 writes every page without changing it in case the other side is already using it.
+        boolean tempWrite = memory.supportsAtomicOperations();
+        long tempSize = memory.size();
+        for (long i = 0; i < tempSize; i += RingBuffer.PAGE_SIZE) {
+            if (tempWrite) {
+                memory.getAndAdd(i, (byte) 0);
+            } else {
+                memory.read(i);
+            }
+        }
+
+        System.out.println("Prefaulted " + tempSize + " bytes of shared memory " + (lockedMemory != null ? "and locked them into memory " : "") + "in " + ((System.nanoTime() - tempStart) / 1000000) + "ms.");
+    }
+
+    /**
+     * Computes the addresses and the size of both ring buffers for the given layout version.
+     * With more than one lane the ring buffer area is divided evenly between the lanes and these are the ring buffers of lane 0.
+     * Must be called with the same layout version on both sides.
+     */
+    public static void computeRingBufferLayout(int aLayoutVersion, int aRingFlags) {
+        long[] tempLayout = getRingBufferLayout(aLayoutVersion, aRingFlags);
+        if (tempLayout == null) {
+            System.out.println("Shared memory is too small" + (lanes > 1 ? " for " + lanes + " lanes." : "."));
+            System.exit(-1);
+            return;
+        }
+
+        long ringBufferSize = tempLayout[2];
+        ringFlags = aRingFlags;
+
+        if ((ringFlags & RingBuffer.FLAG_FRAMED) != 0 && ringBufferSize - RingBuffer.V2_OVERHEAD < Constants.MIN_ZERO_COPY_RING_CAPACITY) {
+            //Every packet has to fit into a single record.
+            System.out.println("Ring buffer is too small for framed records. Not using them.");
+            ringFlags &= ~(RingBuffer.FLAG_FRAMED | RingBuffer.FLAG_MULTI_PRODUCER);
+        }
+
+        System.out.println("Using ring buffer layout version " + aLayoutVersion + " with ring buffer size: " + ringBufferSize + ".");
+        if ((ringFlags & RingBuffer.FLAG_SEQUENCE_COUNTERS) != 0) {
+            System.out.println("Using sequence counters.");
+        }
+        if ((ringFlags & RingBuffer.FLAG_FRAMED) != 0) {
+            System.out.println("Using framed records.");
+        }
+        if ((ringFlags & RingBuffer.FLAG_MULTI_PRODUCER) != 0) {
+            System.out.println("Using multi producer ring buffers.");
+        }
+        if (lanes > 1) {
+            System.out.println("Using " + lanes + " lanes.");
+        }
+        if (controlLane) {
+            System.out.println("Using a control lane.");
+        }
+
+        applyRingBufferLayout(aLayoutVersion, ringFlags, tempLayout);
+    }
+
+    /**
+     * Returns the offsets of both ring buffers of lane 0 and the size of every ring buffer as
+     * {server to client offset, client to server offset, size} or null if the shared memory is too small.
+     * Only reads lanes, controlLane, poolBuffers and the size of the shared memory and prints nothing.
+     */
+    public static long[] getRingBufferLayout(int aLayoutVersion, int aRingFlags) {
+        long ringBufferSize;
+        long tempServerToClientOffset;
+        long tempClientToServerOffset;
+        int tempRings = 2 * lanes;
+        if (aLayoutVersion >= RingBuffer.LAYOUT_V2 && (aRingFlags & RingBuffer.FLAG_SEQUENCE_COUNTERS) != 0) {
+            //The data area of each ring buffer has to be a power of two, the rest of the memory remains unused.
+            long tempRes = getRingBufferArea() / tempRings - RingBuffer.V2_OVERHEAD;
+            ringBufferSize = tempRes > 0 ? Long.highestOneBit(tempRes) + RingBuffer.V2_OVERHEAD : 0;
+            tempServerToClientOffset = getRingBufferAreaOffset();
+            tempClientToServerOffset = tempServerToClientOffset + ringBufferSize;
+        } else if (aLayoutVersion >= RingBuffer.LAYOUT_V2) {
+            long tempRes = getRingBufferArea();
+            tempRes -= tempRes % (tempRings * RingBuffer.PAGE_SIZE);
+            ringBufferSize = tempRes / tempRings;
+            tempServerToClientOffset = getRingBufferAreaOffset();
+            tempClientToServerOffset = tempServerToClientOffset + ringBufferSize;
+        } else {
+            long tempRes = memory.size() - Constants.MEMORY_OVERHEAD - (2* RingBuffer.OVERHEAD);
+            tempRes -= tempRes % 32;
+            ringBufferSize = tempRes / 2;
+            tempServerToClientOffset = Constants.MEMORY_OVERHEAD;
+            tempClientToServerOffset = tempServerToClientOffset + RingBuffer.OVERHEAD + ringBufferSize;
+        }
+
+        if (ringBufferSize <= 0 || (aLayoutVersion >= RingBuffer.LAYOUT_V2 && ringBufferSize - RingBuffer.V2_OVERHEAD < RingBuffer.PAGE_SIZE)) {
+            return null;
+        }
+
+        return new long[]{tempServerToClientOffset, tempClientToServerOffset, ringBufferSize};
+    }
+
+    /**
+     * Uses the layout returned by getRingBufferLayout. Prints nothing.
+     */
+    public static void applyRingBufferLayout(int aLayoutVersion, int aRingFlags, long[] aLayout) {
+        ringLayoutVersion = aLayoutVersion;
+        ringFlags = aRingFlags;
+        serverToClientOffset = aLayout[0];
+        clientToServerOffset = aLayout[1];
+        serverToClientSize = aLayout[2];
+        clientToServerSize = aLayout[2];
+    }
+
+    /**
+     * Returns the amount of bytes both ring buffers of layout version 2 share. The buffer pools are placed behind them.
+     */
+    public static long getRingBufferArea() {
+        return memory.size() - getRingBufferAreaOffset() - 2 * BufferPool.getSize(poolBuffers);
+    }
+
+    /**
+     * Returns the address of the first ring buffer of layout version 2. The ring buffers of the control lane are placed
+     * in front of it.
+     */
+    public static long getRingBufferAreaOffset() {
+        return Constants.MEMORY_OVERHEAD_V2 + (controlLane ? 2 * Constants.CONTROL_RING_SIZE : 0);
+    }
+
+    /**
+     * Returns the address of the ring buffer of the control lane that carries the control packets in the given direction.
+     * Only valid if controlLane is set.
+     */
+    public static long getControlRingOffset(boolean aServerToClient) {
+        return Constants.MEMORY_OVERHEAD_V2 + (aServerToClient ? 0 : Constants.CONTROL_RING_SIZE);
+    }
+
+    /**
+     * Returns the address of the ring buffer of the given lane that carries the data in the given direction.
+     * The ring buffer pairs of all lanes are placed one after the other and have the sizes of lane 0.
+     */
+    public static long getLaneOffset(int aLane, boolean aServerToClient) {
+        return (aServerToClient ? serverToClientOffset : clientToServerOffset) + aLane * (serverToClientSize + clientToServerSize);
+    }
+
+    /**
+     * Returns the address of the buffer pool that holds the payload sent in the given direction.
+     * Only valid if poolBuffers is not 0.
+     */
+    public static long getBufferPoolOffset(boolean aServerToClient) {
+        long tempSize = BufferPool.getSize(poolBuffers);
+        return memory.size() - (aServerToClient ? 2 * tempSize : tempSize);
+    }
+
+    /**
+     * Returns the biggest size the ring buffer from the master to the slave can have with the current flags
+     * if it may use the given percentage of the shared memory.
+     */
+    public static long getServerToClientSizeForShare(int aPercent) {
+        long tempRes = getRingBufferArea() / 100 * aPercent;
+        if (tempRes <= RingBuffer.V2_OVERHEAD) {
+            return 0;
+        }
+
+        if ((ringFlags & RingBuffer.FLAG_SEQUENCE_COUNTERS) != 0) {
+            return Long.highestOneBit(tempRes - RingBuffer.V2_OVERHEAD) + RingBuffer.V2_OVERHEAD;
+        }
+
+        return tempRes - tempRes % RingBuffer.PAGE_SIZE;
+    }
+
+    /**
+     * Returns the biggest size the ring buffer from the slave to the master can have with the current flags
+     * if the other ring buffer has the given size.
+     */
+    public static long getRemainingRingBufferSize(long aServerToClientSize) {
+        long tempRes = getRingBufferArea() - aServerToClientSize;
+        if (tempRes <= RingBuffer.V2_OVERHEAD) {
+            return 0;
+        }
+
+        if ((ringFlags & RingBuffer.FLAG_SEQUENCE_COUNTERS) != 0) {
+            return Long.highestOneBit(tempRes - RingBuffer.V2_OVERHEAD) + RingBuffer.V2_OVERHEAD;
+        }
+
+        return tempRes - tempRes % RingBuffer.PAGE_SIZE;
+    }
+
+    /**
+     * Returns the next bigger or smaller size for the ring buffer from the master to the slave if it currently has the given size.
+     * Sizes are doubled or halved with sequence counters and moved by an eighth of the shared memory otherwise.
+     */
+    public static long getNextServerToClientSize(long aCurrent, boolean aGrow) {
+        if ((ringFlags & RingBuffer.FLAG_SEQUENCE_COUNTERS) != 0) {
+            long tempData = aCurrent - RingBuffer.V2_OVERHEAD;
+            return (aGrow ? tempData * 2 : tempData / 2) + RingBuffer.V2_OVERHEAD;
+        }
+
+        long tempStep = getRingBufferArea() / 8;
+        tempStep -= tempStep % RingBuffer.PAGE_SIZE;
+        return aGrow ? aCurrent + tempStep : aCurrent - tempStep;
+    }
+
+    /**
+     * Checks if both ring buffers of layout version 2 can have the given sizes including their control bytes with
+     * the current flags. Returns a description of the problem or null if they can.
+     */
+    public static String checkRingBufferSplit(long aServerToClientSize, long aClientToServerSize) {
+        if (ringLayoutVersion < RingBuffer.LAYOUT_V2) {
+            return "Changing the ring buffer sizes requires ring buffer layout version " + RingBuffer.LAYOUT_V2 + ".";
+        }
+
+        if (aServerToClientSize + aClientToServerSize > getRingBufferArea()) {
+            return "Ring buffers need " + (aServerToClientSize + aClientToServerSize) + " bytes but only " + getRingBufferArea() + " bytes are available.";
+        }
+
+        for (long tempSize : new long[]{aServerToClientSize, aClientToServerSize}) {
+            long tempData = tempSize - RingBuffer.V2_OVERHEAD;
+            if (tempData < RingBuffer.PAGE_SIZE || tempSize % RingBuffer.PAGE_SIZE != 0) {
+                return "Ring buffer size " + tempSize + " is not a multiple of " + RingBuffer.PAGE_SIZE + " or too small.";
+            }
+
+            if ((ringFlags & RingBuffer.FLAG_SEQUENCE_COUNTERS) != 0 && (tempData & (tempData - 1)) != 0) {
+                return "Ring buffer size " + tempSize + " minus " + RingBuffer.V2_OVERHEAD + " bytes of control bytes is not a power of two as required by sequence counters.";
+            }
+
+            if ((ringFlags & RingBuffer.FLAG_FRAMED) != 0 && tempData < Constants.MIN_ZERO_COPY_RING_CAPACITY) {
+                return "Ring buffer size " + tempSize + " is too small for framed records.";
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Places both ring buffers of layout version 2 with the given sizes one after the other.
+     * The sizes must have been checked with checkRingBufferSplit.
+     */
+    public static void applyRingBufferSplit(long aServerToClientSize, long aClientToServerSize) {
+        setRingBufferSplit(aServerToClientSize, aClientToServerSize);
+        System.out.println("Using ring buffer sizes: " + serverToClientSize + " master to slave and " + clientToServerSize + " slave to master.");
+    }
+
+    /**
+     * Same as applyRingBufferSplit without printing the sizes.
+     */
+    public static void setRingBufferSplit(long aServerToClientSize, long aClientToServerSize) {
+        serverToClientSize = aServerToClientSize;
+        clientToServerSize = aClientToServerSize;
+        serverToClientOffset = getRingBufferAreaOffset();
+        clientToServerOffset = serverToClientOffset + serverToClientSize;
+    }
+
     public static void main(String[] args) {
         System.out.println("Tcp2ivshmem is free software released under the GNU General Public License v3.\n" +
                 "A copy of the GNU General Public License v3 should be provided in the COPYING file within this executable.\n" +
@@ -220,6 +545,15 @@ public class Main {
             System.exit(-1);
         }
 
+        if (config.useUnsafeMemory()) {
+            if (UnsafeMemory.isAvailable()) {
+                memory = new UnsafeMemory(memory);
+                System.out.println("Accessing the shared memory through " + UnsafeMemory.getBackend());
+            } else {
+                System.out.println("Neither the foreign memory api nor sun.misc.Unsafe is available. Using jni to access the shared memory.");
+            }
+        }
+
         System.out.println("Using shared memory: " + memory);
 
         if (memory.size() < Constants.MIN_REQUIRED_MEMORY_SIZE) {
@@ -227,15 +561,32 @@ public class Main {
             System.exit(-1);
         }
 
-        long tempRes = memory.size() - Constants.MEMORY_OVERHEAD - (2* RingBuffer.OVERHEAD);
-        tempRes -= tempRes % 32;
-        ringBufferSize = tempRes / 2;
-        if (ringBufferSize <= 0) {
-            System.out.println("Shared memory is too small.");
-            System.exit(-1);
+        if (memory.size() >= Constants.MIN_REQUIRED_MEMORY_SIZE_V2) {
+            maxRingLayoutVersion = RingBuffer.LAYOUT_V2;
         }
 
-        clientToServerOffset = serverToClientOffset + RingBuffer.OVERHEAD + ringBufferSize;
+        if (config.usePrefault()) {
+            prefaultMemory();
+        }
+
+        if (config.isStat()) {
+            new IvshmemStat().run();
+            System.exit(0);
+            return;
+        }
+
+        if (config.getRelayoutSize() != null) {
+            if (memory.read(Constants.ADDRESS_STATE) != Constants.STATE_CONNECTED || memory.read(Constants.ADDRESS_RING_LAYOUT) < RingBuffer.LAYOUT_V2) {
+                System.out.println("Changing the ring buffer sizes requires a connected tunnel using ring buffer layout version " + RingBuffer.LAYOUT_V2 + ".");
+                System.exit(-1);
+                return;
+            }
+
+            memory.write(Constants.ADDRESS_RELAYOUT_REQUEST, (long) config.getRelayoutSize());
+            System.out.println("Requested ring buffer size " + config.getRelayoutSize() + " from master to slave. The master prints if it was applied.");
+            System.exit(0);
+            return;
+        }
 
         if (!shmemory.supportsInterrupts() && Boolean.TRUE.equals(config.useInterrupts())) {
             System.out.println("Interrupts not supported by shared memory.");
@@ -247,7 +598,6 @@ public class Main {
             useInterrupts = true;
         }
 
-        System.out.println("Using ring buffer size: " + ringBufferSize + ".");
 
 
         if (useInterrupts) {
@@ -20,6 +20,7 @@
 package io.github.alexanderschuetz97.tcp2ivshmem.config;
 
 import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.WaitStrategy;
 import io.github.alexanderschuetz97.ivshmem4j.api.Ivshmem;
 
 import java.util.*;
@@ -30,6 +31,10 @@ public final class Configuration {
 
     private Boolean master = null;
 
+    private boolean stat = false;
+
+    private Long relayoutSize = null;
+
     private String dev = null;
 
     private Long size = null;
@@ -50,6 +55,42 @@ public final class Configuration {
 
     private Integer maxTcpConnections;
 
+    private Integer writeBatchSize;
+
+    private Long writeBatchLatency;
+
+    private Boolean sequenceCounters;
+
+    private Boolean framedRecords;
+
+    private Boolean multiProducer;
+
+    private Integer split;
+
+    private Boolean adaptiveSplit;
+
+    private Integer poolBuffers;
+
+    private Integer lanes;
+
+    private Boolean controlLane;
+
+    private Boolean verifyIndices;
+
+    private Boolean prefault;
+
+    private Boolean unsafeMemory;
+
+    private Long adaptiveSpinMin;
+
+    private Long adaptiveSpinMax;
+
+    private Boolean mirroredMapping;
+
+    private WaitStrategy waitStrategy;
+
+    private Long maxParkNanos;
+
     private Configuration() {
         //.
     }
@@ -71,6 +112,40 @@ public final class Configuration {
     private void parseArgs(String[] args) throws IllegalArgumentException {
         for (int i = 0; i < args.length; i++) {
             switch (args[i].trim()) {
+                case ("stat"):
+                    if (i != 0) {
+                        throw new IllegalArgumentException("stat must be the first argument but is at " + i);
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    stat = true;
+                    dev = args[i + 1];
+                    i++;
+                    break;
+                case ("relayout"):
+                    if (i != 0) {
+                        throw new IllegalArgumentException("relayout must be the first argument but is at " + i);
+                    }
+
+                    if (i + 2 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected two more arguments.");
+                    }
+
+                    dev = args[i + 1];
+                    try {
+                        relayoutSize = Long.parseLong(args[i + 2]);
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Ring buffer size is not a valid number " + args[i] + " at " + i + " expected a number greater than 0 at " + (i + 2) + " but got " + args[i + 2]);
+                    }
+
+                    if (relayoutSize <= 0) {
+                        throw new IllegalArgumentException("Ring buffer size is too small " + args[i] + " at " + i + " expected a number greater than 0 at " + (i + 2) + " but got " + args[i + 2]);
+                    }
+                    i += 2;
+                    break;
                 case ("-pl"):
                     //FallThru
                 case ("--plain"):
@@ -246,6 +321,250 @@ public final class Configuration {
                     }
                     i++;
                     break;
+                case("--write-batch"):
+                case("-wb"):
+                    if (writeBatchSize != null) {
+                        throw new IllegalArgumentException("Write batch size already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    try {
+                        writeBatchSize = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Write batch size is not a valid number " + args[i] + " at " + i + " expected a positive number greater than 0 at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+
+                    if (writeBatchSize <= 0) {
+                        throw new IllegalArgumentException("Write batch size is too small " + args[i] + " at " + i + " expected a number greater than 0 at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+                    i++;
+                    break;
+                case("--write-latency"):
+                case("-wl"):
+                    if (writeBatchLatency != null) {
+                        throw new IllegalArgumentException("Write batch latency already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    try {
+                        writeBatchLatency = Long.parseLong(args[i + 1]);
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Write batch latency is not a valid number " + args[i] + " at " + i + " expected a number greater or equal to 0 at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+
+                    if (writeBatchLatency < 0) {
+                        throw new IllegalArgumentException("Write batch latency is too small " + args[i] + " at " + i + " expected a number greater or equal to 0 at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+                    i++;
+                    break;
+                case("--sequence-counters"):
+                case("-seq"):
+                    if (sequenceCounters != null) {
+                        throw new IllegalArgumentException("Sequence counters already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+                    sequenceCounters = true;
+                    break;
+                case("--framed-records"):
+                case("-fr"):
+                    if (framedRecords != null) {
+                        throw new IllegalArgumentException("Framed records already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+                    framedRecords = true;
+                    break;
+                case("--multi-producer"):
+                case("-mp"):
+                    if (multiProducer != null) {
+                        throw new IllegalArgumentException("Multi producer already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+                    multiProducer = true;
+                    break;
+                case("--split"):
+                case("-sp"):
+                    if (split != null) {
+                        throw new IllegalArgumentException("Ring buffer split already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    try {
+                        split = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Ring buffer split is not a valid number " + args[i] + " at " + i + " expected a number between 1 and 99 at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+
+                    if (split < 1 || split > 99) {
+                        throw new IllegalArgumentException("Ring buffer split is out of range " + args[i] + " at " + i + " expected a number between 1 and 99 at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+                    i++;
+                    break;
+                case("--mirrored-mapping"):
+                case("-mm"):
+                    if (mirroredMapping != null) {
+                        throw new IllegalArgumentException("Mirrored mapping already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+                    mirroredMapping = true;
+                    break;
+                case("--buffer-pool"):
+                case("-bp"):
+                    if (poolBuffers != null) {
+                        throw new IllegalArgumentException("Buffer pool already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    try {
+                        poolBuffers = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Buffer pool size is not a valid number " + args[i] + " at " + i + " expected a positive number at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+
+                    if (poolBuffers < 1) {
+                        throw new IllegalArgumentException("Buffer pool size is out of range " + args[i] + " at " + i + " expected a positive number at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+                    i++;
+                    break;
+                case("--lanes"):
+                case("-ln"):
+                    if (lanes != null) {
+                        throw new IllegalArgumentException("Lane count already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    try {
+                        lanes = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Lane count is not a valid number " + args[i] + " at " + i + " expected a number between 1 and " + Constants.MAX_LANES + " at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+
+                    if (lanes < 1 || lanes > Constants.MAX_LANES) {
+                        throw new IllegalArgumentException("Lane count is out of range " + args[i] + " at " + i + " expected a number between 1 and " + Constants.MAX_LANES + " at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+                    i++;
+                    break;
+                case("--control-lane"):
+                case("-cl"):
+                    if (controlLane != null) {
+                        throw new IllegalArgumentException("Control lane already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+                    controlLane = true;
+                    break;
+                case("--adaptive-split"):
+                case("-as"):
+                    if (adaptiveSplit != null) {
+                        throw new IllegalArgumentException("Adaptive split already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+                    adaptiveSplit = true;
+                    break;
+                case("--verify-indices"):
+                case("-vi"):
+                    if (verifyIndices != null) {
+                        throw new IllegalArgumentException("Verify indices already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+                    verifyIndices = true;
+                    break;
+                case("--adaptive-spin"):
+                case("-ap"):
+                    if (adaptiveSpinMin != null) {
+                        throw new IllegalArgumentException("Adaptive spin time already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    String[] tempBounds = args[i + 1].split(":");
+                    if (tempBounds.length != 2) {
+                        throw new IllegalArgumentException("Adaptive spin time is not valid " + args[i] + " at " + i + " expected min:max in microseconds at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+
+                    try {
+                        adaptiveSpinMin = Long.parseLong(tempBounds[0]);
+                        adaptiveSpinMax = Long.parseLong(tempBounds[1]);
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Adaptive spin time is not valid " + args[i] + " at " + i + " expected min:max in microseconds at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+
+                    if (adaptiveSpinMin <= 0 || adaptiveSpinMax < adaptiveSpinMin) {
+                        throw new IllegalArgumentException("Adaptive spin time is out of range " + args[i] + " at " + i + " expected min greater than 0 and max not smaller than min at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+                    i++;
+                    break;
+                case("--memory-backend"):
+                case("-mb"):
+                    if (unsafeMemory != null) {
+                        throw new IllegalArgumentException("Memory backend already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    if ("unsafe".equals(args[i + 1])) {
+                        unsafeMemory = true;
+                    } else if ("jni".equals(args[i + 1])) {
+                        unsafeMemory = false;
+                    } else {
+                        throw new IllegalArgumentException("Unknown memory backend " + args[i] + " at " + i + " expected one of jni or unsafe at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+                    i++;
+                    break;
+                case("--prefault"):
+                case("-pf"):
+                    if (prefault != null) {
+                        throw new IllegalArgumentException("Prefault already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+                    prefault = true;
+                    break;
+                case("--wait-strategy"):
+                case("-ws"):
+                    if (waitStrategy != null) {
+                        throw new IllegalArgumentException("Wait strategy already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    waitStrategy = WaitStrategy.forName(args[i + 1]);
+                    if (waitStrategy == null) {
+                        throw new IllegalArgumentException("Unknown wait strategy " + args[i] + " at " + i + " expected one of busy, yield, park or interrupt at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+                    i++;
+                    break;
+                case("--max-park"):
+                case("-wp"):
+                    if (maxParkNanos != null) {
+                        throw new IllegalArgumentException("Max park time already set " + args[i] + " at " + i + " is trying to set it again.");
+                    }
+
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(args[i] + " expected one more argument.");
+                    }
+
+                    try {
+                        maxParkNanos = Long.parseLong(args[i + 1]);
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Max park time is not a valid number " + args[i] + " at " + i + " expected a number greater or equal to " + WaitStrategy.MIN_PARK_NANOS + " at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+
+                    if (maxParkNanos < WaitStrategy.MIN_PARK_NANOS) {
+                        throw new IllegalArgumentException("Max park time is too small " + args[i] + " at " + i + " expected a number greater or equal to " + WaitStrategy.MIN_PARK_NANOS + " at " + (i + 1) + " but got " + args[i + 1]);
+                    }
+                    i++;
+                    break;
                 default:
                     throw new IllegalArgumentException("Illegal argument " + args[i] + " at " + i);
             }
@@ -302,7 +621,24 @@ public final class Configuration {
 
 
 
-        if (master == null) {
+        if (stat || relayoutSize != null) {
+            String tempMode = stat ? "stat" : "relayout";
+            if (master != null) {
+                errors.add(tempMode + " cannot be combined with an operation mode.");
+            }
+
+            if (!local.isEmpty() || !remote.isEmpty() || !socks5proxies.isEmpty()) {
+                errors.add(tempMode + " cannot be combined with forwardings.");
+            }
+
+            if (size != null) {
+                errors.add(tempMode + " only opens existing shared memory. Do not specify the buffer size.");
+            }
+
+            if (prefault != null) {
+                errors.add(tempMode + " cannot be combined with prefaulting the shared memory.");
+            }
+        } else if (master == null) {
             errors.add("Operation mode is missing. Use -c or -s.");
         }
 
@@ -346,6 +682,10 @@ public final class Configuration {
             errors.add("Spin time with interrupts cannot be set when not using interrupts.");
         }
 
+        if (mirroredMapping != null && (operatingSystem != OS.LINUX || !Boolean.TRUE.equals(linuxIsPlain))) {
+            errors.add("Mirrored mapping requires ivshmem-plain on Linux.");
+        }
+
         if (operatingSystem == OS.LINUX && linuxIsPlain && spinWithInterrupts != null) {
             errors.add("Spin time with interrupts cannot be set when using ivshmem-plain.");
         }
@@ -354,6 +694,50 @@ public final class Configuration {
             errors.add("Only the master can set the max tcp connection count.");
         }
 
+        if (Boolean.FALSE.equals(master) && sequenceCounters != null) {
+            errors.add("Only the master can enable sequence counters.");
+        }
+
+        if (Boolean.FALSE.equals(master) && framedRecords != null) {
+            errors.add("Only the master can enable framed records.");
+        }
+
+        if (Boolean.FALSE.equals(master) && multiProducer != null) {
+            errors.add("Only the master can enable multiple producers.");
+        }
+
+        if (Boolean.FALSE.equals(master) && split != null) {
+            errors.add("Only the master can set the ring buffer split.");
+        }
+
+        if (Boolean.FALSE.equals(master) && adaptiveSplit != null) {
+            errors.add("Only the master can enable the adaptive split.");
+        }
+
+        if (Boolean.FALSE.equals(master) && poolBuffers != null) {
+            errors.add("Only the master can set the buffer pool size.");
+        }
+
+        if (Boolean.FALSE.equals(master) && lanes != null) {
+            errors.add("Only the master can set the lane count.");
+        }
+
+        if (Boolean.FALSE.equals(master) && controlLane != null) {
+            errors.add("Only the master can enable the control lane.");
+        }
+
+        if (adaptiveSpinMin != null && getWaitStrategy() != WaitStrategy.INTERRUPT) {
+            errors.add("Adaptive spin time can only be set when using the interrupt wait strategy.");
+        }
+
+        if (adaptiveSpinMin != null && spinWithoutInterrupts != null) {
+            errors.add("Adaptive spin time cannot be combined with a fixed spin time without interrupts.");
+        }
+
+        if (maxParkNanos != null && getWaitStrategy() != WaitStrategy.SPIN_PARK) {
+            errors.add("Max park time can only be set when using the park wait strategy.");
+        }
+
         Set<Integer> errPorts = new HashSet<>();
         Set<Integer> ports = new HashSet<>();
         for (Forwarding forwarding : local) {
@@ -391,6 +775,21 @@ public final class Configuration {
         return operatingSystem;
     }
 
+    /**
+     * true if the state of a running tunnel should only be printed.
+     */
+    public boolean isStat() {
+        return stat;
+    }
+
+    /**
+     * the size of the ring buffer from the master to the slave the master of a running tunnel should switch to.
+     * null if this is not the relayout mode.
+     */
+    public Long getRelayoutSize() {
+        return relayoutSize;
+    }
+
     public boolean isMaster() {
         return master;
     }
@@ -434,4 +833,98 @@ public final class Configuration {
     public Integer getMaxTcpConnections() {
         return maxTcpConnections == null ? Constants.DEFAULT_MAX_CONCURRENT_TCP_CONNECTIONS : maxTcpConnections;
     }
+
+    public int getWriteBatchSize() {
+        return writeBatchSize == null ? Constants.DEFAULT_WRITE_BATCH_SIZE : writeBatchSize;
+    }
+
+    public long getWriteBatchLatency() {
+        return writeBatchLatency == null ? Constants.DEFAULT_WRITE_BATCH_LATENCY : writeBatchLatency;
+    }
+
+    public boolean useSequenceCounters() {
+        return Boolean.TRUE.equals(sequenceCounters);
+    }
+
+    public boolean useFramedRecords() {
+        return Boolean.TRUE.equals(framedRecords);
+    }
+
+    public boolean useMultiProducer() {
+        return Boolean.TRUE.equals(multiProducer);
+    }
+
+    /**
+     * Percentage of the shared memory used by the ring buffer from the master to the slave. 50 if not set.
+     */
+    public int getSplit() {
+        return split == null ? Constants.DEFAULT_SPLIT : split;
+    }
+
+    /**
+     * Amount of ring buffer pairs the master offers. 1 if not set.
+     */
+    public int getLanes() {
+        return lanes == null ? Constants.DEFAULT_LANES : lanes;
+    }
+
+    public boolean useControlLane() {
+        return Boolean.TRUE.equals(controlLane);
+    }
+
+    public boolean useAdaptiveSplit() {
+        return Boolean.TRUE.equals(adaptiveSplit);
+    }
+
+    /**
+     * Amount of payload buffers in the buffer pool of each direction. 0 if not set.
+     */
+    public int getPoolBuffers() {
+        return poolBuffers == null ? 0 : poolBuffers;
+    }
+
+    public boolean useMirroredMapping() {
+        return Boolean.TRUE.equals(mirroredMapping);
+    }
+
+    public boolean verifyIndices() {
+        return Boolean.TRUE.equals(verifyIndices);
+    }
+
+    public boolean useAdaptiveSpin() {
+        return adaptiveSpinMin != null;
+    }
+
+    /**
+     * Lower bound of the adaptive spin time in microseconds. Only valid if useAdaptiveSpin is true.
+     */
+    public long getAdaptiveSpinMin() {
+        return adaptiveSpinMin;
+    }
+
+    /**
+     * Upper bound of the adaptive spin time in microseconds. Only valid if useAdaptiveSpin is true.
+     */
+    public long getAdaptiveSpinMax() {
+        return adaptiveSpinMax;
+    }
+
+    /**
+     * true if the shared memory should be accessed through UnsafeMemory instead of a JNI call per access.
+     */
+    public boolean useUnsafeMemory() {
+        return Boolean.TRUE.equals(unsafeMemory);
+    }
+
+    public boolean usePrefault() {
+        return Boolean.TRUE.equals(prefault);
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy == null ? WaitStrategy.INTERRUPT : waitStrategy;
+    }
+
+    public long getMaxParkNanos() {
+        return maxParkNanos == null ? WaitStrategy.DEFAULT_MAX_PARK_NANOS : maxParkNanos;
+    }
 }
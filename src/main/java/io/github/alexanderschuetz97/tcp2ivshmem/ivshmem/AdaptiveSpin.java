@@ -0,0 +1,110 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+/**
+ * Chooses the spin time of a RingBuffer that does not use interrupts from the recent activity of the other side.
+ * The spin time shrinks towards the minimum while data keeps arriving and grows towards the maximum with every poll
+ * that finds nothing, so an idle tunnel uses little CPU and a busy tunnel has a low latency.
+ * Only used by the thread that reads or writes the RingBuffer, the spin time may be read by any thread.
+ */
+public class AdaptiveSpin {
+
+    /**
+     * A wait is considered part of active traffic if the other side made at least this percentage of the buffer available at once.
+     */
+    public static final int ACTIVE_PERCENT = 25;
+
+    /**
+     * Weight of a new wait time in the average wait time as a shift. 3 means 1/8.
+     */
+    public static final int AVERAGE_SHIFT = 3;
+
+    /**
+     * The spin time is set to this fraction of the average wait time so that data is usually seen a few polls after it arrived.
+     */
+    public static final int POLLS_PER_WAIT = 4;
+
+    private final long minNanos;
+
+    private final long maxNanos;
+
+    private volatile long spinNanos;
+
+    private long averageWaitNanos;
+
+    public AdaptiveSpin(long aMinNanos, long aMaxNanos) {
+        if (aMinNanos <= 0 || aMaxNanos < aMinNanos) {
+            throw new IllegalArgumentException("Spin time bounds must be positive and min must not be greater than max but got " + aMinNanos + " and " + aMaxNanos);
+        }
+
+        minNanos = aMinNanos;
+        maxNanos = aMaxNanos;
+        spinNanos = aMaxNanos;
+        averageWaitNanos = aMaxNanos;
+    }
+
+    /**
+     * Called when the other side had already made progress so the RingBuffer did not have to wait.
+     */
+    public void onActivity() {
+        if (spinNanos > minNanos) {
+            spinNanos = Math.max(minNanos, spinNanos >> 1);
+        }
+    }
+
+    /**
+     * Called after a round of waiting that ended without progress of the other side.
+     */
+    public void onEmptyPoll() {
+        if (spinNanos < maxNanos) {
+            spinNanos = Math.min(maxNanos, spinNanos << 1);
+        }
+    }
+
+    /**
+     * Called when a wait ended because the other side made progress after aWaitNanos.
+     * aPercent is the percentage of the buffer the other side made available to read or write.
+     */
+    public void onWaitEnded(long aWaitNanos, long aPercent) {
+        averageWaitNanos += (aWaitNanos - averageWaitNanos) >> AVERAGE_SHIFT;
+        if (aPercent >= ACTIVE_PERCENT) {
+            spinNanos = minNanos;
+            return;
+        }
+
+        spinNanos = Math.max(minNanos, Math.min(maxNanos, averageWaitNanos / POLLS_PER_WAIT));
+    }
+
+    /**
+     * Current spin time in nanoseconds.
+     */
+    public long getSpinNanos() {
+        return spinNanos;
+    }
+
+    public long getMinNanos() {
+        return minNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+}
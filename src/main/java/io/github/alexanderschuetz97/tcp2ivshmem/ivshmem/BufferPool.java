@@ -0,0 +1,160 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import io.github.alexanderschuetz97.nativeutils.api.NativeMemory;
+
+/**
+ * Fixed size payload buffers in the Shared Memory for one direction together with the ring of free buffers.
+ * The sending side takes a buffer from the free ring, fills it and sends a descriptor through its packet ring buffer.
+ * The receiving side copies the payload out and puts the buffer back into the free ring.
+ * Each buffer number is in the free ring at most once so the free ring can never overflow.
+ *
+ * Layout:
+ * 0: allocate cursor, written by the sending side
+ * 128: release cursor, written by the receiving side
+ * 256: buffer numbers of the free ring, 4 bytes each
+ * first page boundary after the free ring: the buffers
+ */
+public class BufferPool {
+
+    public static final int ALLOCATE_CURSOR_OFFSET = 0;
+    public static final int RELEASE_CURSOR_OFFSET = 2 * RingBuffer.CACHE_LINE_SIZE;
+    public static final int FREE_RING_OFFSET = 4 * RingBuffer.CACHE_LINE_SIZE;
+
+    private final NativeMemory memory;
+
+    private final long address;
+
+    private final int buffers;
+
+    private final long buffersOffset;
+
+    public BufferPool(NativeMemory aMemory, long aAddress, int aBuffers) {
+        memory = aMemory;
+        address = aAddress;
+        buffers = aBuffers;
+        buffersOffset = getHeaderSize(aBuffers);
+    }
+
+    /**
+     * Returns the bytes in front of the buffers. Always a multiple of the page size.
+     */
+    protected static long getHeaderSize(int aBuffers) {
+        long tempSize = FREE_RING_OFFSET + 4L * aBuffers;
+        return (tempSize + RingBuffer.PAGE_SIZE - 1) / RingBuffer.PAGE_SIZE * RingBuffer.PAGE_SIZE;
+    }
+
+    /**
+     * Returns the bytes a pool with the given amount of buffers occupies in the Shared Memory.
+     */
+    public static long getSize(int aBuffers) {
+        return aBuffers == 0 ? 0 : getHeaderSize(aBuffers) + (long) aBuffers * Constants.POOL_BUFFER_SIZE;
+    }
+
+    /**
+     * Returns true if a pool for each direction with the given amount of buffers fits into shared memory of the given size.
+     * The ring buffers always keep at least half of the shared memory.
+     */
+    public static boolean fits(int aBuffers, long aMemorySize) {
+        return aBuffers >= 0 && 2 * getSize(aBuffers) <= (aMemorySize - Constants.MEMORY_OVERHEAD_V2) / 2;
+    }
+
+    public int getBuffers() {
+        return buffers;
+    }
+
+    public int getBufferSize() {
+        return Constants.POOL_BUFFER_SIZE;
+    }
+
+    /**
+     * Returns the amount of buffers that were allocated and not released yet.
+     */
+    public long getBuffersInUse() {
+        return buffers - (memory.readLong(address + RELEASE_CURSOR_OFFSET) - memory.readLong(address + ALLOCATE_CURSOR_OFFSET));
+    }
+
+    /**
+     * Puts every buffer into the free ring. Called by the sending side before it sends the first descriptor.
+     */
+    public void init() {
+        for (int i = 0; i < buffers; i++) {
+            memory.write(address + FREE_RING_OFFSET + 4L * i, i);
+        }
+        memory.write(address + ALLOCATE_CURSOR_OFFSET, 0L);
+        publish(RELEASE_CURSOR_OFFSET, buffers);
+    }
+
+    /**
+     * Takes a buffer from the free ring. Returns -1 if every buffer is in use.
+     */
+    public synchronized int allocate() {
+        long tempCursor = memory.readLong(address + ALLOCATE_CURSOR_OFFSET);
+        if (tempCursor == memory.readLong(address + RELEASE_CURSOR_OFFSET)) {
+            return -1;
+        }
+
+        int tempBuffer = memory.readInt(address + FREE_RING_OFFSET + 4L * (tempCursor % buffers));
+        if (tempBuffer < 0 || tempBuffer >= buffers) {
+            throw new IllegalStateException("Free ring of buffer pool at " + address + " contains invalid buffer " + tempBuffer);
+        }
+        publish(ALLOCATE_CURSOR_OFFSET, tempCursor + 1);
+        return tempBuffer;
+    }
+
+    /**
+     * Puts a buffer received from the other side back into the free ring.
+     */
+    public synchronized void release(int aBuffer) {
+        checkBuffer(aBuffer, 0);
+        long tempCursor = memory.readLong(address + RELEASE_CURSOR_OFFSET);
+        memory.write(address + FREE_RING_OFFSET + 4L * (tempCursor % buffers), aBuffer);
+        publish(RELEASE_CURSOR_OFFSET, tempCursor + 1);
+    }
+
+    public void write(int aBuffer, byte[] b, int off, int len) {
+        checkBuffer(aBuffer, len);
+        memory.write(address + buffersOffset + (long) aBuffer * Constants.POOL_BUFFER_SIZE, b, off, len);
+    }
+
+    public void read(int aBuffer, byte[] b, int off, int len) {
+        checkBuffer(aBuffer, len);
+        memory.read(address + buffersOffset + (long) aBuffer * Constants.POOL_BUFFER_SIZE, b, off, len);
+    }
+
+    protected void checkBuffer(int aBuffer, int aLength) {
+        if (aBuffer < 0 || aBuffer >= buffers || aLength < 0 || aLength > Constants.POOL_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer " + aBuffer + " length " + aLength + " is outside of buffer pool with " + buffers + " buffers");
+        }
+    }
+
+    /**
+     * Writes a cursor. The buffer number written before is visible to the other side before the cursor.
+     */
+    protected void publish(int aOffset, long aCursor) {
+        if (RingBuffer.PLAIN_STORE_IS_RELEASE) {
+            memory.write(address + aOffset, aCursor);
+        } else {
+            memory.getAndSet(address + aOffset, aCursor);
+        }
+    }
+}
@@ -21,11 +21,10 @@ package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
 
 import io.github.alexanderschuetz97.tcp2ivshmem.Main;
 
-import java.io.InputStream;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
-public class ConnectRingBufferForInput implements Callable<InputStream> {
+public class ConnectRingBufferForInput implements Callable<RingBuffer> {
     private long address;
 
     public ConnectRingBufferForInput(long address) {
@@ -33,9 +32,20 @@ public class ConnectRingBufferForInput implements Callable<InputStream> {
     }
 
     @Override
-    public InputStream call() throws Exception {
+    public RingBuffer call() throws Exception {
         System.out.println("Connecting shared memory ring buffer for input  at address " + address +".");
-        RingBuffer tempBuf = new RingBuffer(Main.shmemory, address , Main.config.getSpinWithoutInterrupts(), Main.config.getSpinWithInterrupts());
-        return tempBuf.connectInputStream(Constants.TIMEOUT_CONNECT, Constants.SPIN_CONNECT, TimeUnit.MILLISECONDS);
+        RingBuffer tempBuf = new RingBuffer(Main.shmemory, Main.memory, address , Main.config.getSpinWithoutInterrupts(), Main.config.getSpinWithInterrupts(), RingBuffer.LAYOUT_V1);
+        tempBuf.setVerifyIndices(Main.config.verifyIndices());
+        //The bridge reads and writes each ring buffer from a single thread.
+        tempBuf.setSingleThreadedAccess(true);
+        tempBuf.setWaitStrategy(Main.config.getWaitStrategy(), Main.config.getMaxParkNanos());
+        if (Main.config.useAdaptiveSpin()) {
+            tempBuf.setAdaptiveSpin(new AdaptiveSpin(TimeUnit.MICROSECONDS.toNanos(Main.config.getAdaptiveSpinMin()), TimeUnit.MICROSECONDS.toNanos(Main.config.getAdaptiveSpinMax())));
+        }
+        tempBuf.connectInputStream(Constants.TIMEOUT_CONNECT, Constants.SPIN_CONNECT, TimeUnit.MILLISECONDS);
+        if (Main.config.useMirroredMapping()) {
+            MirroredMapping.mirror(tempBuf, Main.config.getDevice());
+        }
+        return tempBuf;
     }
 }
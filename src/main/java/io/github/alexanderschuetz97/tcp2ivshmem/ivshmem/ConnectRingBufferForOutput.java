@@ -21,34 +21,79 @@ package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
 
 import io.github.alexanderschuetz97.tcp2ivshmem.Main;
 
-import java.io.OutputStream;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 import static io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants.*;
 
-public class ConnectRingBufferForOutput implements Callable<OutputStream> {
+public class ConnectRingBufferForOutput implements Callable<RingBuffer> {
     private final long address;
 
+    private final long size;
+
     private final boolean interrupts;
 
-    public ConnectRingBufferForOutput(long address, boolean interrupts) {
+    private final int lane;
+
+    private final boolean control;
+
+    public ConnectRingBufferForOutput(long address, long size, boolean interrupts) {
+        this(address, size, interrupts, 0);
+    }
+
+    public ConnectRingBufferForOutput(long address, long size, boolean interrupts, int lane) {
+        this(address, size, interrupts, lane, false);
+    }
+
+    private ConnectRingBufferForOutput(long address, long size, boolean interrupts, int lane, boolean control) {
         this.address = address;
+        this.size = size;
         this.interrupts = interrupts;
+        this.lane = lane;
+        this.control = control;
+    }
+
+    /**
+     * Connects the output ring buffer of the control lane. It uses the vectors after the ones of the lanes.
+     */
+    public static ConnectRingBufferForOutput forControlLane(long address, boolean interrupts) {
+        return new ConnectRingBufferForOutput(address, CONTROL_RING_SIZE, interrupts, Main.lanes, true);
     }
 
     @Override
-    public OutputStream call() throws Exception {
+    public RingBuffer call() throws Exception {
         System.out.println("Connecting shared memory ring buffer for output at address " + address +".");
-        RingBuffer tempBuf = new RingBuffer(Main.shmemory, address , Main.config.getSpinWithoutInterrupts(), Main.config.getSpinWithInterrupts());
+        RingBuffer tempBuf = new RingBuffer(Main.shmemory, Main.memory, address , Main.config.getSpinWithoutInterrupts(), Main.config.getSpinWithInterrupts(), Main.ringLayoutVersion);
+        //Control packets are small so the control lane does not need records. Its capacity is too small for them anyway.
+        //Sequence counters let the lane readers tell how far the control reader got, see IvshmemBridge.awaitControl.
+        tempBuf.setFlags(control ? (Main.ringFlags & ~(RingBuffer.FLAG_FRAMED | RingBuffer.FLAG_MULTI_PRODUCER)) | RingBuffer.FLAG_SEQUENCE_COUNTERS : Main.ringFlags);
+        tempBuf.setVerifyIndices(Main.config.verifyIndices());
+        //The bridge reads and writes each ring buffer from a single thread. Control packets are written by the threads that send them.
+        tempBuf.setSingleThreadedAccess(!control);
+        tempBuf.setWaitStrategy(Main.config.getWaitStrategy(), Main.config.getMaxParkNanos());
+        if (Main.config.useAdaptiveSpin()) {
+            tempBuf.setAdaptiveSpin(new AdaptiveSpin(TimeUnit.MICROSECONDS.toNanos(Main.config.getAdaptiveSpinMin()), TimeUnit.MICROSECONDS.toNanos(Main.config.getAdaptiveSpinMax())));
+        }
         tempBuf.cleanMemoryArea();
         boolean succ = false;
 
-        OutputStream outputStream;
         if (interrupts) {
-            outputStream = tempBuf.connectOutputStream(0, Main.ringBufferSize, TIMEOUT_CONNECT, SPIN_CONNECT, TimeUnit.MILLISECONDS);
+            int tempRings = 2 * (Main.lanes + (Main.controlLane ? 1 : 0));
+            int tempRing = 2 * lane + (Main.config.isMaster() ? 0 : 1);
+            int tempVectors = getVectors();
+            int tempDataVector = 0;
+            int tempSpaceVector = 0;
+            if ((Main.ringFlags & RingBuffer.FLAG_SPACE_VECTOR) != 0 && tempVectors >= 2 * tempRings) {
+                tempDataVector = 2 * tempRing;
+                tempSpaceVector = 2 * tempRing + 1;
+            } else if (tempVectors > 0) {
+                //Ring buffers of different lanes share a vector if there are not enough of them.
+                tempDataVector = tempRing % tempVectors;
+                tempSpaceVector = tempDataVector;
+            }
+            tempBuf.connectOutputStream(tempDataVector, tempSpaceVector, size, TIMEOUT_CONNECT, SPIN_CONNECT, TimeUnit.MILLISECONDS);
         } else {
-            outputStream = tempBuf.connectOutputStream(Main.ringBufferSize, TIMEOUT_CONNECT, SPIN_CONNECT, TimeUnit.MILLISECONDS);
+            tempBuf.connectOutputStream(size, TIMEOUT_CONNECT, SPIN_CONNECT, TimeUnit.MILLISECONDS);
         }
 
         if (interrupts && !tempBuf.usesInterrupts()) {
@@ -56,9 +101,27 @@ public class ConnectRingBufferForOutput implements Callable<OutputStream> {
         }
 
         if (tempBuf.usesInterrupts()) {
-            System.out.println("Interrupts will be sent to peer " + tempBuf.getOtherPeer());
+            System.out.println("Interrupts will be sent to peer " + tempBuf.getOtherPeer() + " on vector " + tempBuf.getOtherVector() + " and received on vector " + tempBuf.getVector());
+        }
+
+        if (Main.config.useMirroredMapping()) {
+            MirroredMapping.mirror(tempBuf, Main.config.getDevice());
         }
 
-        return outputStream;
+        return tempBuf;
+    }
+
+    /**
+     * Returns the amount of vectors that both peers have. Each ring buffer gets its own vectors if there are enough,
+     * otherwise the ring buffers share vectors and every interrupt wakes up all ring buffers on its vector.
+     */
+    private static int getVectors() {
+        int tempVectors = Main.shmemory.getOwnVectors();
+        if (Main.shmemory.knowsOtherPeerVectors()) {
+            for (Integer tempPeer : Main.shmemory.getPeers()) {
+                tempVectors = Math.min(tempVectors, Main.shmemory.getVectors(tempPeer));
+            }
+        }
+        return tempVectors;
     }
 }
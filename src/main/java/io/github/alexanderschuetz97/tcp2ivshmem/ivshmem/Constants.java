@@ -27,6 +27,8 @@ public class Constants {
     //Spintimes
     public static final int SPIN_CONNECT = 1000;
     public static final int SPIN_WATCHDOG = 1000;
+    public static final int SPIN_STAT = 1000;
+    public static final int SPIN_ADAPTIVE_SPLIT = 5000;
 
     public static final int DEFAULT_SPIN_DATA_WITHOUT_INTERRUPTS = 10;
     public static final int DEFAULT_SPIN_DATA_WITH_INTERRUPTS = 1000;
@@ -36,8 +38,30 @@ public class Constants {
     public static final long ADDRESS_STATE = 0;
     public static final long ADDRESS_MASTER_INTERRUPTS = ADDRESS_STATE+1;
     public static final long ADDRESS_SLAVE_INTERRUPTS = ADDRESS_MASTER_INTERRUPTS+1;
+    //Highest ring buffer layout version the slave supports. Cleared by the master before the handshake so old slaves read as 0.
+    public static final long ADDRESS_SLAVE_RING_LAYOUT = ADDRESS_SLAVE_INTERRUPTS+1;
     public static final long ADDRESS_WATCHDOG = ADDRESS_STATE + 4;
     public static final long ADDRESS_MAX_TCP_CONNECTIONS = ADDRESS_WATCHDOG +4;
+    //Ring buffer layout version chosen by the master. Cleared by the slave before the handshake so old masters read as 0.
+    public static final long ADDRESS_RING_LAYOUT = ADDRESS_MAX_TCP_CONNECTIONS +4;
+    //Ring buffer flags chosen by the master. Only used with layout version 2. Cleared by the slave before the handshake.
+    public static final long ADDRESS_RING_FLAGS = ADDRESS_RING_LAYOUT +4;
+    //Generation of the ring buffer sizes. Written by the master once the new ring buffers may be connected. Only used with layout version 2.
+    public static final long ADDRESS_RELAYOUT = ADDRESS_RING_FLAGS +4;
+    //Size of the ring buffer from the master to the slave requested by the relayout mode. Cleared by the master once seen.
+    public static final long ADDRESS_RELAYOUT_REQUEST = ADDRESS_RELAYOUT +4;
+    //Current size of the ring buffer from the master to the slave. Written by the master. Only used with layout version 2.
+    public static final long ADDRESS_RING_SPLIT = ADDRESS_RELAYOUT_REQUEST +8;
+    //Amount of payload buffers in the buffer pool of each direction. Written by the master. Only used with layout version 2.
+    public static final long ADDRESS_POOL_BUFFERS = ADDRESS_RING_SPLIT +8;
+    //Amount of ring buffer pairs (lanes) chosen by the master. Only used with layout version 2. Cleared by the slave before the handshake.
+    public static final long ADDRESS_LANES = ADDRESS_POOL_BUFFERS +4;
+    //Highest amount of lanes the slave supports. Cleared by the master before the handshake so old slaves read as 0.
+    public static final long ADDRESS_SLAVE_LANES = ADDRESS_LANES +4;
+    //1 if the master chose to use the control lane. Only used with layout version 2. Cleared by the slave before the handshake.
+    public static final long ADDRESS_CONTROL_LANE = ADDRESS_SLAVE_LANES +4;
+    //1 if the slave supports the control lane. Cleared by the master before the handshake so old slaves read as 0.
+    public static final long ADDRESS_SLAVE_CONTROL_LANE = ADDRESS_CONTROL_LANE +4;
 
     //STATE_VALUES
     public static final byte STATE_CONNECTING = 1;
@@ -55,9 +79,26 @@ public class Constants {
     //Misc
     public static final int SOCKET_BUFFER_SIZE = 8096;
     public static final int PACKET_QUEUE_SIZE = 128;
+    public static final int PACKET_READ_BUFFER_SIZE = 256 * 1024;
+    public static final int DEFAULT_WRITE_BATCH_SIZE = 128 * 1024;
+    public static final int DEFAULT_WRITE_BATCH_LATENCY = 0;
+    //Smaller ring buffers are accessed through their streams as packets could be bigger than the ring buffer.
+    public static final int MIN_ZERO_COPY_RING_CAPACITY = PACKET_READ_BUFFER_SIZE;
+    public static final int POOL_BUFFER_SIZE = 64 * 1024;
+    //Size of each ring buffer of the control lane including its control bytes. Control packets are small and rare.
+    public static final int CONTROL_RING_SIZE = RingBuffer.V2_OVERHEAD + 64 * 1024;
 
     public static final int DEFAULT_MAX_CONCURRENT_TCP_CONNECTIONS = 128;
+    public static final int DEFAULT_SPLIT = 50;
+    public static final int DEFAULT_LANES = 1;
+    public static final int MAX_LANES = 16;
+    //A direction is congested when its writer waited for free space longer than this percentage of the time.
+    public static final int ADAPTIVE_SPLIT_STALL_PERCENT = 10;
     public static final int MEMORY_OVERHEAD = 64;
     public static final int MIN_REQUIRED_MEMORY_SIZE = (2* RingBuffer.OVERHEAD) + MEMORY_OVERHEAD + 64;
 
+    //Layout version 2 keeps the first page for the control block so that both ring buffers start on a page boundary.
+    public static final int MEMORY_OVERHEAD_V2 = RingBuffer.PAGE_SIZE;
+    public static final int MIN_REQUIRED_MEMORY_SIZE_V2 = MEMORY_OVERHEAD_V2 + (2 * (RingBuffer.V2_OVERHEAD + RingBuffer.PAGE_SIZE));
+
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet7Relayout;
+import io.github.alexanderschuetz97.tcp2ivshmem.transport.HeapTransport;
+import io.github.alexanderschuetz97.tcp2ivshmem.transport.Transport;
+
+import java.io.IOException;
+
+/**
+ * Bridge that talks to the other bridge of the same process without shared memory.
+ * A master and a slave created by createPair forward tcp connections between each other just like two processes would.
+ * There is no handshake so both sides must be created with the same maximum tcp connection count. Buffer pools are not used.
+ * Unlike the shared memory bridges it does not end the process when it stops, it closes its transport instead.
+ */
+public class InProcessBridge extends IvshmemBridge {
+
+    private final Transport ownTransport;
+
+    private final boolean master;
+
+    private final int maxTcpConnections;
+
+    private final int writeBatchSize;
+
+    private final long writeBatchLatency;
+
+    private volatile boolean closed;
+
+    public InProcessBridge(Transport aTransport, boolean aMaster, int aMaxTcpConnections, int aWriteBatchSize, long aWriteBatchLatency) {
+        if (aMaxTcpConnections < 1) {
+            throw new IllegalArgumentException("Max tcp connections must be greater than 0 but got " + aMaxTcpConnections);
+        }
+
+        if (aWriteBatchSize < 1) {
+            throw new IllegalArgumentException("Write batch size must be greater than 0 but got " + aWriteBatchSize);
+        }
+
+        if (aWriteBatchLatency < 0) {
+            throw new IllegalArgumentException("Write batch latency must be greater or equal to 0 but got " + aWriteBatchLatency);
+        }
+
+        ownTransport = aTransport;
+        master = aMaster;
+        maxTcpConnections = aMaxTcpConnections;
+        writeBatchSize = aWriteBatchSize;
+        writeBatchLatency = aWriteBatchLatency;
+    }
+
+    /**
+     * Creates a connected master and slave. Index 0 is the master and index 1 the slave.
+     * The write batch latency is in microseconds.
+     */
+    public static InProcessBridge[] createPair(int aCapacity, int aMaxTcpConnections, int aWriteBatchSize, long aWriteBatchLatency) {
+        HeapTransport[] tempTransports = HeapTransport.createPair(aCapacity);
+        return new InProcessBridge[] {
+                new InProcessBridge(tempTransports[0], true, aMaxTcpConnections, aWriteBatchSize, aWriteBatchLatency),
+                new InProcessBridge(tempTransports[1], false, aMaxTcpConnections, aWriteBatchSize, aWriteBatchLatency)
+        };
+    }
+
+    public boolean isMaster() {
+        return master;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the transport. The reader and writer of the other bridge fail once they touch it.
+     */
+    public void close() {
+        closed = true;
+        ownTransport.close();
+    }
+
+    @Override
+    protected void connectToIvshmem() throws Exception {
+        if (master) {
+            init(0, maxTcpConnections, maxTcpConnections);
+        } else {
+            init(maxTcpConnections, 0, maxTcpConnections);
+        }
+
+        Lane tempLane = new Lane(0);
+        tempLane.transport = ownTransport;
+        lanes = new Lane[] {tempLane};
+        System.out.println("In process " + (master ? "master" : "slave") + " is ready for operation.");
+    }
+
+    @Override
+    protected int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    @Override
+    protected long getWriteBatchLatency() {
+        return writeBatchLatency;
+    }
+
+    @Override
+    protected void exit(int aStatus) {
+        if (closed) {
+            //Expected.
+            return;
+        }
+
+        System.out.println("In process " + (master ? "master" : "slave") + " stopped with status " + aStatus);
+        close();
+    }
+
+    @Override
+    protected void handleRelayout(Packet7Relayout packet) throws Exception {
+        throw new IOException("Received relayout packet but the in process transport has no ring buffers to change. Generation: " + packet.getGeneration());
+    }
+}
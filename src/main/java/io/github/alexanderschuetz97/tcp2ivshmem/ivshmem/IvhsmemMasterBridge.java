@@ -20,20 +20,25 @@
 package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
 
 import io.github.alexanderschuetz97.tcp2ivshmem.Main;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet7Relayout;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketUtil;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.util.Random;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 public class IvhsmemMasterBridge extends IvshmemBridge {
 
+    private volatile int relayoutGeneration = 0;
+
     protected void connectToIvshmem() throws Exception {
 
 
         int masterNr = Math.abs(new Random().nextInt());
         System.out.println("Master NR "+ masterNr +" is here.");
+        Main.memory.write(Constants.ADDRESS_SLAVE_RING_LAYOUT, (byte) 0);
+        Main.memory.write(Constants.ADDRESS_SLAVE_LANES, 0);
+        Main.memory.write(Constants.ADDRESS_SLAVE_CONTROL_LANE, 0);
         Main.memory.write(Constants.ADDRESS_STATE, Constants.STATE_CONNECTING);
 
 
@@ -65,6 +70,67 @@ public class IvhsmemMasterBridge extends IvshmemBridge {
         Main.memory.write(Constants.ADDRESS_MASTER_INTERRUPTS, Main.useInterrupts ? Constants.USE_INTERRUPTS : Constants.DONT_USE_INTERRUPTS);
         Main.memory.write(Constants.ADDRESS_MAX_TCP_CONNECTIONS, Main.maxConcurrentTcpConnections);
         Main.memory.write(Constants.ADDRESS_WATCHDOG, masterNr);
+
+        int slaveRingLayout = Main.memory.read(Constants.ADDRESS_SLAVE_RING_LAYOUT);
+        if (slaveRingLayout <= 0) {
+            slaveRingLayout = RingBuffer.LAYOUT_V1;
+        }
+        int ringLayout = Math.min(Main.maxRingLayoutVersion, slaveRingLayout);
+        int ringFlags = 0;
+        if (ringLayout >= RingBuffer.LAYOUT_V2) {
+            ringFlags |= RingBuffer.FLAG_DOORBELL_SUPPRESSION;
+            if (Main.useInterrupts) {
+                ringFlags |= RingBuffer.FLAG_SPACE_VECTOR;
+            }
+        }
+        if (Main.config.useSequenceCounters()) {
+            if (ringLayout >= RingBuffer.LAYOUT_V2) {
+                ringFlags |= RingBuffer.FLAG_SEQUENCE_COUNTERS;
+            } else {
+                System.out.println("Sequence counters require ring buffer layout version " + RingBuffer.LAYOUT_V2 + " which is not supported by both sides. Not using them.");
+            }
+        }
+        if (Main.config.useFramedRecords()) {
+            if (ringLayout >= RingBuffer.LAYOUT_V2) {
+                ringFlags |= RingBuffer.FLAG_FRAMED;
+            } else {
+                System.out.println("Framed records require ring buffer layout version " + RingBuffer.LAYOUT_V2 + " which is not supported by both sides. Not using them.");
+            }
+        }
+        if (Main.config.useMultiProducer()) {
+            if (ringLayout >= RingBuffer.LAYOUT_V2) {
+                ringFlags |= RingBuffer.FLAG_MULTI_PRODUCER | RingBuffer.FLAG_FRAMED | RingBuffer.FLAG_SEQUENCE_COUNTERS;
+            } else {
+                System.out.println("Multiple producers require ring buffer layout version " + RingBuffer.LAYOUT_V2 + " which is not supported by both sides. Not using them.");
+            }
+        }
+        if (Main.config.getPoolBuffers() > 0) {
+            applyBufferPools(ringLayout, Main.config.getPoolBuffers());
+        }
+        if (Main.config.useControlLane()) {
+            applyControlLane(ringLayout);
+        }
+        if (Main.config.getLanes() > 1) {
+            applyLanes(ringLayout, Main.config.getLanes());
+        }
+        Main.computeRingBufferLayout(ringLayout, ringFlags);
+        if (Main.config.getSplit() != Constants.DEFAULT_SPLIT) {
+            if (Main.lanes > 1) {
+                System.out.println("Ring buffer split cannot be combined with multiple lanes. Splitting evenly.");
+            } else {
+                applySplit(Main.config.getSplit());
+            }
+        }
+        if (Main.ringLayoutVersion >= RingBuffer.LAYOUT_V2) {
+            Main.memory.write(Constants.ADDRESS_RELAYOUT, 0);
+            Main.memory.write(Constants.ADDRESS_RELAYOUT_REQUEST, 0L);
+            Main.memory.write(Constants.ADDRESS_RING_SPLIT, Main.serverToClientSize);
+            Main.memory.write(Constants.ADDRESS_POOL_BUFFERS, Main.poolBuffers);
+            Main.memory.write(Constants.ADDRESS_LANES, Main.lanes);
+            Main.memory.write(Constants.ADDRESS_CONTROL_LANE, Main.controlLane ? 1 : 0);
+        }
+        Main.memory.write(Constants.ADDRESS_RING_FLAGS, Main.ringFlags);
+        Main.memory.write(Constants.ADDRESS_RING_LAYOUT, (byte) Main.ringLayoutVersion);
         IvshmemConnectionWatchdog.getInstance().start(masterNr);
 
         if (!Main.memory.compareAndSet(Constants.ADDRESS_STATE, Constants.STATE_HANDSHAKE, Constants.STATE_HANDSHAKE_RESPONSE)) {
@@ -87,14 +153,262 @@ public class IvhsmemMasterBridge extends IvshmemBridge {
             System.out.println("Will not use interrupts for communication.");
         }
 
-        Future<InputStream> inputStreamFuture = Main.ex.submit(new ConnectRingBufferForInput(Main.clientToServerOffset));
-        Future<OutputStream> outputStreamFuture = Main.ex.submit(new ConnectRingBufferForOutput(Main.serverToClientOffset, Main.useInterrupts));
-
-        fromIvshmem = inputStreamFuture.get(Constants.TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
-        toIvshmem = outputStreamFuture.get(Constants.TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
+        connectBufferPools(true);
+        connectLanes(true);
 
         System.out.println("...Ring buffers connected. Master is ready for operation.");
         System.out.println("Will accept " + Main.maxConcurrentTcpConnections + " maximum concurrent tcp connections");
+
+        if (Main.ringLayoutVersion >= RingBuffer.LAYOUT_V2 && Main.lanes == 1) {
+            Main.ex.submit(new Runnable() {
+                @Override
+                public void run() {
+                    pollRelayoutRequests();
+                }
+            });
+        }
+
+        if (Main.config.useAdaptiveSplit()) {
+            if (lanes[0].directWriter != null) {
+                System.out.println("Adaptive split cannot change multi producer ring buffers. Not using it.");
+            } else if (Main.lanes > 1) {
+                System.out.println("Adaptive split cannot be combined with multiple lanes. Not using it.");
+            } else if (Main.ringLayoutVersion >= RingBuffer.LAYOUT_V2) {
+                Main.ex.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        adaptSplit();
+                    }
+                });
+            } else {
+                System.out.println("Adaptive split requires ring buffer layout version " + RingBuffer.LAYOUT_V2 + " which is not supported by both sides. Not using it.");
+            }
+        }
+    }
+
+    /**
+     * Places a buffer pool for each direction behind the ring buffers. The ring buffers keep at least half of the shared memory.
+     */
+    private void applyBufferPools(int aLayoutVersion, int aBuffers) {
+        if (aLayoutVersion < RingBuffer.LAYOUT_V2) {
+            System.out.println("Buffer pools require ring buffer layout version " + RingBuffer.LAYOUT_V2 + " which is not supported by both sides. Not using them.");
+            return;
+        }
+
+        if (!BufferPool.fits(aBuffers, Main.memory.size())) {
+            System.out.println("Shared memory is too small for buffer pools with " + aBuffers + " buffers. Not using them.");
+            return;
+        }
+
+        Main.poolBuffers = aBuffers;
+    }
+
+    /**
+     * Places the ring buffers of the control lane in front of the other ring buffers if the slave supports them.
+     * The slave reads the result from the control block during the handshake.
+     */
+    private void applyControlLane(int aLayoutVersion) {
+        if (aLayoutVersion < RingBuffer.LAYOUT_V2) {
+            System.out.println("Control lane requires ring buffer layout version " + RingBuffer.LAYOUT_V2 + " which is not supported by both sides. Not using it.");
+            return;
+        }
+
+        if (Main.memory.readInt(Constants.ADDRESS_SLAVE_CONTROL_LANE) != 1) {
+            System.out.println("Slave does not support the control lane. Not using it.");
+            return;
+        }
+
+        Main.controlLane = true;
+        if (Main.getRingBufferArea() / 2 - RingBuffer.V2_OVERHEAD < RingBuffer.PAGE_SIZE) {
+            System.out.println("Shared memory is too small for the control lane. Not using it.");
+            Main.controlLane = false;
+        }
+    }
+
+    /**
+     * Divides the ring buffer area between the given amount of ring buffer pairs if the slave supports that many.
+     * The slave reads the result from the control block during the handshake.
+     */
+    private void applyLanes(int aLayoutVersion, int aLanes) {
+        if (aLayoutVersion < RingBuffer.LAYOUT_V2) {
+            System.out.println("Multiple lanes require ring buffer layout version " + RingBuffer.LAYOUT_V2 + " which is not supported by both sides. Using 1 lane.");
+            return;
+        }
+
+        int tempSlaveLanes = Math.max(1, Main.memory.readInt(Constants.ADDRESS_SLAVE_LANES));
+        if (tempSlaveLanes < aLanes) {
+            System.out.println("Slave supports at most " + tempSlaveLanes + " lanes.");
+            aLanes = tempSlaveLanes;
+        }
+
+        if (Main.getRingBufferArea() / (2 * aLanes) - RingBuffer.V2_OVERHEAD < RingBuffer.PAGE_SIZE) {
+            System.out.println("Shared memory is too small for " + aLanes + " lanes. Using 1 lane.");
+            return;
+        }
+
+        Main.lanes = aLanes;
+    }
+
+    /**
+     * Gives the ring buffer from the master to the slave the given percentage of the shared memory.
+     * The slave reads the result from the control block during the handshake.
+     */
+    private void applySplit(int aPercent) {
+        if (Main.ringLayoutVersion < RingBuffer.LAYOUT_V2) {
+            System.out.println("Ring buffer split requires ring buffer layout version " + RingBuffer.LAYOUT_V2 + " which is not supported by both sides. Splitting evenly.");
+            return;
+        }
+
+        long tempServerToClientSize = Main.getServerToClientSizeForShare(aPercent);
+        long tempClientToServerSize = Main.getRemainingRingBufferSize(tempServerToClientSize);
+        String tempError = Main.checkRingBufferSplit(tempServerToClientSize, tempClientToServerSize);
+        if (tempError != null) {
+            System.out.println("Ring buffer split of " + aPercent + "% is not possible. " + tempError + " Splitting evenly.");
+            return;
+        }
+
+        Main.applyRingBufferSplit(tempServerToClientSize, tempClientToServerSize);
+    }
+
+    /**
+     * Moves capacity towards the direction whose writer waits for free space while the other one does not.
+     * Uses the stall time the writers of both ring buffers publish in their statistics.
+     */
+    private void adaptSplit() {
+        Thread.currentThread().setName("Adaptive split Thread");
+        long tempThreshold = TimeUnit.MILLISECONDS.toNanos(Constants.SPIN_ADAPTIVE_SPLIT) * Constants.ADAPTIVE_SPLIT_STALL_PERCENT / 100;
+        int tempGeneration = -1;
+        long tempLastServerToClient = 0;
+        long tempLastClientToServer = 0;
+        try {
+            while (true) {
+                Thread.sleep(Constants.SPIN_ADAPTIVE_SPLIT);
+                int tempCurrentGeneration = relayoutGeneration;
+                if (relayout != null) {
+                    continue;
+                }
+
+                //Read the layout once, a relayout may change it at any time. The generation check below discards such a round.
+                long tempServerToClientOffset = Main.serverToClientOffset;
+                long tempClientToServerOffset = Main.clientToServerOffset;
+                long tempServerToClientSize = Main.serverToClientSize;
+                long tempServerToClient = RingBufferStatistics.read(Main.memory, tempServerToClientOffset).getWriterCounter(RingBufferStatistics.Counter.STALL_NANOS);
+                long tempClientToServer = RingBufferStatistics.read(Main.memory, tempClientToServerOffset).getWriterCounter(RingBufferStatistics.Counter.STALL_NANOS);
+                long tempServerToClientStalled = tempServerToClient - tempLastServerToClient;
+                long tempClientToServerStalled = tempClientToServer - tempLastClientToServer;
+                tempLastServerToClient = tempServerToClient;
+                tempLastClientToServer = tempClientToServer;
+                if (tempGeneration != tempCurrentGeneration || tempCurrentGeneration != relayoutGeneration) {
+                    //The statistics start at 0 with every new layout.
+                    tempGeneration = tempCurrentGeneration;
+                    continue;
+                }
+
+                long tempSize;
+                if (tempServerToClientStalled > tempThreshold && tempClientToServerStalled <= tempThreshold) {
+                    tempSize = Main.getNextServerToClientSize(tempServerToClientSize, true);
+                } else if (tempClientToServerStalled > tempThreshold && tempServerToClientStalled <= tempThreshold) {
+                    tempSize = Main.getNextServerToClientSize(tempServerToClientSize, false);
+                } else {
+                    continue;
+                }
+
+                if (Main.checkRingBufferSplit(tempSize, Main.getRemainingRingBufferSize(tempSize)) != null) {
+                    //Already as far as it goes.
+                    continue;
+                }
+
+                System.out.println("Adaptive split moves capacity " + (tempSize > tempServerToClientSize ? "towards master to slave" : "towards slave to master") + ". Writer stalled " + tempServerToClientStalled + "ns master to slave and " + tempClientToServerStalled + "ns slave to master.");
+                requestRelayout(tempSize);
+            }
+        } catch (Exception e) {
+            System.out.println("Adaptive split error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for requests written to the shared memory by the relayout mode.
+     */
+    private void pollRelayoutRequests() {
+        Thread.currentThread().setName("Relayout request Thread");
+        try {
+            while (true) {
+                Thread.sleep(Constants.SPIN_WATCHDOG);
+                long tempRequest = Main.memory.readLong(Constants.ADDRESS_RELAYOUT_REQUEST);
+                if (tempRequest == 0) {
+                    continue;
+                }
+
+                Main.memory.write(Constants.ADDRESS_RELAYOUT_REQUEST, 0L);
+                System.out.println("Received request to change the ring buffer size from master to slave to " + tempRequest + ".");
+                requestRelayout(tempRequest);
+            }
+        } catch (Exception e) {
+            System.out.println("Error waiting for relayout requests: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Switches both ring buffers to new sizes while the bridge keeps running. The ring buffer from the slave
+     * to the master gets the biggest size that still fits. Returns false if the sizes are not possible or
+     * another change is still in progress.
+     */
+    public synchronized boolean requestRelayout(long aServerToClientSize) throws IOException {
+        long tempClientToServerSize = Main.getRemainingRingBufferSize(aServerToClientSize);
+        String tempError = Main.checkRingBufferSplit(aServerToClientSize, tempClientToServerSize);
+        if (tempError != null) {
+            System.out.println(tempError + " Keeping the current ring buffer sizes.");
+            return false;
+        }
+
+        if (relayout != null) {
+            System.out.println("Ring buffer sizes are already being changed. Keeping the current ring buffer sizes.");
+            return false;
+        }
+
+        if (Main.lanes > 1) {
+            //The ring buffers of the other lanes would have to be moved as well.
+            System.out.println("Ring buffer sizes cannot be changed with multiple lanes. Keeping the current ring buffer sizes.");
+            return false;
+        }
+
+        if (lanes[0].directWriter != null) {
+            //Every sending thread writes into the ring buffer so there is no single writer to park.
+            System.out.println("Multi producer ring buffers cannot be changed while running. Keeping the current ring buffer sizes.");
+            return false;
+        }
+
+        Packet7Relayout tempPacket = PacketUtil.relayout(++relayoutGeneration, aServerToClientSize, tempClientToServerSize);
+        relayout = new Relayout(tempPacket);
+        sendUrgentPacket(tempPacket);
+        return true;
+    }
+
+    /**
+     * The slave echoed our relayout packet. Both old ring buffers are drained so the master places the new ones
+     * and tells the slave to connect them.
+     */
+    @Override
+    protected void handleRelayout(Packet7Relayout packet) throws Exception {
+        Relayout tempRelayout = relayout;
+        if (tempRelayout == null || tempRelayout.packet.getGeneration() != packet.getGeneration()) {
+            System.out.println("Received unexpected relayout packet from slave. Generation: " + packet.getGeneration());
+            System.exit(-1);
+            return;
+        }
+
+        tempRelayout.writerParked.await();
+        lanes[0].fromIvshmem.detach();
+        lanes[0].toIvshmem.detach();
+
+        Main.applyRingBufferSplit(packet.getServerToClientSize(), packet.getClientToServerSize());
+        //Old data must not look like a connected ring buffer to the input side.
+        Main.memory.set(Main.serverToClientOffset, (byte) 0, RingBuffer.V2_OVERHEAD);
+        Main.memory.set(Main.clientToServerOffset, (byte) 0, RingBuffer.V2_OVERHEAD);
+        Main.memory.write(Constants.ADDRESS_RING_SPLIT, Main.serverToClientSize);
+        Main.memory.write(Constants.ADDRESS_RELAYOUT, packet.getGeneration());
+
+        swapRingBuffers(tempRelayout, Main.clientToServerOffset, Main.serverToClientOffset, Main.serverToClientSize);
     }
 
 }
@@ -25,38 +25,89 @@ import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet1Connect;
 import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet3Rst;
 import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet4Data;
 import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet6OpenServerResult;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet7Relayout;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet8PooledData;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.MultiProducerPacketWriter;
 import io.github.alexanderschuetz97.tcp2ivshmem.servers.Socks5Server;
 import io.github.alexanderschuetz97.tcp2ivshmem.servers.TcpServer;
 import io.github.alexanderschuetz97.tcp2ivshmem.sockets.TcpSocket;
 import io.github.alexanderschuetz97.tcp2ivshmem.sockets.TcpSocketContainer;
 import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet2Fin;
 import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet5OpenServer;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketEnum;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketWriter;
 import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketUtil;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.RingBufferPacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.RingBufferPacketWriter;
+import io.github.alexanderschuetz97.tcp2ivshmem.transport.RingBufferTransport;
+import io.github.alexanderschuetz97.tcp2ivshmem.transport.Transport;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class IvshmemBridge {
 
-
-    private BlockingQueue<AbstractPacket> toIvshmemQueue = new LinkedBlockingQueue<>();
-
     protected Object mutex = new Object();
 
-    protected OutputStream toIvshmem;
-
-    protected InputStream fromIvshmem;
+    /**
+     * Pairs of ring buffers with their own reader and writer thread. Set by connectToIvshmem.
+     * All packets of a connection use the same lane so they arrive in order.
+     */
+    protected volatile Lane[] lanes;
+
+    /**
+     * Ring buffer pair that carries connection setup, reset and server packets ahead of the data of the lanes or null
+     * if they use the lanes as well.
+     */
+    protected volatile ControlLane control;
+
+    /**
+     * The change of the ring buffer sizes in progress or null.
+     */
+    protected volatile Relayout relayout;
+
+    /**
+     * Buffers for the payload we send or null if no buffer pools are used.
+     */
+    protected BufferPool outputPool;
+
+    /**
+     * Buffers for the payload we receive or null if no buffer pools are used.
+     */
+    protected BufferPool inputPool;
 
     protected TcpSocketContainer ownTcpContainer;
 
     protected TcpSocketContainer otherTcpContainer;
 
+    /**
+     * Counts the connect packets read from the lanes for each id of otherTcpContainer. Only used with a control lane.
+     * Each entry is only used by the reader thread of the lane of the id.
+     */
+    protected int[] laneGenerations;
+
+    /**
+     * Number of tcp connections each side can open.
+     */
+    protected int maxConnections;
+
     protected void init(int myIndex, int otherIndex) {
-        ownTcpContainer = new TcpSocketContainer(this, myIndex, Main.maxConcurrentTcpConnections);
-        otherTcpContainer = new TcpSocketContainer(this, otherIndex, Main.maxConcurrentTcpConnections);
+        init(myIndex, otherIndex, Main.maxConcurrentTcpConnections);
+    }
+
+    protected void init(int myIndex, int otherIndex, int aMaxConnections) {
+        maxConnections = aMaxConnections;
+        ownTcpContainer = new TcpSocketContainer(this, myIndex, aMaxConnections);
+        otherTcpContainer = new TcpSocketContainer(this, otherIndex, aMaxConnections);
+        laneGenerations = new int[aMaxConnections];
     }
 
     public void sendUrgentPacket(AbstractPacket packet) throws IOException {
@@ -73,17 +124,43 @@ public abstract class IvshmemBridge {
                 break;
             case SERVER:
                 break;
+            case RELAYOUT:
+                System.out.println("RELAYOUT Sending. Generation: " + ((Packet7Relayout) packet).getGeneration());
+                break;
+        }
+        ControlLane tempControl = control;
+        if (tempControl != null && isControlPacket(packet)) {
+            sendControlPacket(tempControl, packet);
+            if (packet.getPacketEnum() != PacketEnum.CONNECT) {
+                return;
+            }
+            //The copy in the lane marks where the data of the new connection starts, see awaitControl.
+        }
+
+        Lane tempLane = getLane(packet);
+        MultiProducerPacketWriter tempDirectWriter = tempLane.directWriter;
+        if (tempDirectWriter != null) {
+            tempDirectWriter.writePacket(packet);
+            return;
         }
+
         try {
-            toIvshmemQueue.put(packet);
+            tempLane.queue.put(packet);
         } catch (InterruptedException e) {
             throw new IOException(e);
         }
     }
 
     public void sendPacket(AbstractPacket packet) throws IOException {
+        Lane tempLane = getLane(packet);
+        MultiProducerPacketWriter tempDirectWriter = tempLane.directWriter;
+        if (tempDirectWriter != null) {
+            tempDirectWriter.writePacket(packet);
+            return;
+        }
+
         synchronized (mutex) {
-            while (toIvshmemQueue.size() > Constants.PACKET_QUEUE_SIZE) {
+            while (tempLane.queue.size() > Constants.PACKET_QUEUE_SIZE) {
                     try {
                         mutex.wait();
                     } catch (InterruptedException e) {
@@ -93,19 +170,102 @@ public abstract class IvshmemBridge {
         }
 
         try {
-            toIvshmemQueue.put(packet);
+            tempLane.queue.put(packet);
         } catch (InterruptedException e) {
             throw new IOException(e);
         }
     }
 
+    /**
+     * Returns true if the packet may overtake the data in the lanes. A FIN has to follow the data of its connection
+     * and a relayout packet has to be the last packet of the old ring buffer so both stay in the lanes.
+     * An RST for a connection the other side opened stays in the lanes as well. The other side may use the id for
+     * the next connection once it handled the RST, so no data of the old connection may follow it.
+     */
+    protected boolean isControlPacket(AbstractPacket aPacket) {
+        switch (aPacket.getPacketEnum()) {
+            case RST:
+                return ownTcpContainer.isID(((Packet3Rst) aPacket).getId());
+            case CONNECT:
+            case SERVER:
+            case SERVER_RESULT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes the packet into the control lane before returning so the data a connection sends afterwards can never
+     * be read before its connect packet. Packets sent by the control reader thread are handed to the control writer
+     * thread instead as the other side might wait for its own control packets to be read.
+     */
+    protected void sendControlPacket(ControlLane aControl, AbstractPacket aPacket) throws IOException {
+        if (Thread.currentThread() == aControl.readerThread) {
+            aControl.queue.add(aPacket);
+            return;
+        }
+
+        aControl.write(aPacket);
+    }
+
+    /**
+     * Sends len bytes of data for the connection. Does not copy the data if it is written straight into the ring buffer.
+     */
+    public void sendData(int id, byte[] data, int off, int len) throws IOException {
+        MultiProducerPacketWriter tempDirectWriter = getLane(id).directWriter;
+        if (tempDirectWriter != null) {
+            tempDirectWriter.writeData(id, data, off, len);
+            return;
+        }
+
+        sendPacket(PacketUtil.data(id, data, off, len));
+    }
+
     public void start() {
         try {
             connectToIvshmem();
         } catch (Exception exc) {
             System.out.println("Error connecting to endpoint via shared memory.");
             exc.printStackTrace();
-            System.exit(-1);
+            exit(-1);
+            return;
+        }
+
+        for (final Lane tempLane : lanes) {
+            Main.ex.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(tempLane);
+                    } catch (Exception exc) {
+                        System.out.println("Error writing to shared memory.");
+                        exc.printStackTrace();
+                        exit(-1);
+                        return;
+                    }
+                    exit(0);
+                }
+            });
+
+            Main.ex.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        read(tempLane);
+                    } catch (Exception e) {
+                        System.out.println("Error reading from shared memory.");
+                        e.printStackTrace();
+                        exit(-1);
+                        return;
+                    }
+                    exit(0);
+                }
+            });
+        }
+
+        final ControlLane tempControl = control;
+        if (tempControl == null) {
             return;
         }
 
@@ -113,14 +273,14 @@ public abstract class IvshmemBridge {
             @Override
             public void run() {
                 try {
-                    write();
+                    writeControl(tempControl);
                 } catch (Exception exc) {
                     System.out.println("Error writing to shared memory.");
                     exc.printStackTrace();
-                    System.exit(-1);
+                    exit(-1);
                     return;
                 }
-                System.exit(0);
+                exit(0);
             }
         });
 
@@ -128,40 +288,208 @@ public abstract class IvshmemBridge {
             @Override
             public void run() {
                 try {
-                    read();
+                    readControl(tempControl);
                 } catch (Exception e) {
                     System.out.println("Error reading from shared memory.");
                     e.printStackTrace();
-                    System.exit(-1);
+                    exit(-1);
                     return;
                 }
-                System.exit(0);
+                exit(0);
             }
         });
     }
 
+    /**
+     * Returns the lane that carries the packet. Packets of a connection always use the lane of the connection,
+     * everything else uses lane 0.
+     */
+    protected Lane getLane(AbstractPacket aPacket) {
+        switch (aPacket.getPacketEnum()) {
+            case CONNECT:
+                return getLane(((Packet1Connect) aPacket).getId());
+            case FIN:
+                return getLane(((Packet2Fin) aPacket).getId());
+            case RST:
+                return getLane(((Packet3Rst) aPacket).getId());
+            case DATA:
+                return getLane(((Packet4Data) aPacket).getId());
+            case POOLED_DATA:
+                return getLane(((Packet8PooledData) aPacket).getId());
+            default:
+                return lanes[0];
+        }
+    }
+
+    protected Lane getLane(int aId) {
+        Lane[] tempLanes = lanes;
+        return tempLanes[aId % tempLanes.length];
+    }
+
+    /**
+     * Connects to the other side and sets the lanes.
+     */
     protected abstract void connectToIvshmem() throws Exception;
 
+    /**
+     * Creates both buffer pools if the handshake agreed on using them. Each side fills the free ring of its own output pool.
+     * Must be called before the first packet is sent.
+     */
+    protected void connectBufferPools(boolean aServerToClientOutput) {
+        if (Main.poolBuffers == 0) {
+            return;
+        }
+
+        outputPool = new BufferPool(Main.memory, Main.getBufferPoolOffset(aServerToClientOutput), Main.poolBuffers);
+        inputPool = new BufferPool(Main.memory, Main.getBufferPoolOffset(!aServerToClientOutput), Main.poolBuffers);
+        outputPool.init();
+        System.out.println("Using buffer pools with " + Main.poolBuffers + " buffers of " + Constants.POOL_BUFFER_SIZE + " bytes per direction.");
+    }
+
+    /**
+     * Connects the ring buffers of every lane and of the control lane that were agreed on during the handshake and sets them.
+     * Both sides connect all of them at the same time as every input waits for the output of the other side.
+     */
+    protected void connectLanes(boolean aServerToClientOutput) throws Exception {
+        List<Future<RingBuffer>> tempInputFutures = new ArrayList<>();
+        List<Future<RingBuffer>> tempOutputFutures = new ArrayList<>();
+        long tempOutputSize = aServerToClientOutput ? Main.serverToClientSize : Main.clientToServerSize;
+        for (int i = 0; i < Main.lanes; i++) {
+            tempInputFutures.add(Main.ex.submit(new ConnectRingBufferForInput(Main.getLaneOffset(i, !aServerToClientOutput))));
+            tempOutputFutures.add(Main.ex.submit(new ConnectRingBufferForOutput(Main.getLaneOffset(i, aServerToClientOutput), tempOutputSize, Main.useInterrupts, i)));
+        }
+
+        Future<RingBuffer> tempControlInputFuture = null;
+        Future<RingBuffer> tempControlOutputFuture = null;
+        if (Main.controlLane) {
+            tempControlInputFuture = Main.ex.submit(new ConnectRingBufferForInput(Main.getControlRingOffset(!aServerToClientOutput)));
+            tempControlOutputFuture = Main.ex.submit(ConnectRingBufferForOutput.forControlLane(Main.getControlRingOffset(aServerToClientOutput), Main.useInterrupts));
+        }
+
+        Lane[] tempLanes = new Lane[Main.lanes];
+        for (int i = 0; i < tempLanes.length; i++) {
+            Lane tempLane = new Lane(i);
+            tempLane.fromIvshmem = tempInputFutures.get(i).get(Constants.TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
+            tempLane.toIvshmem = tempOutputFutures.get(i).get(Constants.TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
+            tempLane.transport = new RingBufferTransport(tempLane.fromIvshmem, tempLane.toIvshmem);
+            connectDirectWriter(tempLane);
+            tempLanes[i] = tempLane;
+        }
+
+        lanes = tempLanes;
+        if (tempControlInputFuture != null) {
+            RingBuffer tempInput = tempControlInputFuture.get(Constants.TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
+            RingBuffer tempOutput = tempControlOutputFuture.get(Constants.TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
+            control = new ControlLane(tempInput, tempOutput);
+        }
+    }
+
+    /**
+     * Lets every thread write its packets straight into the output ring buffer of the lane if it accepts multiple producers.
+     * Must be called after the ring buffers were connected and before the first packet is sent.
+     */
+    protected void connectDirectWriter(Lane aLane) {
+        if ((aLane.toIvshmem.getFlags() & RingBuffer.FLAG_MULTI_PRODUCER) == 0) {
+            return;
+        }
+
+        aLane.directWriter = new MultiProducerPacketWriter(aLane.toIvshmem);
+        if (aLane.index == 0) {
+            System.out.println("Packets are written into the ring buffer by the threads that send them.");
+        }
+    }
+
+    public BufferPool getOutputPool() {
+        return outputPool;
+    }
+
+    /**
+     * Called by the reader thread when a relayout packet was read. It is always the last packet in the old ring buffer.
+     * Must switch both ring buffers by calling swapRingBuffers.
+     */
+    protected abstract void handleRelayout(Packet7Relayout packet) throws Exception;
+
+    /**
+     * Connects the ring buffers of the new layout and hands the output to the parked writer thread.
+     * The old ring buffers must have been detached and both writers must be parked. Only used with a single lane.
+     */
+    protected void swapRingBuffers(Relayout aRelayout, long aInputAddress, long aOutputAddress, long aOutputSize) throws Exception {
+        Future<RingBuffer> tempInputFuture = Main.ex.submit(new ConnectRingBufferForInput(aInputAddress));
+        Future<RingBuffer> tempOutputFuture = Main.ex.submit(new ConnectRingBufferForOutput(aOutputAddress, aOutputSize, Main.useInterrupts));
+
+        Lane tempLane = lanes[0];
+        tempLane.fromIvshmem = tempInputFuture.get(Constants.TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
+        aRelayout.newOutput = tempOutputFuture.get(Constants.TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
+        tempLane.transport = new RingBufferTransport(tempLane.fromIvshmem, aRelayout.newOutput);
+        relayout = null;
+        aRelayout.done.countDown();
+        System.out.println("Ring buffers of generation " + aRelayout.packet.getGeneration() + " connected.");
+    }
+
     protected void handleConnect(Packet1Connect packet) throws IOException {
+        Socket socket = connect(packet);
+        if (socket == null) {
+            otherTcpContainer.rst(packet.getId());
+            return;
+        }
+
+        System.out.println("New connection to /" + packet.getHost() + ":" + packet.getPort() + " from " + socket.getLocalPort() + ". We handle the server side connection. Tracking id: " + packet.getId());
+        otherTcpContainer.add(packet.getId(), socket).start();
+    }
+
+    /**
+     * Marks the id as connecting and connects the socket on another thread so the control reader can continue
+     * with the next control packet. Lane readers that have data for the connection wait until it is connected.
+     */
+    protected void handleConnectLater(final Packet1Connect packet) throws IOException {
+        final int generation = otherTcpContainer.connecting(packet.getId());
+        Main.ex.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = connect(packet);
+                    if (socket == null) {
+                        otherTcpContainer.connectFailed(packet.getId(), generation);
+                        return;
+                    }
 
-        Socket socket;
+                    TcpSocket tcpSocket = otherTcpContainer.connected(packet.getId(), generation, socket);
+                    if (tcpSocket == null) {
+                        System.out.println("New connection to /" + packet.getHost() + ":" + packet.getPort() + " was reset while connecting. Tracking id: " + packet.getId());
+                        return;
+                    }
+                    System.out.println("New connection to /" + packet.getHost() + ":" + packet.getPort() + " from " + socket.getLocalPort() + ". We handle the server side connection. Tracking id: " + packet.getId());
+                    tcpSocket.start();
+                } catch (IOException e) {
+                    System.out.println("Error handling new connection. Tracking id: " + packet.getId());
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the socket for a connection the other side opened. Sends an RST and returns null if that fails.
+     */
+    private Socket connect(Packet1Connect packet) throws IOException {
         try {
-            socket = new Socket(packet.getHost(), packet.getPort());
+            return new Socket(packet.getHost(), packet.getPort());
         } catch (IOException exc) {
             System.out.println("New connection to /" + packet.getHost() + ":" + packet.getPort() + " failed " + exc.getMessage());
             sendUrgentPacket(PacketUtil.rst(packet.getId()));
-            otherTcpContainer.rst(packet.getId());
-            return;
+            return null;
         }
-        System.out.println("New connection to /" + packet.getHost() + ":" + packet.getPort() + " from " + socket.getLocalPort() + ". We handle the server side connection. Tracking id: " + packet.getId());
-        otherTcpContainer.add(packet.getId(), socket).start();
     }
 
     protected void handleFin(Packet2Fin packet) throws IOException {
         int id = packet.getId();
         System.out.println("FIN Received. Tracking id: " + id);
         if (otherTcpContainer.isID(id)) {
-            otherTcpContainer.fin(id);
+            if (control != null) {
+                otherTcpContainer.fin(id, laneGenerations[id - otherTcpContainer.getOffset()]);
+            } else {
+                otherTcpContainer.fin(id);
+            }
         } else {
             ownTcpContainer.fin(id);
         }
@@ -180,11 +508,38 @@ public abstract class IvshmemBridge {
     }
 
     protected void handleData(Packet4Data packet) throws IOException {
-        int id = packet.getId();
+        handleData(packet.getId(), packet.getData());
+    }
+
+    protected void handlePooledData(Packet8PooledData packet) throws IOException {
+        if (inputPool == null) {
+            System.out.println("Received pooled data without buffer pools " + packet);
+            exit(-1);
+            return;
+        }
+
+        if (packet.getBuffer() < 0 || packet.getBuffer() >= inputPool.getBuffers() || packet.getLength() < 0 || packet.getLength() > inputPool.getBufferSize()) {
+            System.out.println("Received pooled data outside of the buffer pool with " + inputPool.getBuffers() + " buffers of " + inputPool.getBufferSize() + " bytes " + packet);
+            exit(-1);
+            return;
+        }
+
+        //Java cannot write native memory to a socket so the payload is copied out and the buffer is returned immediately.
+        byte[] data = new byte[packet.getLength()];
+        inputPool.read(packet.getBuffer(), data, 0, data.length);
+        inputPool.release(packet.getBuffer());
+        handleData(packet.getId(), data);
+    }
+
+    protected void handleData(int id, byte[] data) throws IOException {
         if (otherTcpContainer.isID(id)) {
-            otherTcpContainer.data(id, packet.getData());
+            if (control != null) {
+                otherTcpContainer.data(id, laneGenerations[id - otherTcpContainer.getOffset()], data);
+            } else {
+                otherTcpContainer.data(id, data);
+            }
         } else {
-            ownTcpContainer.data(id, packet.getData());
+            ownTcpContainer.data(id, data);
         }
     }
 
@@ -241,14 +596,73 @@ public abstract class IvshmemBridge {
 
 
 
-    protected void write() throws Exception {
-        Thread.currentThread().setName("Ivshmem writer Thread");
-        DataOutputStream dout = new DataOutputStream(toIvshmem);
+    protected PacketWriter createWriter(Lane lane, int batchSize) throws IOException {
+        return lane.transport.createWriter(batchSize);
+    }
+
+    protected PacketReader createReader(Lane lane) throws IOException {
+        return lane.transport.createReader();
+    }
+
+    protected int getWriteBatchSize() {
+        return Main.config.getWriteBatchSize();
+    }
+
+    /**
+     * Returns the write batch latency in microseconds.
+     */
+    protected long getWriteBatchLatency() {
+        return Main.config.getWriteBatchLatency();
+    }
+
+    /**
+     * Called when the bridge can no longer operate or one of its threads finished. Ends the process.
+     */
+    protected void exit(int aStatus) {
+        System.exit(aStatus);
+    }
+
+    protected void write(Lane lane) throws Exception {
+        Thread.currentThread().setName("Ivshmem writer Thread" + (lanes.length > 1 ? " lane " + lane.index : ""));
+        BlockingQueue<AbstractPacket> queue = lane.queue;
+        int batchSize = getWriteBatchSize();
+        long batchLatency = TimeUnit.MICROSECONDS.toNanos(getWriteBatchLatency());
+        PacketWriter writer = createWriter(lane, batchSize);
         while(true) {
-            AbstractPacket tempPacket = toIvshmemQueue.take();
+            AbstractPacket tempPacket = queue.take();
+            long tempDeadline = System.nanoTime() + batchLatency;
+            Relayout tempRelayout = null;
+
+            //Encode everything that is queued into one batch so the ring buffer only sees a single write.
+            while (tempPacket != null) {
+                writer.writePacket(tempPacket);
+                if (tempPacket.getPacketEnum() == PacketEnum.RELAYOUT) {
+                    //Nothing may follow the relayout packet in the old ring buffer.
+                    tempRelayout = relayout;
+                    break;
+                }
 
+                if (writer.getBufferedBytes() >= batchSize) {
+                    break;
+                }
 
-            PacketUtil.writePacket(tempPacket, dout);
+                tempPacket = queue.poll();
+                if (tempPacket == null && batchLatency > 0) {
+                    long tempRemaining = tempDeadline - System.nanoTime();
+                    if (tempRemaining > 0) {
+                        tempPacket = queue.poll(tempRemaining, TimeUnit.NANOSECONDS);
+                    }
+                }
+            }
+
+            writer.flush();
+
+            if (tempRelayout != null) {
+                tempRelayout.writerParked.countDown();
+                tempRelayout.done.await();
+                lane.toIvshmem = tempRelayout.newOutput;
+                writer = createWriter(lane, batchSize);
+            }
 
             synchronized (mutex) {
                 mutex.notifyAll();
@@ -257,38 +671,170 @@ public abstract class IvshmemBridge {
     }
 
 
-    protected void read() throws Exception {
-        Thread.currentThread().setName("Ivshmem reader Thread");
+    protected void read(Lane lane) throws Exception {
+        Thread.currentThread().setName("Ivshmem reader Thread" + (lanes.length > 1 ? " lane " + lane.index : ""));
 
-        DataInputStream din = new DataInputStream(fromIvshmem);
+        PacketReader reader = createReader(lane);
         while(true) {
-            AbstractPacket packet = PacketUtil.readPacket(din);
+            AbstractPacket packet = reader.readPacket();
+            if (packet.getPacketEnum() == PacketEnum.RELAYOUT) {
+                System.out.println("RELAYOUT Received. Generation: " + ((Packet7Relayout) packet).getGeneration());
+                handleRelayout((Packet7Relayout) packet);
+                reader = createReader(lane);
+                continue;
+            }
 
-            switch (packet.getPacketEnum()) {
-                case CONNECT:
-                    handleConnect((Packet1Connect) packet);
-                    break;
-                case FIN:
-                    handleFin((Packet2Fin) packet);
-                    break;
-                case RST:
-                    handleRst((Packet3Rst) packet);
-                    break;
-                case DATA:
-                    handleData((Packet4Data) packet);
-                    break;
-                case SERVER:
-                    handleServer((Packet5OpenServer) packet);
-                    break;
-                case SERVER_RESULT:
-                    handleServerResult((Packet6OpenServerResult) packet);
-                    break;
-                default:
-                    System.out.println("Received invalid packet " + packet);
-                    System.exit(-1);
-                    return;
+            if (!awaitControl(packet)) {
+                dropPacket(packet);
+                continue;
+            }
+            handlePacket(packet);
+        }
+    }
+
+    /**
+     * Drains the control lane. The reader waits for a packet without taking it and then reads and handles it while
+     * holding the lock, so the lane readers only ever see a control packet unread or handled.
+     * Connect packets only mark the id as connecting while the lock is held, the socket is connected on another thread.
+     */
+    protected void readControl(ControlLane aControl) throws Exception {
+        Thread.currentThread().setName("Ivshmem control reader Thread");
+        aControl.readerThread = Thread.currentThread();
+        while (true) {
+            aControl.fromIvshmem.peek(1);
+            aControl.lock.lock();
+            try {
+                AbstractPacket packet = aControl.reader.readPacket();
+                if (packet.getPacketEnum() == PacketEnum.CONNECT) {
+                    handleConnectLater((Packet1Connect) packet);
+                } else {
+                    handlePacket(packet);
+                }
+                aControl.handled.signalAll();
+            } finally {
+                aControl.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the control packets sent by the control reader thread.
+     */
+    protected void writeControl(ControlLane aControl) throws Exception {
+        Thread.currentThread().setName("Ivshmem control writer Thread");
+        while (true) {
+            aControl.write(aControl.queue.take());
+        }
+    }
+
+    /**
+     * Connect packets overtake the data of the lanes in the control lane. The other side sends every connect packet
+     * in the lane of the connection as well, where it marks the start of the data of the new connection.
+     * The lane reader counts these markers per id and compares them with the generation of the connection the
+     * control reader handled last.
+     * Data and FIN packets of an older generation belong to a connection that used the same id before and must be dropped.
+     * For a newer generation the connect packet was not handled yet. The reader waits until it was, or until the
+     * control lane handled everything the other side sent before this packet was read. Control packets sent later
+     * do not extend the wait. Then waits until the socket of the connection is connected.
+     * Returns false if the packet must be dropped. Does nothing without a control lane.
+     */
+    protected boolean awaitControl(AbstractPacket packet) throws InterruptedException {
+        ControlLane tempControl = control;
+        if (tempControl == null) {
+            return true;
+        }
+
+        int id;
+        switch (packet.getPacketEnum()) {
+            case CONNECT:
+                id = ((Packet1Connect) packet).getId();
+                if (otherTcpContainer.isID(id)) {
+                    laneGenerations[id - otherTcpContainer.getOffset()]++;
+                }
+                //Already handled by the control reader.
+                return false;
+            case FIN:
+                id = ((Packet2Fin) packet).getId();
+                break;
+            case DATA:
+                id = ((Packet4Data) packet).getId();
+                break;
+            case POOLED_DATA:
+                id = ((Packet8PooledData) packet).getId();
+                break;
+            default:
+                return true;
+        }
+
+        if (!otherTcpContainer.isID(id)) {
+            return true;
+        }
+
+        int generation = laneGenerations[id - otherTcpContainer.getOffset()];
+        int difference = otherTcpContainer.getGeneration(id) - generation;
+        if (difference > 0) {
+            return false;
+        }
+
+        if (difference < 0) {
+            //The connect packet was written before the marker so it is before the index the other side published now.
+            long tempPublished = tempControl.fromIvshmem.getPublishedIndex();
+            tempControl.lock.lock();
+            try {
+                while (otherTcpContainer.getGeneration(id) - generation < 0 && !tempControl.fromIvshmem.isReleased(tempPublished)) {
+                    tempControl.handled.await(Constants.SPIN_CONNECT, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                tempControl.lock.unlock();
             }
         }
+
+        if (otherTcpContainer.getGeneration(id) == generation) {
+            otherTcpContainer.awaitConnect(id);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the buffer of a pooled data packet that is not handled.
+     */
+    protected void dropPacket(AbstractPacket packet) {
+        if (packet.getPacketEnum() == PacketEnum.POOLED_DATA && inputPool != null) {
+            inputPool.release(((Packet8PooledData) packet).getBuffer());
+        }
+    }
+
+    /**
+     * Handles every packet except the relayout packet which only the lane readers can handle.
+     */
+    protected void handlePacket(AbstractPacket packet) throws IOException {
+        switch (packet.getPacketEnum()) {
+            case CONNECT:
+                handleConnect((Packet1Connect) packet);
+                break;
+            case FIN:
+                handleFin((Packet2Fin) packet);
+                break;
+            case RST:
+                handleRst((Packet3Rst) packet);
+                break;
+            case DATA:
+                handleData((Packet4Data) packet);
+                break;
+            case SERVER:
+                handleServer((Packet5OpenServer) packet);
+                break;
+            case SERVER_RESULT:
+                handleServerResult((Packet6OpenServerResult) packet);
+                break;
+            case POOLED_DATA:
+                handlePooledData((Packet8PooledData) packet);
+                break;
+            default:
+                System.out.println("Received invalid packet " + packet);
+                exit(-1);
+                return;
+        }
     }
 
     private Object addSocketMutex = new Object();
@@ -299,7 +845,7 @@ public abstract class IvshmemBridge {
         TcpSocket sock;
         synchronized (addSocketMutex) {
             int current = index++;
-            index %= Main.maxConcurrentTcpConnections;
+            index %= maxConnections;
 
             sock = ownTcpContainer.add(ownTcpContainer.getOffset() + current, socket);
         }
@@ -341,7 +887,7 @@ public abstract class IvshmemBridge {
             if (transferObject.result == null) {
                 //TODO better handling.
                 System.out.println("Timeout while waiting for remote to open a server!");
-                System.exit(-1);
+                exit(-1);
                 return false;
             }
 
@@ -366,6 +912,61 @@ public abstract class IvshmemBridge {
         return success;
     }
 
+    //Ring buffer pair of one lane together with the packets queued for its writer thread.
+    protected static class Lane {
+        final int index;
+        final BlockingQueue<AbstractPacket> queue = new LinkedBlockingQueue<>();
+        volatile RingBuffer toIvshmem;
+        volatile RingBuffer fromIvshmem;
+        //Carries the packets to the other side. Replaced when the ring buffers are swapped.
+        volatile Transport transport;
+        //Writes packets from the sending thread straight into a multi producer ring buffer or null if packets are queued
+        //for the writer thread. The writer thread stays idle while it is set.
+        volatile MultiProducerPacketWriter directWriter;
+
+        Lane(int aIndex) {
+            index = aIndex;
+        }
+    }
+
+    //Ring buffer pair of the control lane. Every thread writes its control packets itself, only the control reader reads.
+    protected static class ControlLane {
+        final RingBuffer toIvshmem;
+        final RingBuffer fromIvshmem;
+        final PacketWriter writer;
+        final PacketReader reader;
+        //Control packets sent by the control reader thread.
+        final BlockingQueue<AbstractPacket> queue = new LinkedBlockingQueue<>();
+        //Held by the control reader while it reads and handles a packet.
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition handled = lock.newCondition();
+        volatile Thread readerThread;
+
+        ControlLane(RingBuffer aInput, RingBuffer aOutput) throws IOException {
+            toIvshmem = aOutput;
+            fromIvshmem = aInput;
+            writer = new RingBufferPacketWriter(aOutput, (int) aOutput.getCapacity());
+            reader = new RingBufferPacketReader(aInput, (int) aInput.getCapacity());
+        }
+
+        synchronized void write(AbstractPacket aPacket) throws IOException {
+            writer.writePacket(aPacket);
+            writer.flush();
+        }
+    }
+
+    //Transfer object between the reader thread that switches the ring buffers and the writer thread that parks on the old one.
+    protected static class Relayout {
+        final Packet7Relayout packet;
+        final CountDownLatch writerParked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile RingBuffer newOutput;
+
+        Relayout(Packet7Relayout aPacket) {
+            packet = aPacket;
+        }
+    }
+
     //Transfer object for inter thread communication. CompletableFuture is in JDK 8 sadly and i dont want to include GUAVA for SettableFuture...
     class OpenServerTransferObject {
         int id;
@@ -20,9 +20,8 @@
 package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
 
 import io.github.alexanderschuetz97.tcp2ivshmem.Main;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet7Relayout;
 
-import java.io.*;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants.*;
@@ -34,6 +33,15 @@ public class IvshmemSlaveBridge extends IvshmemBridge {
         System.out.println("Waiting for ivshmem connection from master...");
         Main.memory.spin(ADDRESS_STATE, STATE_CONNECTING, SPIN_CONNECT, -1, TimeUnit.MILLISECONDS);
         System.out.println("...Master is present sending handshake.");
+        Main.memory.write(ADDRESS_RING_LAYOUT, (byte) 0);
+        Main.memory.write(ADDRESS_RING_FLAGS, 0);
+        Main.memory.write(ADDRESS_RING_SPLIT, 0L);
+        Main.memory.write(ADDRESS_POOL_BUFFERS, 0);
+        Main.memory.write(ADDRESS_LANES, 0);
+        Main.memory.write(ADDRESS_SLAVE_LANES, MAX_LANES);
+        Main.memory.write(ADDRESS_CONTROL_LANE, 0);
+        Main.memory.write(ADDRESS_SLAVE_CONTROL_LANE, 1);
+        Main.memory.write(ADDRESS_SLAVE_RING_LAYOUT, (byte) Main.maxRingLayoutVersion);
 
         if (!Main.memory.compareAndSet(ADDRESS_STATE, STATE_CONNECTING, STATE_HANDSHAKE)) {
             System.out.println("Error starting handshake. Are multiple slaves running?");
@@ -59,6 +67,49 @@ public class IvshmemSlaveBridge extends IvshmemBridge {
         }
         init(Main.maxConcurrentTcpConnections, 0);
 
+        int ringLayout = Main.memory.read(ADDRESS_RING_LAYOUT);
+        if (ringLayout <= 0) {
+            ringLayout = RingBuffer.LAYOUT_V1;
+        }
+        if (ringLayout > Main.maxRingLayoutVersion) {
+            System.out.println("Ring buffer layout version " + ringLayout + " chosen by master is not supported shutting down.");
+            System.exit(-1);
+            return;
+        }
+        int ringFlags = ringLayout >= RingBuffer.LAYOUT_V2 ? Main.memory.readInt(ADDRESS_RING_FLAGS) : 0;
+        if ((ringFlags & ~RingBuffer.SUPPORTED_FLAGS) != 0) {
+            System.out.println("Ring buffer flags " + ringFlags + " chosen by master are not supported shutting down.");
+            System.exit(-1);
+            return;
+        }
+        int poolBuffers = ringLayout >= RingBuffer.LAYOUT_V2 ? Main.memory.readInt(ADDRESS_POOL_BUFFERS) : 0;
+        if (!BufferPool.fits(poolBuffers, Main.memory.size())) {
+            System.out.println("Buffer pool size " + poolBuffers + " chosen by master is not supported shutting down.");
+            System.exit(-1);
+            return;
+        }
+        Main.poolBuffers = poolBuffers;
+        int laneCount = ringLayout >= RingBuffer.LAYOUT_V2 ? Math.max(1, Main.memory.readInt(ADDRESS_LANES)) : 1;
+        if (laneCount > MAX_LANES) {
+            System.out.println("Lane count " + laneCount + " chosen by master is not supported shutting down.");
+            System.exit(-1);
+            return;
+        }
+        Main.lanes = laneCount;
+        Main.controlLane = ringLayout >= RingBuffer.LAYOUT_V2 && Main.memory.readInt(ADDRESS_CONTROL_LANE) == 1;
+        Main.computeRingBufferLayout(ringLayout, ringFlags);
+        long ringSplit = ringLayout >= RingBuffer.LAYOUT_V2 ? Main.memory.readLong(ADDRESS_RING_SPLIT) : 0;
+        if (ringSplit > 0 && ringSplit != Main.serverToClientSize) {
+            long clientToServerSize = Main.getRemainingRingBufferSize(ringSplit);
+            String error = Main.checkRingBufferSplit(ringSplit, clientToServerSize);
+            if (error != null) {
+                System.out.println(error + " Ring buffer split chosen by master is not supported shutting down.");
+                System.exit(-1);
+                return;
+            }
+            Main.applyRingBufferSplit(ringSplit, clientToServerSize);
+        }
+
         int watchdog = Main.memory.readInt(ADDRESS_WATCHDOG);
         Main.memory.write(ADDRESS_SLAVE_INTERRUPTS, Main.useInterrupts ? USE_INTERRUPTS : DONT_USE_INTERRUPTS);
 
@@ -80,14 +131,41 @@ public class IvshmemSlaveBridge extends IvshmemBridge {
 
         IvshmemConnectionWatchdog.getInstance().start(watchdog);
 
-        Future<InputStream> inputStreamFuture = Main.ex.submit(new ConnectRingBufferForInput(Main.serverToClientOffset));
-        Future<OutputStream> outputStreamFuture = Main.ex.submit(new ConnectRingBufferForOutput(Main.clientToServerOffset, Main.useInterrupts));
-
-        fromIvshmem = inputStreamFuture.get(TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
-        toIvshmem = outputStreamFuture.get(TIMEOUT_CONNECT, TimeUnit.MILLISECONDS);
+        connectBufferPools(false);
+        connectLanes(false);
         System.out.println("...Ring buffers connected. Slave is ready for operation.");
         System.out.println("Will accept " + Main.maxConcurrentTcpConnections + " maximum concurrent tcp connections");
     }
 
+    /**
+     * The master wants to change the ring buffer sizes. The packet is echoed as the last packet of the old ring buffer
+     * to the master. The new ring buffers are connected once the master has placed them.
+     */
+    @Override
+    protected void handleRelayout(Packet7Relayout packet) throws Exception {
+        String tempError = Main.checkRingBufferSplit(packet.getServerToClientSize(), packet.getClientToServerSize());
+        if (tempError != null) {
+            System.out.println(tempError + " Ring buffer sizes sent by master are invalid shutting down.");
+            System.exit(-1);
+            return;
+        }
+
+        Relayout tempRelayout = new Relayout(packet);
+        relayout = tempRelayout;
+        sendUrgentPacket(packet);
+        tempRelayout.writerParked.await();
+        lanes[0].fromIvshmem.detach();
+        lanes[0].toIvshmem.detach();
+
+        Main.applyRingBufferSplit(packet.getServerToClientSize(), packet.getClientToServerSize());
+        if (!Main.memory.spin(ADDRESS_RELAYOUT, packet.getGeneration(), SPIN_CONNECT, TIMEOUT_CONNECT, TimeUnit.MILLISECONDS)) {
+            System.out.println("Timeout while waiting for the master to place the new ring buffers.");
+            System.exit(-1);
+            return;
+        }
+
+        swapRingBuffers(tempRelayout, Main.serverToClientOffset, Main.clientToServerOffset, Main.clientToServerSize);
+    }
+
 
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.Main;
+
+import static io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants.*;
+
+/**
+ * Prints the control block and the state of the ring buffers of every lane and the control lane of a running tunnel once a second.
+ * Only reads the Shared Memory so it can be attached to a tunnel at any time without disturbing it.
+ * A control block that is read in the middle of a handshake may not describe a valid layout, such rounds are skipped.
+ */
+public class IvshmemStat implements Runnable {
+
+    private int ringLayout = -1;
+
+    private int ringFlags = -1;
+
+    private long ringSplit = -1;
+
+    private int poolBuffers = -1;
+
+    private int lanes = -1;
+
+    private int controlLane = -1;
+
+    private RingBufferStatistics[] lastServerToClient;
+
+    private RingBufferStatistics[] lastClientToServer;
+
+    private RingBufferStatistics lastControlServerToClient;
+
+    private RingBufferStatistics lastControlClientToServer;
+
+    private long lastTime;
+
+    @Override
+    public void run() {
+        while (true) {
+            print();
+            try {
+                Thread.sleep(SPIN_STAT);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    protected void print() {
+        byte tempState = Main.memory.read(ADDRESS_STATE);
+        int tempLayout = Main.memory.read(ADDRESS_RING_LAYOUT);
+        if (tempLayout <= 0 || tempLayout > Main.maxRingLayoutVersion) {
+            tempLayout = RingBuffer.LAYOUT_V1;
+        }
+        int tempFlags = tempLayout >= RingBuffer.LAYOUT_V2 ? Main.memory.readInt(ADDRESS_RING_FLAGS) : 0;
+        int tempPoolBuffers = tempLayout >= RingBuffer.LAYOUT_V2 ? Main.memory.readInt(ADDRESS_POOL_BUFFERS) : 0;
+        if (!BufferPool.fits(tempPoolBuffers, Main.memory.size())) {
+            tempPoolBuffers = 0;
+        }
+        int tempLanes = tempLayout >= RingBuffer.LAYOUT_V2 ? Main.memory.readInt(ADDRESS_LANES) : 1;
+        if (tempLanes < 1 || tempLanes > MAX_LANES) {
+            tempLanes = 1;
+        }
+        int tempControlLane = tempLayout >= RingBuffer.LAYOUT_V2 && Main.memory.readInt(ADDRESS_CONTROL_LANE) == 1 ? 1 : 0;
+
+        if (tempLayout != ringLayout || tempFlags != ringFlags || tempPoolBuffers != poolBuffers || tempLanes != lanes || tempControlLane != controlLane) {
+            //Layout was negotiated again, the rates of the old layout are meaningless.
+            Main.poolBuffers = tempPoolBuffers;
+            Main.lanes = tempLanes;
+            Main.controlLane = tempControlLane == 1;
+            long[] tempRingLayout = Main.getRingBufferLayout(tempLayout, tempFlags);
+            if (tempRingLayout == null) {
+                //Not a layout the bridges could have agreed on, try again next round.
+                ringLayout = -1;
+                return;
+            }
+
+            Main.applyRingBufferLayout(tempLayout, tempFlags, tempRingLayout);
+            ringLayout = tempLayout;
+            ringFlags = tempFlags;
+            poolBuffers = tempPoolBuffers;
+            lanes = tempLanes;
+            controlLane = tempControlLane;
+            ringSplit = -1;
+            lastServerToClient = null;
+            lastClientToServer = null;
+            lastControlServerToClient = null;
+            lastControlClientToServer = null;
+        }
+
+        long tempSplit = tempLayout >= RingBuffer.LAYOUT_V2 ? Main.memory.readLong(ADDRESS_RING_SPLIT) : 0;
+        if (tempSplit > 0 && tempSplit != ringSplit && lanes == 1) {
+            //The master changed the ring buffer sizes while running. Only possible with a single lane.
+            ringSplit = tempSplit;
+            long tempClientToServerSize = Main.getRemainingRingBufferSize(tempSplit);
+            if (Main.checkRingBufferSplit(tempSplit, tempClientToServerSize) == null) {
+                Main.setRingBufferSplit(tempSplit, tempClientToServerSize);
+                lastServerToClient = null;
+                lastClientToServer = null;
+            }
+        }
+
+        long tempTime = System.nanoTime();
+        RingBufferStatistics[] tempServerToClient = new RingBufferStatistics[lanes];
+        RingBufferStatistics[] tempClientToServer = new RingBufferStatistics[lanes];
+        for (int i = 0; i < lanes; i++) {
+            tempServerToClient[i] = RingBufferStatistics.read(Main.memory, Main.getLaneOffset(i, true));
+            tempClientToServer[i] = RingBufferStatistics.read(Main.memory, Main.getLaneOffset(i, false));
+        }
+
+        System.out.println("state: " + getStateName(tempState) + " watchdog: " + Main.memory.readInt(ADDRESS_WATCHDOG)
+                + " max connections: " + Main.memory.readInt(ADDRESS_MAX_TCP_CONNECTIONS) + " layout: " + tempLayout + " flags: " + tempFlags
+                + (lanes > 1 ? " lanes: " + lanes : ""));
+        for (int i = 0; i < lanes; i++) {
+            String tempPrefix = lanes > 1 ? "lane " + i + " " : "";
+            print(tempPrefix + "server to client", lastServerToClient == null ? null : lastServerToClient[i], tempServerToClient[i], tempTime - lastTime);
+            print(tempPrefix + "client to server", lastClientToServer == null ? null : lastClientToServer[i], tempClientToServer[i], tempTime - lastTime);
+        }
+        RingBufferStatistics tempControlServerToClient = null;
+        RingBufferStatistics tempControlClientToServer = null;
+        if (controlLane == 1) {
+            tempControlServerToClient = RingBufferStatistics.read(Main.memory, Main.getControlRingOffset(true));
+            tempControlClientToServer = RingBufferStatistics.read(Main.memory, Main.getControlRingOffset(false));
+            print("control server to client", lastControlServerToClient, tempControlServerToClient, tempTime - lastTime);
+            print("control client to server", lastControlClientToServer, tempControlClientToServer, tempTime - lastTime);
+        }
+        if (poolBuffers > 0) {
+            System.out.println("buffer pools: " + poolBuffers + " buffers of " + POOL_BUFFER_SIZE + " bytes in use: "
+                    + new BufferPool(Main.memory, Main.getBufferPoolOffset(true), poolBuffers).getBuffersInUse() + " server to client "
+                    + new BufferPool(Main.memory, Main.getBufferPoolOffset(false), poolBuffers).getBuffersInUse() + " client to server");
+        }
+        System.out.println();
+
+        lastServerToClient = tempServerToClient;
+        lastClientToServer = tempClientToServer;
+        lastControlServerToClient = tempControlServerToClient;
+        lastControlClientToServer = tempControlClientToServer;
+        lastTime = tempTime;
+    }
+
+    protected void print(String aName, RingBufferStatistics aLast, RingBufferStatistics aCurrent, long aNanos) {
+        StringBuilder tempBuilder = new StringBuilder();
+        tempBuilder.append(aName).append(": ").append(getRingStateName(aCurrent.getState()));
+        tempBuilder.append(" used: ").append(aCurrent.getUsedBytes()).append("/").append(aCurrent.getSize());
+        if (aCurrent.getSize() > 0) {
+            tempBuilder.append(" (").append(aCurrent.getUsedBytes() * 100 / aCurrent.getSize()).append("%)");
+        }
+
+        if (aLast != null && aNanos > 0) {
+            tempBuilder.append(" write: ").append(getMoved(aLast, aCurrent, true) * 1000000000L / aNanos).append(" B/s");
+            tempBuilder.append(" read: ").append(getMoved(aLast, aCurrent, false) * 1000000000L / aNanos).append(" B/s");
+            if (aCurrent.getLayoutVersion() >= RingBuffer.LAYOUT_V2) {
+                tempBuilder.append(" spurious wakeups writer: ").append(getRate(aLast, aCurrent, RingBufferStatistics.Counter.SPURIOUS_WAKEUPS, true, aNanos)).append("/s");
+                tempBuilder.append(" reader: ").append(getRate(aLast, aCurrent, RingBufferStatistics.Counter.SPURIOUS_WAKEUPS, false, aNanos)).append("/s");
+            }
+        }
+        System.out.println(tempBuilder);
+
+        if (aCurrent.getLayoutVersion() < RingBuffer.LAYOUT_V2) {
+            return;
+        }
+
+        tempBuilder.setLength(0);
+        tempBuilder.append("  writer:");
+        for (RingBufferStatistics.Counter tempCounter : RingBufferStatistics.Counter.values()) {
+            tempBuilder.append(" ").append(tempCounter.getName()).append(": ").append(aCurrent.getWriterCounter(tempCounter));
+        }
+        tempBuilder.append("\n  reader:");
+        for (RingBufferStatistics.Counter tempCounter : RingBufferStatistics.Counter.values()) {
+            tempBuilder.append(" ").append(tempCounter.getName()).append(": ").append(aCurrent.getReaderCounter(tempCounter));
+        }
+        System.out.println(tempBuilder);
+    }
+
+    /**
+     * Returns the bytes written or read between two snapshots.
+     * Sequence counters are exact, the counters of layout version 2 may lag behind by a few index publications and
+     * the indices of layout version 1 can only show movement of less than one buffer size.
+     */
+    public static long getMoved(RingBufferStatistics aLast, RingBufferStatistics aCurrent, boolean aWrite) {
+        long tempLast = aWrite ? aLast.getWriteIndex() : aLast.getReadIndex();
+        long tempCurrent = aWrite ? aCurrent.getWriteIndex() : aCurrent.getReadIndex();
+        if ((aCurrent.getFlags() & RingBuffer.FLAG_SEQUENCE_COUNTERS) != 0) {
+            return Math.max(0, tempCurrent - tempLast);
+        }
+
+        if (aCurrent.getLayoutVersion() >= RingBuffer.LAYOUT_V2) {
+            if (aWrite) {
+                return Math.max(0, aCurrent.getWriterCounter(RingBufferStatistics.Counter.BYTES) - aLast.getWriterCounter(RingBufferStatistics.Counter.BYTES));
+            }
+            return Math.max(0, aCurrent.getReaderCounter(RingBufferStatistics.Counter.BYTES) - aLast.getReaderCounter(RingBufferStatistics.Counter.BYTES));
+        }
+
+        if (aCurrent.getSize() <= 0) {
+            return 0;
+        }
+
+        return ((tempCurrent - tempLast) % aCurrent.getSize() + aCurrent.getSize()) % aCurrent.getSize();
+    }
+
+    /**
+     * Returns how often a counter of the writer or reader was incremented per second between two snapshots.
+     */
+    public static long getRate(RingBufferStatistics aLast, RingBufferStatistics aCurrent, RingBufferStatistics.Counter aCounter, boolean aWriter, long aNanos) {
+        long tempDelta = aWriter ? aCurrent.getWriterCounter(aCounter) - aLast.getWriterCounter(aCounter) : aCurrent.getReaderCounter(aCounter) - aLast.getReaderCounter(aCounter);
+        return Math.max(0, tempDelta) * 1000000000L / aNanos;
+    }
+
+    protected static String getStateName(byte aState) {
+        switch (aState) {
+            case 0:
+                return "not started";
+            case STATE_CONNECTING:
+                return "connecting";
+            case STATE_HANDSHAKE:
+                return "handshake";
+            case STATE_HANDSHAKE_RESPONSE:
+                return "handshake response";
+            case STATE_CONNECTED:
+                return "connected";
+            case STATE_DISCONNECTED:
+                return "disconnected";
+            default:
+                return "unknown (" + aState + ")";
+        }
+    }
+
+    protected static String getRingStateName(int aState) {
+        switch (aState) {
+            case 0:
+                return "unconnected";
+            case 1:
+                return "connecting";
+            case 2:
+                return "connected";
+            case 3:
+                return "closed";
+            default:
+                return "unknown (" + aState + ")";
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import io.github.alexanderschuetz97.nativeutils.api.LinuxConst;
+import io.github.alexanderschuetz97.nativeutils.api.LinuxNativeUtil;
+import io.github.alexanderschuetz97.nativeutils.api.NativeMemory;
+import io.github.alexanderschuetz97.nativeutils.api.NativeUtils;
+import io.github.alexanderschuetz97.nativeutils.api.PointerHandler;
+
+/**
+ * Maps an ivshmem-plain file a second time with MAP_LOCKED and MAP_POPULATE. The kernel allocates every page of the
+ * file while mapping it and keeps the pages in memory as long as the mapping exists, which also holds for the mapping
+ * of ivshmem4j because both share the same pages. The native utilities do not offer mlock so this is the only way to lock them.
+ * <p>
+ * LinuxConst does not define MAP_LOCKED and MAP_POPULATE and their values differ between architectures, so they are
+ * chosen by os.arch. On an unknown architecture nothing is locked and the caller only touches the pages.
+ */
+public class LockedMapping implements PointerHandler {
+
+    private final LinuxNativeUtil nativeUtil;
+
+    private LockedMapping(LinuxNativeUtil aNativeUtil) {
+        nativeUtil = aNativeUtil;
+    }
+
+    /**
+     * Returns MAP_LOCKED | MAP_POPULATE for the os.arch aArch or 0 if the values of the architecture are not known.
+     */
+    static int getLockFlags(String aArch) {
+        String tempArch = aArch == null ? "" : aArch.toLowerCase();
+        if (tempArch.startsWith("ppc") || tempArch.startsWith("powerpc")) {
+            return 0x80 | 0x8000;
+        }
+
+        if (tempArch.startsWith("sparc")) {
+            return 0x100 | 0x8000;
+        }
+
+        if (tempArch.startsWith("mips")) {
+            return 0x8000 | 0x10000;
+        }
+
+        if (tempArch.equals("alpha")) {
+            return 0x8000 | 0x20000;
+        }
+
+        if (tempArch.startsWith("parisc") || tempArch.startsWith("hppa")) {
+            return 0x2000 | 0x10000;
+        }
+
+        //Architectures that use the generic values of asm-generic/mman.h.
+        if (tempArch.equals("amd64") || tempArch.equals("x86_64") || tempArch.equals("x86") || tempArch.matches("i[3-6]86")
+                || tempArch.startsWith("arm") || tempArch.equals("aarch64") || tempArch.startsWith("riscv")
+                || tempArch.startsWith("s390") || tempArch.startsWith("loongarch") || tempArch.equals("ia64")) {
+            return 0x2000 | 0x8000;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Maps aLength bytes at offset 0 of the file locked into memory. Returns null if that is not allowed,
+     * for example because RLIMIT_MEMLOCK is too low, or if the flags of this architecture are not known.
+     * The pages stay locked until the returned memory is closed.
+     */
+    public static NativeMemory map(String aPath, long aLength) {
+        int tempFlags = getLockFlags(System.getProperty("os.arch"));
+        if (tempFlags == 0) {
+            System.out.println("Locking memory is not supported on " + System.getProperty("os.arch") + ", the pages of " + aPath + " are only touched.");
+            return null;
+        }
+
+        LinuxNativeUtil tempUtil = NativeUtils.getLinuxUtil();
+        int tempFd;
+        try {
+            tempFd = tempUtil.open(aPath, LinuxConst.O_RDWR);
+        } catch (Exception e) {
+            System.out.println("Could not open " + aPath + " to lock it into memory " + e.getMessage());
+            return null;
+        }
+
+        try {
+            long tempPointer = tempUtil.mmap(tempFd, aLength, LinuxConst.MAP_SHARED | tempFlags, true, true, 0);
+            return tempUtil.pointer(tempPointer, aLength, new LockedMapping(tempUtil));
+        } catch (Exception e) {
+            System.out.println("Could not lock " + aPath + " into memory " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                //The mapping stays valid without the file descriptor.
+                tempUtil.close(tempFd);
+            } catch (Exception e) {
+                //DC.
+            }
+        }
+    }
+
+    @Override
+    public void handleClose(long ptr, long size, boolean read, boolean write) {
+        try {
+            nativeUtil.munmap(ptr, size);
+        } catch (Exception e) {
+            //DC.
+        }
+    }
+
+    @Override
+    public void handleSync(long ptr, long size, boolean read, boolean write, long offset, long length, boolean invalidate) {
+        //NOOP
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Accesses native memory by its absolute address for UnsafeMemory.
+ * Uses the foreign memory api on Java 22 and newer and sun.misc.Unsafe on older JVMs. Both are looked up reflectively
+ * so the project still compiles with source level 7 and without the warnings for proprietary api.
+ * The handles are static final so the JIT inlines them just like direct calls.
+ */
+final class MemoryAccess {
+
+    /**
+     * Name of the api in use or null if neither is available.
+     */
+    static final String BACKEND;
+
+    private static final boolean FOREIGN;
+
+    private static final MethodHandle GET_BYTE;
+    private static final MethodHandle GET_SHORT;
+    private static final MethodHandle GET_INT;
+    private static final MethodHandle GET_LONG;
+    private static final MethodHandle PUT_BYTE;
+    private static final MethodHandle PUT_SHORT;
+    private static final MethodHandle PUT_INT;
+    private static final MethodHandle PUT_LONG;
+    private static final MethodHandle CAS_INT;
+    private static final MethodHandle CAS_LONG;
+    private static final MethodHandle SET_MEMORY;
+
+    /**
+     * (long, long, long)void copies between two native addresses. (ByteBuffer)long returns the address of a direct buffer
+     * or null if it can not be looked up.
+     */
+    private static final MethodHandle COPY_MEMORY;
+    private static final MethodHandle BUFFER_ADDRESS;
+    private static final boolean BUFFER_ADDRESS_AT_POSITION;
+
+    /**
+     * Foreign memory api only. (byte[], int, long, int)void and (long, byte[], int, int)void.
+     */
+    private static final MethodHandle COPY_FROM_ARRAY;
+    private static final MethodHandle COPY_TO_ARRAY;
+
+    /**
+     * Unsafe only. Unsafe.copyMemory(Object, long, Object, long, long) and the offset of the first element of a byte[].
+     */
+    private static final MethodHandle UNSAFE_COPY;
+    private static final long BYTE_ARRAY_OFFSET;
+
+    static {
+        Handles tempHandles = null;
+        if (getJavaVersion() >= 22) {
+            try {
+                tempHandles = findForeign();
+            } catch (Throwable e) {
+                //Fall back to Unsafe.
+            }
+        }
+
+        if (tempHandles == null) {
+            try {
+                tempHandles = findUnsafe();
+            } catch (Throwable e) {
+                //Neither is available.
+            }
+        }
+
+        if (tempHandles == null) {
+            tempHandles = new Handles();
+        }
+
+        BACKEND = tempHandles.backend;
+        FOREIGN = tempHandles.foreign;
+        GET_BYTE = tempHandles.getByte;
+        GET_SHORT = tempHandles.getShort;
+        GET_INT = tempHandles.getInt;
+        GET_LONG = tempHandles.getLong;
+        PUT_BYTE = tempHandles.putByte;
+        PUT_SHORT = tempHandles.putShort;
+        PUT_INT = tempHandles.putInt;
+        PUT_LONG = tempHandles.putLong;
+        CAS_INT = tempHandles.casInt;
+        CAS_LONG = tempHandles.casLong;
+        SET_MEMORY = tempHandles.setMemory;
+        COPY_MEMORY = tempHandles.copyMemory;
+        BUFFER_ADDRESS = tempHandles.bufferAddress;
+        BUFFER_ADDRESS_AT_POSITION = tempHandles.bufferAddressAtPosition;
+        COPY_FROM_ARRAY = tempHandles.copyFromArray;
+        COPY_TO_ARRAY = tempHandles.copyToArray;
+        UNSAFE_COPY = tempHandles.unsafeCopy;
+        BYTE_ARRAY_OFFSET = tempHandles.byteArrayOffset;
+    }
+
+    private MemoryAccess() {
+        //DC.
+    }
+
+    /**
+     * Returns the feature version of the running JVM, 8 for 1.8.
+     */
+    static int getJavaVersion() {
+        String tempVersion = System.getProperty("java.specification.version", "");
+        if (tempVersion.startsWith("1.")) {
+            tempVersion = tempVersion.substring(2);
+        }
+
+        try {
+            return Integer.parseInt(tempVersion);
+        } catch (NumberFormatException exc) {
+            return 0;
+        }
+    }
+
+    /**
+     * Looks up the var handles of the foreign memory api for a segment that spans the whole address space.
+     * Creating that segment is a restricted operation, the JVM warns once about it unless native access is enabled.
+     */
+    private static Handles findForeign() throws Exception {
+        Class<?> tempSegmentClass = Class.forName("java.lang.foreign.MemorySegment");
+        Class<?> tempLayoutClass = Class.forName("java.lang.foreign.ValueLayout");
+        Object tempAll = tempSegmentClass.getMethod("reinterpret", long.class).invoke(tempSegmentClass.getField("NULL").get(null), Long.MAX_VALUE);
+        Object tempByte = tempLayoutClass.getField("JAVA_BYTE").get(null);
+        Object tempShort = tempLayoutClass.getField("JAVA_SHORT_UNALIGNED").get(null);
+        Object tempInt = tempLayoutClass.getField("JAVA_INT_UNALIGNED").get(null);
+        Object tempLong = tempLayoutClass.getField("JAVA_LONG_UNALIGNED").get(null);
+        MethodHandles.Lookup tempLookup = MethodHandles.lookup();
+
+        Handles tempHandles = new Handles();
+        tempHandles.backend = "foreign memory api";
+        tempHandles.foreign = true;
+        tempHandles.getByte = findForeignAccess(tempAll, tempByte, "GET_VOLATILE", MethodType.methodType(byte.class, long.class));
+        tempHandles.getShort = findForeignAccess(tempAll, tempShort, "GET_VOLATILE", MethodType.methodType(short.class, long.class));
+        tempHandles.getInt = findForeignAccess(tempAll, tempInt, "GET_ACQUIRE", MethodType.methodType(int.class, long.class));
+        tempHandles.getLong = findForeignAccess(tempAll, tempLong, "GET_ACQUIRE", MethodType.methodType(long.class, long.class));
+        tempHandles.putByte = findForeignAccess(tempAll, tempByte, "SET_VOLATILE", MethodType.methodType(void.class, long.class, byte.class));
+        tempHandles.putShort = findForeignAccess(tempAll, tempShort, "SET_VOLATILE", MethodType.methodType(void.class, long.class, short.class));
+        tempHandles.putInt = findForeignAccess(tempAll, tempInt, "SET_RELEASE", MethodType.methodType(void.class, long.class, int.class));
+        tempHandles.putLong = findForeignAccess(tempAll, tempLong, "SET_RELEASE", MethodType.methodType(void.class, long.class, long.class));
+        tempHandles.casInt = findForeignAccess(tempAll, tempInt, "COMPARE_AND_SET", MethodType.methodType(boolean.class, long.class, int.class, int.class));
+        tempHandles.casLong = findForeignAccess(tempAll, tempLong, "COMPARE_AND_SET", MethodType.methodType(boolean.class, long.class, long.class, long.class));
+
+        //asSlice(offset, length).fill(value)
+        MethodHandle tempSlice = tempLookup.findVirtual(tempSegmentClass, "asSlice", MethodType.methodType(tempSegmentClass, long.class, long.class)).bindTo(tempAll);
+        MethodHandle tempFill = tempLookup.findVirtual(tempSegmentClass, "fill", MethodType.methodType(tempSegmentClass, byte.class));
+        tempHandles.setMemory = MethodHandles.collectArguments(tempFill, 0, tempSlice).asType(MethodType.methodType(void.class, long.class, long.class, byte.class));
+
+        MethodHandle tempCopyFromArray = tempLookup.findStatic(tempSegmentClass, "copy", MethodType.methodType(void.class, Object.class, int.class, tempSegmentClass, tempLayoutClass, long.class, int.class));
+        tempHandles.copyFromArray = MethodHandles.insertArguments(tempCopyFromArray, 2, tempAll, tempByte).asType(MethodType.methodType(void.class, byte[].class, int.class, long.class, int.class));
+        MethodHandle tempCopyToArray = tempLookup.findStatic(tempSegmentClass, "copy", MethodType.methodType(void.class, tempSegmentClass, tempLayoutClass, long.class, Object.class, int.class, int.class));
+        tempHandles.copyToArray = MethodHandles.insertArguments(tempCopyToArray, 0, tempAll, tempByte).asType(MethodType.methodType(void.class, long.class, byte[].class, int.class, int.class));
+        MethodHandle tempCopy = tempLookup.findStatic(tempSegmentClass, "copy", MethodType.methodType(void.class, tempSegmentClass, long.class, tempSegmentClass, long.class, long.class));
+        tempHandles.copyMemory = MethodHandles.insertArguments(MethodHandles.insertArguments(tempCopy, 2, tempAll), 0, tempAll);
+
+        //ofBuffer(buffer).address() is the address at the position of the buffer.
+        try {
+            MethodHandle tempOfBuffer = tempLookup.findStatic(tempSegmentClass, "ofBuffer", MethodType.methodType(tempSegmentClass, Buffer.class));
+            MethodHandle tempAddress = tempLookup.findVirtual(tempSegmentClass, "address", MethodType.methodType(long.class));
+            tempHandles.bufferAddress = MethodHandles.filterReturnValue(tempOfBuffer, tempAddress).asType(MethodType.methodType(long.class, ByteBuffer.class));
+            tempHandles.bufferAddressAtPosition = true;
+        } catch (Exception e) {
+            //Direct buffers are copied through an array.
+        }
+        return tempHandles;
+    }
+
+    /**
+     * Returns the method handle of an access mode of the var handle of aLayout with the segment already inserted.
+     */
+    private static MethodHandle findForeignAccess(Object aAll, Object aLayout, String aMode, MethodType aType) throws Exception {
+        Class<?> tempLayoutClass = Class.forName("java.lang.foreign.ValueLayout");
+        Class<?> tempVarHandleClass = Class.forName("java.lang.invoke.VarHandle");
+        Class<?> tempModeClass = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+        Object tempVarHandle = tempLayoutClass.getMethod("varHandle").invoke(aLayout);
+        MethodHandle tempHandle = (MethodHandle) tempVarHandleClass.getMethod("toMethodHandle", tempModeClass).invoke(tempVarHandle, tempModeClass.getField(aMode).get(null));
+        return MethodHandles.insertArguments(tempHandle, 0, aAll).asType(aType);
+    }
+
+    private static Handles findUnsafe() throws Exception {
+        Class<?> tempUnsafeClass = Class.forName("sun.misc.Unsafe");
+        Field tempField = tempUnsafeClass.getDeclaredField("theUnsafe");
+        tempField.setAccessible(true);
+        Object tempUnsafe = tempField.get(null);
+        MethodHandles.Lookup tempLookup = MethodHandles.lookup();
+
+        Handles tempHandles = new Handles();
+        tempHandles.backend = "sun.misc.Unsafe";
+        tempHandles.getByte = findUnsafeAccess(tempUnsafe, "getByteVolatile", MethodType.methodType(byte.class, Object.class, long.class));
+        tempHandles.getShort = findUnsafeAccess(tempUnsafe, "getShortVolatile", MethodType.methodType(short.class, Object.class, long.class));
+        tempHandles.getInt = findUnsafeAccess(tempUnsafe, "getIntVolatile", MethodType.methodType(int.class, Object.class, long.class));
+        tempHandles.getLong = findUnsafeAccess(tempUnsafe, "getLongVolatile", MethodType.methodType(long.class, Object.class, long.class));
+        tempHandles.putByte = findUnsafeAccess(tempUnsafe, "putByteVolatile", MethodType.methodType(void.class, Object.class, long.class, byte.class));
+        tempHandles.putShort = findUnsafeAccess(tempUnsafe, "putShortVolatile", MethodType.methodType(void.class, Object.class, long.class, short.class));
+        tempHandles.putInt = findUnsafeAccess(tempUnsafe, "putOrderedInt", MethodType.methodType(void.class, Object.class, long.class, int.class));
+        tempHandles.putLong = findUnsafeAccess(tempUnsafe, "putOrderedLong", MethodType.methodType(void.class, Object.class, long.class, long.class));
+        tempHandles.casInt = findUnsafeAccess(tempUnsafe, "compareAndSwapInt", MethodType.methodType(boolean.class, Object.class, long.class, int.class, int.class));
+        tempHandles.casLong = findUnsafeAccess(tempUnsafe, "compareAndSwapLong", MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class));
+        tempHandles.setMemory = tempLookup.findVirtual(tempUnsafeClass, "setMemory", MethodType.methodType(void.class, long.class, long.class, byte.class)).bindTo(tempUnsafe);
+        tempHandles.unsafeCopy = tempLookup.findVirtual(tempUnsafeClass, "copyMemory", MethodType.methodType(void.class, Object.class, long.class, Object.class, long.class, long.class)).bindTo(tempUnsafe);
+        tempHandles.byteArrayOffset = (Integer) tempUnsafeClass.getMethod("arrayBaseOffset", Class.class).invoke(tempUnsafe, byte[].class);
+        tempHandles.copyMemory = tempLookup.findVirtual(tempUnsafeClass, "copyMemory", MethodType.methodType(void.class, long.class, long.class, long.class)).bindTo(tempUnsafe);
+
+        //Buffer.address holds the address of direct buffers, it is read through its field offset.
+        try {
+            long tempAddressOffset = (Long) tempUnsafeClass.getMethod("objectFieldOffset", Field.class).invoke(tempUnsafe, Buffer.class.getDeclaredField("address"));
+            MethodHandle tempGetLong = tempLookup.findVirtual(tempUnsafeClass, "getLong", MethodType.methodType(long.class, Object.class, long.class)).bindTo(tempUnsafe);
+            tempHandles.bufferAddress = MethodHandles.insertArguments(tempGetLong, 1, tempAddressOffset).asType(MethodType.methodType(long.class, ByteBuffer.class));
+        } catch (Exception e) {
+            //Direct buffers are copied through an array.
+        }
+        return tempHandles;
+    }
+
+    /**
+     * Returns the method handle of an Unsafe method that takes a base object and an offset with a null base inserted.
+     */
+    private static MethodHandle findUnsafeAccess(Object aUnsafe, String aName, MethodType aType) throws Exception {
+        MethodHandle tempHandle = MethodHandles.lookup().findVirtual(aUnsafe.getClass(), aName, aType).bindTo(aUnsafe);
+        return MethodHandles.insertArguments(tempHandle, 0, new Object[] {null});
+    }
+
+    private static RuntimeException rethrow(Throwable aThrowable) {
+        if (aThrowable instanceof RuntimeException) {
+            throw (RuntimeException) aThrowable;
+        }
+
+        if (aThrowable instanceof Error) {
+            throw (Error) aThrowable;
+        }
+
+        throw new IllegalStateException(aThrowable);
+    }
+
+    static byte getByte(long aAddress) {
+        try {
+            return (byte) GET_BYTE.invokeExact(aAddress);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static short getShort(long aAddress) {
+        try {
+            return (short) GET_SHORT.invokeExact(aAddress);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Read with acquire semantics.
+     */
+    static int getInt(long aAddress) {
+        try {
+            return (int) GET_INT.invokeExact(aAddress);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Read with acquire semantics.
+     */
+    static long getLong(long aAddress) {
+        try {
+            return (long) GET_LONG.invokeExact(aAddress);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void putByte(long aAddress, byte aValue) {
+        try {
+            PUT_BYTE.invokeExact(aAddress, aValue);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void putShort(long aAddress, short aValue) {
+        try {
+            PUT_SHORT.invokeExact(aAddress, aValue);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Write with release semantics.
+     */
+    static void putInt(long aAddress, int aValue) {
+        try {
+            PUT_INT.invokeExact(aAddress, aValue);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Write with release semantics.
+     */
+    static void putLong(long aAddress, long aValue) {
+        try {
+            PUT_LONG.invokeExact(aAddress, aValue);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static boolean compareAndSet(long aAddress, int aExpect, int aUpdate) {
+        try {
+            return (boolean) CAS_INT.invokeExact(aAddress, aExpect, aUpdate);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static boolean compareAndSet(long aAddress, long aExpect, long aUpdate) {
+        try {
+            return (boolean) CAS_LONG.invokeExact(aAddress, aExpect, aUpdate);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void setMemory(long aAddress, long aLength, byte aValue) {
+        try {
+            SET_MEMORY.invokeExact(aAddress, aLength, aValue);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void copyMemory(long aSource, long aDestination, long aLength) {
+        try {
+            COPY_MEMORY.invokeExact(aSource, aDestination, aLength);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Returns true if the address of direct ByteBuffers can be looked up.
+     */
+    static boolean canAddressBuffers() {
+        return BUFFER_ADDRESS != null;
+    }
+
+    /**
+     * Returns the address of the first element of a direct ByteBuffer.
+     */
+    static long getBufferAddress(ByteBuffer aBuffer) {
+        if (!aBuffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer is not direct");
+        }
+
+        try {
+            long tempAddress = (long) BUFFER_ADDRESS.invokeExact(aBuffer);
+            return BUFFER_ADDRESS_AT_POSITION ? tempAddress - aBuffer.position() : tempAddress;
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void copyFromArray(byte[] aBuffer, int aBufferOffset, long aAddress, int aLength) {
+        try {
+            if (FOREIGN) {
+                COPY_FROM_ARRAY.invokeExact(aBuffer, aBufferOffset, aAddress, aLength);
+            } else {
+                UNSAFE_COPY.invokeExact((Object) aBuffer, BYTE_ARRAY_OFFSET + aBufferOffset, (Object) null, aAddress, (long) aLength);
+            }
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void copyToArray(long aAddress, byte[] aBuffer, int aBufferOffset, int aLength) {
+        try {
+            if (FOREIGN) {
+                COPY_TO_ARRAY.invokeExact(aAddress, aBuffer, aBufferOffset, aLength);
+            } else {
+                UNSAFE_COPY.invokeExact((Object) null, aAddress, (Object) aBuffer, BYTE_ARRAY_OFFSET + aBufferOffset, (long) aLength);
+            }
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Collects the handles during the lookup so the static final fields are only assigned once.
+     */
+    private static class Handles {
+        private String backend;
+        private boolean foreign;
+        private MethodHandle getByte;
+        private MethodHandle getShort;
+        private MethodHandle getInt;
+        private MethodHandle getLong;
+        private MethodHandle putByte;
+        private MethodHandle putShort;
+        private MethodHandle putInt;
+        private MethodHandle putLong;
+        private MethodHandle casInt;
+        private MethodHandle casLong;
+        private MethodHandle setMemory;
+        private MethodHandle copyFromArray;
+        private MethodHandle copyToArray;
+        private MethodHandle unsafeCopy;
+        private MethodHandle copyMemory;
+        private MethodHandle bufferAddress;
+        private boolean bufferAddressAtPosition;
+        private long byteArrayOffset;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import io.github.alexanderschuetz97.nativeutils.api.LinuxConst;
+import io.github.alexanderschuetz97.nativeutils.api.LinuxNativeUtil;
+import io.github.alexanderschuetz97.nativeutils.api.NativeMemory;
+import io.github.alexanderschuetz97.nativeutils.api.NativeUtils;
+import io.github.alexanderschuetz97.nativeutils.api.PointerHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps a part of an ivshmem-plain file twice so that the second mapping starts right where the first ends.
+ * Reading or writing across the end of the part is then a single contiguous copy.
+ * The native utilities can not choose the address of a mapping so this relies on the kernel placing two
+ * mappings of the same size next to each other, which it usually does. Callers must handle null if it does not.
+ */
+public class MirroredMapping implements PointerHandler {
+
+    private static final int MAX_ATTEMPTS = 8;
+
+    private final LinuxNativeUtil nativeUtil;
+
+    private final long first;
+
+    private final long second;
+
+    private final long length;
+
+    private MirroredMapping(LinuxNativeUtil aNativeUtil, long aFirst, long aSecond, long aLength) {
+        nativeUtil = aNativeUtil;
+        first = aFirst;
+        second = aSecond;
+        length = aLength;
+    }
+
+    /**
+     * Maps aLength bytes at aOffset of the file twice back to back. The returned memory has 2 * aLength bytes
+     * and its offset 0 is aOffset in the file. Returns null if the mappings are not next to each other.
+     * aOffset and aLength must be multiples of the page size.
+     */
+    public static NativeMemory map(String aPath, long aOffset, long aLength) {
+        LinuxNativeUtil tempUtil = NativeUtils.getLinuxUtil();
+        int tempFd;
+        try {
+            tempFd = tempUtil.open(aPath, LinuxConst.O_RDWR);
+        } catch (Exception e) {
+            System.out.println("Could not open " + aPath + " for a mirrored mapping " + e.getMessage());
+            return null;
+        }
+
+        List<Long> tempMisplaced = new ArrayList<>();
+        try {
+            long tempFirst = tempUtil.mmap(tempFd, aLength, LinuxConst.MAP_SHARED, true, true, aOffset);
+            for (int i = 0; i < MAX_ATTEMPTS; i++) {
+                long tempSecond;
+                try {
+                    tempSecond = tempUtil.mmap(tempFd, aLength, LinuxConst.MAP_SHARED, true, true, aOffset);
+                } catch (RuntimeException e) {
+                    tempMisplaced.add(tempFirst);
+                    throw e;
+                }
+
+                if (tempSecond + aLength == tempFirst) {
+                    return tempUtil.pointer(tempSecond, 2 * aLength, new MirroredMapping(tempUtil, tempFirst, tempSecond, aLength));
+                }
+
+                if (tempFirst + aLength == tempSecond) {
+                    return tempUtil.pointer(tempFirst, 2 * aLength, new MirroredMapping(tempUtil, tempFirst, tempSecond, aLength));
+                }
+
+                //Keep the mapping until we are done so that the next one can not end up in the same gap.
+                tempMisplaced.add(tempFirst);
+                tempFirst = tempSecond;
+            }
+
+            tempMisplaced.add(tempFirst);
+            System.out.println("Mappings for a mirrored mapping of " + aPath + " are not next to each other.");
+            return null;
+        } catch (Exception e) {
+            System.out.println("Could not map " + aPath + " for a mirrored mapping " + e.getMessage());
+            return null;
+        } finally {
+            for (Long tempPointer : tempMisplaced) {
+                unmap(tempUtil, tempPointer, aLength);
+            }
+
+            try {
+                //The mappings stay valid without the file descriptor.
+                tempUtil.close(tempFd);
+            } catch (Exception e) {
+                //DC.
+            }
+        }
+    }
+
+    /**
+     * Gives the connected RingBuffer a mirrored mapping of its data area. Keeps the RingBuffer as it is if that is not possible.
+     */
+    public static void mirror(RingBuffer aBuffer, String aPath) throws Exception {
+        long tempOffset = aBuffer.getDataOffset();
+        long tempLength = aBuffer.getBufferSize();
+        if (tempOffset % RingBuffer.PAGE_SIZE != 0 || tempLength % RingBuffer.PAGE_SIZE != 0) {
+            System.out.println("Data of ring buffer at offset " + tempOffset + " is not page aligned. Not using a mirrored mapping.");
+            return;
+        }
+
+        NativeMemory tempMirror = map(aPath, tempOffset, tempLength);
+        if (tempMirror == null) {
+            System.out.println("Not using a mirrored mapping for ring buffer at offset " + tempOffset + ".");
+            return;
+        }
+
+        aBuffer.setMirror(tempMirror);
+        System.out.println("Using a mirrored mapping for ring buffer at offset " + tempOffset + ".");
+    }
+
+    private static void unmap(LinuxNativeUtil aUtil, long aPointer, long aLength) {
+        try {
+            aUtil.munmap(aPointer, aLength);
+        } catch (Exception e) {
+            //DC.
+        }
+    }
+
+    @Override
+    public void handleClose(long ptr, long size, boolean read, boolean write) {
+        unmap(nativeUtil, first, length);
+        unmap(nativeUtil, second, length);
+    }
+
+    @Override
+    public void handleSync(long ptr, long size, boolean read, boolean write, long offset, long length, boolean invalidate) {
+        //NOOP
+    }
+}
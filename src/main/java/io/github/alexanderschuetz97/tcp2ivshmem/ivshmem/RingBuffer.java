@@ -28,7 +28,13 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -47,6 +53,12 @@ public class RingBuffer implements Closeable {
 
     public static final int INTERRUPT_FLAG_READ_OFFSET = STATE_OFFSET + 2;
 
+    /**
+     * Offset where the layout version byte will be located in the Shared Memory.
+     * This byte was unused in layout version 1 and is cleared by every writer so a 0 means layout version 1.
+     */
+    public static final int LAYOUT_VERSION_OFFSET = STATE_OFFSET + 3;
+
     /**
      * Offset where the vector int will be located in the SharedMemory.
      */
@@ -83,6 +95,151 @@ public class RingBuffer implements Closeable {
      */
     public static final int BUFFER_START_OFFSET = OVERHEAD;
 
+    /**
+     * Original layout. All control fields share a single cache line and the data starts directly after them.
+     */
+    public static final int LAYOUT_V1 = 1;
+
+    /**
+     * Cache line aware layout. The first cache line holds the fields that are only written while connecting,
+     * the write index (producer owned) and the read index (consumer owned) each get their own cache line and the
+     * data starts on the next page boundary after the control bytes.
+     */
+    public static final int LAYOUT_V2 = 2;
+
+    public static final int CACHE_LINE_SIZE = 64;
+
+    public static final int PAGE_SIZE = 4096;
+
+    /**
+     * Offset of the write index in layout version 2.
+     * Producer and consumer owned fields are 2 cache lines apart because the adjacent line prefetcher pulls lines in pairs.
+     */
+    public static final int V2_WRITE_INDEX_OFFSET = 2 * CACHE_LINE_SIZE;
+
+    /**
+     * Offset of the read index in layout version 2.
+     */
+    public static final int V2_READ_INDEX_OFFSET = 4 * CACHE_LINE_SIZE;
+
+    /**
+     * Amount of bytes at the start of every RingBuffer that will be used for control bytes in layout version 2.
+     * The address of the RingBuffer should be page aligned so that the data is page aligned too.
+     */
+    public static final int V2_OVERHEAD = PAGE_SIZE;
+
+    /**
+     * Offset of the int that is 1 while the reader waits for data in layout version 2. Only written by the reader.
+     */
+    public static final int V2_READER_WAITING_OFFSET = 6 * CACHE_LINE_SIZE;
+
+    /**
+     * Offset of the int that is 1 while the writer waits for free space in layout version 2. Only written by the writer.
+     */
+    public static final int V2_WRITER_WAITING_OFFSET = 8 * CACHE_LINE_SIZE;
+
+    /**
+     * Offset of the statistics block of the writer in layout version 2. Only written by the writer.
+     * See RingBufferStatistics for the layout of the block.
+     */
+    public static final int V2_WRITER_STATISTICS_OFFSET = 16 * CACHE_LINE_SIZE;
+
+    /**
+     * Offset of the statistics block of the reader in layout version 2. Only written by the reader.
+     */
+    public static final int V2_READER_STATISTICS_OFFSET = V2_WRITER_STATISTICS_OFFSET + RingBufferStatistics.BLOCK_SIZE;
+
+    /**
+     * Amount of index publications after which the counters are written to the Shared Memory even if the side never waits.
+     */
+    public static final int STATISTICS_PUBLISH_INTERVAL = 1024;
+
+    /**
+     * Offset of the flags int in layout version 2. Located in the first cache line as it is only written while connecting.
+     * Layout version 1 has no flags.
+     */
+    public static final int V2_FLAGS_OFFSET = READ_PEER_OFFSET + 4;
+
+    /**
+     * Offset of the vector the reader sends its interrupts to the writer on in layout version 2.
+     * Only valid with FLAG_SPACE_VECTOR, otherwise both sides use the vector at VECTOR_OFFSET.
+     */
+    public static final int V2_SPACE_VECTOR_OFFSET = V2_FLAGS_OFFSET + 4;
+
+    /**
+     * Flag: read and write index are monotonic 64 bit counters of the bytes read/written since connecting.
+     * The position in the buffer is the counter masked with the buffer size which has to be a power of two.
+     * A full buffer is distinguished from an empty buffer by the counter difference so no byte is reserved.
+     */
+    public static final int FLAG_SEQUENCE_COUNTERS = 1;
+
+    /**
+     * Flag: both sides announce in the waiting ints when they are about to wait for an interrupt.
+     * Interrupts after reading or writing are only sent if the other side is waiting.
+     */
+    public static final int FLAG_DOORBELL_SUPPRESSION = 2;
+
+    /**
+     * Flag: the buffer contains records instead of a byte stream. Every record starts with an int holding its length
+     * and is aligned to RECORD_ALIGNMENT. A record that would not fit before the end of the buffer is preceded by a
+     * padding record that fills the rest of the buffer, so every record is contiguous.
+     * Framed RingBuffers can only be used with claimRecord/commitRecord and peekRecord/releaseRecord.
+     */
+    public static final int FLAG_FRAMED = 4;
+
+    /**
+     * Flag: the writer is woken up on the vector at V2_SPACE_VECTOR_OFFSET when space becomes available and the
+     * reader on the vector at VECTOR_OFFSET when data becomes available. So a side only wakes up for its own event.
+     */
+    public static final int FLAG_SPACE_VECTOR = 8;
+
+    /**
+     * Flag: any amount of threads write records at the same time with writeRecord. A writer reserves its record with a
+     * compare and set of the write index and commits it by writing the record header last, so the header of a reserved
+     * but uncommitted record is 0. The reader waits at an uncommitted record and clears every record it releases.
+     * A writer that fails after reserving commits its record with RECORD_ABORTED and the reader skips it.
+     * Requires FLAG_FRAMED and FLAG_SEQUENCE_COUNTERS.
+     */
+    public static final int FLAG_MULTI_PRODUCER = 16;
+
+    /**
+     * All flags this implementation understands. An input stream refuses to connect if other flags are set.
+     */
+    public static final int SUPPORTED_FLAGS = FLAG_SEQUENCE_COUNTERS | FLAG_DOORBELL_SUPPRESSION | FLAG_FRAMED | FLAG_SPACE_VECTOR | FLAG_MULTI_PRODUCER;
+
+    public static final int RECORD_HEADER_LENGTH = 4;
+
+    public static final int RECORD_ALIGNMENT = 8;
+
+    /**
+     * Length of a padding record. The padding record extends to the end of the buffer.
+     */
+    public static final int RECORD_PADDING = -1;
+
+    /**
+     * Bit set in the header of a record of a FLAG_MULTI_PRODUCER RingBuffer whose writer failed after reserving it.
+     * The other bits are the length of the record, its data is garbage.
+     */
+    public static final int RECORD_ABORTED = Integer.MIN_VALUE;
+
+    /**
+     * Default time in milliseconds the reader of a FLAG_MULTI_PRODUCER RingBuffer waits for a reserved record to be committed.
+     * Writers commit right after copying the record so a longer wait means the writer died.
+     */
+    public static final long DEFAULT_COMMIT_TIMEOUT = 30000;
+
+    /**
+     * Size of the array used to copy between the shared memory and ByteBuffers that are neither backed by an array
+     * nor direct buffers that UnsafeMemory can copy by their address.
+     */
+    public static final int SCRATCH_SIZE = 64 * 1024;
+
+    /**
+     * True if a plain store of the native memory is not reordered with earlier stores (total store order).
+     * Then publishing an index with a plain store is enough to make the data written before it visible first.
+     */
+    protected static final boolean PLAIN_STORE_IS_RELEASE = isTotalStoreOrder(System.getProperty("os.arch"));
+
     protected static final byte STATE_UNCONNECTED = 0;
 
     protected static final byte STATE_CONNECTING = 1;
@@ -104,16 +261,89 @@ public class RingBuffer implements Closeable {
 
 
     /**
-     * The vector that is sued for this RingBuffer Object.
+     * Layout version of the control bytes. Chosen by the writer, the reader uses the version found in the Shared Memory.
+     */
+    protected int layoutVersion;
+
+    /**
+     * Offset of the write index relative to address for the current layout version.
+     */
+    protected int writeIndexOffset;
+
+    /**
+     * Offset of the read index relative to address for the current layout version.
+     */
+    protected int readIndexOffset;
+
+    /**
+     * Offset of the data relative to address for the current layout version.
+     */
+    protected int bufferStartOffset;
+
+    /**
+     * Amount of control bytes for the current layout version.
+     */
+    protected int overhead;
+
+    /**
+     * Flags of this RingBuffer. Chosen by the writer, the reader uses the flags found in the Shared Memory.
+     */
+    protected int flags = 0;
+
+    /**
+     * true if FLAG_SEQUENCE_COUNTERS is set. Cached in its own field as it is checked on every index calculation.
+     */
+    protected boolean sequenceCounters = false;
+
+    /**
+     * size - 1. Only used if sequenceCounters is true.
+     */
+    protected long mask = -1;
+
+    /**
+     * true if FLAG_DOORBELL_SUPPRESSION is set.
+     */
+    protected boolean doorbellSuppression = false;
+
+    /**
+     * true if FLAG_FRAMED is set.
+     */
+    protected boolean framed = false;
+
+    /**
+     * true if FLAG_MULTI_PRODUCER is set.
+     */
+    protected boolean multiProducer = false;
+
+    /**
+     * The vector this side receives interrupts on.
      */
     protected int vector = -1;
 
+    /**
+     * The vector interrupts are sent to the other peer on. Differs from vector only with FLAG_SPACE_VECTOR.
+     */
+    protected int otherVector = -1;
+
 
     /**
      * holds a offset relative to address that the current RingBuffer will access to either read from or write to.
      */
     protected volatile long localIndex = 0;
 
+    /**
+     * holds the last index of the other side that was read from the Shared Memory.
+     * The write index if this RingBuffer is reading and the read index if it is writing.
+     * It is only refreshed once the bytes it allows to read or write are used up.
+     */
+    protected long remoteIndex = 0;
+
+    /**
+     * If true the own index is published with a compare and set that detects modifications by someone else.
+     * This is slower than a plain store and only useful for debugging.
+     */
+    protected boolean verifyIndices = true;
+
     /**
      * flag to indicate if the RingBuffer is closed.
      */
@@ -126,6 +356,19 @@ public class RingBuffer implements Closeable {
      */
     protected final ReentrantLock accessLock = new ReentrantLock();
 
+    /**
+     * true if the data path skips the accessLock because only a single thread reads or writes this RingBuffer.
+     */
+    protected boolean singleThreadedAccess = false;
+
+    /**
+     * The only thread allowed on the data path if singleThreadedAccess is set. Bound by the first data operation.
+     * Bound with a compare and set so only one of two threads that access the RingBuffer first at the same time becomes the owner.
+     */
+    protected volatile Thread owner;
+
+    private static final AtomicReferenceFieldUpdater<RingBuffer, Thread> OWNER = AtomicReferenceFieldUpdater.newUpdater(RingBuffer.class, Thread.class, "owner");
+
     /**
      * Lock that provides a condition for interrupt waiting.
      */
@@ -144,11 +387,43 @@ public class RingBuffer implements Closeable {
         @Override
         public void onInterrupt(int aInterrupt) {
             interruptLock.lock();
+            interruptsReceived++;
             interruptCondition.signalAll();
             interruptLock.unlock();
         }
     };
 
+    /**
+     * Interrupts received by the interruptServiceRoutine. Only written while holding the interruptLock.
+     */
+    protected volatile long interruptsReceived = 0;
+
+    /**
+     * Counters of this side indexed by RingBufferStatistics.Counter ordinal. Only written on the data path.
+     */
+    protected final long[] statistics = new long[RingBufferStatistics.Counter.values().length];
+
+    /**
+     * Counters of the writers of a FLAG_MULTI_PRODUCER RingBuffer. writeRecord runs on many threads at the same time
+     * so it counts here instead of in statistics.
+     */
+    protected final AtomicLongArray producerStatistics = new AtomicLongArray(RingBufferStatistics.Counter.values().length);
+
+    /**
+     * Records written by writeRecord. Every STATISTICS_PUBLISH_INTERVAL records the producer counters are published.
+     */
+    protected final AtomicLong producerRecords = new AtomicLong();
+
+    /**
+     * Offset of the statistics block of this side relative to address or -1 if the layout has none.
+     */
+    protected int statisticsOffset = -1;
+
+    /**
+     * Index publications left until the counters are written to the Shared Memory.
+     */
+    protected int statisticsCountdown = STATISTICS_PUBLISH_INTERVAL;
+
     /**
      * Peer ID of the other Peer we are talking to (for the purpose of sending interrupts.
      */
@@ -177,12 +452,73 @@ public class RingBuffer implements Closeable {
      */
     protected long spinTimeWithInterrupts;
 
+    /**
+     * Chooses the spin time instead of spinTimeWithoutInterrupts if not null.
+     */
+    protected AdaptiveSpin adaptiveSpin;
+
     protected boolean wasOpened = false;
 
+    /**
+     * The stream returned by the connect method or null if not connected.
+     */
+    protected InputStream inputStream;
+
+    /**
+     * The stream returned by the connect method or null if not connected.
+     */
+    protected OutputStream outputStream;
+
+    /**
+     * Channel view of the connected input stream or null if not connected.
+     */
+    protected ScatteringByteChannel readChannel;
+
+    /**
+     * Channel view of the connected output stream or null if not connected.
+     */
+    protected GatheringByteChannel writeChannel;
+
+    /**
+     * Array used to copy between the shared memory and ByteBuffers without an accessible array or native address.
+     * Allocated on first use and only used on the data path.
+     */
+    protected byte[] scratch;
+
+    /**
+     * The data area mapped twice back to back or null. Offset 0 is the start of the data.
+     */
+    protected NativeMemory mirror;
+
+    /**
+     * Region returned by claim and peek. Reused for every call.
+     */
+    protected final Region region = new Region();
+
+    /**
+     * Amount of bytes returned by the last claim or peek that were not committed or released yet.
+     */
+    protected long pending = 0;
+
     protected boolean useInterrupts = false;
 
     protected long timeout = -1;
 
+    /**
+     * See DEFAULT_COMMIT_TIMEOUT.
+     */
+    protected long commitTimeout = DEFAULT_COMMIT_TIMEOUT;
+
+    /**
+     * What to do while waiting for the other side.
+     */
+    protected WaitStrategy waitStrategy = WaitStrategy.INTERRUPT;
+
+    /**
+     * Upper bound for the park time of WaitStrategy.SPIN_PARK in nanoseconds.
+     */
+    protected long maxParkNanos = WaitStrategy.DEFAULT_MAX_PARK_NANOS;
+
 
     /**
      * Constructor for creating a spin based RingBuffer.
@@ -197,9 +533,27 @@ public class RingBuffer implements Closeable {
      * The parameter spinTimeWithoutInterrupts only becomes relevant if the other end reports not supporting interrupts during connecting.
      */
     public RingBuffer(IvshmemMemory aSharedMemory, long aAddress, long spinTimeWithoutInterrupts, long spinTimeWithInterrupts) {
+        this(aSharedMemory, aAddress, spinTimeWithoutInterrupts, spinTimeWithInterrupts, LAYOUT_V1);
+    }
+
+    /**
+     * Constructor for interrupt based RingBuffer with a specific layout version.
+     * The layout version is only used when connecting the output stream. The input stream uses the layout version
+     * chosen by the output stream. Make sure that the other side understands the layout version before using anything but LAYOUT_V1.
+     */
+    public RingBuffer(IvshmemMemory aSharedMemory, long aAddress, long spinTimeWithoutInterrupts, long spinTimeWithInterrupts, int aLayoutVersion) {
+        this(aSharedMemory, aSharedMemory.getMemory(), aAddress, spinTimeWithoutInterrupts, spinTimeWithInterrupts, aLayoutVersion);
+    }
+
+    /**
+     * Constructor for a RingBuffer that accesses the Shared Memory through aMemory instead of the memory of aSharedMemory.
+     * aMemory must be the same memory, for example an UnsafeMemory wrapping it. Interrupts are still sent through aSharedMemory.
+     */
+    public RingBuffer(IvshmemMemory aSharedMemory, NativeMemory aMemory, long aAddress, long spinTimeWithoutInterrupts, long spinTimeWithInterrupts, int aLayoutVersion) {
+        setLayoutVersion(aLayoutVersion);
         address = aAddress;
         shmemory = aSharedMemory;
-        memory = shmemory.getMemory();
+        memory = aMemory;
         this.spinTimeWithoutInterrupts = spinTimeWithoutInterrupts;
         this.spinTimeWithInterrupts = spinTimeWithInterrupts;
 
@@ -209,72 +563,362 @@ public class RingBuffer implements Closeable {
     }
 
     /**
-     * closes this ring buffer.
-     * Does not throw an exception.
+     * Sets the offsets of all fields that are located differently depending on the layout version.
      */
-    public void close() {
+    protected void setLayoutVersion(int aLayoutVersion) {
+        switch (aLayoutVersion) {
+            case LAYOUT_V1:
+                writeIndexOffset = WRITE_INDEX_OFFSET;
+                readIndexOffset = READ_INDEX_OFFSET;
+                bufferStartOffset = BUFFER_START_OFFSET;
+                overhead = OVERHEAD;
+                break;
+            case LAYOUT_V2:
+                writeIndexOffset = V2_WRITE_INDEX_OFFSET;
+                readIndexOffset = V2_READ_INDEX_OFFSET;
+                bufferStartOffset = V2_OVERHEAD;
+                overhead = V2_OVERHEAD;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported ring buffer layout version " + aLayoutVersion);
+        }
+
+        layoutVersion = aLayoutVersion;
+    }
+
+    /**
+     * Returns the layout version. For an input stream this is only valid after connecting.
+     */
+    public int getLayoutVersion() {
+        return layoutVersion;
+    }
+
+    /**
+     * Returns the amount of control bytes at the start of this RingBuffer.
+     */
+    public int getOverhead() {
+        return overhead;
+    }
+
+    /**
+     * Returns the offset of the data area in the Shared Memory.
+     */
+    public long getDataOffset() {
+        return address + bufferStartOffset;
+    }
+
+    /**
+     * Sets a mapping of the data area that is followed by a second mapping of the data area.
+     * Copies that wrap around the end of the data area are then done in a single operation.
+     * The RingBuffer must be connected and closes the mapping when it is closed.
+     * The mapping is accessed the same way as the Shared Memory, through an UnsafeMemory if the RingBuffer uses one.
+     */
+    public void setMirror(NativeMemory aMirror) throws IOException {
         accessLock.lock();
         try {
-            if (closedFlag) {
-                return;
+            checkStateConnected();
+            if (aMirror.size() != 2 * size) {
+                throw new IllegalArgumentException("Mirror must map the " + size + " bytes of data twice but has " + aMirror.size() + " bytes");
             }
-            closedFlag = true;
 
-            if (!shmemory.isClosed()) {
-                if (useInterrupts) {
-                    shmemory.removeInterruptServiceRoutine(vector, interruptServiceRoutine);
-                }
-                try {
-                    memory.write(address, STATE_CLOSED);
-                    triggerInterrupt();
-                } catch (Exception e) {
-                    //DC.
-                }
+            if (mirror != null) {
+                mirror.close();
             }
-            interruptLock.lock();
-            interruptCondition.signalAll();
-            interruptLock.unlock();
+
+            if (memory instanceof UnsafeMemory && UnsafeMemory.isAvailable()) {
+                aMirror = new UnsafeMemory(aMirror);
+            }
+            mirror = aMirror;
         } finally {
             accessLock.unlock();
         }
     }
 
     /**
-     * Sets the timeout for either read or write operations. Set to -1 to disable timeout.
-     * After timout a reading call or writing call will throw an IOException if no bytes can be read.
-     * Be aware that after a timout exception occures the stream can be used again normally if you simply wish to
-     * try again.
+     * Sets the flags of this RingBuffer. Only used when connecting the output stream, requires layout version 2.
+     * The input stream uses the flags chosen by the output stream.
      */
-    public void setTimeout(long timeout) {
+    public void setFlags(int aFlags) {
         accessLock.lock();
         try {
-            this.timeout = timeout;
+            if (wasOpened()) {
+                throw new IllegalStateException("Flags can only be changed before connecting!");
+            }
+
+            if ((aFlags & ~SUPPORTED_FLAGS) != 0) {
+                throw new IllegalArgumentException("Unsupported ring buffer flags " + aFlags);
+            }
+
+            if (aFlags != 0 && layoutVersion < LAYOUT_V2) {
+                throw new IllegalArgumentException("Ring buffer flags require layout version " + LAYOUT_V2);
+            }
+
+            if ((aFlags & FLAG_MULTI_PRODUCER) != 0 && (aFlags & (FLAG_FRAMED | FLAG_SEQUENCE_COUNTERS)) != (FLAG_FRAMED | FLAG_SEQUENCE_COUNTERS)) {
+                throw new IllegalArgumentException("Multiple producers require framed records and sequence counters");
+            }
+
+            flags = aFlags;
         } finally {
             accessLock.unlock();
         }
     }
 
     /**
-     * Sets the spin time.
+     * Returns the flags. For an input stream this is only valid after connecting.
      */
-    public void setSpinTime(long spinTime) {
-        setSpinTime(spinTime, spinTime);
+    public int getFlags() {
+        return flags;
     }
 
+    /**
+     * Returns the stream that was returned when connecting the input stream or null.
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
 
     /**
-     * Sets the spin time
+     * Returns the stream that was returned when connecting the output stream or null.
      */
-    public void setSpinTime(long spinTimeWithoutInterrupts, long spinTimeWithInterrupts) {
-        this.spinTimeWithoutInterrupts = spinTimeWithoutInterrupts;
-        this.spinTimeWithInterrupts = spinTimeWithInterrupts;
+    public OutputStream getOutputStream() {
+        return outputStream;
     }
 
     /**
-     * Retuns true if interrupts are used for signaling changes in the ring buffer.
-     * <p>
-     * throws IllegalStateException on an unconnected ring buffer as interrupts can only be used if
-     * both sides support them.
+     * Returns a channel reading from this RingBuffer once the input stream was connected or null.
+     */
+    public ScatteringByteChannel getReadChannel() {
+        return readChannel;
+    }
+
+    /**
+     * Returns a channel writing to this RingBuffer once the output stream was connected or null.
+     */
+    public GatheringByteChannel getWriteChannel() {
+        return writeChannel;
+    }
+
+    /**
+     * Returns the maximum amount of bytes that can be in the buffer at once.
+     * This is 1 byte less than the buffer size unless sequence counters are used.
+     */
+    public long getCapacity() throws IOException {
+        return sequenceCounters ? getBufferSize() : getBufferSize() - 1;
+    }
+
+    /**
+     * closes this ring buffer.
+     * Does not throw an exception.
+     */
+    public void close() {
+        accessLock.lock();
+        try {
+            if (closedFlag) {
+                return;
+            }
+            closedFlag = true;
+
+            if (!shmemory.isClosed()) {
+                if (useInterrupts) {
+                    shmemory.removeInterruptServiceRoutine(vector, interruptServiceRoutine);
+                }
+                try {
+                    publishStatistics();
+                    memory.write(address, STATE_CLOSED);
+                    triggerInterrupt();
+                } catch (Exception e) {
+                    //DC.
+                }
+            }
+            closeMirror();
+            interruptLock.lock();
+            interruptCondition.signalAll();
+            interruptLock.unlock();
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    protected void closeMirror() {
+        if (mirror != null) {
+            mirror.close();
+            mirror = null;
+        }
+    }
+
+    /**
+     * Closes this ring buffer without writing to the Shared Memory.
+     * Used after both sides drained the ring buffer and its memory is about to be reused by a new layout.
+     * Does not throw an exception.
+     */
+    public void detach() {
+        accessLock.lock();
+        try {
+            if (closedFlag) {
+                return;
+            }
+            closedFlag = true;
+            statisticsOffset = -1;
+
+            if (useInterrupts && !shmemory.isClosed()) {
+                shmemory.removeInterruptServiceRoutine(vector, interruptServiceRoutine);
+            }
+            closeMirror();
+            interruptLock.lock();
+            interruptCondition.signalAll();
+            interruptLock.unlock();
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the timeout for either read or write operations. Set to -1 to disable timeout.
+     * After timout a reading call or writing call will throw an IOException if no bytes can be read.
+     * Be aware that after a timout exception occures the stream can be used again normally if you simply wish to
+     * try again.
+     */
+    public void setTimeout(long timeout) {
+        accessLock.lock();
+        try {
+            this.timeout = timeout;
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the time in milliseconds the reader of a FLAG_MULTI_PRODUCER RingBuffer waits for a reserved record to be
+     * committed. After that the RingBuffer is closed as its writer is considered dead.
+     */
+    public void setCommitTimeout(long aCommitTimeout) {
+        accessLock.lock();
+        try {
+            commitTimeout = aCommitTimeout;
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the spin time.
+     */
+    public void setSpinTime(long spinTime) {
+        setSpinTime(spinTime, spinTime);
+    }
+
+
+    /**
+     * Sets the spin time
+     */
+    public void setSpinTime(long spinTimeWithoutInterrupts, long spinTimeWithInterrupts) {
+        this.spinTimeWithoutInterrupts = spinTimeWithoutInterrupts;
+        this.spinTimeWithInterrupts = spinTimeWithInterrupts;
+    }
+
+    /**
+     * Lets aAdaptiveSpin choose the spin time while interrupts are not used. null uses spinTimeWithoutInterrupts again.
+     * Only has an effect with WaitStrategy.INTERRUPT.
+     */
+    public void setAdaptiveSpin(AdaptiveSpin aAdaptiveSpin) {
+        accessLock.lock();
+        try {
+            adaptiveSpin = aAdaptiveSpin;
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Sets what to do while waiting for the other side. Default is WaitStrategy.INTERRUPT.
+     * aMaxParkNanos is the upper bound for the park time of WaitStrategy.SPIN_PARK.
+     */
+    public void setWaitStrategy(WaitStrategy aWaitStrategy, long aMaxParkNanos) {
+        if (aWaitStrategy == null) {
+            throw new IllegalArgumentException("Wait strategy is null");
+        }
+
+        if (aMaxParkNanos < WaitStrategy.MIN_PARK_NANOS) {
+            throw new IllegalArgumentException("Max park time must be at least " + WaitStrategy.MIN_PARK_NANOS + "ns");
+        }
+
+        accessLock.lock();
+        try {
+            waitStrategy = aWaitStrategy;
+            maxParkNanos = aMaxParkNanos;
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Toggles if the own index is published with a compare and set that will close the RingBuffer if the index was
+     * modified by someone else. Turning this off publishes the index with an ordered store which is a lot cheaper.
+     * Default is on.
+     */
+    public void setVerifyIndices(boolean aVerifyIndices) {
+        accessLock.lock();
+        try {
+            verifyIndices = aVerifyIndices;
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Toggles single threaded access. If set the stream, channel, claim/peek and record methods no longer take the
+     * accessLock. The first thread calling one of them becomes the owner and every other thread calling them afterwards
+     * gets an IllegalStateException. Configuration, connect and close still take the accessLock.
+     * <p>
+     * This is safe because the RingBuffer is single producer single consumer: the only state shared with the other side
+     * are the indices. Data is written before the own index is published with an ordered store and the index of the
+     * other side is read before the data it covers, so no lock is needed for ordering. The lock only guarded against
+     * multiple threads using the same side which the owner check now detects.
+     * Waiting with the interrupt wait strategy still takes the interrupt lock as its condition requires it.
+     * Must be set before connecting. Default is off.
+     */
+    public void setSingleThreadedAccess(boolean aSingleThreadedAccess) {
+        accessLock.lock();
+        try {
+            if (wasOpened) {
+                throw new IllegalStateException("Single threaded access must be set before connecting!");
+            }
+            singleThreadedAccess = aSingleThreadedAccess;
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Guards the data path. Takes the accessLock or checks the owner thread when single threaded access is set.
+     */
+    protected void lockAccess() {
+        if (!singleThreadedAccess) {
+            accessLock.lock();
+            return;
+        }
+
+        Thread tempCurrent = Thread.currentThread();
+        if (owner == tempCurrent) {
+            return;
+        }
+
+        if (!OWNER.compareAndSet(this, null, tempCurrent)) {
+            throw new IllegalStateException("RingBuffer is only accessed by " + owner.getName() + " but " + tempCurrent.getName() + " tried to access it!");
+        }
+    }
+
+    protected void unlockAccess() {
+        if (!singleThreadedAccess) {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Retuns true if interrupts are used for signaling changes in the ring buffer.
+     * <p>
+     * throws IllegalStateException on an unconnected ring buffer as interrupts can only be used if
+     * both sides support them.
      */
     public boolean usesInterrupts() {
         if (!wasOpened()) {
@@ -290,7 +934,7 @@ public class RingBuffer implements Closeable {
      * Output Stream and only when its certain that there is no longer an Active RingBuffer at the address.
      */
     public void cleanMemoryArea() {
-        memory.set(address, (byte) 0, OVERHEAD);
+        memory.set(address, (byte) 0, overhead);
     }
 
     /**
@@ -310,6 +954,28 @@ public class RingBuffer implements Closeable {
         return otherPeer;
     }
 
+    /**
+     * Returns the vector this side receives interrupts on.
+     */
+    public int getVector() {
+        if (!usesInterrupts()) {
+            throw new IllegalStateException("Doesnt use interrupts.");
+        }
+
+        return vector;
+    }
+
+    /**
+     * Returns the vector interrupts are sent to the other peer on.
+     */
+    public int getOtherVector() {
+        if (!usesInterrupts()) {
+            throw new IllegalStateException("Doesnt use interrupts.");
+        }
+
+        return otherVector;
+    }
+
     /**
      * Call this method to attempt to close another RingBuffer at this address if you suspect that it may be lingering around after an application crash.
      * This method should be called before any connection attempts were made.
@@ -338,7 +1004,7 @@ public class RingBuffer implements Closeable {
      */
     protected long getWriteIndex() {
         if (isReadFlag) {
-            return memory.readLong(address + WRITE_INDEX_OFFSET);
+            return remoteIndex;
         }
         return localIndex;
 
@@ -355,12 +1021,7 @@ public class RingBuffer implements Closeable {
             throw new RuntimeException("Cannot call this method while reading!");
         }
 
-        if (!memory.compareAndSet(address + WRITE_INDEX_OFFSET, localIndex, aNewIndex)) {
-            close();
-            throw new RuntimeException("Write index was modified externally!");
-        }
-
-        localIndex = aNewIndex;
+        publishIndex(writeIndexOffset, aNewIndex, "Write index was modified externally!");
     }
 
     /**
@@ -371,99 +1032,276 @@ public class RingBuffer implements Closeable {
             return localIndex;
         }
 
-        return memory.readLong(address + READ_INDEX_OFFSET);
+        return remoteIndex;
     }
 
-    protected long getSpinTimeToUse() {
-        return useInterrupts ? spinTimeWithInterrupts : spinTimeWithoutInterrupts;
+    /**
+     * Reads the index of the other side from the Shared Memory into remoteIndex.
+     */
+    protected void refreshRemoteIndex() {
+        remoteIndex = memory.readLong(address + (isReadFlag ? writeIndexOffset : readIndexOffset));
     }
 
     /**
-     * Changes the read index in the shared memory.
-     * Will Close the RingBuffer if the read index that is stored inside the local index field
-     * does not match the one in the shared memory.
-     * If this call succeeds then the local index field is automatically updated to reflect the new read index.
+     * Writes the own index to the Shared Memory and updates the local index field.
+     * Bytes written to the buffer before calling this method are visible to the other side before the new index.
      */
-    protected void setReadIndex(long aNewIndex) {
-        if (!isReadFlag) {
-            throw new RuntimeException("Cannot call this method while writing!");
+    protected void publishIndex(int aOffset, long aNewIndex, String aTamperMessage) {
+        //Counted before the index is published. Once the other side sees the final index of a drained buffer
+        //it may reuse the memory for a new layout so only the interrupt may follow the index.
+        long tempOffset = toBufferOffset(localIndex);
+        long tempAdvanced = sequenceCounters ? aNewIndex - localIndex : (aNewIndex - tempOffset + size) % size;
+        statistics[RingBufferStatistics.Counter.BYTES.ordinal()] += tempAdvanced;
+        if (tempAdvanced > 0 && tempOffset + tempAdvanced >= size) {
+            statistics[RingBufferStatistics.Counter.WRAPS.ordinal()]++;
         }
 
-        if (!memory.compareAndSet(address + READ_INDEX_OFFSET, localIndex, aNewIndex)) {
-            close();
-            throw new RuntimeException("Read index was modified externally!");
+        if (--statisticsCountdown <= 0) {
+            publishStatistics();
+        }
+
+        if (verifyIndices) {
+            if (!memory.compareAndSet(address + aOffset, localIndex, aNewIndex)) {
+                close();
+                throw new RuntimeException(aTamperMessage);
+            }
+        } else if (PLAIN_STORE_IS_RELEASE) {
+            memory.write(address + aOffset, aNewIndex);
+        } else {
+            memory.getAndSet(address + aOffset, aNewIndex);
         }
 
         localIndex = aNewIndex;
     }
 
-
-    /*
-     * Will trigger an interrupt on the other peer. This is used to tell the other peer to recheck its state as
-     * new bytes have either been read or can be read or the RingBuffer was closed.
+    /**
+     * Writes the counters of this side to its statistics block in the Shared Memory. Does nothing in layout version 1.
      */
-    protected void triggerInterrupt() {
-        if (useInterrupts) {
-            shmemory.sendInterrupt(otherPeer, vector);
+    protected void publishStatistics() {
+        statisticsCountdown = STATISTICS_PUBLISH_INTERVAL;
+        if (statisticsOffset < 0) {
+            return;
+        }
+
+        if (isProducer()) {
+            //Several writers may publish at the same time, the lock keeps an older snapshot from overwriting a newer one.
+            synchronized (producerStatistics) {
+                producerStatistics.set(RingBufferStatistics.Counter.INTERRUPTS.ordinal(), interruptsReceived);
+                producerStatistics.set(RingBufferStatistics.Counter.SPIN_NANOS.ordinal(), getSpinNanosToUse());
+                for (int i = 0; i < producerStatistics.length(); i++) {
+                    memory.write(address + statisticsOffset + i * 8, producerStatistics.get(i));
+                }
+            }
+            return;
+        }
+
+        statistics[RingBufferStatistics.Counter.INTERRUPTS.ordinal()] = interruptsReceived;
+        statistics[RingBufferStatistics.Counter.SPIN_NANOS.ordinal()] = getSpinNanosToUse();
+        for (int i = 0; i < statistics.length; i++) {
+            memory.write(address + statisticsOffset + i * 8, statistics[i]);
         }
     }
 
     /**
-     * Returns the current state byte.
+     * Returns true if this is the writing side of a FLAG_MULTI_PRODUCER RingBuffer, which counts in producerStatistics.
      */
-    protected byte getState() {
-        return memory.read(STATE_OFFSET + address);
+    protected boolean isProducer() {
+        return multiProducer && !isReadFlag;
     }
 
-    protected boolean setState(byte expect, byte newstate) {
-        try {
-            return memory.compareAndSet(STATE_OFFSET + address, expect, newstate);
-        } catch (Exception e) {
-            return false;
+    /**
+     * Adds aAmount to a counter of this side. Only needed on paths that writeRecord shares with the other writes.
+     */
+    protected void count(RingBufferStatistics.Counter aCounter, long aAmount) {
+        if (isProducer()) {
+            producerStatistics.addAndGet(aCounter.ordinal(), aAmount);
+        } else {
+            statistics[aCounter.ordinal()] += aAmount;
         }
     }
 
     /**
-     * Will check if we are still in STATE_CONNECTED.
+     * Publishes the counters of this side now instead of after the next STATISTICS_PUBLISH_INTERVAL index publications.
+     * This is a data path method, with single threaded access only the owner may call it.
      */
-    protected void checkStateConnected() {
-        if (!wasOpened()) {
-            throw new RuntimeException("Not open!");
-        }
-        if (isClosed()) {
-            throw new RuntimeException("Closed!");
-        }
-        if (getState() != STATE_CONNECTED) {
-            close();
-            throw new RuntimeException("Closed!");
+    public void flushStatistics() {
+        lockAccess();
+        try {
+            publishStatistics();
+        } finally {
+            unlockAccess();
         }
     }
 
     /**
-     * Returns true if we are able to createOrOpen a OutputStream.
+     * Reads the statistics of both sides from the Shared Memory without taking any lock so any thread can call it.
+     * The counters of both sides may be up to STATISTICS_PUBLISH_INTERVAL index publications old.
      */
-    public boolean canConnectOutputStream() {
-        if (isClosed()) {
-            return false;
-        }
+    public RingBufferStatistics getStatistics() {
+        return RingBufferStatistics.read(memory, address);
+    }
 
-        if (wasOpened()) {
+    protected static boolean isTotalStoreOrder(String aArch) {
+        if (aArch == null) {
             return false;
         }
 
-        if (getState() != STATE_UNCONNECTED) {
-            return false;
+        switch (aArch) {
+            case "x86":
+            case "i386":
+            case "i486":
+            case "i586":
+            case "i686":
+            case "amd64":
+            case "x86_64":
+                return true;
+            default:
+                return false;
         }
+    }
 
-        return true;
+    protected long getSpinTimeToUse() {
+        return useInterrupts ? spinTimeWithInterrupts : spinTimeWithoutInterrupts;
     }
 
     /**
-     * Returns true if we are able to createOrOpen a input stream without blocking.
+     * Returns the spin time in nanoseconds. Chosen by the adaptiveSpin if there is one and interrupts are not used.
      */
-    public boolean canConnectInputStream() {
-        if (closedFlag) {
-            return false;
+    protected long getSpinNanosToUse() {
+        if (adaptiveSpin != null && !useInterrupts) {
+            return adaptiveSpin.getSpinNanos();
+        }
+
+        return TimeUnit.MILLISECONDS.toNanos(getSpinTimeToUse());
+    }
+
+    /**
+     * Tells the adaptiveSpin that a wait that started at aStallStart ended because the other side made aBytes available.
+     */
+    protected void adaptSpin(long aStallStart, long aBytes) {
+        if (adaptiveSpin != null) {
+            adaptiveSpin.onWaitEnded(System.nanoTime() - aStallStart, size > 0 ? aBytes * 100 / size : 0);
+        }
+    }
+
+    /**
+     * Changes the read index in the shared memory.
+     * Will Close the RingBuffer if the read index that is stored inside the local index field
+     * does not match the one in the shared memory.
+     * If this call succeeds then the local index field is automatically updated to reflect the new read index.
+     */
+    protected void setReadIndex(long aNewIndex) {
+        if (!isReadFlag) {
+            throw new RuntimeException("Cannot call this method while writing!");
+        }
+
+        publishIndex(readIndexOffset, aNewIndex, "Read index was modified externally!");
+    }
+
+
+    /*
+     * Will trigger an interrupt on the other peer. This is used to tell the other peer to recheck its state as
+     * new bytes have either been read or can be read or the RingBuffer was closed.
+     */
+    protected void triggerInterrupt() {
+        if (useInterrupts) {
+            shmemory.sendInterrupt(otherPeer, otherVector);
+        }
+    }
+
+    /**
+     * Will trigger an interrupt on the other peer after reading or writing if it may be waiting for one.
+     * Must be called after the new index was published.
+     */
+    protected void notifyPeer() {
+        if (!useInterrupts) {
+            return;
+        }
+
+        //The atomic add orders the read of the flag after the store of the index. Either the other side sees the new
+        //index after announcing that it waits or we see its announcement here.
+        if (doorbellSuppression && memory.getAndAdd(address + (isReadFlag ? V2_WRITER_WAITING_OFFSET : V2_READER_WAITING_OFFSET), 0) == 0) {
+            return;
+        }
+
+        count(RingBufferStatistics.Counter.DOORBELLS, 1);
+        shmemory.sendInterrupt(otherPeer, otherVector);
+    }
+
+    /**
+     * Announces that this side is about to wait for an interrupt. The index of the other side must be checked again afterwards.
+     */
+    protected void announceWaiting() {
+        if (doorbellSuppression) {
+            memory.getAndSet(address + (isReadFlag ? V2_READER_WAITING_OFFSET : V2_WRITER_WAITING_OFFSET), 1);
+        }
+    }
+
+    /**
+     * Revokes announceWaiting.
+     */
+    protected void clearWaiting() {
+        if (doorbellSuppression) {
+            memory.write(address + (isReadFlag ? V2_READER_WAITING_OFFSET : V2_WRITER_WAITING_OFFSET), 0);
+        }
+    }
+
+    /**
+     * Returns the current state byte.
+     */
+    protected byte getState() {
+        return memory.read(STATE_OFFSET + address);
+    }
+
+    protected boolean setState(byte expect, byte newstate) {
+        try {
+            return memory.compareAndSet(STATE_OFFSET + address, expect, newstate);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Will check if we are still in STATE_CONNECTED.
+     */
+    protected void checkStateConnected() {
+        if (!wasOpened()) {
+            throw new RuntimeException("Not open!");
+        }
+        if (isClosed()) {
+            throw new RuntimeException("Closed!");
+        }
+        if (getState() != STATE_CONNECTED) {
+            close();
+            throw new RuntimeException("Closed!");
+        }
+    }
+
+    /**
+     * Returns true if we are able to createOrOpen a OutputStream.
+     */
+    public boolean canConnectOutputStream() {
+        if (isClosed()) {
+            return false;
+        }
+
+        if (wasOpened()) {
+            return false;
+        }
+
+        if (getState() != STATE_UNCONNECTED) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if we are able to createOrOpen a input stream without blocking.
+     */
+    public boolean canConnectInputStream() {
+        if (closedFlag) {
+            return false;
         }
         if (wasOpened()) {
             return false;
@@ -532,6 +1370,7 @@ public class RingBuffer implements Closeable {
             }
 
             vector = -1;
+            otherVector = -1;
             useInterrupts = false;
             return connectOutputStreamInternal(aBufferSize, aTimeout, aSpinTime, aUnit);
         } finally {
@@ -555,6 +1394,18 @@ public class RingBuffer implements Closeable {
      * @throws InterruptedException  If the thread was interrupted while connecting.
      */
     public OutputStream connectOutputStream(int aVector, long aBufferSize, long aTimeout, long aSpinTime, TimeUnit aUnit) throws InterruptedException {
+        return connectOutputStream(aVector, aVector, aBufferSize, aTimeout, aSpinTime, aUnit);
+    }
+
+    /**
+     * Connect the output stream using interrupts on separate vectors for both events.
+     * The reader is woken up on aDataVector and this side on aSpaceVector. Both vectors must differ only if FLAG_SPACE_VECTOR is set.
+     *
+     * @param aDataVector  the vector the input stream receives interrupts on when data was written.
+     * @param aSpaceVector the vector this side receives interrupts on when data was read.
+     * @see #connectOutputStream(int, long, long, long, TimeUnit)
+     */
+    public OutputStream connectOutputStream(int aDataVector, int aSpaceVector, long aBufferSize, long aTimeout, long aSpinTime, TimeUnit aUnit) throws InterruptedException {
         accessLock.lock();
         try {
             if (isClosed()) {
@@ -573,11 +1424,16 @@ public class RingBuffer implements Closeable {
                 throw new RuntimeException("memory doesnt support peers!");
             }
 
-            if (!shmemory.isVectorValid(aVector)) {
+            if (!shmemory.isVectorValid(aDataVector) || !shmemory.isVectorValid(aSpaceVector)) {
                 throw new RuntimeException("invalid vector");
             }
 
-            vector = aVector;
+            if (aDataVector != aSpaceVector && (flags & FLAG_SPACE_VECTOR) == 0) {
+                throw new RuntimeException("Separate vectors require FLAG_SPACE_VECTOR!");
+            }
+
+            vector = aSpaceVector;
+            otherVector = aDataVector;
             useInterrupts = true;
 
             return connectOutputStreamInternal(aBufferSize, aTimeout, aSpinTime, aUnit);
@@ -594,11 +1450,11 @@ public class RingBuffer implements Closeable {
         long tempSpinTime = TimeUnit.MILLISECONDS.convert(aSpinTime, aUnit);
 
         if (getState() != STATE_UNCONNECTED) {
-            throw new RuntimeException("The memory area already contains data! Set the first " + OVERHEAD + " bytes to 0 if you are sure that it is safe to do so!");
+            throw new RuntimeException("The memory area already contains data! Set the first " + overhead + " bytes to 0 if you are sure that it is safe to do so!");
         }
 
-        if (aBufferSize < OVERHEAD + 1) {
-            throw new RuntimeException("Buffer must be at least " + (OVERHEAD + 2) + " bytes big to store overhead and at least 2 bytes for transfer!");
+        if (aBufferSize < overhead + 1) {
+            throw new RuntimeException("Buffer must be at least " + (overhead + 2) + " bytes big to store overhead and at least 2 bytes for transfer!");
         }
 
         if (!memory.isValid(address, aBufferSize)) {
@@ -608,19 +1464,41 @@ public class RingBuffer implements Closeable {
         if (useInterrupts) {
             memory.write(address + WRITE_PEER_OFFSET, shmemory.getOwnPeerID());
             memory.write(address + INTERRUPT_FLAG_WRITE_OFFSET, (byte) 1);
-            memory.write(address + VECTOR_OFFSET, vector);
+            memory.write(address + VECTOR_OFFSET, otherVector);
+            if ((flags & FLAG_SPACE_VECTOR) != 0) {
+                memory.write(address + V2_SPACE_VECTOR_OFFSET, vector);
+            }
 
         } else {
             memory.write(address + INTERRUPT_FLAG_WRITE_OFFSET, (byte) 0);
         }
 
+        long tempSize = aBufferSize - overhead;
+        if ((flags & FLAG_SEQUENCE_COUNTERS) != 0 && (tempSize & (tempSize - 1)) != 0) {
+            throw new RuntimeException("Sequence counters require the buffer size without overhead to be a power of two but it is " + tempSize + "!");
+        }
+
+        if ((flags & FLAG_FRAMED) != 0 && tempSize % RECORD_ALIGNMENT != 0) {
+            throw new RuntimeException("Records require the buffer size without overhead to be a multiple of " + RECORD_ALIGNMENT + " but it is " + tempSize + "!");
+        }
+
+        memory.write(address + LAYOUT_VERSION_OFFSET, (byte) layoutVersion);
+        if (layoutVersion >= LAYOUT_V2) {
+            memory.write(address + V2_FLAGS_OFFSET, flags);
+            memory.set(address + V2_WRITER_STATISTICS_OFFSET, (byte) 0, 2 * RingBufferStatistics.BLOCK_SIZE);
+            statisticsOffset = V2_WRITER_STATISTICS_OFFSET;
+        }
+        if ((flags & FLAG_MULTI_PRODUCER) != 0) {
+            //Every record header has to read as uncommitted until a writer commits it.
+            memory.set(address + bufferStartOffset, (byte) 0, tempSize);
+        }
         memory.write(address + SIZE_OFFSET, aBufferSize);
-        memory.write(address + WRITE_INDEX_OFFSET, localIndex);
+        memory.write(address + writeIndexOffset, localIndex);
 
 
         isReadFlag = false;
         wasOpened = true;
-        size = aBufferSize - OVERHEAD;
+        setSize(tempSize);
         if (useInterrupts) {
             shmemory.registerInterruptServiceRoutine(vector, interruptServiceRoutine);
         }
@@ -683,7 +1561,9 @@ public class RingBuffer implements Closeable {
                     close();
                     throw exc;
                 }
-                return new RingBufferOutputStream();
+                outputStream = new RingBufferOutputStream();
+                writeChannel = new RingBufferWriteChannel();
+                return outputStream;
             }
 
             close();
@@ -730,235 +1610,1190 @@ public class RingBuffer implements Closeable {
                 Thread.sleep(tempSpinTime);
             }
 
+            byte tempLayoutVersion = memory.read(address + LAYOUT_VERSION_OFFSET);
+            setLayoutVersion(tempLayoutVersion == 0 ? LAYOUT_V1 : tempLayoutVersion);
+
             long tempSize = memory.readLong(address + SIZE_OFFSET);
 
-            if (tempSize < OVERHEAD + 1) {
-                throw new IllegalArgumentException("Buffer must be at least " + (OVERHEAD + 2) + " bytes big to store overhead and at least 2 bytes for transfer!");
+            if (tempSize < overhead + 1) {
+                throw new IllegalArgumentException("Buffer must be at least " + (overhead + 2) + " bytes big to store overhead and at least 2 bytes for transfer!");
             }
 
             if (!memory.isValid(address, tempSize)) {
                 throw new IllegalArgumentException("Shared memory is too small to hold the buffer with the given size at the given offset!");
             }
 
+            flags = layoutVersion >= LAYOUT_V2 ? memory.readInt(address + V2_FLAGS_OFFSET) : 0;
+            if ((flags & ~SUPPORTED_FLAGS) != 0) {
+                throw new IllegalArgumentException("Output stream uses unsupported ring buffer flags " + flags);
+            }
+
+            if ((flags & FLAG_SEQUENCE_COUNTERS) != 0 && ((tempSize - overhead) & (tempSize - overhead - 1)) != 0) {
+                throw new IllegalArgumentException("Sequence counters require the buffer size to be a power of two!");
+            }
+
+            if ((flags & FLAG_FRAMED) != 0 && (tempSize - overhead) % RECORD_ALIGNMENT != 0) {
+                throw new IllegalArgumentException("Records require the buffer size to be a multiple of " + RECORD_ALIGNMENT + "!");
+            }
+
+            if ((flags & FLAG_MULTI_PRODUCER) != 0 && (flags & (FLAG_FRAMED | FLAG_SEQUENCE_COUNTERS)) != (FLAG_FRAMED | FLAG_SEQUENCE_COUNTERS)) {
+                throw new IllegalArgumentException("Multiple producers require framed records and sequence counters!");
+            }
+
             if (memory.read(address + INTERRUPT_FLAG_WRITE_OFFSET) == 1) {
                 useInterrupts = true;
             } else {
                 useInterrupts = false;
             }
 
-            if (!shmemory.supportsInterrupts() || !shmemory.hasOwnPeerID()) {
-                useInterrupts = false;
+            if (!shmemory.supportsInterrupts() || !shmemory.hasOwnPeerID()) {
+                useInterrupts = false;
+            }
+
+            int tempVector = -1;
+            int tempSpaceVector = -1;
+            if (useInterrupts) {
+                tempVector = readVector();
+                tempSpaceVector = (flags & FLAG_SPACE_VECTOR) != 0 ? memory.readInt(address + V2_SPACE_VECTOR_OFFSET) : tempVector;
+                if (!shmemory.isVectorValid(tempVector)) {
+                    useInterrupts = false;
+                }
+            }
+            int tempPeer = -1;
+            if (useInterrupts) {
+                tempPeer = memory.readInt(address + WRITE_PEER_OFFSET);
+                if (shmemory.knowsOtherPeers()) {
+                    if (!shmemory.isOtherPeerConnected(tempPeer)) {
+                        useInterrupts = false;
+                    }
+                }
+            }
+            if (useInterrupts && shmemory.knowsOtherPeerVectors() && (tempSpaceVector < 0 || tempSpaceVector >= shmemory.getVectors(tempPeer))) {
+                useInterrupts = false;
+            }
+
+
+            wasOpened = true;
+            isReadFlag = true;
+            setSize(tempSize - overhead);
+            if (layoutVersion >= LAYOUT_V2) {
+                statisticsOffset = V2_READER_STATISTICS_OFFSET;
+            }
+
+            if (useInterrupts) {
+                otherPeer = tempPeer;
+                vector = tempVector;
+                otherVector = tempSpaceVector;
+                memory.write(address + READ_PEER_OFFSET, shmemory.getOwnPeerID());
+                memory.write(address + INTERRUPT_FLAG_READ_OFFSET, (byte) 1);
+                shmemory.registerInterruptServiceRoutine(tempVector, interruptServiceRoutine);
+            } else {
+                memory.write(address + INTERRUPT_FLAG_READ_OFFSET, (byte) 0);
+            }
+
+            if (!setState(STATE_CONNECTING, STATE_CONNECTED)) {
+                close();
+                throw new RuntimeException("Setting state to Connected failed! Was another Input Stream created or did the Output Stream just timeout?");
+            }
+
+            inputStream = new RingBufferInputStream();
+            readChannel = new RingBufferReadChannel();
+            return inputStream;
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the size of the data area after the flags are known and caches the flags in their own fields.
+     */
+    protected void setSize(long aSize) {
+        size = aSize;
+        sequenceCounters = (flags & FLAG_SEQUENCE_COUNTERS) != 0;
+        mask = sequenceCounters ? aSize - 1 : -1;
+        doorbellSuppression = (flags & FLAG_DOORBELL_SUPPRESSION) != 0;
+        framed = (flags & FLAG_FRAMED) != 0;
+        multiProducer = (flags & FLAG_MULTI_PRODUCER) != 0;
+    }
+
+    /**
+     * Returns the offset relative to the start of the data for the given read or write index.
+     */
+    protected long toBufferOffset(long aIndex) {
+        return sequenceCounters ? aIndex & mask : aIndex;
+    }
+
+    /**
+     * Returns the read or write index after aBytes have been read or written at aIndex.
+     */
+    protected long advanceIndex(long aIndex, long aBytes) {
+        return sequenceCounters ? aIndex + aBytes : (aIndex + aBytes) % size;
+    }
+
+    /**
+     * Returns the amount of byte currently reable in a single read.
+     * Differs from getAvailableBytes in that is doesnt include readable bytes before the read index
+     * as those would require a wrap around in the ring buffer.
+     */
+    protected long getReadableBytesInSingleRead() throws IOException {
+        long tempWriteIndex = getWriteIndex();
+        long tempReadIndex = getReadIndex();
+
+        if (sequenceCounters) {
+            return Math.min(tempWriteIndex - tempReadIndex, size - (tempReadIndex & mask));
+        }
+
+        if (tempReadIndex <= tempWriteIndex) {
+            return tempWriteIndex - tempReadIndex;
+        }
+        return size - tempReadIndex;
+    }
+
+    /**
+     * Returns the amount of bytes currently writeable in a single write.
+     * Differs from getFreeBytes in that it doesnt include the amount of writeable bytes before write index
+     * as those would require a wrap around in the ring buffer.
+     */
+    protected long getBytesWritableInSingleWrite() throws IOException {
+        long tempWriteIndex = getWriteIndex();
+        long tempReadIndex = getReadIndex();
+
+        if (sequenceCounters) {
+            return Math.min(size - (tempWriteIndex - tempReadIndex), size - (tempWriteIndex & mask));
+        }
+
+        long tempWB;
+        if (tempReadIndex <= tempWriteIndex) {
+            tempWB = size - tempWriteIndex;
+        } else {
+            tempWB = tempReadIndex - tempWriteIndex;
+        }
+
+        if ((tempWriteIndex + tempWB) % size == tempReadIndex) {
+            tempWB--;
+        }
+
+        return tempWB;
+    }
+
+    /**
+     * Returns the total amount of bytes that can be currently written to the ring buffer before writing calls would
+     * start to block due to the buffer being full.
+     */
+    public long getFreeBytes() throws IOException {
+        checkStateConnected();
+        if (!isReadFlag) {
+            refreshRemoteIndex();
+        }
+        return getWritableBytes();
+    }
+
+    /**
+     * Returns the total amount of bytes that can be written to the ring buffer including the bytes
+     * that would require a wrap around in the ring buffer. Does not check the state.
+     */
+    protected long getWritableBytes() throws IOException {
+        long tempWriteIndex = getWriteIndex();
+        long tempReadIndex = getReadIndex();
+
+        if (sequenceCounters) {
+            return size - (tempWriteIndex - tempReadIndex);
+        }
+
+        long tempWB;
+        if (tempReadIndex <= tempWriteIndex) {
+            tempWB = (size - tempWriteIndex) + tempReadIndex;
+        } else {
+            tempWB = tempReadIndex - tempWriteIndex;
+        }
+
+        if ((tempWriteIndex + tempWB) % size == tempReadIndex) {
+            tempWB--;
+        }
+
+        return tempWB;
+    }
+
+    /**
+     * Returns the total amount of bytes that can be read from the ring buffer without blocking.
+     */
+    public long getAvailableBytes() throws IOException {
+        checkStateConnected();
+        if (isReadFlag) {
+            refreshRemoteIndex();
+        }
+        return getReadableBytes();
+    }
+
+    /**
+     * Returns the write index the other side published last.
+     * Only reads the published write index so any thread may call it while another thread reads from the ring buffer.
+     * Only valid for a connected input stream.
+     */
+    public long getPublishedIndex() {
+        if (!isReadFlag) {
+            throw new IllegalStateException("Not an input stream.");
+        }
+        return memory.readLong(address + writeIndexOffset);
+    }
+
+    /**
+     * Returns true once the reading side released every byte before the given index returned by getPublishedIndex.
+     * Only reads the volatile own index so any thread may call it while another thread reads from the ring buffer.
+     * Requires sequence counters as indices that wrap around cannot be ordered.
+     */
+    public boolean isReleased(long aIndex) {
+        if (!isReadFlag) {
+            throw new IllegalStateException("Not an input stream.");
+        }
+        if (!sequenceCounters) {
+            throw new IllegalStateException("Requires sequence counters.");
+        }
+        return localIndex - aIndex >= 0;
+    }
+
+    /**
+     * Returns the total amount of bytes that can be read from the ring buffer including the bytes
+     * that would require a wrap around in the ring buffer. Does not check the state.
+     */
+    protected long getReadableBytes() throws IOException {
+        long tempWriteIndex = getWriteIndex();
+        long tempReadIndex = getReadIndex();
+
+        if (sequenceCounters) {
+            return tempWriteIndex - tempReadIndex;
+        }
+
+        if (tempReadIndex <= tempWriteIndex) {
+            return tempWriteIndex - tempReadIndex;
+        }
+        return (size - tempReadIndex) + tempWriteIndex;
+    }
+
+    /**
+     * Waits until at least one readable byte is readable from the buffer.
+     * Will return the amount of readable bytes which is guaranteed to be at least 1 or greater.
+     * <p>
+     * Will only return amount of bytes that can be read in a single read operation (i.e. without wraparound in the ring buffer).
+     */
+    protected long waitForAtLeastOneReadableByte() throws IOException {
+        return waitForReadableBytes(1, true);
+    }
+
+    /**
+     * Utility method to wait until a certain number of bytes is available to read without blocking.
+     * The singleRead parameter toggles if the method should only wait for bytes that can be read
+     * in a single read operation (i.e. they dont require a wrap around in the ring buffer).
+     * <p>
+     * Returns the amount of available bytes.
+     */
+    protected long waitForReadableBytes(int count, boolean singleRead) throws IOException {
+        long tempStart = System.currentTimeMillis();
+
+        checkStateConnected();
+        long tempBytes = singleRead ? getReadableBytesInSingleRead() : getReadableBytes();
+        if (tempBytes < count) {
+            refreshRemoteIndex();
+            tempBytes = singleRead ? getReadableBytesInSingleRead() : getReadableBytes();
+        }
+
+        if (tempBytes >= count) {
+            if (adaptiveSpin != null) {
+                adaptiveSpin.onActivity();
+            }
+            return tempBytes;
+        }
+
+        statistics[RingBufferStatistics.Counter.STALLS.ordinal()]++;
+        long tempStallStart = System.nanoTime();
+        try {
+            int tempRound = 0;
+            while (tempBytes < count) {
+                checkStateConnected();
+                long tempInterrupts = interruptsReceived;
+                if (waitStrategy.isInterruptDriven() && getSpinNanosToUse() > 0) {
+                    interruptLock.lock();
+                    try {
+                        announceWaiting();
+                        refreshRemoteIndex();
+                        tempBytes = singleRead ? getReadableBytesInSingleRead() : getReadableBytes();
+                        if (tempBytes >= count) {
+                            adaptSpin(tempStallStart, tempBytes);
+                            return tempBytes;
+                        }
+
+                        idle(tempRound);
+                        tempRound = nextRound(tempRound);
+                    } finally {
+                        clearWaiting();
+                        interruptLock.unlock();
+                    }
+                } else {
+                    idle(tempRound);
+                    tempRound = nextRound(tempRound);
+                }
+
+                refreshRemoteIndex();
+                tempBytes = singleRead ? getReadableBytesInSingleRead() : getReadableBytes();
+                if (tempBytes < count) {
+                    countEmptyPoll(tempInterrupts);
+                    if (timeout >= 0 && System.currentTimeMillis() > tempStart + timeout) {
+                        throw new RingBufferTimeoutException("Read Timeout");
+                    }
+                }
+            }
+
+            adaptSpin(tempStallStart, tempBytes);
+            return tempBytes;
+        } finally {
+            statistics[RingBufferStatistics.Counter.STALL_NANOS.ordinal()] += System.nanoTime() - tempStallStart;
+            publishStatistics();
+        }
+    }
+
+    /**
+     * Utility method to wait until a certain number of bytes is available to write without blocking.
+     * The singleWrite parameter toggles if the method should only wait for bytes that be written to
+     * in a single write operation (i.e. they dont require a wrap around in the ring buffer).
+     * <p>
+     * Returns the amount of available bytes.
+     */
+    protected long waitForWritableBytes(int count, boolean singleWrite) throws IOException {
+        long tempStart = System.currentTimeMillis();
+
+        checkStateConnected();
+        long tempBytes = singleWrite ? getBytesWritableInSingleWrite() : getWritableBytes();
+        if (tempBytes < count) {
+            refreshRemoteIndex();
+            tempBytes = singleWrite ? getBytesWritableInSingleWrite() : getWritableBytes();
+        }
+
+        if (tempBytes >= count) {
+            if (adaptiveSpin != null) {
+                adaptiveSpin.onActivity();
+            }
+            return tempBytes;
+        }
+
+        statistics[RingBufferStatistics.Counter.STALLS.ordinal()]++;
+        long tempStallStart = System.nanoTime();
+        try {
+            int tempRound = 0;
+            while (tempBytes < count) {
+                checkStateConnected();
+                long tempInterrupts = interruptsReceived;
+                if (waitStrategy.isInterruptDriven() && getSpinNanosToUse() > 0) {
+                    interruptLock.lock();
+                    try {
+                        announceWaiting();
+                        refreshRemoteIndex();
+                        tempBytes = singleWrite ? getBytesWritableInSingleWrite() : getWritableBytes();
+                        if (tempBytes >= count) {
+                            adaptSpin(tempStallStart, tempBytes);
+                            return tempBytes;
+                        }
+
+                        idle(tempRound);
+                        tempRound = nextRound(tempRound);
+                    } finally {
+                        clearWaiting();
+                        interruptLock.unlock();
+                    }
+                } else {
+                    idle(tempRound);
+                    tempRound = nextRound(tempRound);
+                }
+
+                refreshRemoteIndex();
+                tempBytes = singleWrite ? getBytesWritableInSingleWrite() : getWritableBytes();
+                if (tempBytes < count) {
+                    countEmptyPoll(tempInterrupts);
+                    if (timeout >= 0 && System.currentTimeMillis() > tempStart + timeout) {
+                        throw new RingBufferTimeoutException("Write Timeout");
+                    }
+                }
+            }
+
+            adaptSpin(tempStallStart, tempBytes);
+            return tempBytes;
+        } finally {
+            statistics[RingBufferStatistics.Counter.STALL_NANOS.ordinal()] += System.nanoTime() - tempStallStart;
+            publishStatistics();
+        }
+    }
+
+    /**
+     * Counts a round of waiting after which the other side still had not made enough progress.
+     * If an interrupt arrived since aInterrupts the wake up was spurious.
+     */
+    protected void countEmptyPoll(long aInterrupts) {
+        statistics[RingBufferStatistics.Counter.EMPTY_POLLS.ordinal()]++;
+        if (adaptiveSpin != null) {
+            adaptiveSpin.onEmptyPoll();
+        }
+        if (interruptsReceived != aInterrupts) {
+            statistics[RingBufferStatistics.Counter.SPURIOUS_WAKEUPS.ordinal()]++;
+        }
+    }
+
+    /**
+     * Returns the round after aRound. Stays at Integer.MAX_VALUE so a very long wait never starts spinning again.
+     */
+    protected static int nextRound(int aRound) {
+        return aRound == Integer.MAX_VALUE ? aRound : aRound + 1;
+    }
+
+    /**
+     * Waits once according to the wait strategy and checks the state afterwards.
+     */
+    protected void idle(int aRound) throws IOException {
+        try {
+            waitStrategy.idle(this, aRound);
+        } catch (InterruptedException e) {
+            throw new RingBufferInterruptedException(e);
+        }
+
+        checkStateConnected();
+    }
+
+
+    /**
+     * Waits until aLength bytes can be written and returns the Region where they have to be written to.
+     * The bytes become visible to the reader once commit is called. Claiming again before commit returns the same bytes.
+     * Only one thread may claim at a time and the output stream must not be used concurrently.
+     * The returned Region is reused by the next call to claim.
+     */
+    public Region claim(int aLength) throws IOException {
+        lockAccess();
+        try {
+            if (isReadFlag) {
+                throw new IllegalStateException("Cannot claim while reading!");
+            }
+
+            checkNotFramed();
+
+            if (aLength <= 0 || aLength > getCapacity()) {
+                throw new IllegalArgumentException("Can only claim between 1 and " + getCapacity() + " bytes but tried to claim " + aLength);
+            }
+
+            waitForWritableBytes(aLength, false);
+            region.set(toBufferOffset(getWriteIndex()), aLength);
+            pending = aLength;
+            return region;
+        } finally {
+            unlockAccess();
+        }
+    }
+
+    /**
+     * Makes the first aLength bytes of the last claimed Region visible to the reader.
+     */
+    public void commit(int aLength) throws IOException {
+        lockAccess();
+        try {
+            if (aLength < 0 || aLength > pending) {
+                throw new IllegalArgumentException("Can only commit up to " + pending + " claimed bytes but tried to commit " + aLength);
+            }
+
+            checkStateConnected();
+            pending = 0;
+            if (aLength == 0) {
+                return;
+            }
+
+            setWriteIndex(advanceIndex(getWriteIndex(), aLength));
+            notifyPeer();
+        } finally {
+            unlockAccess();
+        }
+    }
+
+    /**
+     * Waits until at least aMinLength bytes can be read and returns the Region containing all bytes that can be read.
+     * The bytes stay in the buffer until release is called. Peeking again before release returns the same bytes and maybe more.
+     * Only one thread may peek at a time and the input stream must not be used concurrently.
+     * The returned Region is reused by the next call to peek.
+     */
+    public Region peek(int aMinLength) throws IOException {
+        lockAccess();
+        try {
+            if (!isReadFlag) {
+                throw new IllegalStateException("Cannot peek while writing!");
+            }
+
+            checkNotFramed();
+
+            if (aMinLength <= 0 || aMinLength > getCapacity()) {
+                throw new IllegalArgumentException("Can only peek between 1 and " + getCapacity() + " bytes but tried to peek " + aMinLength);
+            }
+
+            long tempBytes = Math.min(waitForReadableBytes(aMinLength, false), Integer.MAX_VALUE);
+            region.set(toBufferOffset(getReadIndex()), (int) tempBytes);
+            pending = tempBytes;
+            return region;
+        } finally {
+            unlockAccess();
+        }
+    }
+
+    /**
+     * Removes the first aLength bytes of the last peeked Region from the buffer.
+     */
+    public void release(int aLength) throws IOException {
+        lockAccess();
+        try {
+            if (aLength < 0 || aLength > pending) {
+                throw new IllegalArgumentException("Can only release up to " + pending + " peeked bytes but tried to release " + aLength);
+            }
+
+            checkStateConnected();
+            pending = 0;
+            if (aLength == 0) {
+                return;
+            }
+
+            setReadIndex(advanceIndex(getReadIndex(), aLength));
+            notifyPeer();
+        } finally {
+            unlockAccess();
+        }
+    }
+
+    /**
+     * Reads as many bytes as are readable and fit into the buffers. Blocks until at least one byte is readable.
+     * Data that wraps around the end of the RingBuffer is read in the same operation and the read index is only published once.
+     * Returns the amount of bytes read which is only 0 if the buffers have no space remaining.
+     */
+    public long read(ByteBuffer[] aDsts, int aOffset, int aLength) throws IOException {
+        long tempRemaining = remaining(aDsts, aOffset, aLength);
+        if (tempRemaining == 0) {
+            return 0;
+        }
+
+        lockAccess();
+        try {
+            if (!isReadFlag) {
+                throw new IllegalStateException("Cannot read from a RingBuffer that is used for writing!");
+            }
+
+            checkNotFramed();
+            waitForAtLeastOneReadableByte();
+            long tempBytes = Math.min(tempRemaining, getReadableBytes());
+            long tempIndex = getReadIndex();
+            long tempDone = 0;
+            for (int i = aOffset; tempDone < tempBytes; i++) {
+                int tempCurrent = (int) Math.min(aDsts[i].remaining(), tempBytes - tempDone);
+                readSegment(toBufferOffset(advanceIndex(tempIndex, tempDone)), aDsts[i], tempCurrent);
+                tempDone += tempCurrent;
+            }
+
+            setReadIndex(advanceIndex(tempIndex, tempBytes));
+            notifyPeer();
+            return tempBytes;
+        } finally {
+            unlockAccess();
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the buffers. Blocks until everything is written.
+     * Every pass writes as many bytes as fit, even across the end of the RingBuffer, and publishes the write index once.
+     * A timeout requires the entire write to fit into the RingBuffer at once just like the OutputStream.
+     */
+    public long write(ByteBuffer[] aSrcs, int aOffset, int aLength) throws IOException {
+        long tempTotal = remaining(aSrcs, aOffset, aLength);
+        lockAccess();
+        try {
+            if (isReadFlag) {
+                throw new IllegalStateException("Cannot write to a RingBuffer that is used for reading!");
+            }
+
+            checkNotFramed();
+            if (timeout >= 0 && tempTotal > 0) {
+                if (tempTotal > getCapacity()) {
+                    throw new IOException("A timeout is set so the entire write operation has to fit into the ring buffer at once. " +
+                            "You intend to write " + tempTotal + " bytes but the ring buffer can only hold " + getCapacity() + " bytes.");
+                }
+                waitForWritableBytes((int) tempTotal, false);
+            }
+
+            long tempDone = 0;
+            int tempBufferIndex = aOffset;
+            while (tempDone < tempTotal) {
+                long tempBytes;
+                try {
+                    tempBytes = Math.min(tempTotal - tempDone, waitForWritableBytes(1, false));
+                } catch (RingBufferInterruptedException exc) {
+                    exc.bytesTruncated = (int) Math.min(Integer.MAX_VALUE, tempTotal - tempDone);
+                    throw exc;
+                }
+
+                long tempIndex = getWriteIndex();
+                long tempPass = 0;
+                while (tempPass < tempBytes) {
+                    while (!aSrcs[tempBufferIndex].hasRemaining()) {
+                        tempBufferIndex++;
+                    }
+
+                    int tempCurrent = (int) Math.min(aSrcs[tempBufferIndex].remaining(), tempBytes - tempPass);
+                    writeSegment(toBufferOffset(advanceIndex(tempIndex, tempPass)), aSrcs[tempBufferIndex], tempCurrent);
+                    tempPass += tempCurrent;
+                }
+
+                setWriteIndex(advanceIndex(tempIndex, tempBytes));
+                notifyPeer();
+                tempDone += tempBytes;
+            }
+
+            return tempTotal;
+        } finally {
+            unlockAccess();
+        }
+    }
+
+    protected static long remaining(ByteBuffer[] aBuffers, int aOffset, int aLength) {
+        if (aOffset < 0 || aLength < 0 || aOffset > aBuffers.length - aLength) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        long tempRemaining = 0;
+        for (int i = aOffset; i < aOffset + aLength; i++) {
+            tempRemaining += aBuffers[i].remaining();
+        }
+        return tempRemaining;
+    }
+
+    /**
+     * Copies aLength bytes from the data area at aOffset into the buffer. Continues at the start of the data area
+     * when the end is reached. Direct buffers are copied by their address if the memory is an UnsafeMemory, other buffers
+     * without an accessible array are filled through the scratch array.
+     */
+    protected void readSegment(long aOffset, ByteBuffer aDst, int aLength) {
+        if (aDst.hasArray()) {
+            readData(aOffset, aDst.array(), aDst.arrayOffset() + aDst.position(), aLength);
+            aDst.position(aDst.position() + aLength);
+            return;
+        }
+
+        if (isDirectCopy(aDst)) {
+            NativeMemory tempMirror = mirror;
+            if (tempMirror instanceof UnsafeMemory) {
+                ((UnsafeMemory) tempMirror).read(aOffset, aDst, aLength);
+                return;
+            }
+
+            UnsafeMemory tempMemory = (UnsafeMemory) memory;
+            int tempFirstSegment = (int) Math.min(aLength, size - aOffset);
+            tempMemory.read(address + bufferStartOffset + aOffset, aDst, tempFirstSegment);
+            if (tempFirstSegment < aLength) {
+                tempMemory.read(address + bufferStartOffset, aDst, aLength - tempFirstSegment);
+            }
+            return;
+        }
+
+        byte[] tempScratch = getScratch();
+        while (aLength > 0) {
+            int tempChunk = Math.min(aLength, tempScratch.length);
+            readData(aOffset, tempScratch, 0, tempChunk);
+            aDst.put(tempScratch, 0, tempChunk);
+            aOffset = (aOffset + tempChunk) % size;
+            aLength -= tempChunk;
+        }
+    }
+
+    /**
+     * Copies aLength bytes from the buffer into the data area at aOffset. Continues at the start of the data area
+     * when the end is reached.
+     */
+    protected void writeSegment(long aOffset, ByteBuffer aSrc, int aLength) {
+        if (aSrc.hasArray()) {
+            writeData(aOffset, aSrc.array(), aSrc.arrayOffset() + aSrc.position(), aLength);
+            aSrc.position(aSrc.position() + aLength);
+            return;
+        }
+
+        if (isDirectCopy(aSrc)) {
+            NativeMemory tempMirror = mirror;
+            if (tempMirror instanceof UnsafeMemory) {
+                ((UnsafeMemory) tempMirror).write(aOffset, aSrc, aLength);
+                return;
+            }
+
+            UnsafeMemory tempMemory = (UnsafeMemory) memory;
+            int tempFirstSegment = (int) Math.min(aLength, size - aOffset);
+            tempMemory.write(address + bufferStartOffset + aOffset, aSrc, tempFirstSegment);
+            if (tempFirstSegment < aLength) {
+                tempMemory.write(address + bufferStartOffset, aSrc, aLength - tempFirstSegment);
+            }
+            return;
+        }
+
+        byte[] tempScratch = getScratch();
+        while (aLength > 0) {
+            int tempChunk = Math.min(aLength, tempScratch.length);
+            aSrc.get(tempScratch, 0, tempChunk);
+            writeData(aOffset, tempScratch, 0, tempChunk);
+            aOffset = (aOffset + tempChunk) % size;
+            aLength -= tempChunk;
+        }
+    }
+
+    /**
+     * Copies len bytes from the data area at aOffset into b. Continues at the start of the data area when the end is reached.
+     * This is a single copy if the data area is mapped a second time right after itself.
+     */
+    protected void readData(long aOffset, byte[] b, int off, int len) {
+        NativeMemory tempMirror = mirror;
+        if (tempMirror != null) {
+            tempMirror.read(aOffset, b, off, len);
+            return;
+        }
+
+        int tempFirstSegment = (int) Math.min(len, size - aOffset);
+        memory.read(address + bufferStartOffset + aOffset, b, off, tempFirstSegment);
+        if (tempFirstSegment < len) {
+            memory.read(address + bufferStartOffset, b, off + tempFirstSegment, len - tempFirstSegment);
+        }
+    }
+
+    /**
+     * Copies len bytes from b into the data area at aOffset. Continues at the start of the data area when the end is reached.
+     * This is a single copy if the data area is mapped a second time right after itself.
+     */
+    protected void writeData(long aOffset, byte[] b, int off, int len) {
+        NativeMemory tempMirror = mirror;
+        if (tempMirror != null) {
+            tempMirror.write(aOffset, b, off, len);
+            return;
+        }
+
+        int tempFirstSegment = (int) Math.min(len, size - aOffset);
+        memory.write(address + bufferStartOffset + aOffset, b, off, tempFirstSegment);
+        if (tempFirstSegment < len) {
+            memory.write(address + bufferStartOffset, b, off + tempFirstSegment, len - tempFirstSegment);
+        }
+    }
+
+    /**
+     * Returns true if the buffer is copied from and to the memory by its address instead of through the scratch array.
+     */
+    protected boolean isDirectCopy(ByteBuffer aBuffer) {
+        return aBuffer.isDirect() && memory instanceof UnsafeMemory && UnsafeMemory.isDirectBufferSupported();
+    }
+
+    protected byte[] getScratch() {
+        if (scratch == null) {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+        return scratch;
+    }
+
+    /**
+     * Throws if this RingBuffer contains records as the byte based methods would corrupt them.
+     */
+    protected void checkNotFramed() {
+        if (framed) {
+            throw new IllegalStateException("Framed ring buffers can only be accessed with records!");
+        }
+    }
+
+    /**
+     * Returns the amount of bytes a record with aLength bytes of data occupies in the buffer.
+     */
+    public static int getRecordSize(int aLength) {
+        return (RECORD_HEADER_LENGTH + aLength + RECORD_ALIGNMENT - 1) & -RECORD_ALIGNMENT;
+    }
+
+    /**
+     * Returns the maximum length of the data of a single record.
+     */
+    public int getMaxRecordLength() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, (getCapacity() & -RECORD_ALIGNMENT) - RECORD_HEADER_LENGTH);
+    }
+
+    /**
+     * Waits until a record with aLength bytes can be written and returns the contiguous Region for its data.
+     * The record becomes visible to the reader once commitRecord is called. Requires FLAG_FRAMED.
+     * Only one thread may claim at a time. The returned Region is reused by the next call.
+     */
+    public Region claimRecord(int aLength) throws IOException {
+        lockAccess();
+        try {
+            if (isReadFlag) {
+                throw new IllegalStateException("Cannot claim while reading!");
+            }
+
+            if (!framed) {
+                throw new IllegalStateException("Records require a framed ring buffer!");
             }
 
-            int tempVector = -1;
-            if (useInterrupts) {
-                tempVector = readVector();
-                if (!shmemory.isVectorValid(tempVector)) {
-                    useInterrupts = false;
-                }
-            }
-            int tempPeer = -1;
-            if (useInterrupts) {
-                tempPeer = memory.readInt(address + WRITE_PEER_OFFSET);
-                if (shmemory.knowsOtherPeers()) {
-                    if (!shmemory.isOtherPeerConnected(tempPeer)) {
-                        useInterrupts = false;
-                    }
-                }
+            if (multiProducer) {
+                throw new IllegalStateException("Multi producer ring buffers can only be written with writeRecord!");
             }
 
-
-            wasOpened = true;
-            isReadFlag = true;
-            size = tempSize - OVERHEAD;
-
-            if (useInterrupts) {
-                otherPeer = tempPeer;
-                vector = tempVector;
-                memory.write(address + READ_PEER_OFFSET, shmemory.getOwnPeerID());
-                memory.write(address + INTERRUPT_FLAG_READ_OFFSET, (byte) 1);
-                shmemory.registerInterruptServiceRoutine(tempVector, interruptServiceRoutine);
-            } else {
-                memory.write(address + INTERRUPT_FLAG_READ_OFFSET, (byte) 0);
+            if (aLength < 0 || aLength > getMaxRecordLength()) {
+                throw new IllegalArgumentException("Record length must be between 0 and " + getMaxRecordLength() + " but is " + aLength);
             }
 
-            if (!setState(STATE_CONNECTING, STATE_CONNECTED)) {
-                close();
-                throw new RuntimeException("Setting state to Connected failed! Was another Input Stream created or did the Output Stream just timeout?");
+            int tempRecordSize = getRecordSize(aLength);
+            long tempOffset = toBufferOffset(getWriteIndex());
+            if (tempOffset + tempRecordSize > size) {
+                //The padding is published on its own so that the reader can free it while we wait for space at the start.
+                long tempPadding = size - tempOffset;
+                waitForWritableBytes((int) tempPadding, false);
+                memory.write(address + bufferStartOffset + tempOffset, RECORD_PADDING);
+                setWriteIndex(advanceIndex(getWriteIndex(), tempPadding));
+                notifyPeer();
+                tempOffset = 0;
             }
 
-            return new RingBufferInputStream();
+            waitForWritableBytes(tempRecordSize, false);
+            region.set(tempOffset + RECORD_HEADER_LENGTH, aLength);
+            pending = tempRecordSize;
+            return region;
         } finally {
-            accessLock.unlock();
+            unlockAccess();
         }
     }
 
     /**
-     * Returns the amount of byte currently reable in a single read.
-     * Differs from getAvailableBytes in that is doesnt include readable bytes before the read index
-     * as those would require a wrap around in the ring buffer.
+     * Makes the record of the last claimRecord call visible to the reader with the first aLength bytes of its data.
      */
-    protected long getReadableBytesInSingleRead() throws IOException {
-        long tempWriteIndex = getWriteIndex();
-        long tempReadIndex = getReadIndex();
+    public void commitRecord(int aLength) throws IOException {
+        lockAccess();
+        try {
+            if (pending == 0 || aLength < 0 || aLength > region.length) {
+                throw new IllegalArgumentException("Can only commit up to " + (pending == 0 ? 0 : region.length) + " claimed bytes but tried to commit " + aLength);
+            }
 
-        if (tempReadIndex <= tempWriteIndex) {
-            return tempWriteIndex - tempReadIndex;
+            checkStateConnected();
+            pending = 0;
+            memory.write(address + bufferStartOffset + region.start - RECORD_HEADER_LENGTH, aLength);
+            setWriteIndex(advanceIndex(getWriteIndex(), getRecordSize(aLength)));
+            notifyPeer();
+        } finally {
+            unlockAccess();
         }
-        return size - tempReadIndex;
     }
 
     /**
-     * Returns the amount of bytes currently writeable in a single write.
-     * Differs from getFreeBytes in that it doesnt include the amount of writeable bytes before write index
-     * as those would require a wrap around in the ring buffer.
+     * Waits for the next record and returns the contiguous Region containing its data.
+     * The record stays in the buffer until releaseRecord is called. Requires FLAG_FRAMED.
+     * Only one thread may peek at a time. The returned Region is reused by the next call.
      */
-    protected long getBytesWritableInSingleWrite() throws IOException {
-        long tempWriteIndex = getWriteIndex();
-        long tempReadIndex = getReadIndex();
+    public Region peekRecord() throws IOException {
+        lockAccess();
+        try {
+            if (!isReadFlag) {
+                throw new IllegalStateException("Cannot peek while writing!");
+            }
 
-        long tempWB;
-        if (tempReadIndex <= tempWriteIndex) {
-            tempWB = size - tempWriteIndex;
-        } else {
-            tempWB = tempReadIndex - tempWriteIndex;
-        }
+            if (!framed) {
+                throw new IllegalStateException("Records require a framed ring buffer!");
+            }
 
-        if ((tempWriteIndex + tempWB) % size == tempReadIndex) {
-            tempWB--;
-        }
+            while (true) {
+                waitForReadableBytes(RECORD_HEADER_LENGTH, false);
+                long tempOffset = toBufferOffset(getReadIndex());
+                int tempLength = memory.readInt(address + bufferStartOffset + tempOffset);
+                if (tempLength == 0 && multiProducer) {
+                    tempLength = waitForCommit(tempOffset);
+                }
 
-        return tempWB;
-    }
+                if (tempLength == RECORD_PADDING) {
+                    if (multiProducer) {
+                        memory.set(address + bufferStartOffset + tempOffset, (byte) 0, size - tempOffset);
+                    }
+                    setReadIndex(advanceIndex(getReadIndex(), size - tempOffset));
+                    notifyPeer();
+                    continue;
+                }
 
-    /**
-     * Returns the total amount of bytes that can be currently written to the ring buffer before writing calls would
-     * start to block due to the buffer being full.
-     */
-    public long getFreeBytes() throws IOException {
-        checkStateConnected();
+                if (multiProducer && (tempLength & RECORD_ABORTED) != 0) {
+                    int tempAbortedLength = tempLength & ~RECORD_ABORTED;
+                    if (tempAbortedLength > getMaxRecordLength() || tempOffset + getRecordSize(tempAbortedLength) > size) {
+                        close();
+                        throw new IOException("Invalid aborted record length " + tempAbortedLength + " at offset " + tempOffset);
+                    }
 
-        long tempWriteIndex = getWriteIndex();
-        long tempReadIndex = getReadIndex();
+                    int tempRecordSize = getRecordSize(tempAbortedLength);
+                    waitForReadableBytes(tempRecordSize, false);
+                    memory.set(address + bufferStartOffset + tempOffset, (byte) 0, tempRecordSize);
+                    setReadIndex(advanceIndex(getReadIndex(), tempRecordSize));
+                    notifyPeer();
+                    continue;
+                }
 
-        long tempWB;
-        if (tempReadIndex <= tempWriteIndex) {
-            tempWB = (size - tempWriteIndex) + tempReadIndex;
-        } else {
-            tempWB = tempReadIndex - tempWriteIndex;
-        }
+                //Checked before getRecordSize as it overflows for lengths close to Integer.MAX_VALUE.
+                if (tempLength < 0 || tempLength > getMaxRecordLength() || tempOffset + getRecordSize(tempLength) > size) {
+                    close();
+                    throw new IOException("Invalid record length " + tempLength + " at offset " + tempOffset);
+                }
 
-        if ((tempWriteIndex + tempWB) % size == tempReadIndex) {
-            tempWB--;
+                waitForReadableBytes(getRecordSize(tempLength), false);
+                region.set(tempOffset + RECORD_HEADER_LENGTH, tempLength);
+                pending = getRecordSize(tempLength);
+                return region;
+            }
+        } finally {
+            unlockAccess();
         }
-
-        return tempWB;
     }
 
     /**
-     * Returns the total amount of bytes that can be read from the ring buffer without blocking.
+     * Removes the record of the last peekRecord call from the buffer.
      */
-    public long getAvailableBytes() throws IOException {
-        checkStateConnected();
-        long tempWriteIndex = getWriteIndex();
-        long tempReadIndex = getReadIndex();
+    public void releaseRecord() throws IOException {
+        lockAccess();
+        try {
+            if (pending == 0) {
+                throw new IllegalStateException("No record to release!");
+            }
 
-        if (tempReadIndex <= tempWriteIndex) {
-            return tempWriteIndex - tempReadIndex;
+            checkStateConnected();
+            if (multiProducer) {
+                memory.set(address + bufferStartOffset + toBufferOffset(getReadIndex()), (byte) 0, pending);
+            }
+            setReadIndex(advanceIndex(getReadIndex(), pending));
+            pending = 0;
+            notifyPeer();
+        } finally {
+            unlockAccess();
         }
-        return (size - tempReadIndex) + tempWriteIndex;
     }
 
     /**
-     * Waits until at least one readable byte is readable from the buffer.
-     * Will return the amount of readable bytes which is guaranteed to be at least 1 or greater.
-     * <p>
-     * Will only return amount of bytes that can be read in a single read operation (i.e. without wraparound in the ring buffer).
+     * Waits until the writer that reserved the record at aOffset committed it and returns its header.
+     * Writers commit right after copying the record so the reader polls a few rounds before it waits.
+     * Closes the RingBuffer if the record is not committed within the commit timeout.
      */
-    protected long waitForAtLeastOneReadableByte() throws IOException {
-        long tempStart = System.currentTimeMillis();
-
-        checkStateConnected();
-        long tempSpinTime = getSpinTimeToUse();
-        long tempBytes = getReadableBytesInSingleRead();
-        while (tempBytes == 0) {
-            checkStateConnected();
-            if (tempSpinTime <= 0) {
-                tempBytes = getReadableBytesInSingleRead();
-                continue;
+    protected int waitForCommit(long aOffset) throws IOException {
+        long tempHeader = address + bufferStartOffset + aOffset;
+        for (int i = 0; i < WaitStrategy.SPIN_ROUNDS; i++) {
+            int tempLength = memory.readInt(tempHeader);
+            if (tempLength != 0) {
+                return tempLength;
             }
+            Thread.yield();
+        }
 
-            interruptLock.lock();
-            try {
-                tempBytes = getReadableBytesInSingleRead();
-                if (tempBytes == 0) {
+        long tempStart = System.currentTimeMillis();
+        statistics[RingBufferStatistics.Counter.STALLS.ordinal()]++;
+        long tempStallStart = System.nanoTime();
+        try {
+            int tempRound = 0;
+            while (true) {
+                checkStateConnected();
+                long tempInterrupts = interruptsReceived;
+                if (waitStrategy.isInterruptDriven() && getSpinNanosToUse() > 0) {
+                    interruptLock.lock();
                     try {
-                        interruptCondition.await(tempSpinTime, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException e) {
-                        throw new RingBufferInterruptedException(e);
+                        announceWaiting();
+                        int tempLength = memory.readInt(tempHeader);
+                        if (tempLength != 0) {
+                            return tempLength;
+                        }
+
+                        idle(tempRound);
+                        tempRound = nextRound(tempRound);
+                    } finally {
+                        clearWaiting();
+                        interruptLock.unlock();
                     }
-                    checkStateConnected();
                 } else {
-                    return tempBytes;
+                    idle(tempRound);
+                    tempRound = nextRound(tempRound);
+                }
+
+                int tempLength = memory.readInt(tempHeader);
+                if (tempLength != 0) {
+                    return tempLength;
                 }
-            } finally {
-                interruptLock.unlock();
-            }
 
-            tempBytes = getReadableBytesInSingleRead();
+                countEmptyPoll(tempInterrupts);
+                if (timeout >= 0 && System.currentTimeMillis() > tempStart + timeout) {
+                    throw new RingBufferTimeoutException("Read Timeout");
+                }
 
-            if (tempBytes == 0 && timeout >= 0 && System.currentTimeMillis() > tempStart + timeout) {
-                throw new RingBufferTimeoutException("Read Timeout");
+                if (commitTimeout >= 0 && System.currentTimeMillis() > tempStart + commitTimeout) {
+                    close();
+                    throw new IOException("Record at offset " + aOffset + " was not committed within " + commitTimeout + " ms. Its writer died.");
+                }
             }
+        } finally {
+            statistics[RingBufferStatistics.Counter.STALL_NANOS.ordinal()] += System.nanoTime() - tempStallStart;
+            publishStatistics();
         }
-
-        return tempBytes;
     }
 
     /**
-     * Utility method to wait until a certain number of bytes is available to write without blocking.
-     * The singleWrite parameter toggles if the method should only wait for bytes that be written to
-     * in a single write operation (i.e. they dont require a wrap around in the ring buffer).
-     * <p>
-     * Returns the amount of available bytes.
+     * Reserves, writes and commits a record whose data is aFirstLength bytes of aFirst followed by aSecondLength bytes of aSecond.
+     * Requires FLAG_MULTI_PRODUCER. Any amount of threads may call this at the same time and neither the access lock
+     * nor the single threaded access apply. The records of a single thread stay in order. Blocks while the buffer is full.
+     * The counters of the writer are kept in producerStatistics.
      */
-    protected long waitForWritableBytes(int count, boolean singleWrite) throws IOException {
+    public void writeRecord(byte[] aFirst, int aFirstOffset, int aFirstLength, byte[] aSecond, int aSecondOffset, int aSecondLength) throws IOException {
+        if (isReadFlag || !multiProducer) {
+            throw new IllegalStateException("writeRecord requires a multi producer ring buffer that is connected for writing!");
+        }
+
+        int tempLength = aFirstLength + aSecondLength;
+        if (aFirstLength < 0 || aSecondLength < 0 || tempLength <= 0 || tempLength > getMaxRecordLength()) {
+            throw new IllegalArgumentException("Record length must be between 1 and " + getMaxRecordLength() + " but is " + tempLength);
+        }
+
+        int tempRecordSize = getRecordSize(tempLength);
         long tempStart = System.currentTimeMillis();
+        long tempStallStart = -1;
+        int tempRound = 0;
+        while (true) {
+            long tempWriteIndex = memory.readLong(address + writeIndexOffset);
+            long tempOffset = toBufferOffset(tempWriteIndex);
+            //A record that does not fit before the end reserves the rest of the buffer for its padding.
+            long tempReserved = tempOffset + tempRecordSize > size ? size - tempOffset + tempRecordSize : tempRecordSize;
+            if (size - (tempWriteIndex - memory.readLong(address + readIndexOffset)) < tempReserved) {
+                checkStateConnected();
+                if (tempStallStart < 0) {
+                    count(RingBufferStatistics.Counter.STALLS, 1);
+                    tempStallStart = System.nanoTime();
+                }
+                waitForSharedSpace(tempReserved, tempRound);
+                tempRound = nextRound(tempRound);
+                if (timeout >= 0 && System.currentTimeMillis() > tempStart + timeout) {
+                    throw new RingBufferTimeoutException("Write Timeout");
+                }
+                continue;
+            }
 
-        checkStateConnected();
-        long tempSpinTime = getSpinTimeToUse();
-        long tempBytes = singleWrite ? getBytesWritableInSingleWrite() : getFreeBytes();
-        while (tempBytes < count) {
-            checkStateConnected();
-            if (tempSpinTime <= 0) {
-                tempBytes = singleWrite ? getBytesWritableInSingleWrite() : getFreeBytes();
+            if (!memory.compareAndSet(address + writeIndexOffset, tempWriteIndex, tempWriteIndex + tempReserved)) {
                 continue;
             }
-            interruptLock.lock();
+
+            count(RingBufferStatistics.Counter.BYTES, tempReserved);
+            if (tempOffset + tempReserved >= size) {
+                count(RingBufferStatistics.Counter.WRAPS, 1);
+            }
+
+            if (tempStallStart >= 0) {
+                count(RingBufferStatistics.Counter.STALL_NANOS, System.nanoTime() - tempStallStart);
+            }
+
+            if (tempReserved != tempRecordSize) {
+                commitHeader(tempOffset, RECORD_PADDING);
+                tempOffset = 0;
+            }
+
             try {
-                tempBytes = singleWrite ? getBytesWritableInSingleWrite() : getFreeBytes();
-                if (tempBytes < count) {
-                    try {
-                        interruptCondition.await(tempSpinTime, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException e) {
-                        throw new RingBufferInterruptedException(e);
-                    }
+                writeData(tempOffset + RECORD_HEADER_LENGTH, aFirst, aFirstOffset, aFirstLength);
+                if (aSecondLength > 0) {
+                    writeData(tempOffset + RECORD_HEADER_LENGTH + aFirstLength, aSecond, aSecondOffset, aSecondLength);
+                }
+            } catch (Throwable e) {
+                //The reserved record must still be committed or the reader waits at it forever.
+                commitHeader(tempOffset, tempLength | RECORD_ABORTED);
+                notifyPeer();
+                throw e;
+            }
+            commitHeader(tempOffset, tempLength);
+            notifyPeer();
+            if (producerRecords.incrementAndGet() % STATISTICS_PUBLISH_INTERVAL == 0) {
+                publishStatistics();
+            }
+            return;
+        }
+    }
 
-                    checkStateConnected();
-                } else {
-                    return tempBytes;
+    /**
+     * Writes the header of a record reserved by writeRecord. The data written before is visible to the reader first.
+     */
+    protected void commitHeader(long aOffset, int aHeader) {
+        if (PLAIN_STORE_IS_RELEASE) {
+            memory.write(address + bufferStartOffset + aOffset, aHeader);
+        } else {
+            memory.getAndSet(address + bufferStartOffset + aOffset, aHeader);
+        }
+    }
+
+    /**
+     * Waits once for the reader to free aBytes for writeRecord. The waiting int of the writer counts the waiting threads.
+     */
+    protected void waitForSharedSpace(long aBytes, int aRound) throws IOException {
+        if (!waitStrategy.isInterruptDriven() || getSpinNanosToUse() <= 0) {
+            idle(aRound);
+            return;
+        }
+
+        interruptLock.lock();
+        try {
+            if (doorbellSuppression) {
+                memory.getAndAdd(address + V2_WRITER_WAITING_OFFSET, 1);
+            }
+            try {
+                if (size - (memory.readLong(address + writeIndexOffset) - memory.readLong(address + readIndexOffset)) >= aBytes) {
+                    return;
                 }
+
+                idle(aRound);
             } finally {
-                interruptLock.unlock();
+                if (doorbellSuppression) {
+                    memory.getAndAdd(address + V2_WRITER_WAITING_OFFSET, -1);
+                }
             }
-            tempBytes = singleWrite ? getBytesWritableInSingleWrite() : getFreeBytes();
+        } finally {
+            interruptLock.unlock();
+        }
+    }
 
-            if (tempBytes < count && timeout >= 0 && System.currentTimeMillis() > tempStart + timeout) {
-                throw new RingBufferTimeoutException("Write Timeout");
-            }
+    /**
+     * A range of bytes in the data area of the RingBuffer returned by claim, peek, claimRecord or peekRecord.
+     * Positions are relative to the start of the range. Accesses that reach the end of the data area continue
+     * at its start.
+     */
+    public class Region {
+
+        /**
+         * Offset of the first byte relative to the start of the data.
+         */
+        protected long start;
+
+        protected int length;
+
+        protected void set(long aStart, int aLength) {
+            start = aStart;
+            length = aLength;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public byte read(int aPos) {
+            return memory.read(address + bufferStartOffset + offsetOf(aPos, 1));
+        }
+
+        public void read(int aPos, byte[] b, int off, int len) {
+            readData(offsetOf(aPos, len), b, off, len);
+        }
+
+        public void write(int aPos, byte aByte) {
+            memory.write(address + bufferStartOffset + offsetOf(aPos, 1), aByte);
+        }
+
+        public void write(int aPos, byte[] b, int off, int len) {
+            writeData(offsetOf(aPos, len), b, off, len);
         }
 
-        return tempBytes;
+        /**
+         * Returns the offset relative to the start of the data of the byte at aPos.
+         */
+        protected long offsetOf(int aPos, int aLength) {
+            if (aPos < 0 || aLength < 0 || aPos + aLength > length) {
+                throw new IndexOutOfBoundsException("Position " + aPos + " length " + aLength + " is outside of region with length " + length);
+            }
+
+            long tempOffset = start + aPos;
+            return tempOffset >= size ? tempOffset - size : tempOffset;
+        }
     }
 
 
@@ -966,16 +2801,17 @@ public class RingBuffer implements Closeable {
 
         @Override
         public int read() throws IOException {
-            accessLock.lock();
+            lockAccess();
             try {
+                checkNotFramed();
                 waitForAtLeastOneReadableByte();
                 long tempIndex = getReadIndex();
-                int tempByte = memory.read(address + BUFFER_START_OFFSET + tempIndex) & 0xFF;
-                setReadIndex((tempIndex + 1) % size);
-                triggerInterrupt();
+                int tempByte = memory.read(address + bufferStartOffset + toBufferOffset(tempIndex)) & 0xFF;
+                setReadIndex(advanceIndex(tempIndex, 1));
+                notifyPeer();
                 return tempByte;
             } finally {
-                accessLock.unlock();
+                unlockAccess();
             }
         }
 
@@ -985,44 +2821,47 @@ public class RingBuffer implements Closeable {
                 return 0;
             }
 
-            accessLock.lock();
+            lockAccess();
             try {
-                int tempBytes = (int) Math.min(len, waitForAtLeastOneReadableByte());
+                checkNotFramed();
+                waitForAtLeastOneReadableByte();
                 long tempIndex = getReadIndex();
-                memory.read(address + BUFFER_START_OFFSET + tempIndex, b, off, tempBytes);
-                setReadIndex((tempIndex + tempBytes) % size);
-                triggerInterrupt();
+                int tempBytes = (int) Math.min(len, getReadableBytes());
+                //Data that wraps around is read in the same operation.
+                readData(toBufferOffset(tempIndex), b, off, tempBytes);
+                setReadIndex(advanceIndex(tempIndex, tempBytes));
+                notifyPeer();
                 return tempBytes;
             } finally {
-                accessLock.unlock();
+                unlockAccess();
             }
         }
 
         @Override
         public long skip(long n) throws IOException {
-            accessLock.lock();
+            lockAccess();
             try {
+                checkNotFramed();
                 long tempSkipped = 0;
                 try {
                     while (n > 0) {
                         long tempBytesToSkip = Math.min(n, waitForAtLeastOneReadableByte());
                         n -= tempBytesToSkip;
-                        long tempNewReadIndex = getReadIndex() + tempBytesToSkip;
-                        setReadIndex(tempNewReadIndex % size);
-                        triggerInterrupt();
+                        setReadIndex(advanceIndex(getReadIndex(), tempBytesToSkip));
+                        notifyPeer();
                     }
                 } catch (RingBufferInterruptedException | RingBufferTimeoutException exc) {
                     //DC.
                 }
                 return tempSkipped;
             } finally {
-                accessLock.unlock();
+                unlockAccess();
             }
         }
 
         @Override
         public int available() throws IOException {
-            accessLock.lock();
+            lockAccess();
             try {
                 long tempBytes = getFreeBytes();
                 if (tempBytes > Integer.MAX_VALUE) {
@@ -1031,7 +2870,7 @@ public class RingBuffer implements Closeable {
 
                 return (int) tempBytes;
             } finally {
-                accessLock.unlock();
+                unlockAccess();
             }
         }
 
@@ -1045,28 +2884,30 @@ public class RingBuffer implements Closeable {
     class RingBufferOutputStream extends OutputStream {
 
         public void write(int b) throws IOException {
-            accessLock.lock();
+            lockAccess();
             try {
+                checkNotFramed();
                 waitForWritableBytes(1, true);
                 long tempIndex = getWriteIndex();
-                memory.write(address + BUFFER_START_OFFSET + tempIndex, (byte) b);
-                setWriteIndex((tempIndex + 1) % size);
-                triggerInterrupt();
+                memory.write(address + bufferStartOffset + toBufferOffset(tempIndex), (byte) b);
+                setWriteIndex(advanceIndex(tempIndex, 1));
+                notifyPeer();
             } finally {
-                accessLock.unlock();
+                unlockAccess();
             }
         }
 
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            accessLock.lock();
+            lockAccess();
             try {
+                checkNotFramed();
 
                 if (timeout >= 0) {
-                    if (len >= size) {
+                    if (len > getCapacity()) {
                         throw new IOException("You have write a timeout, to avoid having to do partial writes the entire write operation has to fit into the ring buffer at once. " +
-                                "You intend to write " + len + " bytes but the ring buffer is only " + size + " bytes big. (1 byte is reserved) If you wish to enable partial writes dont write a timeout.");
+                                "You intend to write " + len + " bytes but the ring buffer can only hold " + getCapacity() + " bytes. If you wish to enable partial writes dont write a timeout.");
                     }
                     waitForWritableBytes(len, false);
                 }
@@ -1082,27 +2923,26 @@ public class RingBuffer implements Closeable {
                     }
                 }
             } finally {
-                accessLock.unlock();
+                unlockAccess();
             }
         }
 
         /**
          * writes the byte array partially returning the amount of bytes written.
-         * This is required when we reach the high edge of the buffer and need to wrap around.
-         * In this case even if the entire write operation would fit into the buffer we would need
-         * to make 2 writes regardless. This method is also useful when only a few bytes can be written
-         * because the buffer is full.
+         * This is useful when only a few bytes can be written because the buffer is full.
+         * If we reach the high edge of the buffer then the remaining bytes are written to the start of the buffer
+         * in the same operation so that the write index is only published once.
          */
         protected int writePartial(byte[] b, int off, int len) throws IOException {
             if (len <= 0) {
                 return 0;
             }
 
-            int tempBytes = (int) Math.min(len, waitForWritableBytes(1, true));
+            int tempBytes = (int) Math.min(len, waitForWritableBytes(1, false));
             long tempIndex = getWriteIndex();
-            memory.write(address + BUFFER_START_OFFSET + tempIndex, b, off, tempBytes);
-            setWriteIndex((tempIndex + tempBytes) % size);
-            triggerInterrupt();
+            writeData(toBufferOffset(tempIndex), b, off, tempBytes);
+            setWriteIndex(advanceIndex(tempIndex, tempBytes));
+            notifyPeer();
             return tempBytes;
         }
 
@@ -1112,6 +2952,63 @@ public class RingBuffer implements Closeable {
         }
     }
 
+    class RingBufferReadChannel implements ScatteringByteChannel {
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return (int) RingBuffer.this.read(new ByteBuffer[]{dst}, 0, 1);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return RingBuffer.this.read(dsts, offset, length);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) throws IOException {
+            return RingBuffer.this.read(dsts, 0, dsts.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return RingBuffer.this.isOpen();
+        }
+
+        @Override
+        public void close() {
+            RingBuffer.this.close();
+        }
+    }
+
+
+    class RingBufferWriteChannel implements GatheringByteChannel {
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) RingBuffer.this.write(new ByteBuffer[]{src}, 0, 1);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return RingBuffer.this.write(srcs, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return RingBuffer.this.write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return RingBuffer.this.isOpen();
+        }
+
+        @Override
+        public void close() {
+            RingBuffer.this.close();
+        }
+    }
+
     public static class RingBufferTimeoutException extends IOException {
         public RingBufferTimeoutException(String message) {
             super(message);
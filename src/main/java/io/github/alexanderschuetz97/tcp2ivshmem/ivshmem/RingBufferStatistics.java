@@ -0,0 +1,206 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import io.github.alexanderschuetz97.nativeutils.api.NativeMemory;
+
+/**
+ * Snapshot of the state and the counters of a RingBuffer read from the Shared Memory.
+ * Writer and reader of a RingBuffer with layout version 2 each keep their counters in their own cache lines of the
+ * control page so both peers can read them without connecting to the RingBuffer.
+ * Layout version 1 has no room for counters, only the indices are available then.
+ */
+public class RingBufferStatistics {
+
+    /**
+     * Counters kept by each side. The counter is located at ordinal * 8 in the statistics block of the side.
+     */
+    public enum Counter {
+        /**
+         * Bytes written by the writer or read by the reader.
+         */
+        BYTES("bytes"),
+        /**
+         * Times the index passed the end of the buffer.
+         */
+        WRAPS("wraps"),
+        /**
+         * Times the side had to wait for the other side.
+         */
+        STALLS("stalls"),
+        /**
+         * Total time spent waiting for the other side.
+         */
+        STALL_NANOS("stall ns"),
+        /**
+         * Rounds of the wait strategy after which the other side still had not made enough progress.
+         */
+        EMPTY_POLLS("empty polls"),
+        /**
+         * Interrupts sent to the other side.
+         */
+        DOORBELLS("doorbells"),
+        /**
+         * Wake ups by an interrupt after which the other side still had not made enough progress.
+         */
+        SPURIOUS_WAKEUPS("spurious wakeups"),
+        /**
+         * Interrupts received from the other side.
+         */
+        INTERRUPTS("interrupts"),
+        /**
+         * Spin time in nanoseconds the side currently waits between polls. Not a counter, it is overwritten with every publication.
+         */
+        SPIN_NANOS("spin ns");
+
+        private final String name;
+
+        Counter(String aName) {
+            name = aName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getOffset() {
+            return ordinal() * 8;
+        }
+    }
+
+    /**
+     * Size of the statistics block of one side.
+     */
+    public static final int BLOCK_SIZE = 2 * RingBuffer.CACHE_LINE_SIZE;
+
+    private final int layoutVersion;
+
+    private final int state;
+
+    private final int flags;
+
+    private final long size;
+
+    private final long writeIndex;
+
+    private final long readIndex;
+
+    private final long[] writer;
+
+    private final long[] reader;
+
+    protected RingBufferStatistics(int aLayoutVersion, int aState, int aFlags, long aSize, long aWriteIndex, long aReadIndex, long[] aWriter, long[] aReader) {
+        layoutVersion = aLayoutVersion;
+        state = aState;
+        flags = aFlags;
+        size = aSize;
+        writeIndex = aWriteIndex;
+        readIndex = aReadIndex;
+        writer = aWriter;
+        reader = aReader;
+    }
+
+    /**
+     * Reads the statistics of the RingBuffer located at aAddress. Does not require the RingBuffer to be connected.
+     */
+    public static RingBufferStatistics read(NativeMemory aMemory, long aAddress) {
+        int tempState = aMemory.read(aAddress + RingBuffer.STATE_OFFSET);
+        byte tempLayoutVersion = aMemory.read(aAddress + RingBuffer.LAYOUT_VERSION_OFFSET);
+        int tempLayout = tempLayoutVersion == 0 ? RingBuffer.LAYOUT_V1 : tempLayoutVersion;
+        long tempSize = aMemory.readLong(aAddress + RingBuffer.SIZE_OFFSET);
+        long[] tempWriter = new long[Counter.values().length];
+        long[] tempReader = new long[Counter.values().length];
+        if (tempLayout < RingBuffer.LAYOUT_V2) {
+            return new RingBufferStatistics(tempLayout, tempState, 0, Math.max(0, tempSize - RingBuffer.OVERHEAD),
+                    aMemory.readLong(aAddress + RingBuffer.WRITE_INDEX_OFFSET), aMemory.readLong(aAddress + RingBuffer.READ_INDEX_OFFSET), tempWriter, tempReader);
+        }
+
+        for (Counter tempCounter : Counter.values()) {
+            tempWriter[tempCounter.ordinal()] = aMemory.readLong(aAddress + RingBuffer.V2_WRITER_STATISTICS_OFFSET + tempCounter.getOffset());
+            tempReader[tempCounter.ordinal()] = aMemory.readLong(aAddress + RingBuffer.V2_READER_STATISTICS_OFFSET + tempCounter.getOffset());
+        }
+
+        return new RingBufferStatistics(tempLayout, tempState, aMemory.readInt(aAddress + RingBuffer.V2_FLAGS_OFFSET), Math.max(0, tempSize - RingBuffer.V2_OVERHEAD),
+                aMemory.readLong(aAddress + RingBuffer.V2_WRITE_INDEX_OFFSET), aMemory.readLong(aAddress + RingBuffer.V2_READ_INDEX_OFFSET), tempWriter, tempReader);
+    }
+
+    public int getLayoutVersion() {
+        return layoutVersion;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Size of the data area in bytes. 0 if the RingBuffer was never connected.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getWriteIndex() {
+        return writeIndex;
+    }
+
+    public long getReadIndex() {
+        return readIndex;
+    }
+
+    /**
+     * Amount of bytes written but not yet read.
+     */
+    public long getUsedBytes() {
+        if ((flags & RingBuffer.FLAG_SEQUENCE_COUNTERS) != 0 || readIndex <= writeIndex) {
+            return writeIndex - readIndex;
+        }
+
+        return (size - readIndex) + writeIndex;
+    }
+
+    public long getWriterCounter(Counter aCounter) {
+        return writer[aCounter.ordinal()];
+    }
+
+    public long getReaderCounter(Counter aCounter) {
+        return reader[aCounter.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder tempBuilder = new StringBuilder();
+        tempBuilder.append("layout: ").append(layoutVersion).append(" state: ").append(state).append(" flags: ").append(flags);
+        tempBuilder.append(" used: ").append(getUsedBytes()).append("/").append(size).append("\n");
+        tempBuilder.append("writer:");
+        for (Counter tempCounter : Counter.values()) {
+            tempBuilder.append(" ").append(tempCounter.getName()).append(": ").append(writer[tempCounter.ordinal()]);
+        }
+        tempBuilder.append("\nreader:");
+        for (Counter tempCounter : Counter.values()) {
+            tempBuilder.append(" ").append(tempCounter.getName()).append(": ").append(reader[tempCounter.ordinal()]);
+        }
+        return tempBuilder.toString();
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import io.github.alexanderschuetz97.nativeutils.api.NativeMemory;
+
+import java.io.SyncFailedException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Accesses the memory of a NativeMemory through the foreign memory api on Java 22 and newer or sun.misc.Unsafe on
+ * older JVMs instead of a JNI call per operation, see MemoryAccess.
+ * The JIT compiles the reads, writes, compare and sets and copies to plain machine instructions, which matters most
+ * for the many small accesses to the indices and the control block. Operations that are only used while connecting
+ * (spinning, byte and short atomics, 16 byte compare and set) as well as closing and syncing go to the wrapped memory.
+ * <p>
+ * Reads have acquire and writes of ints and longs have release semantics like the accesses of the native library.
+ * Every access holds the read lock of the wrapped memory and close takes its write lock, so the memory is never unmapped
+ * while another thread still accesses it. An access after the close fails with an IllegalStateException instead of
+ * crashing the JVM. The uncontended read lock costs far less than the JNI call it replaces.
+ * Direct ByteBuffers are copied from and to by their address without an array in between.
+ */
+public class UnsafeMemory implements NativeMemory {
+
+    private final NativeMemory delegate;
+
+    private final long pointer;
+
+    private final long size;
+
+    private final ReentrantReadWriteLock.ReadLock readLock;
+
+    private volatile boolean closed;
+
+    public UnsafeMemory(NativeMemory aDelegate) {
+        if (!isAvailable()) {
+            throw new UnsupportedOperationException("Neither the foreign memory api nor sun.misc.Unsafe is available");
+        }
+
+        if (aDelegate.getNativePointer() == 0) {
+            throw new IllegalArgumentException("Memory is closed");
+        }
+
+        delegate = aDelegate;
+        pointer = aDelegate.getNativePointer();
+        size = aDelegate.size();
+        readLock = aDelegate.readLock();
+    }
+
+    /**
+     * Returns true if this JVM provides the foreign memory api or sun.misc.Unsafe.
+     */
+    public static boolean isAvailable() {
+        return MemoryAccess.BACKEND != null;
+    }
+
+    /**
+     * Returns the name of the api used to access the memory or null if none is available.
+     */
+    public static String getBackend() {
+        return MemoryAccess.BACKEND;
+    }
+
+    /**
+     * Returns true if direct ByteBuffers can be copied from and to without an intermediate array.
+     */
+    public static boolean isDirectBufferSupported() {
+        return MemoryAccess.canAddressBuffers();
+    }
+
+    /**
+     * Returns the wrapped memory.
+     */
+    public NativeMemory getDelegate() {
+        return delegate;
+    }
+
+    private long address(long offset, long len) {
+        if (closed) {
+            throw new IllegalStateException("Memory is closed");
+        }
+
+        if (offset < 0 || len < 0 || offset > size - len) {
+            throw new IllegalArgumentException("Access of " + len + " bytes at offset " + offset + " is outside of the memory of " + size + " bytes");
+        }
+
+        return pointer + offset;
+    }
+
+    private static void checkBuffer(byte[] buffer, int bufferOffset, int len) {
+        if (bufferOffset < 0 || len < 0 || bufferOffset > buffer.length - len) {
+            throw new IllegalArgumentException("Buffer of " + buffer.length + " bytes can not hold " + len + " bytes at offset " + bufferOffset);
+        }
+    }
+
+    /**
+     * Waits for the accesses of other threads to finish. Closing twice only closes the wrapped memory once.
+     */
+    @Override
+    public void close() {
+        ReentrantReadWriteLock.WriteLock tempLock = delegate.writeLock();
+        tempLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            delegate.close();
+        } finally {
+            tempLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isValid() {
+        return !closed && delegate.isValid();
+    }
+
+    @Override
+    public boolean isValid(long off) {
+        return !closed && delegate.isValid(off);
+    }
+
+    @Override
+    public boolean isValid(long off, long len) {
+        return !closed && delegate.isValid(off, len);
+    }
+
+    @Override
+    public boolean isReadable() {
+        return delegate.isReadable();
+    }
+
+    @Override
+    public boolean isWriteable() {
+        return delegate.isWriteable();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long getNativePointer() {
+        return delegate.getNativePointer();
+    }
+
+    @Override
+    public ReentrantReadWriteLock.ReadLock readLock() {
+        return delegate.readLock();
+    }
+
+    @Override
+    public ReentrantReadWriteLock.WriteLock writeLock() {
+        return delegate.writeLock();
+    }
+
+    @Override
+    public void sync(long offset, long length, boolean invalidate) throws SyncFailedException {
+        delegate.sync(offset, length, invalidate);
+    }
+
+    @Override
+    public void set(long offset, byte value, long len) {
+        readLock.lock();
+        try {
+            MemoryAccess.setMemory(address(offset, len), len, value);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void write(long offset, byte[] buffer, int bufferOffset, int len) {
+        checkBuffer(buffer, bufferOffset, len);
+        readLock.lock();
+        try {
+            MemoryAccess.copyFromArray(buffer, bufferOffset, address(offset, len), len);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void write(long offset, byte[] buffer) {
+        write(offset, buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(long offset, byte aByte) {
+        readLock.lock();
+        try {
+            MemoryAccess.putByte(address(offset, 1), aByte);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void write(long offset, int aInt) {
+        readLock.lock();
+        try {
+            MemoryAccess.putInt(address(offset, 4), aInt);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void write(long offset, long aLong) {
+        readLock.lock();
+        try {
+            MemoryAccess.putLong(address(offset, 8), aLong);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void write(long offset, float aFloat) {
+        write(offset, Float.floatToRawIntBits(aFloat));
+    }
+
+    @Override
+    public void write(long offset, double aDouble) {
+        write(offset, Double.doubleToRawLongBits(aDouble));
+    }
+
+    @Override
+    public void write(long offset, short aShort) {
+        readLock.lock();
+        try {
+            MemoryAccess.putShort(address(offset, 2), aShort);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void read(long offset, byte[] buffer, int bufferOffset, int len) {
+        checkBuffer(buffer, bufferOffset, len);
+        readLock.lock();
+        try {
+            MemoryAccess.copyToArray(address(offset, len), buffer, bufferOffset, len);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private static long bufferAddress(ByteBuffer aBuffer, int len) {
+        if (len < 0 || len > aBuffer.remaining()) {
+            throw new IllegalArgumentException("Buffer with " + aBuffer.remaining() + " remaining bytes can not hold " + len + " bytes");
+        }
+
+        return MemoryAccess.getBufferAddress(aBuffer) + aBuffer.position();
+    }
+
+    /**
+     * Copies len bytes from the memory at offset into the direct buffer aDst and advances its position.
+     */
+    public void read(long offset, ByteBuffer aDst, int len) {
+        if (aDst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        long tempDst = bufferAddress(aDst, len);
+        readLock.lock();
+        try {
+            MemoryAccess.copyMemory(address(offset, len), tempDst, len);
+        } finally {
+            readLock.unlock();
+        }
+        aDst.position(aDst.position() + len);
+    }
+
+    /**
+     * Copies len bytes from the direct buffer aSrc into the memory at offset and advances its position.
+     */
+    public void write(long offset, ByteBuffer aSrc, int len) {
+        long tempSrc = bufferAddress(aSrc, len);
+        readLock.lock();
+        try {
+            MemoryAccess.copyMemory(tempSrc, address(offset, len), len);
+        } finally {
+            readLock.unlock();
+        }
+        aSrc.position(aSrc.position() + len);
+    }
+
+    @Override
+    public int readInt(long offset) {
+        readLock.lock();
+        try {
+            return MemoryAccess.getInt(address(offset, 4));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public long readUnsignedInt(long offset) {
+        return readInt(offset) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public long readLong(long offset) {
+        readLock.lock();
+        try {
+            return MemoryAccess.getLong(address(offset, 8));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public float readFloat(long offset) {
+        return Float.intBitsToFloat(readInt(offset));
+    }
+
+    @Override
+    public double readDouble(long offset) {
+        return Double.longBitsToDouble(readLong(offset));
+    }
+
+    @Override
+    public short readShort(long offset) {
+        readLock.lock();
+        try {
+            return MemoryAccess.getShort(address(offset, 2));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int readUnsignedShort(long offset) {
+        return readShort(offset) & 0xFFFF;
+    }
+
+    @Override
+    public byte read(long offset) {
+        readLock.lock();
+        try {
+            return MemoryAccess.getByte(address(offset, 1));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int readUnsignedByte(long offset) {
+        return read(offset) & 0xFF;
+    }
+
+    @Override
+    public boolean supportsAtomicOperations() {
+        return delegate.supportsAtomicOperations();
+    }
+
+    @Override
+    public long getAndAdd(long offset, long aLong) {
+        readLock.lock();
+        try {
+            long tempAddress = address(offset, 8);
+            while (true) {
+                long tempValue = MemoryAccess.getLong(tempAddress);
+                if (MemoryAccess.compareAndSet(tempAddress, tempValue, tempValue + aLong)) {
+                    return tempValue;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int getAndAdd(long offset, int aInt) {
+        readLock.lock();
+        try {
+            long tempAddress = address(offset, 4);
+            while (true) {
+                int tempValue = MemoryAccess.getInt(tempAddress);
+                if (MemoryAccess.compareAndSet(tempAddress, tempValue, tempValue + aInt)) {
+                    return tempValue;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public short getAndAdd(long offset, short aShort) {
+        return delegate.getAndAdd(offset, aShort);
+    }
+
+    @Override
+    public byte getAndAdd(long offset, byte aByte) {
+        return delegate.getAndAdd(offset, aByte);
+    }
+
+    @Override
+    public long getAndSet(long offset, long aLong) {
+        readLock.lock();
+        try {
+            long tempAddress = address(offset, 8);
+            while (true) {
+                long tempValue = MemoryAccess.getLong(tempAddress);
+                if (MemoryAccess.compareAndSet(tempAddress, tempValue, aLong)) {
+                    return tempValue;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int getAndSet(long offset, int aInt) {
+        readLock.lock();
+        try {
+            long tempAddress = address(offset, 4);
+            while (true) {
+                int tempValue = MemoryAccess.getInt(tempAddress);
+                if (MemoryAccess.compareAndSet(tempAddress, tempValue, aInt)) {
+                    return tempValue;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public short getAndSet(long offset, short aShort) {
+        return delegate.getAndSet(offset, aShort);
+    }
+
+    @Override
+    public byte getAndSet(long offset, byte aByte) {
+        return delegate.getAndSet(offset, aByte);
+    }
+
+    @Override
+    public boolean compareAndSet(long offset, long expect, long update) {
+        readLock.lock();
+        try {
+            return MemoryAccess.compareAndSet(address(offset, 8), expect, update);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(long offset, int expect, int update) {
+        readLock.lock();
+        try {
+            return MemoryAccess.compareAndSet(address(offset, 4), expect, update);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(long offset, short expect, short update) {
+        return delegate.compareAndSet(offset, expect, update);
+    }
+
+    @Override
+    public boolean compareAndSet(long offset, byte expect, byte update) {
+        return delegate.compareAndSet(offset, expect, update);
+    }
+
+    @Override
+    public boolean spinAndSet(long offset, long expect, long update, long aSpinTime, long aTimeout, TimeUnit aUnit) {
+        return delegate.spinAndSet(offset, expect, update, aSpinTime, aTimeout, aUnit);
+    }
+
+    @Override
+    public boolean spinAndSet(long offset, int expect, int update, long aSpinTime, long aTimeout, TimeUnit aUnit) {
+        return delegate.spinAndSet(offset, expect, update, aSpinTime, aTimeout, aUnit);
+    }
+
+    @Override
+    public boolean spinAndSet(long offset, short expect, short update, long aSpinTime, long aTimeout, TimeUnit aUnit) {
+        return delegate.spinAndSet(offset, expect, update, aSpinTime, aTimeout, aUnit);
+    }
+
+    @Override
+    public boolean spinAndSet(long offset, byte expect, byte update, long aSpinTime, long aTimeout, TimeUnit aUnit) {
+        return delegate.spinAndSet(offset, expect, update, aSpinTime, aTimeout, aUnit);
+    }
+
+    @Override
+    public void spinAndSet(long offset, long expect, long update, long aSpinTime, TimeUnit aUnit) {
+        delegate.spinAndSet(offset, expect, update, aSpinTime, aUnit);
+    }
+
+    @Override
+    public void spinAndSet(long offset, int expect, int update, long aSpinTime, TimeUnit aUnit) {
+        delegate.spinAndSet(offset, expect, update, aSpinTime, aUnit);
+    }
+
+    @Override
+    public void spinAndSet(long offset, short expect, short update, long aSpinTime, TimeUnit aUnit) {
+        delegate.spinAndSet(offset, expect, update, aSpinTime, aUnit);
+    }
+
+    @Override
+    public void spinAndSet(long offset, byte expect, byte update, long aSpinTime, TimeUnit aUnit) {
+        delegate.spinAndSet(offset, expect, update, aSpinTime, aUnit);
+    }
+
+    @Override
+    public boolean spin(long offset, long expect, long aSpinTime, long aTimeout, TimeUnit aUnit) {
+        return delegate.spin(offset, expect, aSpinTime, aTimeout, aUnit);
+    }
+
+    @Override
+    public boolean spin(long offset, int expect, long aSpinTime, long aTimeout, TimeUnit aUnit) {
+        return delegate.spin(offset, expect, aSpinTime, aTimeout, aUnit);
+    }
+
+    @Override
+    public boolean spin(long offset, short expect, long aSpinTime, long aTimeout, TimeUnit aUnit) {
+        return delegate.spin(offset, expect, aSpinTime, aTimeout, aUnit);
+    }
+
+    @Override
+    public boolean spin(long offset, byte expect, long aSpinTime, long aTimeout, TimeUnit aUnit) {
+        return delegate.spin(offset, expect, aSpinTime, aTimeout, aUnit);
+    }
+
+    @Override
+    public void spin(long offset, long expect, long aSpinTime, TimeUnit aUnit) {
+        delegate.spin(offset, expect, aSpinTime, aUnit);
+    }
+
+    @Override
+    public void spin(long offset, int expect, long aSpinTime, TimeUnit aUnit) {
+        delegate.spin(offset, expect, aSpinTime, aUnit);
+    }
+
+    @Override
+    public void spin(long offset, short expect, long aSpinTime, TimeUnit aUnit) {
+        delegate.spin(offset, expect, aSpinTime, aUnit);
+    }
+
+    @Override
+    public void spin(long offset, byte expect, long aSpinTime, TimeUnit aUnit) {
+        delegate.spin(offset, expect, aSpinTime, aUnit);
+    }
+
+    @Override
+    public boolean supports16ByteCompareAndSet() {
+        return delegate.supports16ByteCompareAndSet();
+    }
+
+    @Override
+    public boolean atomic8ByteOperationsRequireAlignment() {
+        return delegate.atomic8ByteOperationsRequireAlignment();
+    }
+
+    @Override
+    public boolean compareAndSet(long offset, byte[] data) {
+        return delegate.compareAndSet(offset, data);
+    }
+
+    @Override
+    public String toString() {
+        return "UnsafeMemory(" + delegate + ")";
+    }
+}
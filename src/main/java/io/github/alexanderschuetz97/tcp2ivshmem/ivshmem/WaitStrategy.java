@@ -0,0 +1,140 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Defines what a RingBuffer does while it waits for the other side to read or write.
+ * All timings are in nanoseconds. INTERRUPT uses the spin time of the RingBuffer, which may be chosen by an AdaptiveSpin.
+ */
+public enum WaitStrategy {
+    /**
+     * Polls the index of the other side in a loop. Lowest latency but uses a full core while waiting.
+     * Only useful if the thread has a dedicated core.
+     */
+    BUSY_SPIN("busy") {
+        @Override
+        public void idle(RingBuffer aBuffer, int aRound) {
+            //Poll again.
+        }
+    },
+    /**
+     * Polls SPIN_ROUNDS times then yields the processor after every poll.
+     */
+    SPIN_YIELD("yield") {
+        @Override
+        public void idle(RingBuffer aBuffer, int aRound) {
+            if (aRound >= SPIN_ROUNDS) {
+                Thread.yield();
+            }
+        }
+    },
+    /**
+     * Polls SPIN_ROUNDS times, yields YIELD_ROUNDS times and then parks the thread starting with MIN_PARK_NANOS.
+     * The park time doubles with every round until it reaches the max park time of the RingBuffer.
+     */
+    SPIN_PARK("park") {
+        @Override
+        public void idle(RingBuffer aBuffer, int aRound) throws InterruptedException {
+            if (aRound < SPIN_ROUNDS) {
+                return;
+            }
+
+            if (aRound < SPIN_ROUNDS + YIELD_ROUNDS) {
+                Thread.yield();
+                return;
+            }
+
+            int tempShift = Math.min(aRound - SPIN_ROUNDS - YIELD_ROUNDS, 30);
+            LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << tempShift, aBuffer.maxParkNanos));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    },
+    /**
+     * Waits for an interrupt from the other side or until the spin time of the RingBuffer elapses.
+     * Without interrupts this sleeps for the spin time. A spin time of 0 polls in a loop.
+     * An AdaptiveSpin set on the RingBuffer chooses the spin time while interrupts are not used.
+     */
+    INTERRUPT("interrupt") {
+        @Override
+        public boolean isInterruptDriven() {
+            return true;
+        }
+
+        @Override
+        public void idle(RingBuffer aBuffer, int aRound) throws InterruptedException {
+            long tempSpinTime = aBuffer.getSpinNanosToUse();
+            if (tempSpinTime > 0) {
+                aBuffer.interruptCondition.await(tempSpinTime, TimeUnit.NANOSECONDS);
+            }
+        }
+    };
+
+    public static final int SPIN_ROUNDS = 100;
+
+    public static final int YIELD_ROUNDS = 100;
+
+    public static final long MIN_PARK_NANOS = 1000;
+
+    public static final long DEFAULT_MAX_PARK_NANOS = 100000;
+
+    private final String name;
+
+    WaitStrategy(String aName) {
+        name = aName;
+    }
+
+    /**
+     * Name used on the command line.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * True if idle must be called with the interrupt lock of the RingBuffer held.
+     */
+    public boolean isInterruptDriven() {
+        return false;
+    }
+
+    /**
+     * Called once per round while the RingBuffer waits. aRound starts at 0 for every wait.
+     */
+    public abstract void idle(RingBuffer aBuffer, int aRound) throws InterruptedException;
+
+    /**
+     * Returns the WaitStrategy with the given command line name or null.
+     */
+    public static WaitStrategy forName(String aName) {
+        for (WaitStrategy tempStrategy : values()) {
+            if (tempStrategy.name.equals(aName)) {
+                return tempStrategy;
+            }
+        }
+
+        return null;
+    }
+}
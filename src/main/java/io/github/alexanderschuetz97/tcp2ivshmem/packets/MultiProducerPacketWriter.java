@@ -0,0 +1,68 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.packets;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes every packet as its own record into a RingBuffer with FLAG_MULTI_PRODUCER from the calling thread.
+ * Unlike the other writers it is used by all threads that send packets at the same time and has no batch.
+ */
+public class MultiProducerPacketWriter {
+
+    private final RingBuffer ring;
+
+    public MultiProducerPacketWriter(RingBuffer ring) {
+        this.ring = ring;
+    }
+
+    public RingBuffer getRing() {
+        return ring;
+    }
+
+    /**
+     * Writes the packet. Data packets are written without encoding them into a buffer first.
+     */
+    public void writePacket(AbstractPacket packet) throws IOException {
+        if (packet.getPacketEnum() == PacketEnum.DATA) {
+            Packet4Data data = (Packet4Data) packet;
+            writeData(data.getId(), data.getData(), 0, data.getLength());
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PacketUtil.writePacket(packet, new DataOutputStream(buffer));
+        byte[] encoded = buffer.toByteArray();
+        ring.writeRecord(encoded, 0, encoded.length, encoded, 0, 0);
+    }
+
+    /**
+     * Writes a data packet straight from the array without creating a packet. Same encoding as PacketUtil.writePacket.
+     */
+    public void writeData(int id, byte[] data, int off, int len) throws IOException {
+        byte[] header = new byte[Packet4Data.HEADER_LENGTH];
+        Packet4Data.writeHeader(header, 0, id, len);
+        ring.writeRecord(header, 0, header.length, data, off, len);
+    }
+}
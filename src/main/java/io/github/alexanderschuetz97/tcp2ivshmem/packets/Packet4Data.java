@@ -25,6 +25,11 @@ import java.io.IOException;
 
 public class Packet4Data extends AbstractPacket {
 
+    /**
+     * Amount of bytes before the payload: packet id, connection id and payload length.
+     */
+    public static final int HEADER_LENGTH = 7;
+
     private int id;
 
     private byte[] data;
@@ -44,15 +49,38 @@ public class Packet4Data extends AbstractPacket {
     @Override
     public void write(DataOutputStream dataOutputStream) throws IOException {
         dataOutputStream.writeInt(id);
-        if (data == null) {
-            dataOutputStream.writeShort(0);
-        } else {
-            int len = Math.min(0xffff, data.length);
-            dataOutputStream.writeShort(len);
+        int len = getLength();
+        dataOutputStream.writeShort(len);
+        if (len > 0) {
             dataOutputStream.write(data, 0, len);
         }
     }
 
+    /**
+     * Writes the bytes that write puts in front of aLength payload bytes, including the packet id, into aBuffer at aOffset.
+     * Lets a writer send the payload straight from its array without creating a packet.
+     */
+    public static void writeHeader(byte[] aBuffer, int aOffset, int aId, int aLength) {
+        if (aLength < 0 || aLength > 0xffff) {
+            throw new IllegalArgumentException("Payload length must be between 0 and " + 0xffff + " but is " + aLength);
+        }
+
+        aBuffer[aOffset] = PacketEnum.DATA.getId();
+        aBuffer[aOffset + 1] = (byte) (aId >>> 24);
+        aBuffer[aOffset + 2] = (byte) (aId >>> 16);
+        aBuffer[aOffset + 3] = (byte) (aId >>> 8);
+        aBuffer[aOffset + 4] = (byte) aId;
+        aBuffer[aOffset + 5] = (byte) (aLength >>> 8);
+        aBuffer[aOffset + 6] = (byte) aLength;
+    }
+
+    /**
+     * Returns the amount of payload bytes that will be written.
+     */
+    public int getLength() {
+        return data == null ? 0 : Math.min(0xffff, data.length);
+    }
+
     public int getId() {
         return id;
     }
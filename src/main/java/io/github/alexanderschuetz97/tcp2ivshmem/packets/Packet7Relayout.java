@@ -0,0 +1,80 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Announces new sizes for both ring buffers. Sent by the master and echoed by the slave.
+ * It is always the last packet written to the old ring buffer of its direction.
+ */
+public class Packet7Relayout extends AbstractPacket {
+
+    private int generation;
+
+    private long serverToClientSize;
+
+    private long clientToServerSize;
+
+    protected Packet7Relayout() {
+        super(PacketEnum.RELAYOUT);
+    }
+
+    @Override
+    public void read(DataInputStream dataInputStream) throws IOException {
+        generation = dataInputStream.readInt();
+        serverToClientSize = dataInputStream.readLong();
+        clientToServerSize = dataInputStream.readLong();
+    }
+
+    @Override
+    public void write(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeInt(generation);
+        dataOutputStream.writeLong(serverToClientSize);
+        dataOutputStream.writeLong(clientToServerSize);
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(int generation) {
+        this.generation = generation;
+    }
+
+    public long getServerToClientSize() {
+        return serverToClientSize;
+    }
+
+    public void setServerToClientSize(long serverToClientSize) {
+        this.serverToClientSize = serverToClientSize;
+    }
+
+    public long getClientToServerSize() {
+        return clientToServerSize;
+    }
+
+    public void setClientToServerSize(long clientToServerSize) {
+        this.clientToServerSize = clientToServerSize;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Describes payload that was placed in a buffer of the buffer pool of the sending side.
+ * The receiving side returns the buffer to the pool once it copied the payload out.
+ */
+public class Packet8PooledData extends AbstractPacket {
+
+    private int id;
+
+    private int buffer;
+
+    private int length;
+
+    protected Packet8PooledData() {
+        super(PacketEnum.POOLED_DATA);
+    }
+
+    @Override
+    public void read(DataInputStream dataInputStream) throws IOException {
+        id = dataInputStream.readInt();
+        buffer = dataInputStream.readInt();
+        length = dataInputStream.readInt();
+    }
+
+    @Override
+    public void write(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeInt(id);
+        dataOutputStream.writeInt(buffer);
+        dataOutputStream.writeInt(length);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public int getBuffer() {
+        return buffer;
+    }
+
+    public void setBuffer(int buffer) {
+        this.buffer = buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void setLength(int length) {
+        this.length = length;
+    }
+}
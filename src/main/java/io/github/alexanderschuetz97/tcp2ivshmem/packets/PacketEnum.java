@@ -55,6 +55,18 @@ public enum PacketEnum {
         public Packet6OpenServerResult create() {
             return new Packet6OpenServerResult();
         }
+    },
+    RELAYOUT(7) {
+        @Override
+        public Packet7Relayout create() {
+            return new Packet7Relayout();
+        }
+    },
+    POOLED_DATA(8) {
+        @Override
+        public Packet8PooledData create() {
+            return new Packet8PooledData();
+        }
     };
 
     final byte id;
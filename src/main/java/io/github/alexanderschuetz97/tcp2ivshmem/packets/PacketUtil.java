@@ -45,8 +45,12 @@ public class PacketUtil {
     }
 
     public static Packet4Data data(int id, byte[] data, int len) {
+        return data(id, data, 0, len);
+    }
+
+    public static Packet4Data data(int id, byte[] data, int off, int len) {
         byte[] tempBuf = new byte[len];
-        System.arraycopy(data, 0, tempBuf, 0, len);
+        System.arraycopy(data, off, tempBuf, 0, len);
         Packet4Data pdata = PacketEnum.DATA.create();
         pdata.setId(id);
         pdata.setData(tempBuf);
@@ -65,6 +69,77 @@ public class PacketUtil {
         return packet;
     }
 
+    /**
+     * Returns the length of the packet that starts at off in the buffer including the packet id
+     * or -1 if the buffer does not yet contain the entire packet.
+     */
+    public static int getPacketLength(byte[] buf, int off, int len) throws IOException {
+        if (len < 1) {
+            return -1;
+        }
+
+        int pid = buf[off] & 0xff;
+        if (pid >= PacketEnum.packets.length || PacketEnum.packets[pid] == null) {
+            throw new IOException("Illegal Packet " + pid);
+        }
+
+        switch (PacketEnum.packets[pid]) {
+            case CONNECT:
+                return getOptionalStringAndShortLength(buf, off, len, 5, true);
+            case FIN:
+            case RST:
+                return len < 5 ? -1 : 5;
+            case DATA:
+                if (len < 7) {
+                    return -1;
+                }
+                int tempLength = 7 + readUnsignedShort(buf, off + 5);
+                return len < tempLength ? -1 : tempLength;
+            case SERVER:
+                int tempDestination = getOptionalStringAndShortLength(buf, off, len, 5, false);
+                if (tempDestination < 0) {
+                    return -1;
+                }
+                return getOptionalStringAndShortLength(buf, off, len, tempDestination, true);
+            case SERVER_RESULT:
+                return len < 6 ? -1 : 6;
+            case RELAYOUT:
+                return len < 21 ? -1 : 21;
+            case POOLED_DATA:
+                return len < 13 ? -1 : 13;
+            default:
+                throw new IOException("Illegal Packet " + pid);
+        }
+    }
+
+    /**
+     * Returns the offset after a boolean flag, the optional utf string it guards and an unsigned short
+     * starting at pos or -1 if the buffer is too short.
+     */
+    private static int getOptionalStringAndShortLength(byte[] buf, int off, int len, int pos, boolean isEnd) {
+        if (len < pos + 1) {
+            return -1;
+        }
+
+        if (buf[off + pos] != 0) {
+            if (len < pos + 3) {
+                return -1;
+            }
+            pos += 2 + readUnsignedShort(buf, off + pos + 1);
+        }
+        pos += 3;
+
+        if (isEnd && len < pos) {
+            return -1;
+        }
+
+        return pos;
+    }
+
+    private static int readUnsignedShort(byte[] buf, int off) {
+        return ((buf[off] & 0xff) << 8) | (buf[off + 1] & 0xff);
+    }
+
     public static void writePacket(AbstractPacket packet, DataOutputStream dataOutputStream) throws IOException {
         dataOutputStream.write(packet.getPacketID());
         packet.write(dataOutputStream);
@@ -89,4 +164,20 @@ public class PacketUtil {
         res.setSuccess(success);
         return res;
     }
+
+    public static Packet7Relayout relayout(int generation, long serverToClientSize, long clientToServerSize) {
+        Packet7Relayout relayout = PacketEnum.RELAYOUT.create();
+        relayout.setGeneration(generation);
+        relayout.setServerToClientSize(serverToClientSize);
+        relayout.setClientToServerSize(clientToServerSize);
+        return relayout;
+    }
+
+    public static Packet8PooledData pooledData(int id, int buffer, int length) {
+        Packet8PooledData pdata = PacketEnum.POOLED_DATA.create();
+        pdata.setId(id);
+        pdata.setBuffer(buffer);
+        pdata.setLength(length);
+        return pdata;
+    }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.packets;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBuffer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Reads packets directly from the shared memory of a RingBuffer using peek and release.
+ * The payload of data packets is copied straight from the shared memory into the array of the packet,
+ * all other packets are copied into the buffer first and parsed from there.
+ * If the ring buffer is framed every record contains exactly one packet.
+ */
+public class RingBufferPacketReader implements PacketReader {
+
+    private final RingBuffer ring;
+
+    private final boolean framed;
+
+    private final byte[] header = new byte[Packet4Data.HEADER_LENGTH];
+
+    /**
+     * Holds packets other than data packets while they are parsed.
+     */
+    private final byte[] buffer;
+
+    private final ChunkInputStream chunk = new ChunkInputStream();
+
+    private final DataInputStream dataInputStream = new DataInputStream(chunk);
+
+    public RingBufferPacketReader(RingBuffer ring, int bufferSize) {
+        this.ring = ring;
+        this.framed = (ring.getFlags() & RingBuffer.FLAG_FRAMED) != 0;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Returns the next packet. Blocks until the entire packet is in the ring buffer.
+     */
+    @Override
+    public AbstractPacket readPacket() throws IOException {
+        if (framed) {
+            return readRecord();
+        }
+
+        RingBuffer.Region region = ring.peek(1);
+        if (region.read(0) == PacketEnum.DATA.getId()) {
+            return readData(region);
+        }
+
+        int length;
+        while (true) {
+            int available = Math.min(region.getLength(), buffer.length);
+            region.read(0, buffer, 0, available);
+            length = PacketUtil.getPacketLength(buffer, 0, available);
+            if (length >= 0) {
+                break;
+            }
+
+            if (available == buffer.length) {
+                throw new IOException("Packet is bigger than " + buffer.length + " bytes.");
+            }
+
+            region = ring.peek(available + 1);
+        }
+
+        chunk.setWindow(buffer, 0, length);
+        AbstractPacket packet = PacketUtil.readPacket(dataInputStream);
+        ring.release(length);
+        return packet;
+    }
+
+    /**
+     * Reads the packet contained in the next record.
+     */
+    private AbstractPacket readRecord() throws IOException {
+        RingBuffer.Region region = ring.peekRecord();
+        int length = region.getLength();
+        AbstractPacket packet;
+        if (length > 0 && region.read(0) == PacketEnum.DATA.getId()) {
+            packet = decodeData(region);
+        } else {
+            if (length > buffer.length) {
+                throw new IOException("Packet is bigger than " + buffer.length + " bytes.");
+            }
+
+            region.read(0, buffer, 0, length);
+            chunk.setWindow(buffer, 0, length);
+            packet = PacketUtil.readPacket(dataInputStream);
+        }
+
+        ring.releaseRecord();
+        return packet;
+    }
+
+    private Packet4Data readData(RingBuffer.Region region) throws IOException {
+        if (region.getLength() < header.length) {
+            region = ring.peek(header.length);
+        }
+
+        int len = ((region.read(5) & 0xff) << 8) | (region.read(6) & 0xff);
+        if (region.getLength() < header.length + len) {
+            region = ring.peek(header.length + len);
+        }
+
+        Packet4Data packet = decodeData(region);
+        ring.release(header.length + len);
+        return packet;
+    }
+
+    /**
+     * Decodes a data packet that is entirely contained in the region.
+     */
+    private Packet4Data decodeData(RingBuffer.Region region) throws IOException {
+        region.read(0, header, 0, header.length);
+        int id = ((header[1] & 0xff) << 24) | ((header[2] & 0xff) << 16) | ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+        int len = ((header[5] & 0xff) << 8) | (header[6] & 0xff);
+        if (region.getLength() < header.length + len) {
+            throw new IOException("Data packet with " + len + " bytes is truncated.");
+        }
+
+        byte[] data = new byte[len];
+        if (len > 0) {
+            region.read(header.length, data, 0, len);
+        }
+
+        Packet4Data packet = PacketEnum.DATA.create();
+        packet.setId(id);
+        packet.setData(data);
+        return packet;
+    }
+}
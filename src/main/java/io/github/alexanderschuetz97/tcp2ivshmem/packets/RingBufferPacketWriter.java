@@ -0,0 +1,184 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.packets;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBuffer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes packets directly into the shared memory of a RingBuffer using claim and commit.
+ * The header and payload of data packets are written straight into the claimed region, all other packets are
+ * encoded into the staging buffer first as they are rare and small. A batch is committed at once.
+ * If the ring buffer is framed every packet is written as its own record instead.
+ */
+public class RingBufferPacketWriter implements PacketWriter {
+
+    private final RingBuffer ring;
+
+    private final boolean framed;
+
+    /**
+     * Encoded packets other than data packets in the order of the batch.
+     */
+    private final StagingOutputStream staging;
+
+    private final DataOutputStream dataOutputStream;
+
+    private final List<AbstractPacket> packets = new ArrayList<>();
+
+    /**
+     * Encoded length of every packet in packets.
+     */
+    private int[] lengths = new int[16];
+
+    private int bufferedBytes;
+
+    private final byte[] header = new byte[Packet4Data.HEADER_LENGTH];
+
+    public RingBufferPacketWriter(RingBuffer ring, int bufferSize) {
+        this.ring = ring;
+        this.framed = (ring.getFlags() & RingBuffer.FLAG_FRAMED) != 0;
+        this.staging = new StagingOutputStream(bufferSize);
+        this.dataOutputStream = new DataOutputStream(staging);
+    }
+
+    /**
+     * Adds the packet to the batch. Nothing is written to the ring buffer until flush is called.
+     */
+    @Override
+    public void writePacket(AbstractPacket packet) throws IOException {
+        int length;
+        if (packet.getPacketEnum() == PacketEnum.DATA) {
+            length = Packet4Data.HEADER_LENGTH + ((Packet4Data) packet).getLength();
+        } else {
+            int before = staging.size();
+            PacketUtil.writePacket(packet, dataOutputStream);
+            length = staging.size() - before;
+        }
+
+        if (packets.size() == lengths.length) {
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+        }
+
+        lengths[packets.size()] = length;
+        packets.add(packet);
+        bufferedBytes += length;
+    }
+
+    @Override
+    public int getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * Claims the entire batch in the ring buffer, encodes it and commits it.
+     * If the batch is bigger than the ring buffer it is split into as few parts as possible.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (framed) {
+            flushRecords();
+            return;
+        }
+
+        long capacity = ring.getCapacity();
+        int stagingOffset = 0;
+        int index = 0;
+        while (index < packets.size()) {
+            int end = index;
+            long batch = 0;
+            while (end < packets.size() && batch + lengths[end] <= capacity) {
+                batch += lengths[end];
+                end++;
+            }
+
+            if (end == index) {
+                throw new IOException("Packet with " + lengths[index] + " bytes is bigger than the ring buffer with a capacity of " + capacity + " bytes.");
+            }
+
+            RingBuffer.Region region = ring.claim((int) batch);
+            int position = 0;
+            for (; index < end; index++) {
+                AbstractPacket packet = packets.get(index);
+                if (packet.getPacketEnum() == PacketEnum.DATA) {
+                    writeData(region, position, (Packet4Data) packet);
+                } else {
+                    region.write(position, staging.getBuffer(), stagingOffset, lengths[index]);
+                    stagingOffset += lengths[index];
+                }
+                position += lengths[index];
+            }
+
+            ring.commit(position);
+        }
+
+        packets.clear();
+        staging.reset();
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Writes every packet of the batch as its own record.
+     */
+    private void flushRecords() throws IOException {
+        int stagingOffset = 0;
+        for (int index = 0; index < packets.size(); index++) {
+            AbstractPacket packet = packets.get(index);
+            RingBuffer.Region region = ring.claimRecord(lengths[index]);
+            if (packet.getPacketEnum() == PacketEnum.DATA) {
+                writeData(region, 0, (Packet4Data) packet);
+            } else {
+                region.write(0, staging.getBuffer(), stagingOffset, lengths[index]);
+                stagingOffset += lengths[index];
+            }
+
+            ring.commitRecord(lengths[index]);
+        }
+
+        packets.clear();
+        staging.reset();
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Same encoding as PacketUtil.writePacket for a data packet.
+     */
+    private void writeData(RingBuffer.Region region, int position, Packet4Data packet) {
+        int id = packet.getId();
+        int len = packet.getLength();
+        header[0] = PacketEnum.DATA.getId();
+        header[1] = (byte) (id >>> 24);
+        header[2] = (byte) (id >>> 16);
+        header[3] = (byte) (id >>> 8);
+        header[4] = (byte) id;
+        header[5] = (byte) (len >>> 8);
+        header[6] = (byte) len;
+        region.write(position, header, 0, header.length);
+        if (len > 0) {
+            region.write(position + header.length, packet.getData(), 0, len);
+        }
+    }
+}
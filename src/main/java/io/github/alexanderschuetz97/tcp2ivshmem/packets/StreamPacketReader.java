@@ -0,0 +1,97 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.packets;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads packets from an InputStream in bulk.
+ * Every read from the underlying stream requests as many bytes as fit into the internal buffer and all
+ * complete packets inside of that chunk are parsed from the heap before the stream is read from again.
+ */
+public class StreamPacketReader implements PacketReader {
+
+    private final InputStream input;
+
+    private final ChunkInputStream chunk = new ChunkInputStream();
+
+    private final DataInputStream dataInputStream = new DataInputStream(chunk);
+
+    private byte[] buffer;
+
+    /**
+     * Offset of the first byte in the buffer that has not been parsed yet.
+     */
+    private int position;
+
+    /**
+     * Offset after the last valid byte in the buffer.
+     */
+    private int limit;
+
+    public StreamPacketReader(InputStream input, int bufferSize) {
+        this.input = input;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Returns the next packet. Will only read from the underlying stream if the buffer does not contain a complete packet.
+     */
+    @Override
+    public AbstractPacket readPacket() throws IOException {
+        int tempLength = PacketUtil.getPacketLength(buffer, position, limit - position);
+        while (tempLength < 0) {
+            fill();
+            tempLength = PacketUtil.getPacketLength(buffer, position, limit - position);
+        }
+
+        chunk.setWindow(buffer, position, tempLength);
+        AbstractPacket packet = PacketUtil.readPacket(dataInputStream);
+        position += tempLength;
+        return packet;
+    }
+
+    /**
+     * Moves the remaining partial packet to the start of the buffer and reads as many bytes as possible after it.
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+
+        if (limit == buffer.length) {
+            byte[] tempBuffer = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, tempBuffer, 0, limit);
+            buffer = tempBuffer;
+        }
+
+        int tempRead = input.read(buffer, limit, buffer.length - limit);
+        if (tempRead < 0) {
+            throw new EOFException();
+        }
+        limit += tempRead;
+    }
+}
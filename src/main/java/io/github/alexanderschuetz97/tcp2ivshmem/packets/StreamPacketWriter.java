@@ -0,0 +1,72 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.packets;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes packets into a reusable staging buffer so that a batch of packets can be written to the
+ * underlying OutputStream with a single write call.
+ */
+public class StreamPacketWriter implements PacketWriter {
+
+    private final OutputStream output;
+
+    private final StagingOutputStream staging;
+
+    private final DataOutputStream dataOutputStream;
+
+    public StreamPacketWriter(OutputStream output, int bufferSize) {
+        this.output = output;
+        this.staging = new StagingOutputStream(bufferSize);
+        this.dataOutputStream = new DataOutputStream(staging);
+    }
+
+    /**
+     * Encodes the packet into the staging buffer. Nothing is written to the underlying stream until flush is called.
+     */
+    @Override
+    public void writePacket(AbstractPacket packet) throws IOException {
+        PacketUtil.writePacket(packet, dataOutputStream);
+    }
+
+    /**
+     * Returns the amount of bytes that are currently in the staging buffer.
+     */
+    @Override
+    public int getBufferedBytes() {
+        return staging.size();
+    }
+
+    /**
+     * Writes the entire staging buffer to the underlying stream in one call and resets the staging buffer.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (staging.size() == 0) {
+            return;
+        }
+
+        staging.writeTo(output);
+        staging.reset();
+    }
+}
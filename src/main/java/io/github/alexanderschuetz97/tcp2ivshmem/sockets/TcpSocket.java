@@ -19,6 +19,7 @@
  */
 package io.github.alexanderschuetz97.tcp2ivshmem.sockets;
 
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.BufferPool;
 import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.IvshmemBridge;
 import io.github.alexanderschuetz97.tcp2ivshmem.Main;
 import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketUtil;
@@ -35,6 +36,8 @@ import java.util.concurrent.TimeUnit;
 public class TcpSocket {
 
     private final int id;
+    //Counts the connections that used the id, see TcpSocketContainer.connecting.
+    private final int generation;
     private final TcpSocketContainer container;
     private final IvshmemBridge ivshmemBridge;
 
@@ -46,8 +49,9 @@ public class TcpSocket {
     private BlockingQueue<byte[]> toTcpQueue = new ArrayBlockingQueue<>(Constants.PACKET_QUEUE_SIZE);
 
 
-    public TcpSocket(int id, TcpSocketContainer container, IvshmemBridge ivshmemBridge, Socket socket) throws IOException {
+    public TcpSocket(int id, int generation, TcpSocketContainer container, IvshmemBridge ivshmemBridge, Socket socket) throws IOException {
         this.id = id;
+        this.generation = generation;
         this.socket = socket;
         this.input = socket.getInputStream();
         this.output = socket.getOutputStream();
@@ -59,6 +63,10 @@ public class TcpSocket {
         return id;
     }
 
+    public int getGeneration() {
+        return generation;
+    }
+
     public String getAddress() {
         return String.valueOf(socket.getRemoteSocketAddress());
     }
@@ -156,7 +164,8 @@ public class TcpSocket {
     }
 
     private void read() {
-        byte[] buf = new byte[Constants.SOCKET_BUFFER_SIZE];
+        BufferPool pool = ivshmemBridge.getOutputPool();
+        byte[] buf = new byte[pool == null ? Constants.SOCKET_BUFFER_SIZE : pool.getBufferSize()];
 
         while(running) {
             try {
@@ -181,7 +190,22 @@ public class TcpSocket {
                     continue;
                 }
 
-                ivshmemBridge.sendPacket(PacketUtil.data(id, buf, len));
+                if (pool == null) {
+                    ivshmemBridge.sendData(id, buf, 0, len);
+                    continue;
+                }
+
+                int buffer = pool.allocate();
+                if (buffer != -1) {
+                    pool.write(buffer, buf, 0, len);
+                    ivshmemBridge.sendPacket(PacketUtil.pooledData(id, buffer, len));
+                    continue;
+                }
+
+                //Every buffer is in flight, the payload goes through the ring buffer instead.
+                for (int off = 0; off < len; off += Constants.SOCKET_BUFFER_SIZE) {
+                    ivshmemBridge.sendData(id, buf, off, Math.min(Constants.SOCKET_BUFFER_SIZE, len - off));
+                }
             } catch (Exception e) {
                 closeWithRst();
                 return;
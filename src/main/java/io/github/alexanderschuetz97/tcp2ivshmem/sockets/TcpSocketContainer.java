@@ -19,23 +19,35 @@
  */
 package io.github.alexanderschuetz97.tcp2ivshmem.sockets;
 
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants;
 import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.IvshmemBridge;
 import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketUtil;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class TcpSocketContainer {
     private final IvshmemBridge ivshmemBridge;
     private final int offset;
     private ReentrantLock lock = new ReentrantLock();
-    private TcpSocket[] sockets;
+    private final Condition connectDone = lock.newCondition();
+    //Changed while holding lock. Read without it by the threads that handle packets.
+    private final AtomicReferenceArray<TcpSocket> sockets;
+    //true while the socket of the id is still connecting. Guarded by lock.
+    private final boolean[] connecting;
+    //Counts the connections of each id that were marked as connecting. Guarded by lock.
+    private final int[] generations;
 
     public TcpSocketContainer(IvshmemBridge ivshmemBridge, int offset, int size) {
         this.ivshmemBridge = ivshmemBridge;
         this.offset = offset;
-        sockets = new TcpSocket[size];
+        sockets = new AtomicReferenceArray<>(size);
+        connecting = new boolean[size];
+        generations = new int[size];
     }
 
     public int getOffset() {
@@ -51,7 +63,7 @@ public class TcpSocketContainer {
     }
 
     public int getSize() {
-        return sockets.length;
+        return sockets.length();
     }
 
     public TcpSocket add(int id, Socket tcpSocket) throws IOException {
@@ -65,8 +77,8 @@ public class TcpSocketContainer {
         try {
             socket = getSocket(id);
             remove(socket);
-            newSocket = new TcpSocket(id, this, ivshmemBridge, tcpSocket);
-            sockets[id-offset] = newSocket;
+            newSocket = new TcpSocket(id, generations[id-offset], this, ivshmemBridge, tcpSocket);
+            sockets.set(id-offset, newSocket);
         } finally {
             lock.unlock();
         }
@@ -77,6 +89,99 @@ public class TcpSocketContainer {
         return newSocket;
     }
 
+    /**
+     * Marks the id as connecting and returns the generation of the new connection. Closes the socket that still uses the id.
+     * The connect must be finished with connected or connectFailed or cancelled with rst.
+     */
+    public int connecting(int id) throws IOException {
+        if (!isID(id)) {
+            throw new IOException("Invalid socket id");
+        }
+        TcpSocket socket;
+        int generation;
+        lock.lock();
+        try {
+            socket = getSocket(id);
+            remove(socket);
+            connecting[id-offset] = true;
+            generation = ++generations[id-offset];
+        } finally {
+            lock.unlock();
+        }
+
+        if (socket != null) {
+            socket.close();
+        }
+        return generation;
+    }
+
+    public int getGeneration(int id) {
+        lock.lock();
+        try {
+            return generations[id-offset];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isConnecting(int id) {
+        if (!isID(id)) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return connecting[id-offset];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the socket of an id marked as connecting. Returns null and closes the socket if the id was reset
+     * or used by the next connection while connecting.
+     */
+    public TcpSocket connected(int id, int generation, Socket tcpSocket) throws IOException {
+        lock.lock();
+        try {
+            if (!isConnecting(id) || generations[id-offset] != generation) {
+                tcpSocket.close();
+                return null;
+            }
+
+            connecting[id-offset] = false;
+            connectDone.signalAll();
+            return add(id, tcpSocket);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void connectFailed(int id, int generation) {
+        lock.lock();
+        try {
+            if (generations[id-offset] == generation) {
+                connecting[id-offset] = false;
+                connectDone.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the id is no longer connecting.
+     */
+    public void awaitConnect(int id) throws InterruptedException {
+        lock.lock();
+        try {
+            while (isConnecting(id)) {
+                connectDone.await(Constants.SPIN_CONNECT, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public void data(int id, byte[] data) throws IOException {
         TcpSocket socket = getSocket(id);
 
@@ -95,8 +200,38 @@ public class TcpSocketContainer {
         socket.queueData(data);
     }
 
+    /**
+     * Queues data of a connection the other side opened through the control lane. The data is dropped if the socket
+     * of the generation is gone. No RST is sent as the other side might use the id for the next connection already.
+     */
+    public void data(int id, int generation, byte[] data) throws IOException {
+        TcpSocket socket = getSocket(id);
+
+        if (socket == null || socket.getGeneration() != generation) {
+            return;
+        }
+
+        if (socket.canBeRemoved()) {
+            remove(socket);
+            socket.close();
+            return;
+        }
+
+        socket.queueData(data);
+    }
 
     public void rst(int id) throws IOException {
+        if (isConnecting(id)) {
+            //connected closes the socket once it is connected.
+            lock.lock();
+            try {
+                connecting[id-offset] = false;
+                connectDone.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
         TcpSocket socket = getSocket(id);
 
         if (socket == null) {
@@ -125,13 +260,33 @@ public class TcpSocketContainer {
         remove(socket);
     }
 
+    /**
+     * Handles a FIN of a connection the other side opened through the control lane. Dropped like data if the socket
+     * of the generation is gone.
+     */
+    public void fin(int id, int generation) throws IOException {
+        TcpSocket socket = getSocket(id);
+
+        if (socket == null || socket.getGeneration() != generation) {
+            return;
+        }
+
+        socket.signalFin();
+
+        if (!socket.canBeRemoved()) {
+            return;
+        }
+
+        remove(socket);
+    }
+
     public TcpSocket getSocket(int id) {
         id-=offset;
-        if (id < 0 || id > sockets.length) {
+        if (id < 0 || id >= sockets.length()) {
             return null;
         }
 
-        return sockets[id];
+        return sockets.get(id);
     }
 
     public void remove(TcpSocket socket) {
@@ -139,15 +294,15 @@ public class TcpSocketContainer {
             return;
         }
 
-        if (sockets[socket.getId()-offset] != socket) {
+        if (sockets.get(socket.getId()-offset) != socket) {
             return;
         }
         lock.lock();
         try {
-            if (sockets[socket.getId()-offset] != socket) {
+            if (sockets.get(socket.getId()-offset) != socket) {
                 return;
             }
-            sockets[socket.getId()-offset] = null;
+            sockets.set(socket.getId()-offset, null);
             System.out.println("TCP connection to " + socket.getAddress() + " from " + socket.getLocalPort() + " is closing. Tracking id: " + socket.getId());
         } finally {
             lock.unlock();
@@ -0,0 +1,272 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Ring buffer on the java heap for one reader thread and one writer thread.
+ * The indices only ever grow and the capacity is a power of two so the used space is a subtraction and offsets are a mask.
+ * An empty or full ring spins shortly before the thread waits on the monitor of the ring.
+ */
+public class HeapRing {
+
+    /**
+     * Amount of polls before a blocked reader or writer waits on the monitor.
+     */
+    private static final int SPIN_POLLS = 1024;
+
+    /**
+     * Upper bound of a single wait on the monitor in milliseconds. Only matters if a notification is lost.
+     */
+    private static final long WAIT_MILLIS = 10;
+
+    private final byte[] data;
+
+    private final int mask;
+
+    private volatile long writeIndex;
+
+    private volatile long readIndex;
+
+    private volatile boolean readerWaiting;
+
+    private volatile boolean writerWaiting;
+
+    private volatile boolean closed;
+
+    private final InputStream inputStream = new HeapRingInputStream();
+
+    private final OutputStream outputStream = new HeapRingOutputStream();
+
+    /**
+     * Capacity is rounded down to a power of two.
+     */
+    public HeapRing(int aCapacity) {
+        if (aCapacity < 2) {
+            throw new IllegalArgumentException("Capacity " + aCapacity + " is too small.");
+        }
+
+        data = new byte[Integer.highestOneBit(aCapacity)];
+        mask = data.length - 1;
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Wakes up both sides. The reader still reads everything that was written before.
+     */
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Copies at most aLength bytes out of the ring. Blocks until at least one byte is readable.
+     * Returns -1 if the ring is closed and empty.
+     */
+    public int read(byte[] aBuffer, int aOffset, int aLength) throws IOException {
+        if (aLength == 0) {
+            return 0;
+        }
+
+        long tempRead = readIndex;
+        long tempAvailable = awaitReadable(tempRead);
+        if (tempAvailable == 0) {
+            return -1;
+        }
+
+        int tempLength = (int) Math.min(aLength, tempAvailable);
+        int tempOffset = (int) tempRead & mask;
+        int tempFirst = Math.min(tempLength, data.length - tempOffset);
+        System.arraycopy(data, tempOffset, aBuffer, aOffset, tempFirst);
+        if (tempFirst < tempLength) {
+            System.arraycopy(data, 0, aBuffer, aOffset + tempFirst, tempLength - tempFirst);
+        }
+
+        readIndex = tempRead + tempLength;
+        if (writerWaiting) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        return tempLength;
+    }
+
+    /**
+     * Copies all bytes into the ring. Blocks while the ring is full.
+     */
+    public void write(byte[] aBuffer, int aOffset, int aLength) throws IOException {
+        long tempWrite = writeIndex;
+        while (aLength > 0) {
+            long tempFree = awaitWritable(tempWrite);
+            int tempLength = (int) Math.min(aLength, tempFree);
+            int tempOffset = (int) tempWrite & mask;
+            int tempFirst = Math.min(tempLength, data.length - tempOffset);
+            System.arraycopy(aBuffer, aOffset, data, tempOffset, tempFirst);
+            if (tempFirst < tempLength) {
+                System.arraycopy(aBuffer, aOffset + tempFirst, data, 0, tempLength - tempFirst);
+            }
+
+            tempWrite += tempLength;
+            aOffset += tempLength;
+            aLength -= tempLength;
+            writeIndex = tempWrite;
+            if (readerWaiting) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the readable bytes or 0 if the ring was closed while empty.
+     */
+    private long awaitReadable(long aReadIndex) throws IOException {
+        for (int i = 0; i < SPIN_POLLS; i++) {
+            long tempAvailable = writeIndex - aReadIndex;
+            if (tempAvailable > 0 || closed) {
+                return writeIndex - aReadIndex;
+            }
+        }
+
+        synchronized (this) {
+            readerWaiting = true;
+            try {
+                while (true) {
+                    //readerWaiting is set before the index is checked again so the writer cannot miss it.
+                    long tempAvailable = writeIndex - aReadIndex;
+                    if (tempAvailable > 0 || closed) {
+                        return writeIndex - aReadIndex;
+                    }
+                    wait(WAIT_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                readerWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the free bytes. Fails if the ring was closed.
+     */
+    private long awaitWritable(long aWriteIndex) throws IOException {
+        for (int i = 0; i < SPIN_POLLS; i++) {
+            if (closed) {
+                throw new EOFException("Ring is closed.");
+            }
+            long tempFree = data.length - (aWriteIndex - readIndex);
+            if (tempFree > 0) {
+                return tempFree;
+            }
+        }
+
+        synchronized (this) {
+            writerWaiting = true;
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new EOFException("Ring is closed.");
+                    }
+                    long tempFree = data.length - (aWriteIndex - readIndex);
+                    if (tempFree > 0) {
+                        return tempFree;
+                    }
+                    wait(WAIT_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                writerWaiting = false;
+            }
+        }
+    }
+
+    class HeapRingInputStream extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            if (HeapRing.this.read(single, 0, 1) < 0) {
+                return -1;
+            }
+            return single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return HeapRing.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, writeIndex - readIndex);
+        }
+
+        @Override
+        public void close() {
+            HeapRing.this.close();
+        }
+    }
+
+    class HeapRingOutputStream extends OutputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            HeapRing.this.write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            HeapRing.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            HeapRing.this.close();
+        }
+    }
+}
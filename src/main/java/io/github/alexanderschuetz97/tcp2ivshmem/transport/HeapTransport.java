@@ -0,0 +1,77 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.transport;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketWriter;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.StreamPacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.StreamPacketWriter;
+
+import java.io.IOException;
+
+/**
+ * Transport between two bridges inside of the same process. Each direction is a HeapRing.
+ * Needs neither shared memory nor native code which makes it useful for tests and benchmarks of the bridge itself.
+ */
+public class HeapTransport implements Transport {
+
+    private final HeapRing input;
+
+    private final HeapRing output;
+
+    public HeapTransport(HeapRing aInput, HeapRing aOutput) {
+        input = aInput;
+        output = aOutput;
+    }
+
+    /**
+     * Creates two connected transports. Index 0 is meant for the master and index 1 for the slave.
+     */
+    public static HeapTransport[] createPair(int aCapacity) {
+        HeapRing tempServerToClient = new HeapRing(aCapacity);
+        HeapRing tempClientToServer = new HeapRing(aCapacity);
+        return new HeapTransport[] {new HeapTransport(tempClientToServer, tempServerToClient), new HeapTransport(tempServerToClient, tempClientToServer)};
+    }
+
+    public HeapRing getInput() {
+        return input;
+    }
+
+    public HeapRing getOutput() {
+        return output;
+    }
+
+    @Override
+    public PacketWriter createWriter(int aBatchSize) throws IOException {
+        return new StreamPacketWriter(output.getOutputStream(), aBatchSize);
+    }
+
+    @Override
+    public PacketReader createReader() throws IOException {
+        return new StreamPacketReader(input.getInputStream(), Constants.PACKET_READ_BUFFER_SIZE);
+    }
+
+    @Override
+    public void close() {
+        input.close();
+        output.close();
+    }
+}
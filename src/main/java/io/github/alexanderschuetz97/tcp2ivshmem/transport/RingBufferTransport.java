@@ -0,0 +1,77 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.transport;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBuffer;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketWriter;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.RingBufferPacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.RingBufferPacketWriter;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.StreamPacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.StreamPacketWriter;
+
+import java.io.IOException;
+
+/**
+ * Transport over a pair of connected shared memory ring buffers.
+ * Ring buffers that are big enough are accessed zero copy, smaller ones through their streams.
+ */
+public class RingBufferTransport implements Transport {
+
+    private final RingBuffer input;
+
+    private final RingBuffer output;
+
+    public RingBufferTransport(RingBuffer aInput, RingBuffer aOutput) {
+        input = aInput;
+        output = aOutput;
+    }
+
+    public RingBuffer getInput() {
+        return input;
+    }
+
+    public RingBuffer getOutput() {
+        return output;
+    }
+
+    @Override
+    public PacketWriter createWriter(int aBatchSize) throws IOException {
+        if (output.getCapacity() >= Constants.MIN_ZERO_COPY_RING_CAPACITY) {
+            return new RingBufferPacketWriter(output, aBatchSize);
+        }
+        return new StreamPacketWriter(output.getOutputStream(), aBatchSize);
+    }
+
+    @Override
+    public PacketReader createReader() throws IOException {
+        if (input.getCapacity() >= Constants.MIN_ZERO_COPY_RING_CAPACITY) {
+            return new RingBufferPacketReader(input, Constants.PACKET_READ_BUFFER_SIZE);
+        }
+        return new StreamPacketReader(input.getInputStream(), Constants.PACKET_READ_BUFFER_SIZE);
+    }
+
+    @Override
+    public void close() {
+        input.close();
+        output.close();
+    }
+}
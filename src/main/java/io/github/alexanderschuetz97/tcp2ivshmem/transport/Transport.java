@@ -0,0 +1,47 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.alexanderschuetz97.tcp2ivshmem.transport;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketWriter;
+
+import java.io.IOException;
+
+/**
+ * Carries the packets of a bridge to the other side and back.
+ * The writer thread of the bridge is the only user of the writer and the reader thread the only user of the reader.
+ */
+public interface Transport {
+
+    /**
+     * Creates the writer for the packets sent to the other side. Packets are only sent once the writer is flushed.
+     */
+    PacketWriter createWriter(int aBatchSize) throws IOException;
+
+    /**
+     * Creates the reader for the packets sent by the other side.
+     */
+    PacketReader createReader() throws IOException;
+
+    /**
+     * Closes both directions. Blocked readers and writers fail with an IOException.
+     */
+    void close();
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem;
+
+import io.github.alexanderschuetz97.nativeutils.api.NativeMemory;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.BufferPool;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBuffer;
+import org.junit.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests the buffer pool on heap memory. The sending and the receiving side each use their own BufferPool instance like two processes would.
+ */
+public class BufferPoolTest {
+
+    private static final int BUFFERS = 8;
+
+    private static final long ADDRESS = RingBuffer.PAGE_SIZE;
+
+    private Random rng = new Random(0);
+
+    private NativeMemory memory;
+
+    private BufferPool sender;
+
+    private BufferPool receiver;
+
+    @Before
+    public void before() {
+        memory = heapMemory((int) (ADDRESS + BufferPool.getSize(BUFFERS)));
+        sender = new BufferPool(memory, ADDRESS, BUFFERS);
+        receiver = new BufferPool(memory, ADDRESS, BUFFERS);
+        sender.init();
+    }
+
+    /**
+     * Returns memory backed by a heap ByteBuffer that supports the operations of the buffer pool.
+     */
+    static NativeMemory heapMemory(final int aSize) {
+        final ByteBuffer tempBuffer = ByteBuffer.allocate(aSize).order(ByteOrder.nativeOrder());
+        return (NativeMemory) Proxy.newProxyInstance(BufferPoolTest.class.getClassLoader(), new Class[]{NativeMemory.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                synchronized (tempBuffer) {
+                    Class<?>[] tempTypes = method.getParameterTypes();
+                    switch (method.getName()) {
+                        case "size":
+                            return (long) aSize;
+                        case "readInt":
+                            return tempBuffer.getInt(index(args[0]));
+                        case "readLong":
+                            return tempBuffer.getLong(index(args[0]));
+                        case "getAndSet":
+                            long tempOld = tempBuffer.getLong(index(args[0]));
+                            tempBuffer.putLong(index(args[0]), (Long) args[1]);
+                            return tempOld;
+                        case "write":
+                            if (tempTypes.length == 2 && tempTypes[1] == int.class) {
+                                tempBuffer.putInt(index(args[0]), (Integer) args[1]);
+                                return null;
+                            }
+                            if (tempTypes.length == 2 && tempTypes[1] == long.class) {
+                                tempBuffer.putLong(index(args[0]), (Long) args[1]);
+                                return null;
+                            }
+                            if (tempTypes.length == 4) {
+                                ByteBuffer tempSlice = tempBuffer.duplicate();
+                                tempSlice.position(index(args[0]));
+                                tempSlice.put((byte[]) args[1], (Integer) args[2], (Integer) args[3]);
+                                return null;
+                            }
+                            break;
+                        case "read":
+                            if (tempTypes.length == 4) {
+                                ByteBuffer tempSlice = tempBuffer.duplicate();
+                                tempSlice.position(index(args[0]));
+                                tempSlice.get((byte[]) args[1], (Integer) args[2], (Integer) args[3]);
+                                return null;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                    throw new UnsupportedOperationException(method.toString());
+                }
+            }
+        });
+    }
+
+    private static int index(Object aOffset) {
+        return (int) (long) (Long) aOffset;
+    }
+
+    @Test
+    public void testSize() {
+        Assert.assertEquals(0, BufferPool.getSize(0));
+        for (int tempBuffers : new int[]{1, 8, 1000, 1025}) {
+            long tempSize = BufferPool.getSize(tempBuffers);
+            Assert.assertEquals(0, (tempSize - (long) tempBuffers * Constants.POOL_BUFFER_SIZE) % RingBuffer.PAGE_SIZE);
+            Assert.assertTrue(tempSize - (long) tempBuffers * Constants.POOL_BUFFER_SIZE >= BufferPool.FREE_RING_OFFSET + 4L * tempBuffers);
+        }
+    }
+
+    @Test
+    public void testFits() {
+        long tempMemory = Constants.MEMORY_OVERHEAD_V2 + 4 * BufferPool.getSize(BUFFERS);
+        Assert.assertTrue(BufferPool.fits(0, tempMemory));
+        Assert.assertTrue(BufferPool.fits(BUFFERS, tempMemory));
+        Assert.assertFalse(BufferPool.fits(BUFFERS, tempMemory - 2));
+        Assert.assertFalse(BufferPool.fits(BUFFERS + 1, tempMemory));
+        Assert.assertFalse(BufferPool.fits(-1, tempMemory));
+        Assert.assertFalse(BufferPool.fits(Integer.MAX_VALUE, tempMemory));
+    }
+
+    @Test
+    public void testAllocateAndRelease() {
+        Assert.assertEquals(0, sender.getBuffersInUse());
+        for (int tempRound = 0; tempRound < 5; tempRound++) {
+            byte[] tempWrite = new byte[1 + rng.nextInt(Constants.POOL_BUFFER_SIZE)];
+            rng.nextBytes(tempWrite);
+
+            int tempBuffer = sender.allocate();
+            Assert.assertTrue(tempBuffer >= 0 && tempBuffer < BUFFERS);
+            Assert.assertEquals(1, sender.getBuffersInUse());
+            sender.write(tempBuffer, tempWrite, 0, tempWrite.length);
+
+            byte[] tempRead = new byte[tempWrite.length];
+            receiver.read(tempBuffer, tempRead, 0, tempRead.length);
+            Assert.assertArrayEquals(tempWrite, tempRead);
+            receiver.release(tempBuffer);
+            Assert.assertEquals(0, sender.getBuffersInUse());
+        }
+    }
+
+    @Test
+    public void testExhaustion() {
+        Set<Integer> tempAllocated = new HashSet<>();
+        for (int i = 0; i < BUFFERS; i++) {
+            Assert.assertTrue(tempAllocated.add(sender.allocate()));
+        }
+
+        //Every buffer is in flight, the sender has to send the payload through the ring buffer instead.
+        Assert.assertEquals(BUFFERS, sender.getBuffersInUse());
+        Assert.assertEquals(-1, sender.allocate());
+        Assert.assertEquals(-1, sender.allocate());
+
+        //Buffers are handed out again in the order they were released.
+        receiver.release(5);
+        receiver.release(2);
+        Assert.assertEquals(BUFFERS - 2, sender.getBuffersInUse());
+        Assert.assertEquals(5, sender.allocate());
+        Assert.assertEquals(2, sender.allocate());
+        Assert.assertEquals(-1, sender.allocate());
+
+        for (int tempBuffer : tempAllocated) {
+            receiver.release(tempBuffer);
+        }
+        Assert.assertEquals(0, sender.getBuffersInUse());
+        for (int i = 0; i < BUFFERS; i++) {
+            Assert.assertTrue(sender.allocate() != -1);
+        }
+        Assert.assertEquals(-1, sender.allocate());
+    }
+
+    @Test
+    public void testOutOfRange() {
+        byte[] tempData = new byte[Constants.POOL_BUFFER_SIZE + 1];
+        assertOutOfRange(-1, 1, tempData);
+        assertOutOfRange(BUFFERS, 1, tempData);
+        assertOutOfRange(0, -1, tempData);
+        assertOutOfRange(0, Constants.POOL_BUFFER_SIZE + 1, tempData);
+
+        try {
+            receiver.release(BUFFERS);
+            Assert.fail("Released buffer outside of the pool");
+        } catch (IllegalArgumentException exc) {
+            //Expected.
+        }
+
+        //The other side wrote garbage into the free ring.
+        memory.write(ADDRESS + BufferPool.FREE_RING_OFFSET, BUFFERS + 10);
+        try {
+            sender.allocate();
+            Assert.fail("Allocated invalid buffer");
+        } catch (IllegalStateException exc) {
+            //Expected.
+        }
+    }
+
+    private void assertOutOfRange(int aBuffer, int aLength, byte[] aData) {
+        try {
+            sender.write(aBuffer, aData, 0, aLength);
+            Assert.fail("Wrote buffer " + aBuffer + " length " + aLength);
+        } catch (IllegalArgumentException exc) {
+            //Expected.
+        }
+
+        try {
+            receiver.read(aBuffer, aData, 0, aLength);
+            Assert.fail("Read buffer " + aBuffer + " length " + aLength);
+        } catch (IllegalArgumentException exc) {
+            //Expected.
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.config.Configuration;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants;
+import org.junit.*;
+
+/**
+ * Tests parsing and validating the command line arguments.
+ */
+public class ConfigurationTest {
+
+    private static Configuration master(String... aArgs) {
+        return create(true, aArgs);
+    }
+
+    private static Configuration slave(String... aArgs) {
+        return create(false, aArgs);
+    }
+
+    private static Configuration create(boolean aMaster, String... aArgs) {
+        String[] tempArgs = new String[aArgs.length + 3];
+        tempArgs[0] = aMaster ? "-m" : "-s";
+        tempArgs[1] = "-d";
+        tempArgs[2] = "/dev/shm/ConfigurationTest";
+        System.arraycopy(aArgs, 0, tempArgs, 3, aArgs.length);
+        return Configuration.create(tempArgs);
+    }
+
+    private static void assertInvalid(boolean aMaster, String... aArgs) {
+        try {
+            create(aMaster, aArgs);
+        } catch (IllegalArgumentException exc) {
+            return;
+        }
+        Assert.fail("Accepted invalid arguments");
+    }
+
+    @Test
+    public void testSplit() {
+        Assert.assertEquals(Constants.DEFAULT_SPLIT, master().getSplit());
+        Assert.assertEquals(30, master("-sp", "30").getSplit());
+        Assert.assertEquals(1, master("--split", "1").getSplit());
+        Assert.assertEquals(99, master("-sp", "99").getSplit());
+
+        assertInvalid(true, "-sp", "0");
+        assertInvalid(true, "-sp", "100");
+        assertInvalid(true, "-sp", "-5");
+        assertInvalid(true, "-sp", "half");
+        assertInvalid(true, "-sp");
+        assertInvalid(true, "-sp", "30", "--split", "40");
+        assertInvalid(false, "-sp", "30");
+    }
+
+    @Test
+    public void testAdaptiveSplit() {
+        Assert.assertFalse(master().useAdaptiveSplit());
+        Assert.assertTrue(master("-as").useAdaptiveSplit());
+        Assert.assertTrue(master("--adaptive-split", "-sp", "20").useAdaptiveSplit());
+
+        assertInvalid(true, "-as", "--adaptive-split");
+        assertInvalid(false, "-as");
+    }
+
+    @Test
+    public void testLanes() {
+        Assert.assertEquals(Constants.DEFAULT_LANES, master().getLanes());
+        Assert.assertEquals(4, master("-ln", "4").getLanes());
+        Assert.assertEquals(1, master("--lanes", "1").getLanes());
+        Assert.assertEquals(Constants.MAX_LANES, master("-ln", String.valueOf(Constants.MAX_LANES)).getLanes());
+
+        assertInvalid(true, "-ln", "0");
+        assertInvalid(true, "-ln", String.valueOf(Constants.MAX_LANES + 1));
+        assertInvalid(true, "-ln", "many");
+        assertInvalid(true, "-ln");
+        assertInvalid(true, "-ln", "2", "--lanes", "2");
+        assertInvalid(false, "-ln", "2");
+    }
+}
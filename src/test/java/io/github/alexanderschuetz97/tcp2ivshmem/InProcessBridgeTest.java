@@ -0,0 +1,192 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.InProcessBridge;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.AbstractPacket;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet4Data;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketEnum;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketUtil;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketWriter;
+import io.github.alexanderschuetz97.tcp2ivshmem.transport.HeapTransport;
+import org.junit.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Tests the heap transport and two in process bridges connected by it. Needs neither shared memory nor JNI.
+ */
+public class InProcessBridgeTest {
+
+    private Random rng = new Random(0);
+
+    private ExecutorService ex;
+
+    private InProcessBridge[] bridges;
+
+    private ServerSocket echoServer;
+
+    private ServerSocket forwardServer;
+
+    @Before
+    public void before() {
+        ex = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void after() throws IOException {
+        ex.shutdownNow();
+        if (bridges != null) {
+            bridges[0].close();
+            bridges[1].close();
+        }
+
+        if (echoServer != null) {
+            echoServer.close();
+        }
+
+        if (forwardServer != null) {
+            forwardServer.close();
+        }
+    }
+
+    @Test
+    public void testHeapTransport() throws Throwable {
+        HeapTransport[] tempTransports = HeapTransport.createPair(100);
+        Assert.assertEquals(64, tempTransports[0].getOutput().getCapacity());
+        final PacketWriter tempWriter = tempTransports[0].createWriter(1024);
+        PacketReader tempReader = tempTransports[1].createReader();
+
+        final byte[][] tempWrite = new byte[50][];
+        for (int i = 0; i < tempWrite.length; i++) {
+            tempWrite[i] = new byte[rng.nextInt(200)];
+            rng.nextBytes(tempWrite[i]);
+        }
+
+        //Packets are bigger than the ring so the writer has to wait for the reader.
+        Future<Object> tempFuture = ex.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                for (int i = 0; i < tempWrite.length; i++) {
+                    tempWriter.writePacket(PacketUtil.data(i, tempWrite[i], tempWrite[i].length));
+                    tempWriter.flush();
+                }
+                return null;
+            }
+        });
+
+        for (int i = 0; i < tempWrite.length; i++) {
+            AbstractPacket tempPacket = tempReader.readPacket();
+            Assert.assertEquals(PacketEnum.DATA, tempPacket.getPacketEnum());
+            Assert.assertEquals(i, ((Packet4Data) tempPacket).getId());
+            Assert.assertTrue(Arrays.equals(tempWrite[i], ((Packet4Data) tempPacket).getData()));
+        }
+
+        tempFuture.get(5000, TimeUnit.MILLISECONDS);
+        tempTransports[0].close();
+        try {
+            tempReader.readPacket();
+            Assert.fail("Read from a closed transport");
+        } catch (EOFException exc) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void testForwarding() throws Throwable {
+        bridges = InProcessBridge.createPair(4096, 8, 1024, 0);
+        Assert.assertTrue(bridges[0].isMaster());
+        Assert.assertFalse(bridges[1].isMaster());
+        bridges[0].start();
+        bridges[1].start();
+
+        InetAddress tempLoopback = InetAddress.getLoopbackAddress();
+        echoServer = new ServerSocket(0, 50, tempLoopback);
+        forwardServer = new ServerSocket(0, 50, tempLoopback);
+        final int tempEchoPort = echoServer.getLocalPort();
+
+        //Echo server the slave connects to.
+        ex.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                while (true) {
+                    final Socket tempSocket = echoServer.accept();
+                    ex.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            byte[] tempBuffer = new byte[4096];
+                            InputStream tempIn = tempSocket.getInputStream();
+                            OutputStream tempOut = tempSocket.getOutputStream();
+                            int tempRead;
+                            while ((tempRead = tempIn.read(tempBuffer)) != -1) {
+                                tempOut.write(tempBuffer, 0, tempRead);
+                            }
+                            tempSocket.close();
+                            return null;
+                        }
+                    });
+                }
+            }
+        });
+
+        //Forwards every accepted connection over the master like a -L forwarding would.
+        ex.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                while (true) {
+                    bridges[0].addTcpSocket(forwardServer.accept(), loopbackAddress(), tempEchoPort);
+                }
+            }
+        });
+
+        //More connections than ids so ids get reused.
+        for (int i = 0; i < 12; i++) {
+            byte[] tempWrite = new byte[1 + rng.nextInt(20000)];
+            rng.nextBytes(tempWrite);
+            byte[] tempRead = new byte[tempWrite.length];
+
+            Socket tempClient = new Socket(tempLoopback, forwardServer.getLocalPort());
+            tempClient.setSoTimeout(5000);
+            tempClient.getOutputStream().write(tempWrite);
+            tempClient.shutdownOutput();
+            new DataInputStream(tempClient.getInputStream()).readFully(tempRead);
+            Assert.assertArrayEquals("Connection " + i, tempWrite, tempRead);
+
+            //The echo server closes its side after the fin was forwarded.
+            Assert.assertEquals(-1, tempClient.getInputStream().read());
+            tempClient.close();
+        }
+
+        Assert.assertFalse(bridges[0].isClosed());
+        Assert.assertFalse(bridges[1].isClosed());
+    }
+
+    private static String loopbackAddress() {
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.BufferPool;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBuffer;
+import io.github.alexanderschuetz97.nativeutils.api.NativeMemory;
+import org.junit.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Tests the computation of the shared memory layout in Main. Does not need the native library as only the size
+ * of the memory is used.
+ */
+public class MainTest {
+
+    private static final long SIZE = 16 * 1024 * 1024;
+
+    @Before
+    public void before() {
+        Main.memory = memoryOfSize(SIZE);
+        Main.poolBuffers = 0;
+        Main.lanes = 1;
+        Main.controlLane = false;
+        Main.ringLayoutVersion = RingBuffer.LAYOUT_V2;
+        Main.ringFlags = 0;
+    }
+
+    @After
+    public void after() {
+        Main.memory = null;
+        Main.poolBuffers = 0;
+        Main.lanes = 1;
+        Main.controlLane = false;
+        Main.ringLayoutVersion = RingBuffer.LAYOUT_V1;
+        Main.ringFlags = 0;
+    }
+
+    /**
+     * Returns memory that only knows its size.
+     */
+    static NativeMemory memoryOfSize(final long aSize) {
+        return (NativeMemory) Proxy.newProxyInstance(MainTest.class.getClassLoader(), new Class[]{NativeMemory.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("size".equals(method.getName())) {
+                    return aSize;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @Test
+    public void testRingBufferArea() {
+        Assert.assertEquals(Constants.MEMORY_OVERHEAD_V2, Main.getRingBufferAreaOffset());
+        Assert.assertEquals(SIZE - Constants.MEMORY_OVERHEAD_V2, Main.getRingBufferArea());
+
+        Main.poolBuffers = 4;
+        Assert.assertEquals(SIZE - Constants.MEMORY_OVERHEAD_V2 - 2 * BufferPool.getSize(4), Main.getRingBufferArea());
+        Assert.assertEquals(SIZE - 2 * BufferPool.getSize(4), Main.getBufferPoolOffset(true));
+        Assert.assertEquals(SIZE - BufferPool.getSize(4), Main.getBufferPoolOffset(false));
+
+        Main.controlLane = true;
+        Assert.assertEquals(Constants.MEMORY_OVERHEAD_V2 + 2 * Constants.CONTROL_RING_SIZE, Main.getRingBufferAreaOffset());
+        Assert.assertEquals(SIZE - Constants.MEMORY_OVERHEAD_V2 - 2 * Constants.CONTROL_RING_SIZE - 2 * BufferPool.getSize(4), Main.getRingBufferArea());
+        Assert.assertEquals(Constants.MEMORY_OVERHEAD_V2, Main.getControlRingOffset(true));
+        Assert.assertEquals(Constants.MEMORY_OVERHEAD_V2 + Constants.CONTROL_RING_SIZE, Main.getControlRingOffset(false));
+    }
+
+    @Test
+    public void testCheckRingBufferSplit() {
+        long tempArea = Main.getRingBufferArea();
+        long tempHalf = tempArea / 2 - (tempArea / 2) % RingBuffer.PAGE_SIZE;
+        Assert.assertNull(Main.checkRingBufferSplit(tempHalf, tempHalf));
+        Assert.assertNull(Main.checkRingBufferSplit(RingBuffer.V2_OVERHEAD + RingBuffer.PAGE_SIZE, tempArea - RingBuffer.V2_OVERHEAD - RingBuffer.PAGE_SIZE));
+
+        //Too big, not page aligned, too small.
+        Assert.assertNotNull(Main.checkRingBufferSplit(tempHalf, tempHalf + 2 * RingBuffer.PAGE_SIZE));
+        Assert.assertNotNull(Main.checkRingBufferSplit(tempHalf - 1, tempHalf));
+        Assert.assertNotNull(Main.checkRingBufferSplit(RingBuffer.V2_OVERHEAD, tempHalf));
+        Assert.assertNotNull(Main.checkRingBufferSplit(tempHalf, 0));
+
+        //Sequence counters need a power of two behind the control bytes.
+        Main.ringFlags = RingBuffer.FLAG_SEQUENCE_COUNTERS;
+        Assert.assertNotNull(Main.checkRingBufferSplit(RingBuffer.V2_OVERHEAD + 3 * RingBuffer.PAGE_SIZE, RingBuffer.V2_OVERHEAD + RingBuffer.PAGE_SIZE));
+        Assert.assertNull(Main.checkRingBufferSplit(RingBuffer.V2_OVERHEAD + 4 * RingBuffer.PAGE_SIZE, RingBuffer.V2_OVERHEAD + RingBuffer.PAGE_SIZE));
+
+        //Framed records need room for the biggest packet.
+        Main.ringFlags = RingBuffer.FLAG_SEQUENCE_COUNTERS | RingBuffer.FLAG_FRAMED;
+        Assert.assertNotNull(Main.checkRingBufferSplit(RingBuffer.V2_OVERHEAD + 4 * RingBuffer.PAGE_SIZE, RingBuffer.V2_OVERHEAD + Constants.MIN_ZERO_COPY_RING_CAPACITY));
+        Assert.assertNull(Main.checkRingBufferSplit(RingBuffer.V2_OVERHEAD + Constants.MIN_ZERO_COPY_RING_CAPACITY, RingBuffer.V2_OVERHEAD + Constants.MIN_ZERO_COPY_RING_CAPACITY));
+
+        Main.ringLayoutVersion = RingBuffer.LAYOUT_V1;
+        Main.ringFlags = 0;
+        Assert.assertNotNull(Main.checkRingBufferSplit(tempHalf, tempHalf));
+    }
+
+    @Test
+    public void testApplyRingBufferSplit() {
+        long tempServerToClient = RingBuffer.V2_OVERHEAD + 16 * RingBuffer.PAGE_SIZE;
+        long tempClientToServer = RingBuffer.V2_OVERHEAD + 64 * RingBuffer.PAGE_SIZE;
+        Main.applyRingBufferSplit(tempServerToClient, tempClientToServer);
+        Assert.assertEquals(tempServerToClient, Main.serverToClientSize);
+        Assert.assertEquals(tempClientToServer, Main.clientToServerSize);
+        Assert.assertEquals(Constants.MEMORY_OVERHEAD_V2, Main.serverToClientOffset);
+        Assert.assertEquals(Constants.MEMORY_OVERHEAD_V2 + tempServerToClient, Main.clientToServerOffset);
+
+        //The control lane goes in front of the ring buffers.
+        Main.controlLane = true;
+        Main.applyRingBufferSplit(tempClientToServer, tempServerToClient);
+        Assert.assertEquals(Constants.MEMORY_OVERHEAD_V2 + 2 * Constants.CONTROL_RING_SIZE, Main.serverToClientOffset);
+        Assert.assertEquals(Main.serverToClientOffset + tempClientToServer, Main.clientToServerOffset);
+        Assert.assertTrue(Main.clientToServerOffset + Main.clientToServerSize <= SIZE);
+    }
+
+    @Test
+    public void testSplitForShare() {
+        long tempArea = Main.getRingBufferArea();
+        for (int tempPercent : new int[]{1, 10, 33, 50, 90, 99}) {
+            long tempServerToClient = Main.getServerToClientSizeForShare(tempPercent);
+            long tempClientToServer = Main.getRemainingRingBufferSize(tempServerToClient);
+            Assert.assertEquals(0, tempServerToClient % RingBuffer.PAGE_SIZE);
+            Assert.assertTrue(tempServerToClient <= tempArea / 100 * tempPercent);
+            Assert.assertTrue(tempArea / 100 * tempPercent - tempServerToClient < RingBuffer.PAGE_SIZE);
+            Assert.assertTrue(tempArea - tempServerToClient - tempClientToServer < RingBuffer.PAGE_SIZE);
+            Assert.assertNull(tempPercent + "%", Main.checkRingBufferSplit(tempServerToClient, tempClientToServer));
+        }
+
+        //Both data areas are powers of two with sequence counters.
+        Main.ringFlags = RingBuffer.FLAG_SEQUENCE_COUNTERS;
+        for (int tempPercent : new int[]{10, 33, 50, 70, 90}) {
+            long tempServerToClient = Main.getServerToClientSizeForShare(tempPercent);
+            long tempClientToServer = Main.getRemainingRingBufferSize(tempServerToClient);
+            Assert.assertTrue(tempServerToClient <= tempArea / 100 * tempPercent);
+            Assert.assertEquals(1, Long.bitCount(tempServerToClient - RingBuffer.V2_OVERHEAD));
+            Assert.assertEquals(1, Long.bitCount(tempClientToServer - RingBuffer.V2_OVERHEAD));
+            Assert.assertNull(tempPercent + "%", Main.checkRingBufferSplit(tempServerToClient, tempClientToServer));
+        }
+
+        Main.memory = memoryOfSize(Constants.MEMORY_OVERHEAD_V2 + RingBuffer.V2_OVERHEAD);
+        Assert.assertEquals(0, Main.getServerToClientSizeForShare(50));
+        Assert.assertEquals(0, Main.getRemainingRingBufferSize(0));
+    }
+
+    @Test
+    public void testNextServerToClientSize() {
+        long tempStep = Main.getRingBufferArea() / 8;
+        tempStep -= tempStep % RingBuffer.PAGE_SIZE;
+        long tempSize = Main.getServerToClientSizeForShare(50);
+        Assert.assertEquals(tempSize + tempStep, Main.getNextServerToClientSize(tempSize, true));
+        Assert.assertEquals(tempSize - tempStep, Main.getNextServerToClientSize(tempSize, false));
+        Assert.assertNull(Main.checkRingBufferSplit(tempSize + tempStep, Main.getRemainingRingBufferSize(tempSize + tempStep)));
+
+        //Growing until the other ring buffer gets too small has to end.
+        int tempSteps = 0;
+        while (Main.checkRingBufferSplit(tempSize, Main.getRemainingRingBufferSize(tempSize)) == null) {
+            tempSize = Main.getNextServerToClientSize(tempSize, true);
+            tempSteps++;
+        }
+        Assert.assertTrue(tempSteps <= 5);
+
+        Main.ringFlags = RingBuffer.FLAG_SEQUENCE_COUNTERS;
+        tempSize = RingBuffer.V2_OVERHEAD + 1024 * 1024;
+        Assert.assertEquals(RingBuffer.V2_OVERHEAD + 2 * 1024 * 1024, Main.getNextServerToClientSize(tempSize, true));
+        Assert.assertEquals(RingBuffer.V2_OVERHEAD + 512 * 1024, Main.getNextServerToClientSize(tempSize, false));
+    }
+
+    @Test
+    public void testLaneLayout() {
+        for (int tempLanes : new int[]{1, 2, 3, 4, 16}) {
+            for (boolean tempControlLane : new boolean[]{false, true}) {
+                Main.lanes = tempLanes;
+                Main.controlLane = tempControlLane;
+                long tempArea = Main.getRingBufferArea();
+                long tempAreaEnd = Main.getRingBufferAreaOffset() + tempArea;
+
+                Main.computeRingBufferLayout(RingBuffer.LAYOUT_V2, 0);
+                long tempSize = Main.serverToClientSize;
+                Assert.assertEquals(tempSize, Main.clientToServerSize);
+                Assert.assertEquals(0, tempSize % RingBuffer.PAGE_SIZE);
+                //Only less than a page per ring buffer remains unused.
+                Assert.assertTrue(tempArea - 2 * tempLanes * tempSize < 2 * tempLanes * RingBuffer.PAGE_SIZE);
+                assertLanes(tempLanes, tempSize, tempAreaEnd);
+
+                Main.computeRingBufferLayout(RingBuffer.LAYOUT_V2, RingBuffer.FLAG_SEQUENCE_COUNTERS);
+                tempSize = Main.serverToClientSize;
+                Assert.assertEquals(1, Long.bitCount(tempSize - RingBuffer.V2_OVERHEAD));
+                //The next power of two would not fit.
+                Assert.assertTrue(2 * tempLanes * ((tempSize - RingBuffer.V2_OVERHEAD) * 2 + RingBuffer.V2_OVERHEAD) > tempArea);
+                assertLanes(tempLanes, tempSize, tempAreaEnd);
+            }
+        }
+    }
+
+    /**
+     * Checks that the ring buffers of all lanes are placed one after the other without overlapping and end inside the area.
+     */
+    private static void assertLanes(int aLanes, long aSize, long aAreaEnd) {
+        Assert.assertEquals(Main.getRingBufferAreaOffset(), Main.getLaneOffset(0, true));
+        long tempNext = Main.getRingBufferAreaOffset();
+        for (int i = 0; i < aLanes; i++) {
+            Assert.assertEquals(tempNext, Main.getLaneOffset(i, true));
+            Assert.assertEquals(tempNext + aSize, Main.getLaneOffset(i, false));
+            Assert.assertEquals(0, Main.getLaneOffset(i, true) % RingBuffer.PAGE_SIZE);
+            tempNext += 2 * aSize;
+        }
+        Assert.assertTrue(tempNext <= aAreaEnd);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.AbstractPacket;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet4Data;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet7Relayout;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketEnum;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketUtil;
+import org.junit.*;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Tests the encoding of the packets without shared memory.
+ */
+public class PacketTest {
+
+    private static byte[] encode(AbstractPacket aPacket) throws IOException {
+        ByteArrayOutputStream tempOut = new ByteArrayOutputStream();
+        PacketUtil.writePacket(aPacket, new DataOutputStream(tempOut));
+        return tempOut.toByteArray();
+    }
+
+    private static AbstractPacket decode(byte[] aEncoded) throws IOException {
+        return PacketUtil.readPacket(new DataInputStream(new ByteArrayInputStream(aEncoded)));
+    }
+
+    @Test
+    public void testRelayoutRoundTrip() throws Throwable {
+        byte[] tempEncoded = encode(PacketUtil.relayout(7, 0x123456789L, 4096 * 3));
+        Assert.assertEquals(21, tempEncoded.length);
+
+        AbstractPacket tempPacket = decode(tempEncoded);
+        Assert.assertEquals(PacketEnum.RELAYOUT, tempPacket.getPacketEnum());
+        Packet7Relayout tempRelayout = (Packet7Relayout) tempPacket;
+        Assert.assertEquals(7, tempRelayout.getGeneration());
+        Assert.assertEquals(0x123456789L, tempRelayout.getServerToClientSize());
+        Assert.assertEquals(4096 * 3, tempRelayout.getClientToServerSize());
+    }
+
+    @Test
+    public void testPacketLength() throws Throwable {
+        AbstractPacket[] tempPackets = new AbstractPacket[] {
+                PacketUtil.connect(1, "localhost", 80),
+                PacketUtil.connect(2, null, 443),
+                PacketUtil.fin(3),
+                PacketUtil.rst(4),
+                PacketUtil.data(5, new byte[1000], 1000),
+                PacketUtil.data(6, new byte[0], 0),
+                PacketUtil.server("127.0.0.1", 8080, "example.org", 80),
+                PacketUtil.server(null, 8080, null, 80),
+                PacketUtil.serverResult(8, true),
+                PacketUtil.relayout(1, 4096 * 2, 4096 * 4),
+                PacketUtil.pooledData(9, 3, 65536)
+        };
+
+        for (AbstractPacket tempPacket : tempPackets) {
+            byte[] tempEncoded = encode(tempPacket);
+            //Followed by the next packet.
+            byte[] tempBuf = Arrays.copyOf(tempEncoded, tempEncoded.length + 16);
+            Assert.assertEquals(tempPacket.getPacketEnum().toString(), tempEncoded.length, PacketUtil.getPacketLength(tempBuf, 0, tempBuf.length));
+            Assert.assertEquals(tempPacket.getPacketEnum().toString(), tempEncoded.length, PacketUtil.getPacketLength(tempEncoded, 0, tempEncoded.length));
+            for (int i = 0; i < tempEncoded.length; i++) {
+                Assert.assertEquals(tempPacket.getPacketEnum() + " with " + i + " bytes", -1, PacketUtil.getPacketLength(tempEncoded, 0, i));
+            }
+
+            //Same packet at an offset.
+            byte[] tempShifted = new byte[tempEncoded.length + 5];
+            System.arraycopy(tempEncoded, 0, tempShifted, 5, tempEncoded.length);
+            Assert.assertEquals(tempEncoded.length, PacketUtil.getPacketLength(tempShifted, 5, tempEncoded.length));
+        }
+
+        try {
+            PacketUtil.getPacketLength(new byte[]{(byte) 0xff}, 0, 1);
+            Assert.fail("Illegal packet id accepted");
+        } catch (IOException exc) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void testDataHeader() throws Throwable {
+        byte[] tempPayload = new byte[300];
+        for (int tempId : new int[]{0, 5, 0x12345678, -1}) {
+            byte[] tempEncoded = encode(PacketUtil.data(tempId, tempPayload, tempPayload.length));
+            byte[] tempHeader = new byte[Packet4Data.HEADER_LENGTH + 2];
+            Packet4Data.writeHeader(tempHeader, 2, tempId, tempPayload.length);
+            Assert.assertArrayEquals(Arrays.copyOf(tempEncoded, Packet4Data.HEADER_LENGTH), Arrays.copyOfRange(tempHeader, 2, tempHeader.length));
+        }
+
+        try {
+            Packet4Data.writeHeader(new byte[Packet4Data.HEADER_LENGTH], 0, 1, 0x10000);
+            Assert.fail("Wrote header for a payload that does not fit the length field");
+        } catch (IllegalArgumentException exc) {
+            //Expected.
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.Constants;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBuffer;
+import io.github.alexanderschuetz97.ivshmem4j.api.Ivshmem;
+import io.github.alexanderschuetz97.ivshmem4j.api.IvshmemMemory;
+import io.github.alexanderschuetz97.nativeutils.impl.NativeLibraryLoaderHelper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.*;
+
+/**
+ * Compares the throughput of the ring buffer layout versions with one producer and one consumer thread.
+ * The ring buffers are placed at the same addresses Main would use for the respective layout version.
+ * Requires linux with /dev/shm. Run the main method from the test classpath.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RingBufferLayoutBenchmark {
+
+    private static final int MEMORY_SIZE = 1024 * 1024;
+
+    private static final int RING_SIZE = 64 * 1024;
+
+    @Param({"1", "2"})
+    public int layout;
+
+    @Param({"20", "1024"})
+    public int packetSize;
+
+    private File shmemfile;
+
+    private IvshmemMemory shmemoryInput;
+
+    private IvshmemMemory shmemoryOutput;
+
+    private RingBuffer bufferInput;
+
+    private RingBuffer bufferOutput;
+
+    private InputStream inputStream;
+
+    private OutputStream outputStream;
+
+    private byte[] writeBuffer;
+
+    private byte[] readBuffer;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RingBufferLayoutBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        NativeLibraryLoaderHelper.loadNativeLibraries();
+        shmemfile = new File("/dev/shm/" + getClass().getSimpleName() + System.nanoTime());
+        shmemoryInput = Ivshmem.plain(shmemfile.getAbsolutePath(), MEMORY_SIZE);
+        shmemoryOutput = Ivshmem.plain(shmemfile.getAbsolutePath(), MEMORY_SIZE);
+        shmemfile.deleteOnExit();
+
+        long tempAddress = layout == RingBuffer.LAYOUT_V1 ? Constants.MEMORY_OVERHEAD : Constants.MEMORY_OVERHEAD_V2;
+        bufferOutput = new RingBuffer(shmemoryOutput, tempAddress, 1, 1, layout);
+        bufferOutput.cleanMemoryArea();
+        bufferInput = new RingBuffer(shmemoryInput, tempAddress, 1);
+
+        ExecutorService tempEx = Executors.newSingleThreadExecutor();
+        try {
+            Future<OutputStream> tempFuture = tempEx.submit(new Callable<OutputStream>() {
+                @Override
+                public OutputStream call() throws Exception {
+                    return bufferOutput.connectOutputStream(RING_SIZE + bufferOutput.getOverhead(), 5000, 1, TimeUnit.MILLISECONDS);
+                }
+            });
+
+            while (!bufferInput.canConnectInputStream()) {
+                Thread.sleep(1);
+            }
+
+            inputStream = bufferInput.connectInputStream(5000, 1, TimeUnit.MILLISECONDS);
+            outputStream = tempFuture.get(5000, TimeUnit.MILLISECONDS);
+        } finally {
+            tempEx.shutdownNow();
+        }
+
+        //The timeout allows the remaining thread to return once the other thread stops at the end of an iteration.
+        bufferInput.setTimeout(100);
+        bufferOutput.setTimeout(100);
+        writeBuffer = new byte[packetSize];
+        readBuffer = new byte[RING_SIZE];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bufferInput.close();
+        bufferOutput.close();
+        shmemoryInput.close();
+        shmemoryOutput.close();
+        shmemfile.delete();
+    }
+
+    @Benchmark
+    @Group("transfer")
+    @GroupThreads(1)
+    public void write() throws IOException {
+        try {
+            outputStream.write(writeBuffer);
+        } catch (RingBuffer.RingBufferTimeoutException exc) {
+            //Consumer has stopped.
+        }
+    }
+
+    @Benchmark
+    @Group("transfer")
+    @GroupThreads(1)
+    public int read() throws IOException {
+        try {
+            return inputStream.read(readBuffer, 0, readBuffer.length);
+        } catch (RingBuffer.RingBufferTimeoutException exc) {
+            //Producer has stopped.
+            return 0;
+        }
+    }
+}
@@ -20,7 +20,19 @@
 
 package io.github.alexanderschuetz97.tcp2ivshmem;
 
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.AdaptiveSpin;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.MirroredMapping;
 import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBuffer;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.IvshmemStat;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.RingBufferStatistics;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.UnsafeMemory;
+import io.github.alexanderschuetz97.tcp2ivshmem.ivshmem.WaitStrategy;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.AbstractPacket;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet4Data;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketEnum;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketReader;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketUtil;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketWriter;
 import io.github.alexanderschuetz97.ivshmem4j.api.Ivshmem;
 import io.github.alexanderschuetz97.ivshmem4j.api.IvshmemMemory;
 import io.github.alexanderschuetz97.nativeutils.api.NativeMemory;
@@ -28,7 +40,10 @@ import io.github.alexanderschuetz97.nativeutils.impl.NativeLibraryLoaderHelper;
 import org.junit.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -74,8 +89,8 @@ public class RingBufferTest {
         if (shmemfile.exists()) {
             shmemfile.delete();
         }
-        shmemoryInput = Ivshmem.plain(shmemfile.getAbsolutePath(), 4096);
-        shmemoryOutput = Ivshmem.plain(shmemfile.getAbsolutePath(), 4096);
+        shmemoryInput = Ivshmem.plain(shmemfile.getAbsolutePath(), 16384);
+        shmemoryOutput = Ivshmem.plain(shmemfile.getAbsolutePath(), 16384);
         memoryInput = shmemoryInput.getMemory();
         memoryOutput = shmemoryOutput.getMemory();
 
@@ -113,12 +128,15 @@ public class RingBufferTest {
         Assert.assertFalse(bufferInput.canConnectInputStream());
         Assert.assertTrue(bufferOutput.canConnectOutputStream());
 
+        connect(4096);
+    }
 
+    private void connect(final long aBufferSize) throws Throwable {
         Future<OutputStream> tempFutur = ex.submit(new Callable<OutputStream>() {
 
             @Override
             public OutputStream call() throws Exception {
-                return bufferOutput.connectOutputStream(4096, 5000, 64, TimeUnit.MILLISECONDS);
+                return bufferOutput.connectOutputStream(aBufferSize, 5000, 64, TimeUnit.MILLISECONDS);
             }
         });
 
@@ -173,6 +191,822 @@ public class RingBufferTest {
     }
 
 
+    @Test
+    public void testReadAcrossWrap() throws Throwable {
+        connectBuffers();
+
+        int tempSize = (int) bufferOutput.getBufferSize();
+        byte[] tempFill = new byte[tempSize - 56];
+        dout.write(tempFill);
+        din.readFully(new byte[tempFill.length]);
+
+        byte[] tempWrite = new byte[200];
+        rng.nextBytes(tempWrite);
+        dout.write(tempWrite);
+        Assert.assertEquals(200, bufferInput.getAvailableBytes());
+
+        byte[] tempRead = new byte[400];
+        Assert.assertEquals(200, inputStream.read(tempRead, 0, tempRead.length));
+        Assert.assertTrue(Arrays.equals(tempWrite, Arrays.copyOf(tempRead, 200)));
+        Assert.assertEquals(0, bufferInput.getAvailableBytes());
+        Assert.assertEquals(bufferOutput.getBufferSize() - 1, bufferOutput.getFreeBytes());
+    }
+
+
+    @Test
+    public void testLayoutV2() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 4096);
+
+        Assert.assertEquals(RingBuffer.LAYOUT_V2, bufferInput.getLayoutVersion());
+        Assert.assertEquals(4096, bufferInput.getBufferSize());
+        Assert.assertEquals(4096, bufferOutput.getBufferSize());
+
+        byte[] tempWrite = new byte[100];
+        rng.nextBytes(tempWrite);
+        dout.write(tempWrite);
+
+        Assert.assertEquals(100, memoryInput.readLong(RingBuffer.V2_WRITE_INDEX_OFFSET));
+        Assert.assertEquals(0, memoryInput.readLong(RingBuffer.V2_READ_INDEX_OFFSET));
+        Assert.assertEquals(tempWrite[0], memoryInput.read(RingBuffer.V2_OVERHEAD));
+
+        byte[] tempRead = new byte[100];
+        din.readFully(tempRead);
+        Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+        Assert.assertEquals(100, memoryInput.readLong(RingBuffer.V2_READ_INDEX_OFFSET));
+    }
+
+    @Test
+    public void testMirroredMapping() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 4096);
+
+        NativeMemory tempOutputMirror = MirroredMapping.map(shmemfile.getAbsolutePath(), bufferOutput.getDataOffset(), 4096);
+        NativeMemory tempInputMirror = MirroredMapping.map(shmemfile.getAbsolutePath(), bufferInput.getDataOffset(), 4096);
+        Assume.assumeNotNull(tempOutputMirror, tempInputMirror);
+        bufferOutput.setMirror(tempOutputMirror);
+        bufferInput.setMirror(tempInputMirror);
+
+        byte[] tempFill = new byte[4000];
+        dout.write(tempFill);
+        din.readFully(tempFill);
+
+        byte[] tempWrite = new byte[200];
+        byte[] tempRead = new byte[200];
+        rng.nextBytes(tempWrite);
+        dout.write(tempWrite);
+        //The end of the write is in the first mapping at the start of the data.
+        Assert.assertEquals(tempWrite[96], memoryInput.read(RingBuffer.V2_OVERHEAD));
+        Assert.assertEquals(tempWrite[199], memoryInput.read(RingBuffer.V2_OVERHEAD + 103));
+        din.readFully(tempRead);
+        Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+    }
+
+    @Test
+    public void testUnverifiedIndices() throws Throwable {
+        bufferInput.setVerifyIndices(false);
+        bufferOutput.setVerifyIndices(false);
+        connect(RingBuffer.OVERHEAD + 1000);
+
+        byte[] tempWrite = new byte[700];
+        byte[] tempRead = new byte[700];
+        for (int i = 0; i < 10; i++) {
+            rng.nextBytes(tempWrite);
+            dout.write(tempWrite);
+            Assert.assertEquals(700, bufferInput.getAvailableBytes());
+            din.readFully(tempRead);
+            Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+            Assert.assertEquals(999, bufferOutput.getFreeBytes());
+        }
+    }
+
+    @Test
+    public void testUnsafeMemory() throws Throwable {
+        Assume.assumeTrue(UnsafeMemory.isAvailable());
+        bufferInput.close();
+        bufferOutput.close();
+        bufferInput = new RingBuffer(shmemoryInput, new UnsafeMemory(memoryInput), 0, 64, 64, RingBuffer.LAYOUT_V1);
+        bufferOutput = new RingBuffer(shmemoryOutput, new UnsafeMemory(memoryOutput), 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.setFlags(RingBuffer.FLAG_SEQUENCE_COUNTERS);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 1024);
+
+        byte[] tempWrite = new byte[700];
+        byte[] tempRead = new byte[700];
+        for (int i = 0; i < 10; i++) {
+            rng.nextBytes(tempWrite);
+            dout.write(tempWrite);
+            Assert.assertEquals(700, bufferInput.getAvailableBytes());
+            din.readFully(tempRead);
+            Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+        }
+
+        bufferOutput.flushStatistics();
+        Assert.assertEquals(7000, bufferOutput.getStatistics().getWriterCounter(RingBufferStatistics.Counter.BYTES));
+        Assert.assertEquals(7000, memoryInput.readLong(RingBuffer.V2_WRITE_INDEX_OFFSET));
+    }
+
+    @Test
+    public void testUnsafeMemoryCloseWhileSpinning() throws Throwable {
+        Assume.assumeTrue(UnsafeMemory.isAvailable());
+        final UnsafeMemory tempMemory = new UnsafeMemory(memoryInput);
+        final CountDownLatch tempSpinning = new CountDownLatch(1);
+
+        //Spins on an index like the readers and the watchdog do while the shutdown hook closes the memory.
+        Future<Long> tempSpin = ex.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                long tempReads = 0;
+                tempSpinning.countDown();
+                try {
+                    while (true) {
+                        tempMemory.readLong(RingBuffer.V2_WRITE_INDEX_OFFSET);
+                        tempMemory.compareAndSet(0, 0L, 0L);
+                        tempReads++;
+                    }
+                } catch (IllegalStateException exc) {
+                    return tempReads;
+                }
+            }
+        });
+
+        tempSpinning.await();
+        Thread.sleep(50);
+        tempMemory.close();
+        Assert.assertTrue(tempSpin.get(5000, TimeUnit.MILLISECONDS) > 0);
+        Assert.assertFalse(tempMemory.isValid());
+    }
+
+    @Test
+    public void testUnsafeMemoryClose() throws Throwable {
+        Assume.assumeTrue(UnsafeMemory.isAvailable());
+        final UnsafeMemory tempMemory = new UnsafeMemory(memoryInput);
+        tempMemory.write(0, 1234L);
+        Assert.assertEquals(1234L, tempMemory.readLong(0));
+
+        //A copy that holds the read lock delays the close.
+        tempMemory.readLock().lock();
+        Future<Object> tempClose = ex.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                tempMemory.close();
+                return null;
+            }
+        });
+        Thread.sleep(100);
+        Assert.assertFalse(tempClose.isDone());
+        Assert.assertTrue(tempMemory.isValid());
+        tempMemory.readLock().unlock();
+        tempClose.get(5000, TimeUnit.MILLISECONDS);
+
+        Assert.assertFalse(tempMemory.isValid());
+        tempMemory.close();
+        try {
+            tempMemory.readLong(0);
+            Assert.fail("Read closed memory");
+        } catch (IllegalStateException exc) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void testSpaceVectorFlag() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.setFlags(RingBuffer.FLAG_SPACE_VECTOR);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 1000);
+        Assert.assertEquals(RingBuffer.FLAG_SPACE_VECTOR, bufferInput.getFlags());
+        Assert.assertFalse(bufferInput.usesInterrupts());
+
+        try {
+            new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V1).setFlags(RingBuffer.FLAG_SPACE_VECTOR);
+            Assert.fail("Flags accepted for layout version 1");
+        } catch (IllegalArgumentException exc) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void testReleasedIndex() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.setFlags(RingBuffer.FLAG_SEQUENCE_COUNTERS);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 1024);
+        Assert.assertTrue(bufferInput.isReleased(bufferInput.getPublishedIndex()));
+
+        for (int i = 0; i < 10; i++) {
+            dout.write(new byte[300]);
+            long tempPublished = bufferInput.getPublishedIndex();
+            Assert.assertFalse(bufferInput.isReleased(tempPublished));
+            //Bytes written after the index was taken do not matter.
+            dout.write(new byte[300]);
+            Assert.assertEquals(600, bufferInput.peek(600).getLength());
+            //Peeked bytes are still unreleased.
+            Assert.assertFalse(bufferInput.isReleased(tempPublished));
+            bufferInput.release(299);
+            Assert.assertFalse(bufferInput.isReleased(tempPublished));
+            bufferInput.peek(301);
+            bufferInput.release(1);
+            Assert.assertTrue(bufferInput.isReleased(tempPublished));
+            bufferInput.peek(300);
+            bufferInput.release(300);
+            Assert.assertTrue(bufferInput.isReleased(tempPublished));
+        }
+
+        try {
+            bufferOutput.getPublishedIndex();
+            Assert.fail("Output stream answered for the input side");
+        } catch (IllegalStateException exc) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void testMultiProducer() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.setFlags(RingBuffer.FLAG_MULTI_PRODUCER | RingBuffer.FLAG_FRAMED | RingBuffer.FLAG_SEQUENCE_COUNTERS);
+        bufferOutput.cleanMemoryArea();
+        bufferInput.setWaitStrategy(WaitStrategy.SPIN_YIELD, WaitStrategy.DEFAULT_MAX_PARK_NANOS);
+        bufferOutput.setWaitStrategy(WaitStrategy.SPIN_YIELD, WaitStrategy.DEFAULT_MAX_PARK_NANOS);
+        connect(RingBuffer.V2_OVERHEAD + 1024);
+
+        try {
+            bufferOutput.claimRecord(10);
+            Assert.fail("Claimed a record of a multi producer ring buffer");
+        } catch (IllegalStateException exc) {
+            //Expected.
+        }
+
+        final int tempProducers = 4;
+        final int tempRecords = 500;
+        for (int i = 0; i < tempProducers; i++) {
+            final int tempProducer = i;
+            ex.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    byte[] tempHeader = new byte[8];
+                    byte[] tempData = new byte[100];
+                    for (int j = 0; j < tempRecords; j++) {
+                        ByteBuffer.wrap(tempHeader).putInt(tempProducer).putInt(j);
+                        Arrays.fill(tempData, (byte) j);
+                        bufferOutput.writeRecord(tempHeader, 0, tempHeader.length, tempData, 0, j % tempData.length);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        int[] tempNext = new int[tempProducers];
+        byte[] tempRead = new byte[108];
+        for (int i = 0; i < tempProducers * tempRecords; i++) {
+            RingBuffer.Region tempRegion = bufferInput.peekRecord();
+            tempRegion.read(0, tempRead, 0, tempRegion.getLength());
+            ByteBuffer tempBuffer = ByteBuffer.wrap(tempRead);
+            int tempProducer = tempBuffer.getInt();
+            int tempRecord = tempBuffer.getInt();
+            Assert.assertEquals(tempNext[tempProducer]++, tempRecord);
+            Assert.assertEquals(8 + tempRecord % 100, tempRegion.getLength());
+            for (int j = 8; j < tempRegion.getLength(); j++) {
+                Assert.assertEquals((byte) tempRecord, tempRead[j]);
+            }
+            bufferInput.releaseRecord();
+        }
+
+        Assert.assertEquals(0, bufferInput.getAvailableBytes());
+
+        //The counters of all producers add up to what the reader saw.
+        bufferOutput.flushStatistics();
+        bufferInput.flushStatistics();
+        RingBufferStatistics tempStats = bufferInput.getStatistics();
+        Assert.assertTrue(tempStats.getReaderCounter(RingBufferStatistics.Counter.BYTES) > 0);
+        Assert.assertEquals(tempStats.getReaderCounter(RingBufferStatistics.Counter.BYTES), tempStats.getWriterCounter(RingBufferStatistics.Counter.BYTES));
+        Assert.assertEquals(tempStats.getReaderCounter(RingBufferStatistics.Counter.WRAPS), tempStats.getWriterCounter(RingBufferStatistics.Counter.WRAPS));
+    }
+
+    /**
+     * Creates a multi producer output RingBuffer whose writers fail while copying if aFail is set.
+     * If aDead is set as well they also do not commit the record, like a thread that died between reserving and committing.
+     */
+    private void connectFailingProducer(final AtomicBoolean aFail, final AtomicBoolean aDead) throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2) {
+            @Override
+            protected void writeData(long aOffset, byte[] b, int off, int len) {
+                if (aFail.get()) {
+                    throw new IllegalStateException("Writer failed");
+                }
+                super.writeData(aOffset, b, off, len);
+            }
+
+            @Override
+            protected void commitHeader(long aOffset, int aHeader) {
+                if (!aDead.get()) {
+                    super.commitHeader(aOffset, aHeader);
+                }
+            }
+        };
+        bufferOutput.setFlags(RingBuffer.FLAG_MULTI_PRODUCER | RingBuffer.FLAG_FRAMED | RingBuffer.FLAG_SEQUENCE_COUNTERS);
+        bufferOutput.cleanMemoryArea();
+        bufferInput.setWaitStrategy(WaitStrategy.SPIN_YIELD, WaitStrategy.DEFAULT_MAX_PARK_NANOS);
+        bufferOutput.setWaitStrategy(WaitStrategy.SPIN_YIELD, WaitStrategy.DEFAULT_MAX_PARK_NANOS);
+        connect(RingBuffer.V2_OVERHEAD + 1024);
+    }
+
+    @Test
+    public void testMultiProducerAbortedRecord() throws Throwable {
+        AtomicBoolean tempFail = new AtomicBoolean();
+        connectFailingProducer(tempFail, new AtomicBoolean());
+
+        byte[] tempRead = new byte[100];
+        for (int i = 0; i < 30; i++) {
+            bufferOutput.writeRecord(new byte[] {(byte) i}, 0, 1, new byte[0], 0, 0);
+            tempFail.set(true);
+            try {
+                bufferOutput.writeRecord(new byte[50], 0, 50, new byte[0], 0, 0);
+                Assert.fail("Writer did not fail");
+            } catch (IllegalStateException exc) {
+                //Expected.
+            }
+            tempFail.set(false);
+
+            //The aborted record is skipped.
+            RingBuffer.Region tempRegion = bufferInput.peekRecord();
+            Assert.assertEquals(1, tempRegion.getLength());
+            tempRegion.read(0, tempRead, 0, 1);
+            Assert.assertEquals((byte) i, tempRead[0]);
+            bufferInput.releaseRecord();
+        }
+
+        bufferOutput.writeRecord(new byte[] {100}, 0, 1, new byte[0], 0, 0);
+        Assert.assertEquals(1, bufferInput.peekRecord().getLength());
+        bufferInput.releaseRecord();
+        Assert.assertEquals(0, bufferInput.getAvailableBytes());
+    }
+
+    @Test
+    public void testMultiProducerCommitTimeout() throws Throwable {
+        connectFailingProducer(new AtomicBoolean(true), new AtomicBoolean(true));
+        bufferInput.setCommitTimeout(200);
+        try {
+            bufferOutput.writeRecord(new byte[50], 0, 50, new byte[0], 0, 0);
+            Assert.fail("Writer did not fail");
+        } catch (IllegalStateException exc) {
+            //Expected.
+        }
+
+        long tempStart = System.currentTimeMillis();
+        try {
+            bufferInput.peekRecord();
+            Assert.fail("Peeked a record that was never committed");
+        } catch (IOException exc) {
+            //Expected.
+        }
+        Assert.assertTrue(System.currentTimeMillis() - tempStart < 5000);
+        Assert.assertTrue(bufferInput.isClosed());
+    }
+
+    @Test
+    public void testSingleThreadedAccess() throws Throwable {
+        bufferInput.setSingleThreadedAccess(true);
+        bufferOutput.setSingleThreadedAccess(true);
+        connect(RingBuffer.OVERHEAD + 1000);
+
+        byte[] tempWrite = new byte[700];
+        byte[] tempRead = new byte[700];
+        for (int i = 0; i < 10; i++) {
+            rng.nextBytes(tempWrite);
+            dout.write(tempWrite);
+            din.readFully(tempRead);
+            Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+        }
+
+        Future<Object> tempOther = ex.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                dout.write(1);
+                return null;
+            }
+        });
+
+        try {
+            tempOther.get(5000, TimeUnit.MILLISECONDS);
+            Assert.fail("Another thread wrote to a single threaded RingBuffer");
+        } catch (ExecutionException exc) {
+            Assert.assertTrue(exc.getCause() instanceof IllegalStateException);
+        }
+
+        //Statistics are no data path operation, any thread may read them.
+        Future<RingBufferStatistics> tempStats = ex.submit(new Callable<RingBufferStatistics>() {
+            @Override
+            public RingBufferStatistics call() throws Exception {
+                return bufferOutput.getStatistics();
+            }
+        });
+        Assert.assertEquals(0, tempStats.get(5000, TimeUnit.MILLISECONDS).getUsedBytes());
+    }
+
+    @Test
+    public void testSingleThreadedAccessRace() throws Throwable {
+        bufferOutput.setSingleThreadedAccess(true);
+        connect(RingBuffer.OVERHEAD + 1000);
+
+        //Two threads write first at the same time, only one of them may become the owner.
+        final CyclicBarrier tempBarrier = new CyclicBarrier(2);
+        List<Future<Object>> tempWriters = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            tempWriters.add(ex.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    tempBarrier.await();
+                    dout.write(1);
+                    return null;
+                }
+            }));
+        }
+
+        int tempFailed = 0;
+        for (Future<Object> tempWriter : tempWriters) {
+            try {
+                tempWriter.get(5000, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException exc) {
+                Assert.assertTrue(exc.getCause() instanceof IllegalStateException);
+                tempFailed++;
+            }
+        }
+
+        Assert.assertEquals(1, tempFailed);
+        Assert.assertEquals(1, bufferInput.getAvailableBytes());
+    }
+
+    @Test
+    public void testStatistics() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 1000);
+
+        byte[] tempWrite = new byte[700];
+        for (int i = 0; i < 3; i++) {
+            dout.write(tempWrite);
+            din.readFully(new byte[700]);
+        }
+
+        Future<Integer> tempRead = ex.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return din.read();
+            }
+        });
+        Thread.sleep(200);
+        dout.write(1);
+        Assert.assertEquals(1, (int) tempRead.get(5000, TimeUnit.MILLISECONDS));
+
+        bufferOutput.flushStatistics();
+        RingBufferStatistics tempStats = bufferOutput.getStatistics();
+        Assert.assertEquals(2101, tempStats.getWriterCounter(RingBufferStatistics.Counter.BYTES));
+        Assert.assertEquals(2, tempStats.getWriterCounter(RingBufferStatistics.Counter.WRAPS));
+        Assert.assertEquals(2101, tempStats.getWriteIndex() + 2 * 1000);
+        Assert.assertEquals(0, tempStats.getUsedBytes());
+
+        bufferInput.flushStatistics();
+        tempStats = bufferInput.getStatistics();
+        Assert.assertEquals(2101, tempStats.getReaderCounter(RingBufferStatistics.Counter.BYTES));
+        Assert.assertEquals(1, tempStats.getReaderCounter(RingBufferStatistics.Counter.STALLS));
+        Assert.assertTrue(tempStats.getReaderCounter(RingBufferStatistics.Counter.STALL_NANOS) > 0);
+        Assert.assertTrue(tempStats.getReaderCounter(RingBufferStatistics.Counter.EMPTY_POLLS) > 0);
+    }
+
+    /**
+     * Transfers 1400 bytes and returns the bytes written and read in between according to IvshmemStat as well as the rate of written bytes over one second.
+     */
+    private long[] statMoved() throws Throwable {
+        bufferOutput.flushStatistics();
+        bufferInput.flushStatistics();
+        RingBufferStatistics tempLast = bufferOutput.getStatistics();
+        for (int i = 0; i < 2; i++) {
+            dout.write(new byte[700]);
+            din.readFully(new byte[700]);
+        }
+
+        bufferOutput.flushStatistics();
+        bufferInput.flushStatistics();
+        RingBufferStatistics tempCurrent = bufferOutput.getStatistics();
+        return new long[]{IvshmemStat.getMoved(tempLast, tempCurrent, true), IvshmemStat.getMoved(tempLast, tempCurrent, false),
+                IvshmemStat.getRate(tempLast, tempCurrent, RingBufferStatistics.Counter.BYTES, true, 1000000000L)};
+    }
+
+    @Test
+    public void testStatMovedSequenceCounters() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.setFlags(RingBuffer.FLAG_SEQUENCE_COUNTERS);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 1024);
+
+        //The 64 bit indices count every byte even though the buffer wraps.
+        Assert.assertArrayEquals(new long[]{1400, 1400, 1400}, statMoved());
+    }
+
+    @Test
+    public void testStatMovedByteCounters() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 1000);
+
+        //The indices wrapped, the byte counters did not.
+        Assert.assertArrayEquals(new long[]{1400, 1400, 1400}, statMoved());
+    }
+
+    @Test
+    public void testStatMovedLayoutV1() throws Throwable {
+        connect(RingBuffer.OVERHEAD + 1000);
+
+        //Layout version 1 has no counters, movement of a whole buffer size or more is lost.
+        long[] tempMoved = statMoved();
+        long tempSize = bufferOutput.getStatistics().getSize();
+        Assert.assertEquals(1400 % tempSize, tempMoved[0]);
+        Assert.assertEquals(1400 % tempSize, tempMoved[1]);
+        Assert.assertEquals(0, tempMoved[2]);
+    }
+
+    @Test
+    public void testDoorbellSuppression() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.setFlags(RingBuffer.FLAG_DOORBELL_SUPPRESSION);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 4096);
+
+        Future<Integer> tempRead = ex.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return din.read();
+            }
+        });
+
+        long tempTime = System.currentTimeMillis();
+        while (memoryInput.readInt(RingBuffer.V2_READER_WAITING_OFFSET) != 1) {
+            if (System.currentTimeMillis() - tempTime > 5000) {
+                Assert.fail("Reader did not announce waiting!");
+            }
+        }
+
+        Assert.assertEquals(0, memoryInput.readInt(RingBuffer.V2_WRITER_WAITING_OFFSET));
+        dout.write(42);
+        Assert.assertEquals(42, tempRead.get(5000, TimeUnit.MILLISECONDS).intValue());
+        Assert.assertEquals(0, memoryInput.readInt(RingBuffer.V2_READER_WAITING_OFFSET));
+    }
+
+    @Test
+    public void testParkWaitStrategy() throws Throwable {
+        bufferInput.setWaitStrategy(WaitStrategy.SPIN_PARK, 10000);
+        bufferOutput.setWaitStrategy(WaitStrategy.SPIN_PARK, 10000);
+        connect(RingBuffer.OVERHEAD + 1000);
+
+        Future<Integer> tempRead = ex.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return din.read();
+            }
+        });
+
+        Thread.sleep(100);
+        Assert.assertFalse(tempRead.isDone());
+        dout.write(42);
+        Assert.assertEquals(42, tempRead.get(5000, TimeUnit.MILLISECONDS).intValue());
+
+        bufferInput.setTimeout(100);
+        try {
+            din.read();
+            Assert.fail("Read did not time out");
+        } catch (RingBuffer.RingBufferTimeoutException exc) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void testAdaptiveSpin() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.cleanMemoryArea();
+        AdaptiveSpin tempSpin = new AdaptiveSpin(10000, 50000000);
+        bufferInput.setAdaptiveSpin(tempSpin);
+        connect(RingBuffer.V2_OVERHEAD + 4096);
+        Assert.assertEquals(50000000, tempSpin.getSpinNanos());
+
+        for (int i = 0; i < 32; i++) {
+            dout.write(i);
+            Assert.assertEquals(i, din.read());
+        }
+
+        Assert.assertEquals(10000, tempSpin.getSpinNanos());
+        bufferInput.flushStatistics();
+        Assert.assertEquals(10000, bufferInput.getStatistics().getReaderCounter(RingBufferStatistics.Counter.SPIN_NANOS));
+
+        Future<Integer> tempRead = ex.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return din.read();
+            }
+        });
+
+        Thread.sleep(200);
+        Assert.assertTrue(tempSpin.getSpinNanos() > 10000);
+        dout.write(42);
+        Assert.assertEquals(42, tempRead.get(5000, TimeUnit.MILLISECONDS).intValue());
+        Assert.assertTrue(tempSpin.getSpinNanos() >= 10000 && tempSpin.getSpinNanos() <= 50000000);
+    }
+
+    @Test
+    public void testClaimAndPeek() throws Throwable {
+        connect(RingBuffer.OVERHEAD + 1000);
+
+        byte[] tempWrite = new byte[700];
+        byte[] tempRead = new byte[700];
+        for (int i = 0; i < 5; i++) {
+            rng.nextBytes(tempWrite);
+            RingBuffer.Region tempClaim = bufferOutput.claim(700);
+            Assert.assertEquals(700, tempClaim.getLength());
+            tempClaim.write(0, tempWrite, 0, 600);
+            tempClaim.write(600, tempWrite[600]);
+            tempClaim.write(601, tempWrite, 601, 99);
+            Assert.assertEquals(0, bufferInput.getAvailableBytes());
+            bufferOutput.commit(700);
+
+            RingBuffer.Region tempPeek = bufferInput.peek(700);
+            Assert.assertEquals(700, tempPeek.getLength());
+            Assert.assertEquals(tempWrite[1], tempPeek.read(1));
+            tempPeek.read(0, tempRead, 0, 700);
+            Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+            bufferInput.release(300);
+            Assert.assertEquals(400, bufferInput.getAvailableBytes());
+            din.readFully(tempRead, 300, 400);
+            Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+        }
+
+        try {
+            bufferOutput.claim(1000);
+            Assert.fail("Claimed more than the capacity");
+        } catch (IllegalArgumentException exc) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void testByteBuffers() throws Throwable {
+        connect(RingBuffer.OVERHEAD + 1000);
+        assertByteBuffers();
+    }
+
+    @Test
+    public void testByteBuffersUnsafeMemory() throws Throwable {
+        Assume.assumeTrue(UnsafeMemory.isAvailable() && UnsafeMemory.isDirectBufferSupported());
+        bufferInput.close();
+        bufferOutput.close();
+        bufferInput = new RingBuffer(shmemoryInput, new UnsafeMemory(memoryInput), 0, 64, 64, RingBuffer.LAYOUT_V1);
+        bufferOutput = new RingBuffer(shmemoryOutput, new UnsafeMemory(memoryOutput), 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 1000);
+        assertByteBuffers();
+
+        //A read only direct buffer is copied by its address too.
+        byte[] tempWrite = new byte[100];
+        byte[] tempRead = new byte[100];
+        rng.nextBytes(tempWrite);
+        ByteBuffer tempDirect = ByteBuffer.allocateDirect(100);
+        tempDirect.put(tempWrite).flip();
+        Assert.assertEquals(100, bufferOutput.getWriteChannel().write(tempDirect.asReadOnlyBuffer()));
+        Assert.assertEquals(100, bufferInput.getReadChannel().read(ByteBuffer.wrap(tempRead)));
+        Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+    }
+
+    /**
+     * Writes and reads a mix of heap and direct buffers that wrap around the end of the data area of 1000 bytes.
+     */
+    private void assertByteBuffers() throws Throwable {
+        byte[] tempWrite = new byte[700];
+        byte[] tempRead = new byte[700];
+        for (int i = 0; i < 5; i++) {
+            rng.nextBytes(tempWrite);
+            ByteBuffer tempDirect = ByteBuffer.allocateDirect(300);
+            tempDirect.put(tempWrite, 200, 300).flip();
+            ByteBuffer[] tempSrcs = new ByteBuffer[]{ByteBuffer.wrap(tempWrite, 0, 200), tempDirect, ByteBuffer.wrap(tempWrite, 500, 200)};
+            Assert.assertEquals(700, bufferOutput.getWriteChannel().write(tempSrcs));
+            Assert.assertFalse(tempDirect.hasRemaining());
+            Assert.assertEquals(700, bufferInput.getAvailableBytes());
+
+            //Every write after the first wraps around the end of the buffer.
+            ByteBuffer tempFirst = ByteBuffer.allocateDirect(450);
+            ByteBuffer tempSecond = ByteBuffer.wrap(tempRead, 450, 250);
+            Assert.assertEquals(700, bufferInput.getReadChannel().read(new ByteBuffer[]{tempFirst, tempSecond}));
+            Assert.assertFalse(tempSecond.hasRemaining());
+            tempFirst.flip();
+            tempFirst.get(tempRead, 0, 450);
+            Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+            Assert.assertEquals(0, bufferInput.getAvailableBytes());
+        }
+    }
+
+    @Test
+    public void testFramedRecords() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.setFlags(RingBuffer.FLAG_SEQUENCE_COUNTERS | RingBuffer.FLAG_FRAMED);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 4096);
+
+        Assert.assertEquals(RingBuffer.FLAG_SEQUENCE_COUNTERS | RingBuffer.FLAG_FRAMED, bufferInput.getFlags());
+        Assert.assertEquals(4096 - RingBuffer.RECORD_HEADER_LENGTH, bufferOutput.getMaxRecordLength());
+
+        //Records of 1008 bytes do not divide the buffer so most of them are preceded by padding.
+        byte[] tempWrite = new byte[1000];
+        byte[] tempRead = new byte[1000];
+        for (int i = 0; i < 20; i++) {
+            rng.nextBytes(tempWrite);
+            int tempLength = 900 + (i % 3) * 50;
+            RingBuffer.Region tempClaim = bufferOutput.claimRecord(1000);
+            tempClaim.write(0, tempWrite, 0, tempLength);
+            bufferOutput.commitRecord(tempLength);
+
+            RingBuffer.Region tempPeek = bufferInput.peekRecord();
+            Assert.assertEquals(tempLength, tempPeek.getLength());
+            tempPeek.read(0, tempRead, 0, tempLength);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOf(tempWrite, tempLength), Arrays.copyOf(tempRead, tempLength)));
+            bufferInput.releaseRecord();
+            Assert.assertEquals(0, bufferInput.getAvailableBytes());
+        }
+
+        try {
+            dout.write(tempWrite);
+            Assert.fail("Wrote bytes into a framed ring buffer");
+        } catch (IllegalStateException exc) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void testInvalidRecordLength() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.setFlags(RingBuffer.FLAG_SEQUENCE_COUNTERS | RingBuffer.FLAG_FRAMED);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 4096);
+
+        bufferOutput.claimRecord(16);
+        bufferOutput.commitRecord(16);
+
+        //The record size of this length overflows to a negative number.
+        memoryOutput.write(RingBuffer.V2_OVERHEAD, Integer.MAX_VALUE - 2);
+        try {
+            bufferInput.peekRecord();
+            Assert.fail("Peeked record with invalid length");
+        } catch (IOException exc) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void testSequenceCounters() throws Throwable {
+        bufferOutput.close();
+        bufferOutput = new RingBuffer(shmemoryOutput, 0, 64, 64, RingBuffer.LAYOUT_V2);
+        bufferOutput.setFlags(RingBuffer.FLAG_SEQUENCE_COUNTERS);
+        bufferOutput.cleanMemoryArea();
+        connect(RingBuffer.V2_OVERHEAD + 4096);
+
+        Assert.assertEquals(RingBuffer.FLAG_SEQUENCE_COUNTERS, bufferInput.getFlags());
+        Assert.assertEquals(4096, bufferInput.getCapacity());
+
+        //No byte is reserved so the buffer can be filled completely.
+        byte[] tempWrite = new byte[4096];
+        byte[] tempRead = new byte[4096];
+        for (int i = 0; i < 3; i++) {
+            rng.nextBytes(tempWrite);
+            dout.write(tempWrite, 0, 3000);
+            Assert.assertEquals(4096 - 3000, bufferOutput.getFreeBytes());
+            din.readFully(tempRead, 0, 3000);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOf(tempWrite, 3000), Arrays.copyOf(tempRead, 3000)));
+        }
+
+        dout.write(tempWrite);
+        Assert.assertEquals(0, bufferOutput.getFreeBytes());
+        Assert.assertEquals(4096, bufferInput.getAvailableBytes());
+        din.readFully(tempRead);
+        Assert.assertTrue(Arrays.equals(tempWrite, tempRead));
+
+        //The indices keep counting instead of wrapping.
+        Assert.assertEquals(3 * 3000 + 4096, memoryInput.readLong(RingBuffer.V2_WRITE_INDEX_OFFSET));
+        Assert.assertEquals(3 * 3000 + 4096, memoryInput.readLong(RingBuffer.V2_READ_INDEX_OFFSET));
+    }
+
+
     private static final int DURATION = 60000;
     private static final int BUFSIZ = 444;
 
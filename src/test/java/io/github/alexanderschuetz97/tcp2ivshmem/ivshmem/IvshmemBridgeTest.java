@@ -0,0 +1,196 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.AbstractPacket;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketUtil;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.PacketWriter;
+import io.github.alexanderschuetz97.tcp2ivshmem.packets.StreamPacketWriter;
+import org.junit.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how IvshmemBridge assigns packets to its lanes and batches them in the writer thread. Does not connect any ring buffers.
+ */
+public class IvshmemBridgeTest {
+
+    private static IvshmemBridge bridge(int aLanes) {
+        IvshmemBridge tempBridge = new IvshmemBridge() {
+            @Override
+            protected void connectToIvshmem() {
+                //Not connected.
+            }
+
+            @Override
+            protected void handleRelayout(io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet7Relayout packet) {
+                //Not connected.
+            }
+        };
+        IvshmemBridge.Lane[] tempLanes = new IvshmemBridge.Lane[aLanes];
+        for (int i = 0; i < aLanes; i++) {
+            tempLanes[i] = new IvshmemBridge.Lane(i);
+        }
+        tempBridge.lanes = tempLanes;
+        return tempBridge;
+    }
+
+    @Test
+    public void testLaneOfConnection() {
+        for (int tempLanes : new int[]{1, 2, 3, 16}) {
+            IvshmemBridge tempBridge = bridge(tempLanes);
+            for (int tempId = 0; tempId < 300; tempId++) {
+                IvshmemBridge.Lane tempLane = tempBridge.getLane(tempId);
+                Assert.assertEquals(tempId % tempLanes, tempLane.index);
+
+                //Every packet of a connection uses the lane of the connection.
+                Assert.assertSame(tempLane, tempBridge.getLane(PacketUtil.connect(tempId, "localhost", 80)));
+                Assert.assertSame(tempLane, tempBridge.getLane(PacketUtil.fin(tempId)));
+                Assert.assertSame(tempLane, tempBridge.getLane(PacketUtil.rst(tempId)));
+                Assert.assertSame(tempLane, tempBridge.getLane(PacketUtil.data(tempId, new byte[4], 4)));
+                Assert.assertSame(tempLane, tempBridge.getLane(PacketUtil.pooledData(tempId, 0, 4)));
+            }
+        }
+    }
+
+    @Test
+    public void testLaneOfOtherPackets() {
+        IvshmemBridge tempBridge = bridge(4);
+        IvshmemBridge.Lane tempFirst = tempBridge.lanes[0];
+        Assert.assertSame(tempFirst, tempBridge.getLane(PacketUtil.server(null, 8080, "localhost", 80)));
+        Assert.assertSame(tempFirst, tempBridge.getLane(PacketUtil.serverResult(5, true)));
+        Assert.assertSame(tempFirst, tempBridge.getLane(PacketUtil.relayout(3, 8192, 8192)));
+    }
+
+    /**
+     * Returns a bridge whose writer thread records the amount of bytes of every flushed batch into aFlushes.
+     */
+    private static IvshmemBridge batchingBridge(final int aBatchSize, final long aBatchLatency, final BlockingQueue<Integer> aFlushes) {
+        IvshmemBridge tempBridge = new IvshmemBridge() {
+            @Override
+            protected void connectToIvshmem() {
+                //Not connected.
+            }
+
+            @Override
+            protected void handleRelayout(io.github.alexanderschuetz97.tcp2ivshmem.packets.Packet7Relayout packet) {
+                //Not connected.
+            }
+
+            @Override
+            protected int getWriteBatchSize() {
+                return aBatchSize;
+            }
+
+            @Override
+            protected long getWriteBatchLatency() {
+                return aBatchLatency;
+            }
+
+            @Override
+            protected PacketWriter createWriter(Lane lane, int batchSize) {
+                return new StreamPacketWriter(new ByteArrayOutputStream(), batchSize) {
+                    @Override
+                    public void flush() throws IOException {
+                        aFlushes.add(getBufferedBytes());
+                        super.flush();
+                    }
+                };
+            }
+        };
+        tempBridge.lanes = new IvshmemBridge.Lane[]{new IvshmemBridge.Lane(0)};
+        return tempBridge;
+    }
+
+    private static Thread startWriter(final IvshmemBridge aBridge) {
+        Thread tempThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    aBridge.write(aBridge.lanes[0]);
+                } catch (Exception e) {
+                    //Interrupted at the end of the test.
+                }
+            }
+        };
+        tempThread.setDaemon(true);
+        tempThread.start();
+        return tempThread;
+    }
+
+    private static int encodedSize(AbstractPacket aPacket) throws IOException {
+        PacketWriter tempWriter = new StreamPacketWriter(new ByteArrayOutputStream(), 128);
+        tempWriter.writePacket(aPacket);
+        return tempWriter.getBufferedBytes();
+    }
+
+    @Test
+    public void testBatchSize() throws Throwable {
+        int tempSize = encodedSize(PacketUtil.data(1, new byte[50], 50));
+        BlockingQueue<Integer> tempFlushes = new LinkedBlockingQueue<>();
+
+        //The batch is flushed as soon as it reaches the batch size, which takes 3 packets.
+        IvshmemBridge tempBridge = batchingBridge(2 * tempSize + 1, 0, tempFlushes);
+        for (int i = 0; i < 10; i++) {
+            tempBridge.lanes[0].queue.add(PacketUtil.data(1, new byte[50], 50));
+        }
+
+        Thread tempWriter = startWriter(tempBridge);
+        try {
+            Assert.assertEquals(3 * tempSize, (int) tempFlushes.poll(5, TimeUnit.SECONDS));
+            Assert.assertEquals(3 * tempSize, (int) tempFlushes.poll(5, TimeUnit.SECONDS));
+            Assert.assertEquals(3 * tempSize, (int) tempFlushes.poll(5, TimeUnit.SECONDS));
+
+            //Without a batch latency the rest of the queue is flushed right away.
+            Assert.assertEquals(tempSize, (int) tempFlushes.poll(5, TimeUnit.SECONDS));
+            Assert.assertNull(tempFlushes.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            tempWriter.interrupt();
+        }
+    }
+
+    @Test
+    public void testBatchLatency() throws Throwable {
+        int tempSize = encodedSize(PacketUtil.data(1, new byte[50], 50));
+        BlockingQueue<Integer> tempFlushes = new LinkedBlockingQueue<>();
+        IvshmemBridge tempBridge = batchingBridge(1024 * 1024, TimeUnit.MILLISECONDS.toMicros(300), tempFlushes);
+        Thread tempWriter = startWriter(tempBridge);
+        try {
+            //The writer waits up to the batch latency for more packets before it flushes a batch that is not full.
+            long tempStart = System.nanoTime();
+            tempBridge.lanes[0].queue.add(PacketUtil.data(1, new byte[50], 50));
+            Thread.sleep(50);
+            tempBridge.lanes[0].queue.add(PacketUtil.data(1, new byte[50], 50));
+            Assert.assertEquals(2 * tempSize, (int) tempFlushes.poll(5, TimeUnit.SECONDS));
+            Assert.assertTrue(System.nanoTime() - tempStart >= TimeUnit.MILLISECONDS.toNanos(250));
+
+            //A packet that arrives after the deadline starts a new batch.
+            tempBridge.lanes[0].queue.add(PacketUtil.data(1, new byte[50], 50));
+            Assert.assertEquals(tempSize, (int) tempFlushes.poll(5, TimeUnit.SECONDS));
+        } finally {
+            tempWriter.interrupt();
+        }
+    }
+}
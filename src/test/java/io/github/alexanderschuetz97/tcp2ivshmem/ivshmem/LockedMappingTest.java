@@ -0,0 +1,90 @@
+/*
+ * Copyright Alexander Schütz, 2020-2022
+ *
+ * This file is part of tcp2ivshmem.
+ *
+ * tcp2ivshmem is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * tcp2ivshmem is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * A copy of the GNU General Public License should be provided
+ * in the COPYING file in top level directory of tcp2ivshmem.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package io.github.alexanderschuetz97.tcp2ivshmem.ivshmem;
+
+import io.github.alexanderschuetz97.ivshmem4j.api.Ivshmem;
+import io.github.alexanderschuetz97.ivshmem4j.api.IvshmemMemory;
+import io.github.alexanderschuetz97.nativeutils.api.NativeMemory;
+import io.github.alexanderschuetz97.nativeutils.impl.NativeLibraryLoaderHelper;
+import org.junit.*;
+
+import java.io.File;
+import java.util.Random;
+
+public class LockedMappingTest {
+
+    @BeforeClass
+    public static void setupJNI() {
+        NativeLibraryLoaderHelper.loadNativeLibraries();
+    }
+
+    @Test
+    public void testLockFlags() {
+        for (String tempArch : new String[]{"amd64", "x86_64", "x86", "i386", "i686", "aarch64", "arm", "riscv64", "s390x", "loongarch64"}) {
+            Assert.assertEquals(tempArch, 0x2000 | 0x8000, LockedMapping.getLockFlags(tempArch));
+        }
+
+        Assert.assertEquals(0x80 | 0x8000, LockedMapping.getLockFlags("ppc64le"));
+        Assert.assertEquals(0x80 | 0x8000, LockedMapping.getLockFlags("ppc"));
+        Assert.assertEquals(0x100 | 0x8000, LockedMapping.getLockFlags("sparcv9"));
+        Assert.assertEquals(0x8000 | 0x10000, LockedMapping.getLockFlags("mips64el"));
+        Assert.assertEquals(0x8000 | 0x20000, LockedMapping.getLockFlags("alpha"));
+        Assert.assertEquals(0x2000 | 0x10000, LockedMapping.getLockFlags("parisc"));
+
+        //Unknown architectures are not locked.
+        Assert.assertEquals(0, LockedMapping.getLockFlags("vax"));
+        Assert.assertEquals(0, LockedMapping.getLockFlags(null));
+    }
+
+    @Test
+    public void testMissingFile() {
+        Assume.assumeTrue(System.getProperty("os.name", "").toLowerCase().contains("linux"));
+        Assert.assertNull(LockedMapping.map("/dev/shm/" + getClass().getSimpleName() + "Missing", 4096));
+    }
+
+    @Test
+    public void testSharesPages() throws Throwable {
+        Assume.assumeTrue(System.getProperty("os.name", "").toLowerCase().contains("linux"));
+        File tempFile = new File("/dev/shm/" + getClass().getSimpleName() + Math.abs(new Random().nextInt()));
+        tempFile.deleteOnExit();
+        IvshmemMemory tempShmem = Ivshmem.plain(tempFile.getAbsolutePath(), 16384);
+        try {
+            NativeMemory tempLocked = LockedMapping.map(tempFile.getAbsolutePath(), 16384);
+
+            //RLIMIT_MEMLOCK may not allow locking 16K, the caller then only touches the pages.
+            Assume.assumeNotNull(tempLocked);
+            try {
+                tempShmem.getMemory().write(8192, 1234L);
+                Assert.assertEquals(1234L, tempLocked.readLong(8192));
+                tempLocked.write(16376, 5678L);
+                Assert.assertEquals(5678L, tempShmem.getMemory().readLong(16376));
+            } finally {
+                tempLocked.close();
+            }
+            Assert.assertFalse(tempLocked.isValid());
+            Assert.assertEquals(1234L, tempShmem.getMemory().readLong(8192));
+        } finally {
+            tempShmem.getMemory().close();
+            tempFile.delete();
+        }
+    }
+}